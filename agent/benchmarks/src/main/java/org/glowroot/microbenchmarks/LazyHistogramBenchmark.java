@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LazyHistogramBenchmark {
+
+    // below and above the number of values at which LazyHistogram converts to HdrHistogram
+    @Param({"100", "100000"})
+    private int valueCount;
+
+    private long[] values;
+    private Aggregate.Histogram encodedHistogram;
+    private LazyHistogram lazyHistogram;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random();
+        values = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            // durations between 1 millisecond and 10 seconds, in nanoseconds
+            values[i] = 1000000 + (long) (random.nextDouble() * 10000000000L);
+        }
+        scratchBuffer = new ScratchBuffer();
+        lazyHistogram = new LazyHistogram();
+        for (long value : values) {
+            lazyHistogram.add(value);
+        }
+        encodedHistogram = lazyHistogram.toProto(scratchBuffer);
+    }
+
+    // simulates one aggregation interval, releasing the histogram at the end of the interval the
+    // same as AggregateIntervalCollector does after flushing
+    @Benchmark
+    public void record() {
+        LazyHistogram histogram = LazyHistogram.createPooled();
+        for (long value : values) {
+            histogram.add(value);
+        }
+        histogram.release();
+    }
+
+    @Benchmark
+    public void merge() {
+        LazyHistogram histogram = LazyHistogram.createPooled();
+        histogram.merge(encodedHistogram);
+        histogram.release();
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encode() {
+        return lazyHistogram.toProto(scratchBuffer);
+    }
+}
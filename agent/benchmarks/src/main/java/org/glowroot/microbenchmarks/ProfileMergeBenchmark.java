@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.CompactProfile;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// simulates merging a day of one-minute aggregate profiles for a transaction (as done for the
+// transaction profile page), run with -prof gc to compare allocation rates
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ProfileMergeBenchmark {
+
+    @Param({"60", "1440"})
+    private int profileCount;
+
+    // stack trace samples per one-minute profile
+    @Param({"500"})
+    private int samplesPerProfile;
+
+    private List<Profile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        // shared pool of call paths, so that profiles overlap the way that real application
+        // profiles do (common framework frames near the root, diverging toward the leaves)
+        List<List<StackTraceElement>> callPaths = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            callPaths.add(randomCallPath(random));
+        }
+        Thread.State[] threadStates =
+                {Thread.State.RUNNABLE, Thread.State.BLOCKED, Thread.State.TIMED_WAITING};
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < profileCount; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < samplesPerProfile; j++) {
+                profile.merge(callPaths.get(random.nextInt(callPaths.size())),
+                        threadStates[random.nextInt(threadStates.length)]);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public Profile mergeMutable() {
+        MutableProfile mergedProfile = new MutableProfile();
+        for (Profile profile : profiles) {
+            mergedProfile.merge(profile);
+        }
+        mergedProfile.truncateBranches(0.1);
+        return mergedProfile.toProto();
+    }
+
+    @Benchmark
+    public Profile mergeCompact() {
+        CompactProfile mergedProfile = new CompactProfile();
+        for (Profile profile : profiles) {
+            mergedProfile.merge(profile);
+        }
+        mergedProfile.truncateBranches(0.1);
+        return mergedProfile.toProto();
+    }
+
+    private static List<StackTraceElement> randomCallPath(Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        int depth = 40 + random.nextInt(80);
+        for (int i = 0; i < depth; i++) {
+            // fewer distinct frames near the root (end of the list)
+            int distinct = 1 + (depth - i) / 4;
+            int n = random.nextInt(distinct);
+            stackTrace.add(new StackTraceElement("com.example.layer" + (depth - i) + ".Class" + n,
+                    "method" + n, "Class" + n + ".java", 100 + n));
+        }
+        return stackTrace;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.Resources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.glowroot.agent.plugin.jdbc.SqlNormalizer;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SqlNormalizerBenchmark {
+
+    private String[] queries;
+
+    @Setup
+    public void setup() throws IOException {
+        // corpus of orm generated, scheduler, batch and hand written queries, both with inlined
+        // literals and with bind parameter placeholders
+        List<String> lines = Resources.readLines(
+                Resources.getResource(SqlNormalizerBenchmark.class, "sql-corpus.txt"), UTF_8);
+        queries = lines.toArray(new String[lines.size()]);
+    }
+
+    // normalizes the whole corpus per invocation
+    @Benchmark
+    public void normalize(Blackhole blackhole) {
+        for (String query : queries) {
+            blackhole.consume(SqlNormalizer.normalize(query));
+        }
+    }
+}
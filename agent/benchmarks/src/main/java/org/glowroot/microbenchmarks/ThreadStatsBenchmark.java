@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// compares the per-transaction cost of capturing thread stats (with the default "Capture thread
+// stats" transaction config) when blocked and waited times are captured at the start and end of
+// every transaction, against when they are only captured by the background ThreadStatsSampler for
+// transactions over the threshold
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    @Param
+    private PointcutType pointcutType;
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doExecute();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.threadStats.blockedWaitedThresholdMillis=100")
+    public void executeWithBlockedWaitedThreshold() throws Exception {
+        doExecute();
+    }
+
+    private void doExecute() throws Exception {
+        switch (pointcutType) {
+            case API:
+                transactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                transactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+    }
+}
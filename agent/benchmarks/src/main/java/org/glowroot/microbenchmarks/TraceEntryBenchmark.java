@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -26,6 +27,11 @@ import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
@@ -51,6 +57,27 @@ public class TraceEntryBenchmark extends TransactionWorthy {
         doSomethingTransactionWorthy();
     }
 
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.traceEntryArena=true")
+    public void executeWithArena() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    // runs this benchmark with the gc profiler, which reports the allocation rate, with
+    // gc.alloc.rate.norm being the bytes allocated per trace entry
+    //
+    // any other jmh command line options can be passed as well (e.g. -jvmArgs
+    // -javaagent:glowroot.jar)
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(TraceEntryBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
     @Override
     public void doSomethingTransactionWorthy() throws Exception {
         switch (pointcutType) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2023 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -25,6 +25,7 @@ import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
 
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
@@ -45,6 +46,46 @@ public class TransactionBenchmark {
 
     @Benchmark
     public void execute() throws Exception {
+        doExecute();
+    }
+
+    // the throughput benchmarks below show how transaction completion scales with the number of
+    // threads, run them with and without -Dglowroot.internal.aggregate.striped=true passed to the
+    // forked jvm to compare the single TransactionProcessorLoop against striped aggregation
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(1)
+    public void throughputWith1Thread() throws Exception {
+        doExecute();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(4)
+    public void throughputWith4Threads() throws Exception {
+        doExecute();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(16)
+    public void throughputWith16Threads() throws Exception {
+        doExecute();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(64)
+    public void throughputWith64Threads() throws Exception {
+        doExecute();
+    }
+
+    private void doExecute() throws Exception {
         switch (pointcutType) {
             case API:
                 transactionWorthy.doSomethingTransactionWorthy();
@@ -15,19 +15,30 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import org.openjdk.jmh.annotations.AuxCounters;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -46,15 +57,23 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 @State(Scope.Thread)
 public class WeavingBenchmark {
 
-    private Set<String> classNames;
+    private static final int PARALLEL_THREADS = 16;
+
+    private List<String> classNames;
+
+    private URL[] classPathUrls;
+
+    private ExecutorService executor;
 
     @Setup
     public void setup() throws IOException {
-        classNames = new HashSet<String>();
+        Set<String> classNames = new HashSet<String>();
+        List<URL> urls = new ArrayList<URL>();
         for (String path : getClassPath()) {
             if (!path.endsWith(".jar")) {
                 continue;
             }
+            urls.add(new File(path).toURI().toURL());
             JarFile jarFile = new JarFile(path);
             try {
                 Enumeration<JarEntry> e = jarFile.entries();
@@ -71,10 +90,14 @@ public class WeavingBenchmark {
                 jarFile.close();
             }
         }
+        this.classNames = new ArrayList<String>(classNames);
+        classPathUrls = urls.toArray(new URL[urls.size()]);
+        executor = Executors.newFixedThreadPool(PARALLEL_THREADS);
     }
 
     @TearDown
     public void tearDown() throws InterruptedException {
+        executor.shutdown();
         MILLISECONDS.sleep(100);
     }
 
@@ -89,8 +112,100 @@ public class WeavingBenchmark {
         }
     }
 
+    // the throughput benchmarks below load the same classes over and over again, each time in a new
+    // class loader so that every class goes through the weaver, and report the "classes" counter as
+    // classes per second, with and without the weaving pre-filter (the weaving cache is disabled in
+    // the forked jvm so that every class is analyzed)
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weaving.disableCache=true")
+    public void throughputWithPreFilter(ClassCounter counter) throws Exception {
+        loadClassesInNewLoader(counter, 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(jvmArgsAppend = {"-Dglowroot.internal.weaving.disableCache=true",
+            "-Dglowroot.internal.weaving.disablePreFilter=true"})
+    public void throughputWithoutPreFilter(ClassCounter counter) throws Exception {
+        loadClassesInNewLoader(counter, 1);
+    }
+
+    // this simulates application server startup, where many threads load classes in parallel
+    // through the same class loader, and so contend on the analyzed world of the weaver
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weaving.disableCache=true")
+    public void throughputWithParallelThreads(ClassCounter counter) throws Exception {
+        loadClassesInNewLoader(counter, PARALLEL_THREADS);
+    }
+
+    private void loadClassesInNewLoader(ClassCounter counter, int threadCount) throws Exception {
+        // parent is the platform (or extension) class loader so that none of the classes are
+        // found already loaded by the application class loader
+        final URLClassLoader loader = new URLClassLoader(classPathUrls,
+                ClassLoader.getSystemClassLoader().getParent());
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < threadCount; i++) {
+                final List<String> partition = new ArrayList<String>();
+                for (int j = i; j < classNames.size(); j += threadCount) {
+                    partition.add(classNames.get(j));
+                }
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return loadClasses(partition, loader);
+                    }
+                }));
+            }
+            for (Future<Long> future : futures) {
+                counter.classes += future.get();
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    private static long loadClasses(List<String> classNames, ClassLoader loader) {
+        long count = 0;
+        for (String className : classNames) {
+            try {
+                Class.forName(className, false, loader);
+                count++;
+            } catch (ClassNotFoundException e) {
+                // not expected since the class names were read from the same jar files
+            } catch (NoClassDefFoundError e) {
+                // optional dependencies are not transitively included
+            }
+        }
+        return count;
+    }
+
     private static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
     }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ClassCounter {
+
+        public long classes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            classes = 0;
+        }
+    }
 }
@@ -15,6 +15,9 @@
  */
 package org.glowroot.agent.bytecode.api;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -31,6 +34,8 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 // order to help with stack frame maps
 public class ThreadContextThreadLocal {
 
+    private static final int VIRTUAL_THREAD_SWEEP_INTERVAL = 65536;
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private static final ThreadLocal<Holder> threadLocal = new ThreadLocal<Holder>() {
         @Override
@@ -39,18 +44,42 @@ public class ThreadContextThreadLocal {
         }
     };
 
+    // virtual threads can be created by the millions, so instead of allocating a Holder (and a
+    // ThreadLocalMap) for every virtual thread that passes through woven code, virtual threads
+    // share a single unbound holder, and a bound holder is only allocated (and tracked here) while
+    // the virtual thread has a thread context
+    private static final ConcurrentMap<Thread, Holder> virtualThreadHolders =
+            new ConcurrentHashMap<Thread, Holder>();
+
+    private static final Holder unboundVirtualThreadHolder = new UnboundVirtualThreadHolder();
+
+    // racy increments are ok, this is only used to trigger occasional sweeps
+    private static int virtualThreadBindCount;
+
     public @Nullable ThreadContextPlus get() {
-        return threadLocal.get().value;
+        return getHolder().get();
     }
 
     public void set(@Nullable ThreadContextPlus value) {
-        threadLocal.get().value = value;
+        getHolder().set(value);
     }
 
     public Holder getHolder() {
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            return unboundVirtualThreadHolder;
+        }
         return threadLocal.get();
     }
 
+    // clean up after any virtual threads that terminated without clearing their thread context
+    private static void sweepTerminatedVirtualThreads() {
+        for (Thread thread : virtualThreadHolders.keySet()) {
+            if (!thread.isAlive()) {
+                virtualThreadHolders.remove(thread);
+            }
+        }
+    }
+
     public static class Holder {
 
         private @Nullable ThreadContextPlus value;
@@ -64,5 +93,69 @@ public class ThreadContextThreadLocal {
         public void set(@Nullable ThreadContextPlus value) {
             this.value = value;
         }
+
+        // returns a holder that is tied to the current thread, so that it can be safely retained
+        // and accessed from other threads, e.g. ThreadContextImpl.isActive() is called from the
+        // stack trace collector thread
+        public Holder bind() {
+            return this;
+        }
+    }
+
+    private static class UnboundVirtualThreadHolder extends Holder {
+
+        @Override
+        public @Nullable ThreadContextPlus get() {
+            Holder holder = virtualThreadHolders.get(Thread.currentThread());
+            return holder == null ? null : holder.get();
+        }
+
+        @Override
+        public void set(@Nullable ThreadContextPlus value) {
+            if (value == null) {
+                Holder holder = virtualThreadHolders.get(Thread.currentThread());
+                if (holder != null) {
+                    holder.set(null);
+                }
+            } else {
+                bind().set(value);
+            }
+        }
+
+        @Override
+        public Holder bind() {
+            Thread currentThread = Thread.currentThread();
+            Holder holder = virtualThreadHolders.get(currentThread);
+            if (holder == null) {
+                if (++virtualThreadBindCount % VIRTUAL_THREAD_SWEEP_INTERVAL == 0) {
+                    sweepTerminatedVirtualThreads();
+                }
+                holder = new BoundVirtualThreadHolder(currentThread);
+                // only the current thread adds entries for itself, so no need for putIfAbsent
+                virtualThreadHolders.put(currentThread, holder);
+            }
+            return holder;
+        }
+    }
+
+    private static class BoundVirtualThreadHolder extends Holder {
+
+        private final Thread thread;
+
+        private BoundVirtualThreadHolder(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public void set(@Nullable ThreadContextPlus value) {
+            super.set(value);
+            if (value == null) {
+                virtualThreadHolders.remove(thread, this);
+            } else {
+                // re-register in case this holder was cleared (e.g. by ThreadContextImpl.detach()
+                // from another thread) and is now being re-used
+                virtualThreadHolders.putIfAbsent(thread, this);
+            }
+        }
     }
 }
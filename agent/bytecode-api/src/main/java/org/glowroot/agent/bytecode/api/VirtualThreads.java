@@ -0,0 +1,61 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.bytecode.api;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// Thread.isVirtual() cannot be called directly since this module is compiled against java 6
+public class VirtualThreads {
+
+    private static final boolean DISABLED =
+            Boolean.getBoolean("glowroot.internal.virtualThreads.disabled");
+
+    private static final @Nullable Class<?> baseVirtualThreadClass;
+
+    static {
+        baseVirtualThreadClass = DISABLED ? null : getBaseVirtualThreadClass();
+    }
+
+    private VirtualThreads() {}
+
+    public static boolean isSupported() {
+        return baseVirtualThreadClass != null;
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        // Class.isInstance() is intrinsified, so this is cheap enough to call on hot paths
+        return baseVirtualThreadClass != null && baseVirtualThreadClass.isInstance(thread);
+    }
+
+    private static @Nullable Class<?> getBaseVirtualThreadClass() {
+        // BaseVirtualThread is the common super class of VirtualThread and BoundVirtualThread
+        // (the latter is used when virtual threads are not supported by the platform)
+        Class<?> clazz = getBootstrapClass("java.lang.BaseVirtualThread");
+        if (clazz == null) {
+            // java 19 and 20 (preview)
+            clazz = getBootstrapClass("java.lang.VirtualThread");
+        }
+        return clazz;
+    }
+
+    private static @Nullable Class<?> getBootstrapClass(String name) {
+        try {
+            return Class.forName(name, false, null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -287,7 +287,7 @@ public class MainEntryPoint {
         if (customCollectorClass != null && collectorProxyConstructor == null) {
             // non-delegating custom class loader
             startupLogger.info("using collector: {}", customCollectorClass.getName());
-            return new NonEmbeddedGlowrootAgentInit(null, null, customCollectorClass);
+            return new NonEmbeddedGlowrootAgentInit(null, null, customCollectorClass, null);
         }
         if (collectorAddress == null) {
             File embeddedCollectorJarFile = directories.getEmbeddedCollectorJarFile();
@@ -337,8 +337,11 @@ public class MainEntryPoint {
                     .appendToSystemClassLoaderSearch(new JarFile(centralCollectorHttpsJarFile));
         }
         String collectorAuthority = properties.get("glowroot.collector.authority");
+        // only create the data dir when spooling to disk is enabled
+        File spoolDataDir = properties.containsKey("glowroot.collector.spool.maxSizeMb")
+                ? directories.getDataDir() : null;
         return new NonEmbeddedGlowrootAgentInit(collectorAddress, collectorAuthority,
-                customCollectorClass);
+                customCollectorClass, spoolDataDir);
     }
 
     private static ImmutableMap<String, String> getGlowrootProperties(List<File> confDirs)
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+// marshaller for request messages that have already been serialized into a pooled buffer, the
+// buffer is released once grpc has framed it (grpc closes the stream after framing)
+class ByteBufMarshaller implements Marshaller<ByteBuf> {
+
+    static final ByteBufMarshaller INSTANCE = new ByteBufMarshaller();
+
+    private ByteBufMarshaller() {}
+
+    @Override
+    public InputStream stream(ByteBuf value) {
+        return new ByteBufInputStream(value);
+    }
+
+    @Override
+    public ByteBuf parse(InputStream stream) {
+        throw new UnsupportedOperationException("Only used for sending request messages");
+    }
+
+    // allocates a heap buffer of exactly the given size, and returns a coded output stream that
+    // writes directly into its backing array (call checkNoSpaceLeft() and then commit() when done)
+    static ByteBuf allocate(int size) {
+        return PooledByteBufAllocator.DEFAULT.heapBuffer(size, size);
+    }
+
+    static CodedOutputStream newCodedOutputStream(ByteBuf buf) {
+        return CodedOutputStream.newInstance(buf.array(), buf.arrayOffset() + buf.writerIndex(),
+                buf.writableBytes());
+    }
+
+    static void commit(ByteBuf buf) {
+        buf.writerIndex(buf.capacity());
+    }
+
+    static ByteBuf toByteBuf(MessageLite message) throws IOException {
+        int size = message.getSerializedSize();
+        ByteBuf buf = allocate(size);
+        boolean success = false;
+        try {
+            CodedOutputStream output = newCodedOutputStream(buf);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+            commit(buf);
+            success = true;
+            return buf;
+        } finally {
+            if (!success) {
+                buf.release();
+            }
+        }
+    }
+
+    private static class ByteBufInputStream extends InputStream implements KnownLength, Drainable {
+
+        private final ByteBuf buf;
+
+        private boolean released;
+
+        private ByteBufInputStream(ByteBuf buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = buf.readableBytes();
+            buf.readBytes(target, length);
+            return length;
+        }
+
+        @Override
+        public int read() {
+            if (!buf.isReadable()) {
+                return -1;
+            }
+            return buf.readByte() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int readable = buf.readableBytes();
+            if (readable == 0) {
+                return -1;
+            }
+            int length = Math.min(readable, len);
+            buf.readBytes(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buf.readableBytes();
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                buf.release();
+                released = true;
+            }
+        }
+    }
+}
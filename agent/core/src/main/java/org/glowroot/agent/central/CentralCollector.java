@@ -15,13 +15,18 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,18 +34,32 @@ import java.util.regex.Pattern;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCalls;
 import io.grpc.stub.StreamObserver;
+import io.netty.buffer.ByteBuf;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
 import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.EncodedAggregate;
+import org.glowroot.agent.collector.Collector.EncodedAggregateReader;
+import org.glowroot.agent.collector.Collector.EncodedAggregateVisitor;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -64,6 +83,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage.LogEvent.Level;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Entries;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.Queries;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage.TraceStreamHeader;
@@ -73,6 +93,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -89,6 +110,28 @@ public class CentralCollector implements Collector {
         SKIP_DELAY = Integer.getInteger("glowroot.internal.rollup.0.intervalMillis", 60000) < 10000;
     }
 
+    // aggregates are serialized directly into pooled buffers instead of building the intermediate
+    // Aggregate messages (the bytes on the wire are the same)
+    private static final boolean ENCODED_AGGREGATES =
+            !Boolean.getBoolean("glowroot.internal.collector.disableEncodedAggregates");
+
+    // trace entries are sent in bounded-size chunks instead of one message per entry (0 disables
+    // chunking), but only once the central collector has reported a version that supports them
+    private static final int TRACE_ENTRY_CHUNK_BYTES =
+            Integer.getInteger("glowroot.internal.collector.traceEntryChunkBytes", 64 * 1024);
+
+    // a spooled record that keeps failing is dropped after this many replay attempts, so that it
+    // cannot block the records behind it forever
+    private static final int MAX_SPOOL_REPLAY_ATTEMPTS =
+            Integer.getInteger("glowroot.internal.collector.spool.maxReplayAttempts", 5);
+
+    // same full method name as the generated method, so this is wire compatible with any central
+    private static final MethodDescriptor<ByteBuf, AggregateResponseMessage> ENCODED_COLLECT_AGGREGATE_STREAM_METHOD =
+            CollectorServiceGrpc.getCollectAggregateStreamMethod().toBuilder(
+                    ByteBufMarshaller.INSTANCE,
+                    ProtoUtils.marshaller(AggregateResponseMessage.getDefaultInstance()))
+                    .build();
+
     private final String agentId;
     private final String collectorAddress;
     private final ConfigService configService;
@@ -102,14 +145,22 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final AtomicBoolean inConnectionFailure = new AtomicBoolean();
+
+    // spool is only used if glowroot.collector.spool.maxSizeMb is set
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ScheduledExecutorService spoolReplayExecutor;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
+    // central collectors prior to 0.14.3 silently drop chunked trace entries
+    private volatile boolean traceEntryChunksSupported;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
-            ConfigService configService) throws Exception {
+            @Nullable String collectorAuthority, List<File> confDirs, @Nullable File dataDir,
+            boolean configReadOnly, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, ConfigService configService) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (agentId == null) {
@@ -131,7 +182,6 @@ public class CentralCollector implements Collector {
 
         startupLogger.info("agent id: {}", agentId);
 
-        AtomicBoolean inConnectionFailure = new AtomicBoolean();
         centralConnection = new CentralConnection(collectorAddress, collectorAuthority, confDirs,
                 inConnectionFailure);
         collectorServiceStub = CollectorServiceGrpc.newStub(centralConnection.getChannel())
@@ -139,6 +189,23 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, configReadOnly, liveJvmService, liveWeavingService,
                 liveTraceRepository, agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        long spoolMaxSizeMb = getSpoolMaxSizeMb(properties);
+        if (spoolMaxSizeMb > 0 && dataDir != null) {
+            File spoolFile = new File(dataDir, "central-spool.dat");
+            spool = new CentralSpool(spoolFile, spoolMaxSizeMb * 1024 * 1024);
+            ScheduledExecutorService spoolReplayExecutor = Executors
+                    .newSingleThreadScheduledExecutor(
+                            ThreadFactories.create("Glowroot-Central-Spool-Replay"));
+            spoolReplayExecutor.scheduleWithFixedDelay(new SpoolReplayRunnable(), 30, 30,
+                    SECONDS);
+            this.spoolReplayExecutor = spoolReplayExecutor;
+            startupLogger.info("spooling data to {} while the central collector is unreachable",
+                    spoolFile.getAbsolutePath());
+        } else {
+            spool = null;
+            spoolReplayExecutor = null;
+        }
     }
 
     @Override
@@ -176,6 +243,8 @@ public class CentralCollector implements Collector {
                     startupLogger.warn("the central collector version is older than the agent"
                             + " version which could cause unpredictable issues");
                 }
+                traceEntryChunksSupported =
+                        isTraceEntryChunksSupported(response.getGlowrootCentralVersion());
                 if (response.hasAgentConfig() && !configReadOnly) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -202,8 +271,14 @@ public class CentralCollector implements Collector {
         if (!SKIP_DELAY) {
             MILLISECONDS.sleep(nextAggregateDelayMillis);
         }
-        centralConnection
-                .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        CollectAggregatesGrpcCall grpcCall = new CollectAggregatesGrpcCall(aggregateReader);
+        boolean success = centralConnection.blockingCallWithAFewRetries(grpcCall);
+        if (!success && spool != null) {
+            byte[] payload = grpcCall.toSpoolPayload();
+            if (payload != null) {
+                spool.append(CentralSpool.AGGREGATES, payload);
+            }
+        }
     }
 
     @Override
@@ -245,7 +320,14 @@ public class CentralCollector implements Collector {
             // reader will not be idempotent, so could lead to confusing results
             centralConnection.blockingCallOnce(new CollectTraceGrpcCall(traceReader));
         } else {
-            centralConnection.blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+            CollectTraceGrpcCall grpcCall = new CollectTraceGrpcCall(traceReader);
+            boolean success = centralConnection.blockingCallWithAFewRetries(grpcCall);
+            if (!success && spool != null) {
+                byte[] payload = grpcCall.toSpoolPayload();
+                if (payload != null) {
+                    spool.append(CentralSpool.TRACE, payload);
+                }
+            }
         }
     }
 
@@ -272,7 +354,16 @@ public class CentralCollector implements Collector {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        if (spoolReplayExecutor != null) {
+            spoolReplayExecutor.shutdownNow();
+            if (!spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        if (spool != null) {
+            spool.close();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
@@ -282,6 +373,28 @@ public class CentralCollector implements Collector {
         centralConnection.awaitClose();
     }
 
+    private static long getSpoolMaxSizeMb(Map<String, String> properties) {
+        String value = properties.get("glowroot.collector.spool.maxSizeMb");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            startupLogger.warn("invalid glowroot.collector.spool.maxSizeMb value: {}", value);
+            return 0;
+        }
+    }
+
+    private static byte[] toByteArray(List<? extends MessageLite> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(out);
+        }
+        return out.toByteArray();
+    }
+
     @VisibleForTesting
     static String escapeHostname(String hostname) {
         hostname = hostname.replace("\\", "\\\\");
@@ -342,6 +455,26 @@ public class CentralCollector implements Collector {
         return agentPatch > centralPatch;
     }
 
+    @VisibleForTesting
+    static boolean isTraceEntryChunksSupported(String centralVersion) {
+        Pattern pattern = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)\\b.*");
+        Matcher matcher = pattern.matcher(centralVersion);
+        if (!matcher.matches()) {
+            // unknown central version, so send one message per entry which every central supports
+            return false;
+        }
+        int major = Integer.parseInt(checkNotNull(matcher.group(1)));
+        int minor = Integer.parseInt(checkNotNull(matcher.group(2)));
+        int patch = Integer.parseInt(checkNotNull(matcher.group(3)));
+        if (major != 0) {
+            return major > 0;
+        }
+        if (minor != 14) {
+            return minor > 14;
+        }
+        return patch >= 3;
+    }
+
     private static String readConfigSyncedAgentId(File file) throws IOException {
         if (file.exists()) {
             Properties properties = PropertiesFiles.load(file);
@@ -391,8 +524,36 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
+            if (ENCODED_AGGREGATES && aggregateReader instanceof EncodedAggregateReader) {
+                StreamObserver<ByteBuf> requestObserver = ClientCalls.asyncClientStreamingCall(
+                        centralConnection.getChannel().newCall(
+                                ENCODED_COLLECT_AGGREGATE_STREAM_METHOD,
+                                collectorServiceStub.getCallOptions()),
+                        responseObserver);
+                if (writeEncodedTo(requestObserver)) {
+                    requestObserver.onCompleted();
+                }
+                return;
+            }
+            StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
+            if (writeTo(requestObserver)) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        // only called after the call above has failed, at which point the aggregate reader is
+        // still valid (since flushing waits for the blocking call to finish)
+        private byte /*@Nullable*/ [] toSpoolPayload() {
+            SpoolingStreamObserver<AggregateStreamMessage> spoolingObserver =
+                    new SpoolingStreamObserver<AggregateStreamMessage>();
+            if (!writeTo(spoolingObserver)) {
+                return null;
+            }
+            return spoolingObserver.toPayload();
+        }
+
+        private boolean writeTo(StreamObserver<AggregateStreamMessage> requestObserver) {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -406,9 +567,30 @@ public class CentralCollector implements Collector {
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
-                return;
+                return false;
             }
-            requestObserver.onCompleted();
+            return true;
+        }
+
+        private boolean writeEncodedTo(StreamObserver<ByteBuf> requestObserver) {
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            try {
+                sendEncoded(requestObserver, ByteBufMarshaller.toByteBuf(AggregateStreamMessage
+                        .newBuilder()
+                        .setStreamHeader(AggregateStreamHeader.newBuilder()
+                                .setAgentId(agentId)
+                                .setCaptureTime(aggregateReader.captureTime())
+                                .setPostV09(true))
+                        .build()));
+                ((EncodedAggregateReader) aggregateReader)
+                        .acceptEncoded(new EncodedAggregateVisitorImpl(requestObserver));
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return false;
+            }
+            return true;
         }
 
         @Override
@@ -463,6 +645,99 @@ public class CentralCollector implements Collector {
                         .build());
             }
         }
+
+        private class EncodedAggregateVisitorImpl implements EncodedAggregateVisitor {
+
+            private final StreamObserver<ByteBuf> requestObserver;
+
+            private EncodedAggregateVisitorImpl(StreamObserver<ByteBuf> requestObserver) {
+                this.requestObserver = requestObserver;
+            }
+
+            @Override
+            public void visitOverallAggregate(String transactionType,
+                    List<String> sharedQueryTexts, EncodedAggregate overallAggregate)
+                    throws IOException {
+                sendSharedQueryTexts(sharedQueryTexts);
+                // AggregateStreamMessage.overall_aggregate is field 3
+                sendEncoded(requestObserver,
+                        encodeAggregateMessage(3, transactionType, null, overallAggregate));
+            }
+
+            @Override
+            public void visitTransactionAggregate(String transactionType,
+                    String transactionName, List<String> sharedQueryTexts,
+                    EncodedAggregate transactionAggregate) throws IOException {
+                sendSharedQueryTexts(sharedQueryTexts);
+                // AggregateStreamMessage.transaction_aggregate is field 4
+                sendEncoded(requestObserver, encodeAggregateMessage(4, transactionType,
+                        transactionName, transactionAggregate));
+            }
+
+            private void sendSharedQueryTexts(List<String> sharedQueryTexts) throws IOException {
+                for (String sharedQueryText : sharedQueryTexts) {
+                    sendEncoded(requestObserver, ByteBufMarshaller.toByteBuf(AggregateStreamMessage
+                            .newBuilder()
+                            .setSharedQueryText(sharedQueryTextLimiter
+                                    .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
+                            .build()));
+                }
+            }
+        }
+    }
+
+    // grpc only takes ownership of the buffer once the marshaller has been handed it, and onNext()
+    // can fail before that (e.g. when the call has already been cancelled), in which case the
+    // pooled buffer would otherwise never be released
+    private static void sendEncoded(StreamObserver<ByteBuf> requestObserver, ByteBuf buf) {
+        boolean success = false;
+        try {
+            requestObserver.onNext(buf);
+            success = true;
+        } finally {
+            if (!success && buf.refCnt() > 0) {
+                buf.release();
+            }
+        }
+    }
+
+    // encodes an AggregateStreamMessage containing either an OverallAggregate (transaction_type = 1,
+    // aggregate = 2) or a TransactionAggregate (transaction_type = 1, transaction_name = 2,
+    // aggregate = 3)
+    private static ByteBuf encodeAggregateMessage(int fieldNumber, String transactionType,
+            @Nullable String transactionName, EncodedAggregate aggregate) throws IOException {
+        int aggregateFieldNumber = transactionName == null ? 2 : 3;
+        int aggregateSize = aggregate.getSerializedSize();
+        int innerSize = CodedOutputStream.computeStringSize(1, transactionType)
+                + CodedOutputStream.computeTagSize(aggregateFieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(aggregateSize) + aggregateSize;
+        if (transactionName != null) {
+            innerSize += CodedOutputStream.computeStringSize(2, transactionName);
+        }
+        int size = CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(innerSize) + innerSize;
+        ByteBuf buf = ByteBufMarshaller.allocate(size);
+        boolean success = false;
+        try {
+            CodedOutputStream output = ByteBufMarshaller.newCodedOutputStream(buf);
+            output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(innerSize);
+            output.writeString(1, transactionType);
+            if (transactionName != null) {
+                output.writeString(2, transactionName);
+            }
+            output.writeTag(aggregateFieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(aggregateSize);
+            aggregate.writeTo(output);
+            output.checkNoSpaceLeft();
+            ByteBufMarshaller.commit(buf);
+            success = true;
+            return buf;
+        } finally {
+            if (!success) {
+                buf.release();
+            }
+        }
     }
 
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
@@ -479,6 +754,23 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
+            if (writeTo(requestObserver)) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        // only called after the call above has failed, at which point the trace reader is still
+        // valid (since trace collection waits for the blocking call to finish)
+        private byte /*@Nullable*/ [] toSpoolPayload() {
+            SpoolingStreamObserver<TraceStreamMessage> spoolingObserver =
+                    new SpoolingStreamObserver<TraceStreamMessage>();
+            if (!writeTo(spoolingObserver)) {
+                return null;
+            }
+            return spoolingObserver.toPayload();
+        }
+
+        private boolean writeTo(StreamObserver<TraceStreamMessage> requestObserver) {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -494,14 +786,14 @@ public class CentralCollector implements Collector {
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
-                return;
+                return false;
             }
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setEntryCount(traceVisitor.entryCount)
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
                     .build());
-            requestObserver.onCompleted();
+            return true;
         }
 
         @Override
@@ -512,10 +804,180 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private class SpoolReplayRunnable implements Runnable {
+
+        // only the replaying thread removes records, so the head record stays the same until it
+        // is removed, and this is the number of failed attempts to send the current head record
+        private int headRecordFailedAttempts;
+
+        @Override
+        public void run() {
+            CentralSpool spool = checkNotNull(CentralCollector.this.spool);
+            try {
+                // bounds how long spooled data can sit in the page cache without being forced to
+                // disk when there are no further appends or removes to trigger the force
+                spool.force();
+                replay(spool);
+            } catch (InterruptedException e) {
+                // probably shutdown requested (see close method above)
+                logger.debug(e.getMessage(), e);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+
+        private void replay(CentralSpool spool) throws InterruptedException {
+            SpooledRecord record;
+            // inConnectionFailure is reset once the downstream connection is re-established
+            while (!inConnectionFailure.get() && (record = spool.peek()) != null) {
+                ReplayGrpcCall<?> grpcCall;
+                try {
+                    grpcCall = createReplayGrpcCall(record);
+                } catch (IOException e) {
+                    logger.warn("dropping unreadable record from central collector spool: {}",
+                            e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    removeHeadRecord(spool, record);
+                    continue;
+                }
+                if (centralConnection.blockingCallWithAFewRetries(grpcCall)) {
+                    removeHeadRecord(spool, record);
+                    continue;
+                }
+                if (inConnectionFailure.get()) {
+                    // not specific to this record, try again later once the connection is
+                    // re-established
+                    return;
+                }
+                Throwable finalError = grpcCall.getFinalError();
+                if (finalError != null && isNonRetryable(finalError)) {
+                    logger.warn("dropping record from central collector spool that was rejected"
+                            + " by the central collector: {}", finalError.getMessage());
+                    removeHeadRecord(spool, record);
+                    continue;
+                }
+                if (++headRecordFailedAttempts >= MAX_SPOOL_REPLAY_ATTEMPTS) {
+                    logger.warn("dropping record from central collector spool after {} failed"
+                            + " attempts to send it", headRecordFailedAttempts);
+                    removeHeadRecord(spool, record);
+                    continue;
+                }
+                // try again later (up to the max attempts)
+                return;
+            }
+        }
+
+        private void removeHeadRecord(CentralSpool spool, SpooledRecord record) {
+            spool.remove(record);
+            headRecordFailedAttempts = 0;
+        }
+
+        private ReplayGrpcCall<?> createReplayGrpcCall(SpooledRecord record) throws IOException {
+            InputStream in = new ByteArrayInputStream(record.payload());
+            if (record.recordType() == CentralSpool.AGGREGATES) {
+                final List<AggregateStreamMessage> messages = Lists.newArrayList();
+                AggregateStreamMessage message;
+                while ((message = AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                    messages.add(message);
+                }
+                return new ReplayGrpcCall<AggregateResponseMessage>() {
+                    @Override
+                    void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                        StreamObserver<AggregateStreamMessage> requestObserver =
+                                collectorServiceStub.collectAggregateStream(responseObserver);
+                        for (AggregateStreamMessage message : messages) {
+                            requestObserver.onNext(message);
+                        }
+                        requestObserver.onCompleted();
+                    }
+                };
+            } else if (record.recordType() == CentralSpool.TRACE) {
+                final List<TraceStreamMessage> messages = Lists.newArrayList();
+                TraceStreamMessage message;
+                while ((message = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+                    messages.add(message);
+                }
+                return new ReplayGrpcCall<EmptyMessage>() {
+                    @Override
+                    void call(StreamObserver<EmptyMessage> responseObserver) {
+                        StreamObserver<TraceStreamMessage> requestObserver =
+                                collectorServiceStub.collectTraceStream(responseObserver);
+                        for (TraceStreamMessage message : messages) {
+                            requestObserver.onNext(message);
+                        }
+                        requestObserver.onCompleted();
+                    }
+                };
+            } else {
+                throw new IOException("Unexpected record type: " + record.recordType());
+            }
+        }
+    }
+
+    // a rejection that will not succeed no matter how many times the same record is sent
+    @VisibleForTesting
+    static boolean isNonRetryable(Throwable t) {
+        if (!(t instanceof StatusRuntimeException)) {
+            return false;
+        }
+        Status.Code code = ((StatusRuntimeException) t).getStatus().getCode();
+        return code == Status.Code.INVALID_ARGUMENT || code == Status.Code.FAILED_PRECONDITION
+                || code == Status.Code.OUT_OF_RANGE || code == Status.Code.UNIMPLEMENTED;
+    }
+
+    private abstract static class ReplayGrpcCall<T extends /*@NonNull*/ Object>
+            extends GrpcCall<T> {
+
+        private volatile @Nullable Throwable finalError;
+
+        @Override
+        void doWithFinalError(Throwable t) {
+            finalError = t;
+        }
+
+        private @Nullable Throwable getFinalError() {
+            return finalError;
+        }
+    }
+
+    // captures the stream messages (instead of sending them) so they can be written to the spool
+    private static class SpoolingStreamObserver<T extends MessageLite>
+            implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private byte /*@Nullable*/ [] toPayload() {
+            try {
+                return toByteArray(messages);
+            } catch (IOException e) {
+                // this should never happen since writing to a byte array
+                logger.error(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
+
     private class TraceVisitorImpl implements TraceVisitor {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
         private final List<String> fullTextSha1s;
+        // decided once per trace, since init can complete (again) while the trace is being sent
+        private final boolean sendEntryChunks =
+                TRACE_ENTRY_CHUNK_BYTES != 0 && traceEntryChunksSupported;
+
+        private final List<Trace.Entry> entryChunk = Lists.newArrayList();
+        private int entryChunkBytes;
 
         private int entryCount;
         private int sharedQueryTextCount;
@@ -528,14 +990,24 @@ public class CentralCollector implements Collector {
 
         @Override
         public void visitEntry(Trace.Entry entry) {
-            requestObserver.onNext(TraceStreamMessage.newBuilder()
-                    .setEntry(entry)
-                    .build());
             entryCount++;
+            if (!sendEntryChunks) {
+                requestObserver.onNext(TraceStreamMessage.newBuilder()
+                        .setEntry(entry)
+                        .build());
+                return;
+            }
+            entryChunk.add(entry);
+            // serialized size is memoized, so this does not add to the cost of sending the entry
+            entryChunkBytes += entry.getSerializedSize();
+            if (entryChunkBytes >= TRACE_ENTRY_CHUNK_BYTES) {
+                flushEntryChunk();
+            }
         }
 
         @Override
         public void visitQueries(List<Aggregate.Query> queries) {
+            flushEntryChunk();
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setQueries(Queries.newBuilder()
                             .addAllQuery(queries))
@@ -544,6 +1016,7 @@ public class CentralCollector implements Collector {
 
         @Override
         public void visitSharedQueryTexts(List<String> sharedQueryTexts) {
+            flushEntryChunk();
             for (String sharedQueryText : sharedQueryTexts) {
                 Trace.SharedQueryText traceSharedQueryText = sharedQueryTextLimiter
                         .buildTraceSharedQueryText(sharedQueryText, fullTextSha1s);
@@ -556,6 +1029,7 @@ public class CentralCollector implements Collector {
 
         @Override
         public void visitMainThreadProfile(Profile profile) {
+            flushEntryChunk();
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setMainThreadProfile(profile)
                     .build());
@@ -563,6 +1037,7 @@ public class CentralCollector implements Collector {
 
         @Override
         public void visitAuxThreadProfile(Profile profile) {
+            flushEntryChunk();
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setAuxThreadProfile(profile)
                     .build());
@@ -570,9 +1045,22 @@ public class CentralCollector implements Collector {
 
         @Override
         public void visitHeader(Trace.Header header) {
+            flushEntryChunk();
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setHeader(header)
                     .build());
         }
+
+        private void flushEntryChunk() {
+            if (entryChunk.isEmpty()) {
+                return;
+            }
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setEntries(Entries.newBuilder()
+                            .addAllEntry(entryChunk))
+                    .build());
+            entryChunk.clear();
+            entryChunkBytes = 0;
+        }
     }
 }
@@ -144,30 +144,32 @@ class CentralConnection {
         return channel;
     }
 
-    <T extends /*@NonNull*/ Object> void blockingCallOnce(GrpcCall<T> call)
+    // returns true if the call completed successfully
+    <T extends /*@NonNull*/ Object> boolean blockingCallOnce(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(-1, call);
+        return blockingCallWithAFewRetries(-1, call);
     }
 
     // important that these calls are idempotent
-    <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(GrpcCall<T> call)
+    // returns true if the call completed successfully
+    <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(GrpcCall<T> call)
             throws InterruptedException {
-        blockingCallWithAFewRetries(30000, call);
+        return blockingCallWithAFewRetries(30000, call);
     }
 
     // important that these calls are idempotent
-    private <T extends /*@NonNull*/ Object> void blockingCallWithAFewRetries(int maxTotalMillis,
-            GrpcCall<T> call) throws InterruptedException {
+    private <T extends /*@NonNull*/ Object> boolean blockingCallWithAFewRetries(
+            int maxTotalMillis, GrpcCall<T> call) throws InterruptedException {
         if (closed) {
-            return;
+            return false;
         }
         if (inConnectionFailure.get()) {
-            return;
+            return false;
         }
         RetryingStreamObserver<T> responseObserver =
                 new RetryingStreamObserver<T>(call, maxTotalMillis, maxTotalMillis, false);
         call.call(responseObserver);
-        responseObserver.waitForFinish();
+        return responseObserver.waitForFinish();
     }
 
     <T extends /*@NonNull*/ Object> void asyncCallOnce(GrpcCall<T> call) {
@@ -294,6 +296,9 @@ class CentralConnection {
     abstract static class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when the call has failed and will not be retried (other than when the connection
+        // is in failure, which is not specific to the call)
+        void doWithFinalError(@SuppressWarnings("unused") Throwable t) {}
     }
 
     class RetryingStreamObserver<T extends /*@NonNull*/ Object> implements StreamObserver<T> {
@@ -308,6 +313,8 @@ class CentralConnection {
 
         private final CountDownLatch latch = new CountDownLatch(1);
 
+        private volatile boolean succeeded;
+
         private RetryingStreamObserver(GrpcCall<T> grpcCall, int maxSingleDelayMillis,
                 int maxTotalMillis, boolean init) {
             this.grpcCall = grpcCall;
@@ -335,6 +342,7 @@ class CentralConnection {
                 inMaybeInitFailure = false;
                 initCallSucceeded = true;
             }
+            succeeded = true;
             latch.countDown();
         }
 
@@ -351,8 +359,9 @@ class CentralConnection {
             }
         }
 
-        private void waitForFinish() throws InterruptedException {
+        private boolean waitForFinish() throws InterruptedException {
             latch.await();
+            return succeeded;
         }
 
         private void onErrorInternal(final Throwable t) throws InterruptedException {
@@ -393,6 +402,7 @@ class CentralConnection {
                 });
             }
             if (!retryOnError(t)) {
+                grpcCall.doWithFinalError(t);
                 if (initCallSucceeded) {
                     suppressLogCollector(new Runnable() {
                         @Override
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// bounded, memory-mapped, append-only spool of aggregate and trace streams that could not be sent
+// to the central collector, so that they can be replayed once the connection is re-established
+//
+// file layout: [int magic][int unused][long readPosition][long writePosition][records...]
+// record layout: [int payload length][byte record type][payload]
+//
+// records are only ever appended at writePosition and consumed at readPosition, and once the end
+// of the file is reached the unread records are compacted back to the start of the file (and if
+// there is still not enough room then the new record is dropped)
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    static final byte AGGREGATES = 1;
+    static final byte TRACE = 2;
+
+    private static final int MAGIC = 0x47525350; // "GRSP"
+
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int WRITE_POSITION_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    // the positions (and records) are written to the mapped buffer immediately, but are only
+    // forced to disk at most this often, since an fsync per message is far too costly while
+    // central is unreachable and every aggregate and trace is being spooled
+    private static final long FORCE_INTERVAL_NANOS = MILLISECONDS.toNanos(
+            Long.getLong("glowroot.internal.collector.spool.forceIntervalMillis", 1000));
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private final RateLimitedLogger droppedLogger = new RateLimitedLogger(CentralSpool.class);
+
+    @GuardedBy("this")
+    private int readPosition;
+    @GuardedBy("this")
+    private int writePosition;
+
+    @GuardedBy("this")
+    private boolean unforced;
+    @GuardedBy("this")
+    private long lastForceNanoTime = System.nanoTime();
+
+    CentralSpool(File spoolFile, long maxSizeBytes) throws IOException {
+        capacity = (int) Math.min(Math.max(maxSizeBytes, HEADER_SIZE), Integer.MAX_VALUE);
+        file = new RandomAccessFile(spoolFile, "rw");
+        if (file.length() != capacity) {
+            // size was changed (or new file), only safe thing is to start over
+            file.setLength(0);
+            file.setLength(capacity);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        int magic = buffer.getInt(0);
+        long readPosition = buffer.getLong(READ_POSITION_OFFSET);
+        long writePosition = buffer.getLong(WRITE_POSITION_OFFSET);
+        if (magic == MAGIC && readPosition >= HEADER_SIZE && readPosition <= writePosition
+                && writePosition <= capacity) {
+            this.readPosition = (int) readPosition;
+            this.writePosition = (int) writePosition;
+        } else {
+            buffer.putInt(0, MAGIC);
+            reset();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return readPosition == writePosition;
+    }
+
+    synchronized void append(byte recordType, byte[] payload) {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (writePosition + recordSize > capacity) {
+            compact();
+            if (writePosition + recordSize > capacity) {
+                droppedLogger.warn("not spooling data for the central collector because the spool"
+                        + " file is full ({} bytes)", capacity);
+                return;
+            }
+        }
+        buffer.putInt(writePosition, payload.length);
+        buffer.put(writePosition + 4, recordType);
+        ByteBuffer dup = buffer.duplicate();
+        position(dup, writePosition + RECORD_HEADER_SIZE);
+        dup.put(payload);
+        writePosition += recordSize;
+        writePositions();
+    }
+
+    synchronized @Nullable SpooledRecord peek() {
+        if (readPosition == writePosition) {
+            return null;
+        }
+        int length = buffer.getInt(readPosition);
+        // records are only forced to disk periodically, so after a crash (e.g. power loss) the
+        // forced writePosition can be past record bytes that never made it to disk
+        if (writePosition - readPosition < RECORD_HEADER_SIZE || length < 0
+                || length > writePosition - readPosition - RECORD_HEADER_SIZE) {
+            logger.warn("discarding central collector spool, found corrupt record at position {}",
+                    readPosition);
+            reset();
+            return null;
+        }
+        byte recordType = buffer.get(readPosition + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        position(dup, readPosition + RECORD_HEADER_SIZE);
+        dup.get(payload);
+        return new SpooledRecord(recordType, payload);
+    }
+
+    // only the replaying thread removes records, and compaction always preserves the record at
+    // readPosition as the head record, so removing by length is safe even if compaction occurred
+    // after the record was peeked
+    synchronized void remove(SpooledRecord record) {
+        readPosition += RECORD_HEADER_SIZE + record.payload().length;
+        if (readPosition == writePosition) {
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+        }
+        writePositions();
+    }
+
+    // forces any positions (and records) written since the last force to disk
+    synchronized void force() {
+        if (unforced) {
+            buffer.force();
+            unforced = false;
+        }
+        lastForceNanoTime = System.nanoTime();
+    }
+
+    @OnlyUsedByTests
+    void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    @GuardedBy("this")
+    private void reset() {
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE;
+        writePositions();
+        force();
+    }
+
+    @GuardedBy("this")
+    private void compact() {
+        if (readPosition == HEADER_SIZE) {
+            return;
+        }
+        int unreadSize = writePosition - readPosition;
+        byte[] unread = new byte[unreadSize];
+        ByteBuffer dup = buffer.duplicate();
+        position(dup, readPosition);
+        dup.get(unread);
+        position(dup, HEADER_SIZE);
+        dup.put(unread);
+        readPosition = HEADER_SIZE;
+        writePosition = HEADER_SIZE + unreadSize;
+        writePositions();
+    }
+
+    @GuardedBy("this")
+    private void writePositions() {
+        buffer.putLong(READ_POSITION_OFFSET, readPosition);
+        buffer.putLong(WRITE_POSITION_OFFSET, writePosition);
+        unforced = true;
+        if (System.nanoTime() - lastForceNanoTime >= FORCE_INTERVAL_NANOS) {
+            force();
+        }
+    }
+
+    private static void position(ByteBuffer buffer, int position) {
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).position(position);
+    }
+
+    static class SpooledRecord {
+
+        private final byte recordType;
+        private final byte[] payload;
+
+        private SpooledRecord(byte recordType, byte[] payload) {
+            this.recordType = recordType;
+            this.payload = payload;
+        }
+
+        byte recordType() {
+            return recordType;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+    }
+}
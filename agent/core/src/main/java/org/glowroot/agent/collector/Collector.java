@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
 
+import com.google.protobuf.CodedOutputStream;
+
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
@@ -50,6 +52,12 @@ public interface Collector {
         void accept(AggregateVisitor aggregateVisitor) throws Exception;
     }
 
+    // optionally implemented by aggregate readers so that collectors which only need the serialized
+    // form can skip building the intermediate Aggregate messages
+    public interface EncodedAggregateReader extends AggregateReader {
+        void acceptEncoded(EncodedAggregateVisitor encodedAggregateVisitor) throws Exception;
+    }
+
     public interface TraceReader {
         long captureTime();
         String traceId();
@@ -67,6 +75,21 @@ public interface Collector {
                 List<String> sharedQueryTexts, Aggregate transactionAggregate) throws Exception;
     }
 
+    // each encoded aggregate is only valid until the visitor method returns
+    public interface EncodedAggregateVisitor {
+        void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
+                EncodedAggregate overallAggregate) throws Exception;
+        void visitTransactionAggregate(String transactionType, String transactionName,
+                List<String> sharedQueryTexts, EncodedAggregate transactionAggregate)
+                throws Exception;
+    }
+
+    // serialized form of an Aggregate message, written directly to the output stream
+    public interface EncodedAggregate {
+        int getSerializedSize();
+        void writeTo(CodedOutputStream output) throws IOException;
+    }
+
     public interface TraceVisitor {
         void visitEntry(Trace.Entry entry);
         void visitQueries(List<Aggregate.Query> queries);
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+// bounded pause alternative to capturing full depth stack traces of every active transaction
+// thread on each tick
+//
+// * each tick captures a batch of threads, rotating through the active threads across ticks, and
+//   the batch size adapts so that the capture pause stays near the target pause
+// * stack traces are captured up to a per-thread max depth, which is doubled whenever the thread's
+//   stack turns out to be deeper (the truncated sample is discarded since it is missing the root
+//   frames that are needed to merge it into the profile), and the learned max depth is kept per
+//   thread so that the next transaction on the same (e.g. pooled request) thread starts from it
+//   instead of having to re-learn it, losing samples along the way
+// * threads that are still blocked or waiting with the same blocked and waited counts as their
+//   last sample cannot have changed stack, so their last sample is recorded again without
+//   capturing (this check uses max depth 0, which does not require a safepoint)
+//
+// not thread safe, only accessed by the stack trace collector thread
+class AdaptiveStackSampler {
+
+    private static final int INITIAL_MAX_DEPTH =
+            Integer.getInteger("glowroot.internal.profiling.adaptive.initialMaxDepth", 64);
+    private static final int MAX_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.profiling.adaptive.maxThreadsPerTick", 256);
+    private static final long TARGET_PAUSE_NANOS = MICROSECONDS.toNanos(
+            Integer.getInteger("glowroot.internal.profiling.adaptive.targetPauseMicros", 1000));
+
+    private static final int MIN_BATCH_SIZE = 16;
+
+    // bounds the memory of learned max depths when there are many short-lived threads
+    private static final int MAX_LEARNED_THREADS = 1024;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private Map<ThreadContextImpl, SampleState> sampleStates = Maps.newIdentityHashMap();
+
+    // key is thread id, access ordered so that the least recently sampled threads are evicted
+    @SuppressWarnings("serial")
+    private final Map<Long, Integer> learnedMaxDepths =
+            new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                    return size() > MAX_LEARNED_THREADS;
+                }
+            };
+
+    private int batchSize = MAX_BATCH_SIZE;
+    private int nextIndex;
+
+    private int lastSampledThreadCount;
+    private int lastSkippedThreadCount;
+
+    // returns the pause in nanoseconds
+    long captureStackTraces(List<ThreadContextImpl> activeThreadContexts) {
+        lastSampledThreadCount = 0;
+        lastSkippedThreadCount = 0;
+        int activeCount = activeThreadContexts.size();
+        // carry over state only for threads that are still active
+        Map<ThreadContextImpl, SampleState> currSampleStates = Maps.newIdentityHashMap();
+        for (ThreadContextImpl threadContext : activeThreadContexts) {
+            SampleState sampleState = sampleStates.get(threadContext);
+            if (sampleState != null) {
+                currSampleStates.put(threadContext, sampleState);
+            }
+        }
+        sampleStates = currSampleStates;
+        if (activeCount == 0) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return 0;
+        }
+        if (nextIndex >= activeCount) {
+            nextIndex = 0;
+        }
+        int size = Math.min(batchSize, activeCount);
+        List<ThreadContextImpl> batch = Lists.newArrayListWithCapacity(size);
+        long[] threadIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            ThreadContextImpl threadContext =
+                    activeThreadContexts.get((nextIndex + i) % activeCount);
+            batch.add(threadContext);
+            threadIds[i] = threadContext.getThreadId();
+        }
+        nextIndex = (nextIndex + size) % activeCount;
+
+        // max depth 0 does not require a safepoint
+        @Nullable
+        ThreadInfo[] shallowThreadInfos = threadMXBean.getThreadInfo(threadIds, 0);
+        List<ThreadContextImpl> toCapture = Lists.newArrayListWithCapacity(size);
+        List<SampleState> toCaptureSampleStates = Lists.newArrayListWithCapacity(size);
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            ThreadInfo shallowThreadInfo = shallowThreadInfos[i];
+            if (shallowThreadInfo == null) {
+                // thread has terminated
+                continue;
+            }
+            ThreadContextImpl threadContext = batch.get(i);
+            SampleState sampleState = sampleStates.get(threadContext);
+            if (sampleState == null) {
+                sampleState = new SampleState(getLearnedMaxDepth(threadContext.getThreadId()));
+                sampleStates.put(threadContext, sampleState);
+            }
+            ThreadInfo lastThreadInfo = sampleState.lastThreadInfo;
+            if (lastThreadInfo != null && isUnchanged(lastThreadInfo, shallowThreadInfo)) {
+                threadContext.captureStackTrace(lastThreadInfo);
+                lastSkippedThreadCount++;
+                continue;
+            }
+            toCapture.add(threadContext);
+            toCaptureSampleStates.add(sampleState);
+            maxDepth = Math.max(maxDepth, sampleState.maxDepth);
+        }
+        if (toCapture.isEmpty()) {
+            return 0;
+        }
+        long[] captureThreadIds = new long[toCapture.size()];
+        for (int i = 0; i < toCapture.size(); i++) {
+            captureThreadIds[i] = toCapture.get(i).getThreadId();
+        }
+        long startTick = System.nanoTime();
+        @Nullable
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(captureThreadIds, maxDepth);
+        long pauseNanos = System.nanoTime() - startTick;
+        for (int i = 0; i < toCapture.size(); i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo == null) {
+                continue;
+            }
+            SampleState sampleState = toCaptureSampleStates.get(i);
+            int depth = threadInfo.getStackTrace().length;
+            int nextMaxDepth = nextMaxDepth(sampleState.maxDepth, depth);
+            if (nextMaxDepth != sampleState.maxDepth) {
+                sampleState.maxDepth = nextMaxDepth;
+                learnMaxDepth(captureThreadIds[i], nextMaxDepth);
+            }
+            if (depth >= maxDepth) {
+                // possibly truncated
+                sampleState.lastThreadInfo = null;
+                continue;
+            }
+            toCapture.get(i).captureStackTrace(threadInfo);
+            sampleState.lastThreadInfo = threadInfo;
+            lastSampledThreadCount++;
+        }
+        batchSize = nextBatchSize(batchSize, toCapture.size(), pauseNanos);
+        return pauseNanos;
+    }
+
+    int getLastSampledThreadCount() {
+        return lastSampledThreadCount;
+    }
+
+    int getLastSkippedThreadCount() {
+        return lastSkippedThreadCount;
+    }
+
+    @VisibleForTesting
+    int getLearnedMaxDepth(long threadId) {
+        Integer learnedMaxDepth = learnedMaxDepths.get(threadId);
+        return learnedMaxDepth == null ? INITIAL_MAX_DEPTH : learnedMaxDepth;
+    }
+
+    @VisibleForTesting
+    void learnMaxDepth(long threadId, int maxDepth) {
+        learnedMaxDepths.put(threadId, maxDepth);
+    }
+
+    @VisibleForTesting
+    static boolean isUnchanged(ThreadInfo lastThreadInfo, ThreadInfo currThreadInfo) {
+        Thread.State threadState = currThreadInfo.getThreadState();
+        if (threadState != Thread.State.BLOCKED && threadState != Thread.State.WAITING
+                && threadState != Thread.State.TIMED_WAITING) {
+            return false;
+        }
+        // blocked and waited counts are incremented each time the thread enters the state, so if
+        // they are the same then the thread has not run since the last sample
+        return threadState == lastThreadInfo.getThreadState()
+                && currThreadInfo.getBlockedCount() == lastThreadInfo.getBlockedCount()
+                && currThreadInfo.getWaitedCount() == lastThreadInfo.getWaitedCount();
+    }
+
+    @VisibleForTesting
+    static int nextMaxDepth(int maxDepth, int capturedDepth) {
+        while (capturedDepth >= maxDepth && maxDepth < Integer.MAX_VALUE / 2) {
+            maxDepth *= 2;
+        }
+        return maxDepth;
+    }
+
+    @VisibleForTesting
+    static int nextBatchSize(int batchSize, int capturedCount, long pauseNanos) {
+        if (pauseNanos > TARGET_PAUSE_NANOS) {
+            return Math.max(MIN_BATCH_SIZE, Math.min(batchSize, capturedCount) / 2);
+        }
+        if (pauseNanos < TARGET_PAUSE_NANOS / 2 && capturedCount >= batchSize) {
+            return Math.min(MAX_BATCH_SIZE, batchSize + MIN_BATCH_SIZE);
+        }
+        return batchSize;
+    }
+
+    private static class SampleState {
+
+        private int maxDepth;
+        private @Nullable ThreadInfo lastThreadInfo;
+
+        private SampleState(int maxDepth) {
+            this.maxDepth = maxDepth;
+        }
+    }
+}
@@ -15,12 +15,17 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.agent.collector.Collector.EncodedAggregate;
 import org.glowroot.agent.impl.Transaction.RootTimerCollector;
 import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
 import org.glowroot.agent.model.MutableAggregateTimer;
@@ -48,6 +53,7 @@ import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -66,7 +72,7 @@ class AggregateCollector {
     private final ThreadStatsCollectorImpl mainThreadStats = new ThreadStatsCollectorImpl();
     // histogram values are in nanoseconds, but with microsecond precision to reduce the number of
     // buckets (and memory) required
-    private final LazyHistogram durationNanosHistogram = new LazyHistogram();
+    private final LazyHistogram durationNanosHistogram = LazyHistogram.createPooled();
     private final QueryCollector queries;
     private final ServiceCallCollector serviceCalls;
     // lazy instantiated to reduce memory footprint
@@ -146,6 +152,56 @@ class AggregateCollector {
         }
     }
 
+    // the caller is responsible for ensuring that toBeMerged is not concurrently being written to
+    // (see AggregateIntervalCollector.Shard)
+    void mergeDataFrom(AggregateCollector toBeMerged) {
+        synchronized (lock) {
+            totalDurationNanos += toBeMerged.totalDurationNanos;
+            totalCpuNanos += toBeMerged.totalCpuNanos;
+            totalAllocatedBytes += toBeMerged.totalAllocatedBytes;
+            transactionCount += toBeMerged.transactionCount;
+            errorCount += toBeMerged.errorCount;
+            if (toBeMerged.asyncTransactions) {
+                asyncTransactions = true;
+            }
+            mainThreadStats.mergeThreadStats(toBeMerged.mainThreadStats);
+            mainThreadRootTimers.mergeRootTimers(toBeMerged.mainThreadRootTimers);
+            if (toBeMerged.auxThreadRootTimer != null) {
+                if (auxThreadRootTimer == null) {
+                    auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+                }
+                auxThreadRootTimer.addDataFrom(toBeMerged.auxThreadRootTimer);
+            }
+            if (toBeMerged.auxThreadStats != null) {
+                if (auxThreadStats == null) {
+                    auxThreadStats = new ThreadStatsCollectorImpl();
+                }
+                auxThreadStats.mergeThreadStats(toBeMerged.auxThreadStats);
+            }
+            if (toBeMerged.asyncTimers != null) {
+                if (asyncTimers == null) {
+                    asyncTimers = new RootTimerCollectorImpl();
+                }
+                asyncTimers.mergeRootTimers(toBeMerged.asyncTimers);
+            }
+            durationNanosHistogram.merge(toBeMerged.durationNanosHistogram);
+            toBeMerged.queries.mergeQueriesInto(queries);
+            toBeMerged.serviceCalls.mergeServiceCallsInto(serviceCalls);
+            if (toBeMerged.mainThreadProfile != null) {
+                if (mainThreadProfile == null) {
+                    mainThreadProfile = new MutableProfile();
+                }
+                mainThreadProfile.merge(toBeMerged.mainThreadProfile);
+            }
+            if (toBeMerged.auxThreadProfile != null) {
+                if (auxThreadProfile == null) {
+                    auxThreadProfile = new MutableProfile();
+                }
+                auxThreadProfile.merge(toBeMerged.auxThreadProfile);
+            }
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
         synchronized (lock) {
@@ -181,6 +237,25 @@ class AggregateCollector {
         }
     }
 
+    // same serialized form as build(), but written directly to the output stream without building
+    // the intermediate Aggregate message (and its timer, thread stats and histogram sub-messages)
+    //
+    // the scratch buffer must not be used for anything else until the returned encoded aggregate
+    // has been written
+    EncodedAggregate encode(SharedQueryTextCollection sharedQueryTextCollection,
+            ScratchBuffer scratchBuffer) {
+        synchronized (lock) {
+            return new EncodedAggregateImpl(sharedQueryTextCollection, scratchBuffer);
+        }
+    }
+
+    // returns pooled resources once this aggregate collector is no longer needed
+    void release() {
+        synchronized (lock) {
+            durationNanosHistogram.release();
+        }
+    }
+
     void mergeOverallSummaryInto(OverallSummaryCollector collector) {
         synchronized (lock) {
             collector.mergeSummary(totalDurationNanos, totalCpuNanos, totalAllocatedBytes, transactionCount, 0);
@@ -293,6 +368,139 @@ class AggregateCollector {
         }
     }
 
+    private class EncodedAggregateImpl implements EncodedAggregate {
+
+        private final ScratchBuffer scratchBuffer;
+        private final int histogramSize;
+        // queries, service calls and profiles are still built as messages since they are not the
+        // bulk of the allocations (and their message builders have their own caching)
+        private final List<Aggregate.Query> queryList;
+        private final List<Aggregate.ServiceCall> serviceCallList;
+        private final @Nullable Profile mainThreadProfileProto;
+        private final @Nullable Profile auxThreadProfileProto;
+        private final int serializedSize;
+
+        private EncodedAggregateImpl(SharedQueryTextCollection sharedQueryTextCollection,
+                ScratchBuffer scratchBuffer) {
+            this.scratchBuffer = scratchBuffer;
+            histogramSize = durationNanosHistogram.prepareEncoding(scratchBuffer);
+            if (queries == null) {
+                queryList = Lists.newArrayList();
+            } else {
+                queryList = queries.toAggregateProto(sharedQueryTextCollection, false);
+            }
+            if (serviceCalls == null) {
+                serviceCallList = Lists.newArrayList();
+            } else {
+                serviceCallList = serviceCalls.toAggregateProto();
+            }
+            mainThreadProfileProto = mainThreadProfile == null ? null : mainThreadProfile.toProto();
+            auxThreadProfileProto = auxThreadProfile == null ? null : auxThreadProfile.toProto();
+            serializedSize = computeSerializedSize();
+        }
+
+        @Override
+        public int getSerializedSize() {
+            return serializedSize;
+        }
+
+        // fields are written in field number order, same as the generated message code
+        @Override
+        public void writeTo(CodedOutputStream output) throws IOException {
+            synchronized (lock) {
+                if (Double.doubleToRawLongBits(totalDurationNanos) != 0) {
+                    output.writeDouble(1, totalDurationNanos);
+                }
+                if (transactionCount != 0) {
+                    output.writeInt64(2, transactionCount);
+                }
+                if (errorCount != 0) {
+                    output.writeInt64(3, errorCount);
+                }
+                if (asyncTransactions) {
+                    output.writeBool(4, true);
+                }
+                for (MutableAggregateTimer rootTimer : mainThreadRootTimers.rootMutableTimers) {
+                    rootTimer.writeTo(5, output);
+                }
+                if (auxThreadRootTimer != null) {
+                    auxThreadRootTimer.writeTo(6, output);
+                }
+                if (asyncTimers != null) {
+                    for (MutableAggregateTimer asyncTimer : asyncTimers.rootMutableTimers) {
+                        asyncTimer.writeTo(7, output);
+                    }
+                }
+                output.writeTag(10, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeUInt32NoTag(histogramSize);
+                durationNanosHistogram.writeEncoded(output, scratchBuffer);
+                if (mainThreadProfileProto != null) {
+                    output.writeMessage(13, mainThreadProfileProto);
+                }
+                if (auxThreadProfileProto != null) {
+                    output.writeMessage(14, auxThreadProfileProto);
+                }
+                for (Aggregate.Query query : queryList) {
+                    output.writeMessage(15, query);
+                }
+                for (Aggregate.ServiceCall serviceCall : serviceCallList) {
+                    output.writeMessage(16, serviceCall);
+                }
+                mainThreadStats.writeTo(17, output);
+                if (auxThreadRootTimer != null) {
+                    // aux thread stats is non-null when aux thread root timer is non-null
+                    checkNotNull(auxThreadStats).writeTo(18, output);
+                }
+            }
+        }
+
+        private int computeSerializedSize() {
+            int size = 0;
+            if (Double.doubleToRawLongBits(totalDurationNanos) != 0) {
+                size += CodedOutputStream.computeDoubleSize(1, totalDurationNanos);
+            }
+            if (transactionCount != 0) {
+                size += CodedOutputStream.computeInt64Size(2, transactionCount);
+            }
+            if (errorCount != 0) {
+                size += CodedOutputStream.computeInt64Size(3, errorCount);
+            }
+            if (asyncTransactions) {
+                size += CodedOutputStream.computeBoolSize(4, true);
+            }
+            for (MutableAggregateTimer rootTimer : mainThreadRootTimers.rootMutableTimers) {
+                size += rootTimer.getSerializedSize(5);
+            }
+            if (auxThreadRootTimer != null) {
+                size += auxThreadRootTimer.getSerializedSize(6);
+            }
+            if (asyncTimers != null) {
+                for (MutableAggregateTimer asyncTimer : asyncTimers.rootMutableTimers) {
+                    size += asyncTimer.getSerializedSize(7);
+                }
+            }
+            size += CodedOutputStream.computeTagSize(10)
+                    + CodedOutputStream.computeUInt32SizeNoTag(histogramSize) + histogramSize;
+            size += computeMessageSize(13, mainThreadProfileProto);
+            size += computeMessageSize(14, auxThreadProfileProto);
+            for (Aggregate.Query query : queryList) {
+                size += CodedOutputStream.computeMessageSize(15, query);
+            }
+            for (Aggregate.ServiceCall serviceCall : serviceCallList) {
+                size += CodedOutputStream.computeMessageSize(16, serviceCall);
+            }
+            size += mainThreadStats.getSerializedSize(17);
+            if (auxThreadRootTimer != null) {
+                size += checkNotNull(auxThreadStats).getSerializedSize(18);
+            }
+            return size;
+        }
+
+        private int computeMessageSize(int fieldNumber, @Nullable MessageLite message) {
+            return message == null ? 0 : CodedOutputStream.computeMessageSize(fieldNumber, message);
+        }
+    }
+
     private static class RootTimerCollectorImpl implements RootTimerCollector {
 
         List<MutableAggregateTimer> rootMutableTimers = Lists.newArrayList();
@@ -312,6 +520,25 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void mergeRootTimers(RootTimerCollectorImpl toBeMerged) {
+            for (MutableAggregateTimer toBeMergedRootTimer : toBeMerged.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = new MutableAggregateTimer(toBeMergedRootTimer.getName(),
+                            toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.addDataFrom(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -340,6 +567,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void mergeThreadStats(ThreadStatsCollectorImpl toBeMerged) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, toBeMerged.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, toBeMerged.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, toBeMerged.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, toBeMerged.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
@@ -348,5 +585,42 @@ class AggregateCollector {
                     .setTotalAllocatedBytes(totalAllocatedBytes)
                     .build();
         }
+
+        // same serialized form as toProto()
+        private int getSerializedSize(int fieldNumber) {
+            int size = computeDoubleSize(1, totalCpuNanos)
+                    + computeDoubleSize(2, NotAvailableAware.millisToNanos(totalBlockedMillis))
+                    + computeDoubleSize(3, NotAvailableAware.millisToNanos(totalWaitedMillis))
+                    + computeDoubleSize(4, totalAllocatedBytes);
+            return CodedOutputStream.computeTagSize(fieldNumber)
+                    + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+        }
+
+        private void writeTo(int fieldNumber, CodedOutputStream output) throws IOException {
+            double totalBlockedNanos = NotAvailableAware.millisToNanos(totalBlockedMillis);
+            double totalWaitedNanos = NotAvailableAware.millisToNanos(totalWaitedMillis);
+            output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(computeDoubleSize(1, totalCpuNanos)
+                    + computeDoubleSize(2, totalBlockedNanos)
+                    + computeDoubleSize(3, totalWaitedNanos)
+                    + computeDoubleSize(4, totalAllocatedBytes));
+            writeDouble(1, totalCpuNanos, output);
+            writeDouble(2, totalBlockedNanos, output);
+            writeDouble(3, totalWaitedNanos, output);
+            writeDouble(4, totalAllocatedBytes, output);
+        }
+
+        // proto3 does not write default values
+        private static int computeDoubleSize(int fieldNumber, double value) {
+            return Double.doubleToRawLongBits(value) == 0 ? 0
+                    : CodedOutputStream.computeDoubleSize(fieldNumber, value);
+        }
+
+        private static void writeDouble(int fieldNumber, double value, CodedOutputStream output)
+                throws IOException {
+            if (Double.doubleToRawLongBits(value) != 0) {
+                output.writeDouble(fieldNumber, value);
+            }
+        }
     }
 }
@@ -20,13 +20,17 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.concurrent.GuardedBy;
+
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
-import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.collector.Collector.EncodedAggregate;
+import org.glowroot.agent.collector.Collector.EncodedAggregateReader;
+import org.glowroot.agent.collector.Collector.EncodedAggregateVisitor;
 import org.glowroot.agent.model.SharedQueryTextCollection;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
@@ -56,14 +60,33 @@ public class AggregateIntervalCollector {
     private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
             Maps.newConcurrentMap();
 
+    // shards are only used when transactions are added concurrently (see addConcurrently()), in
+    // which case completing threads merge into their shard, and the shards are merged into
+    // typeCollectors at flush time (and before reading "live" data)
+    private final Shard[] shards;
+    private final int shardMask;
+
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
             Clock clock) {
+        this(currentTime, aggregateIntervalMillis, maxTransactionAggregates, maxQueryAggregates,
+                maxServiceCallAggregates, 0, clock);
+    }
+
+    // shardCount must be zero or a power of two
+    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
+            int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
+            int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        shardMask = shardCount - 1;
     }
 
     public long getCaptureTime() {
@@ -81,7 +104,21 @@ public class AggregateIntervalCollector {
         typeCollector.add(transaction);
     }
 
+    // returns false if this interval collector has already been sealed for flushing, in which case
+    // the caller should add the transaction to the next interval collector instead
+    boolean addConcurrently(Transaction transaction) {
+        Shard shard = shards[(int) (Thread.currentThread().getId() & shardMask)];
+        synchronized (shard) {
+            if (shard.sealed) {
+                return false;
+            }
+            shard.add(transaction);
+            return true;
+        }
+    }
+
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
+        mergeShards(false);
         IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             return;
@@ -91,6 +128,7 @@ public class AggregateIntervalCollector {
 
     public void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector,
             String transactionType) {
+        mergeShards(false);
         IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             return;
@@ -103,6 +141,7 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
+        mergeShards(false);
         IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             return;
@@ -112,6 +151,7 @@ public class AggregateIntervalCollector {
 
     public void mergeTransactionNameErrorSummariesInto(
             TransactionNameErrorSummaryCollector collector, String transactionType) {
+        mergeShards(false);
         IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             return;
@@ -156,6 +196,7 @@ public class AggregateIntervalCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
+        mergeShards(false);
         for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
             String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -208,20 +249,77 @@ public class AggregateIntervalCollector {
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
+        mergeShards(false);
         return typeCollectors.keySet();
     }
 
     void flush(Collector collector) throws Exception {
-        collector.collectAggregates(new AggregateReaderImpl(captureTime));
+        mergeShards(true);
+        try {
+            collector.collectAggregates(new AggregateReaderImpl(captureTime));
+        } finally {
+            // this interval collector has already been removed from the pending queue at this
+            // point, so its pooled histograms can be returned for use by subsequent intervals
+            release();
+        }
     }
 
     void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.typeCollectors.clear();
+            }
+        }
         typeCollectors.clear();
     }
 
+    private void release() {
+        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+            typeCollector.release();
+        }
+    }
+
+    private void mergeShards(boolean seal) {
+        if (shards.length == 0) {
+            return;
+        }
+        // lock on shards to prevent concurrent merging (e.g. flushing concurrently with reading
+        // "live" data), since merging into typeCollectors is not otherwise thread safe
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                Map<String, IntervalTypeCollector> shardTypeCollectors;
+                synchronized (shard) {
+                    if (seal) {
+                        shard.sealed = true;
+                    }
+                    if (shard.typeCollectors.isEmpty()) {
+                        continue;
+                    }
+                    shardTypeCollectors = shard.typeCollectors;
+                    shard.typeCollectors = Maps.newHashMap();
+                }
+                // shard type collectors are no longer reachable by writers at this point, so the
+                // (potentially expensive) merge can be done outside of the shard lock
+                for (Map.Entry<String, IntervalTypeCollector> entry : shardTypeCollectors
+                        .entrySet()) {
+                    String transactionType = entry.getKey();
+                    IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+                    if (typeCollector == null) {
+                        typeCollector = new IntervalTypeCollector();
+                        typeCollectors.put(transactionType, typeCollector);
+                    }
+                    IntervalTypeCollector shardTypeCollector = entry.getValue();
+                    typeCollector.mergeDataFrom(shardTypeCollector);
+                    shardTypeCollector.release();
+                }
+            }
+        }
+    }
+
     // can be called without lock
     private @Nullable AggregateCollector getAggregateCollector(String transactionType,
             @Nullable String transactionName) {
+        mergeShards(false);
         IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
         if (intervalTypeCollector == null) {
             return null;
@@ -266,6 +364,30 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        private void mergeDataFrom(IntervalTypeCollector toBeMerged) {
+            overallAggregateCollector.mergeDataFrom(toBeMerged.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : toBeMerged.transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                        transactionAggregateCollector =
+                                createTransactionAggregateCollector(transactionName);
+                    } else {
+                        transactionAggregateCollector =
+                                transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
+                        if (transactionAggregateCollector == null) {
+                            transactionAggregateCollector =
+                                    createTransactionAggregateCollector(LIMIT_EXCEEDED_BUCKET);
+                        }
+                    }
+                }
+                transactionAggregateCollector.mergeDataFrom(entry.getValue());
+            }
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
                     transactionName, maxQueryAggregates, maxServiceCallAggregates);
@@ -277,6 +399,13 @@ public class AggregateIntervalCollector {
             aggregateCollector.mergeDataFrom(transaction);
         }
 
+        private void release() {
+            overallAggregateCollector.release();
+            for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
+                aggregateCollector.release();
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -292,7 +421,26 @@ public class AggregateIntervalCollector {
         }
     }
 
-    private class AggregateReaderImpl implements AggregateReader {
+    private class Shard {
+
+        @GuardedBy("this")
+        private Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+        @GuardedBy("this")
+        private boolean sealed;
+
+        @GuardedBy("this")
+        private void add(Transaction transaction) {
+            IntervalTypeCollector typeCollector =
+                    typeCollectors.get(transaction.getTransactionType());
+            if (typeCollector == null) {
+                typeCollector = new IntervalTypeCollector();
+                typeCollectors.put(transaction.getTransactionType(), typeCollector);
+            }
+            typeCollector.add(transaction);
+        }
+    }
+
+    private class AggregateReaderImpl implements EncodedAggregateReader {
 
         private final long captureTime;
 
@@ -328,6 +476,31 @@ public class AggregateIntervalCollector {
                 }
             }
         }
+
+        @Override
+        public void acceptEncoded(EncodedAggregateVisitor encodedAggregateVisitor)
+                throws Exception {
+            SharedQueryTextCollectionImpl sharedQueryTextCollector =
+                    new SharedQueryTextCollectionImpl();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                EncodedAggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                        .encode(sharedQueryTextCollector, scratchBuffer);
+                encodedAggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                        .entrySet()) {
+                    EncodedAggregate transactionAggregate =
+                            f.getValue().encode(sharedQueryTextCollector, scratchBuffer);
+                    encodedAggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
+                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                            transactionAggregate);
+                }
+            }
+        }
     }
 
     private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
@@ -26,6 +26,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.bytecode.api.VirtualThreads;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -33,10 +34,17 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-public class StackTraceCollector {
+public class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // bounded pause mode for profiling with large numbers of active transaction threads (see
+    // AdaptiveStackSampler)
+    private static final boolean ADAPTIVE =
+            Boolean.getBoolean("glowroot.internal.profiling.adaptive");
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -44,11 +52,20 @@ public class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    private final @Nullable AdaptiveStackSampler adaptiveStackSampler;
+
+    // these are only written by the processing thread
+    private volatile long lastPauseNanos;
+    private volatile long totalPauseNanos;
+    private volatile int lastSampledThreadCount;
+    private volatile int lastSkippedThreadCount;
+
     public StackTraceCollector(TransactionRegistry transactionRegistry,
             final ConfigService configService, Random random) {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        adaptiveStackSampler = ADAPTIVE ? new AdaptiveStackSampler() : null;
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -78,19 +95,99 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
-    static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+    @Override
+    public boolean isAdaptive() {
+        return adaptiveStackSampler != null;
+    }
+
+    @Override
+    public double getLastPauseMillis() {
+        return lastPauseNanos / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getTotalPauseMillis() {
+        return totalPauseNanos / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public int getLastSampledThreadCount() {
+        return lastSampledThreadCount;
+    }
+
+    @Override
+    public int getLastSkippedThreadCount() {
+        return lastSkippedThreadCount;
+    }
+
+    private void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+        List<ThreadContextImpl> platformThreadContexts =
+                captureVirtualThreadStackTraces(threadContexts);
+        int virtualThreadCount = threadContexts.size() - platformThreadContexts.size();
+        long pauseNanos;
+        if (adaptiveStackSampler == null) {
+            pauseNanos = captureFullStackTraces(platformThreadContexts);
+            lastSampledThreadCount = threadContexts.size();
+        } else {
+            pauseNanos = adaptiveStackSampler.captureStackTraces(platformThreadContexts);
+            lastSampledThreadCount =
+                    adaptiveStackSampler.getLastSampledThreadCount() + virtualThreadCount;
+            lastSkippedThreadCount = adaptiveStackSampler.getLastSkippedThreadCount();
+        }
+        lastPauseNanos = pauseNanos;
+        totalPauseNanos += pauseNanos;
+    }
+
+    // ThreadMXBean cannot see virtual threads, so they are sampled individually via
+    // Thread.getStackTrace(), which for an unmounted virtual thread walks its continuation stack
+    // without a safepoint, and for a mounted virtual thread only pauses its carrier thread
+    //
+    // returns the remaining (platform) thread contexts
+    private static List<ThreadContextImpl> captureVirtualThreadStackTraces(
+            List<ThreadContextImpl> threadContexts) {
+        if (!VirtualThreads.isSupported()) {
+            return threadContexts;
+        }
+        @Nullable
+        List<ThreadContextImpl> platformThreadContexts = null;
+        for (int i = 0; i < threadContexts.size(); i++) {
+            ThreadContextImpl threadContext = threadContexts.get(i);
+            Thread virtualThread = threadContext.getVirtualThread();
+            if (virtualThread == null) {
+                if (platformThreadContexts != null) {
+                    platformThreadContexts.add(threadContext);
+                }
+                continue;
+            }
+            if (platformThreadContexts == null) {
+                platformThreadContexts = Lists.newArrayList(threadContexts.subList(0, i));
+            }
+            StackTraceElement[] stackTrace = virtualThread.getStackTrace();
+            Thread.State threadState = virtualThread.getState();
+            // empty stack trace means the virtual thread has not started or has already terminated
+            if (stackTrace.length > 0 && threadState != Thread.State.TERMINATED) {
+                threadContext.captureStackTrace(stackTrace, threadState);
+            }
+        }
+        return platformThreadContexts == null ? threadContexts : platformThreadContexts;
+    }
+
+    // returns the pause in nanoseconds
+    private static long captureFullStackTraces(List<ThreadContextImpl> threadContexts) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
-            return;
+            return 0;
         }
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
+        long startTick = System.nanoTime();
         @Nullable
         ThreadInfo[] threadInfos =
                 ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        long pauseNanos = System.nanoTime() - startTick;
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
@@ -98,6 +195,7 @@ public class StackTraceCollector {
                 threadContext.captureStackTrace(threadInfo);
             }
         }
+        return pauseNanos;
     }
 
     private class InternalRunnable implements Runnable {
@@ -146,7 +244,8 @@ public class StackTraceCollector {
         private void runInternal() {
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
+            // adaptive sampler still needs to be called so it can release its per-thread state
+            if (transactions.isEmpty() && adaptiveStackSampler == null) {
                 return;
             }
             List<ThreadContextImpl> activeThreadContexts =
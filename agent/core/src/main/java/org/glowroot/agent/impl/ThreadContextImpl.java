@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.bytecode.api.BytecodeServiceHolder;
 import org.glowroot.agent.bytecode.api.ThreadContextPlus;
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.bytecode.api.VirtualThreads;
 import org.glowroot.agent.impl.NopTransactionService.NopTimer;
 import org.glowroot.agent.model.AsyncQueryData;
 import org.glowroot.agent.model.AsyncTimer;
@@ -116,6 +117,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final int maxServiceCallAggregates;
 
     private final long threadId;
+    // non-null only when running on a virtual thread, which ThreadMXBean cannot see
+    private final @Nullable Thread virtualThread;
 
     private final boolean limitExceededAuxThreadContext;
 
@@ -153,14 +156,17 @@ public class ThreadContextImpl implements ThreadContextPlus {
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
-        threadId = Thread.currentThread().getId();
+        Thread currentThread = Thread.currentThread();
+        threadId = currentThread.getId();
+        virtualThread = VirtualThreads.isVirtual(currentThread) ? currentThread : null;
         threadStatsComponent =
                 captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
         this.ticker = ticker;
-        this.threadContextHolder = threadContextHolder;
+        // bound since isActive() and detach() are called from other threads
+        this.threadContextHolder = threadContextHolder.bind();
         this.servletRequestInfo = servletRequestInfo;
         this.outerTransactionThreadContext = (ThreadContextImpl) threadContextHolder.get();
         currentNestingGroupId = rootNestingGroupId;
@@ -206,6 +212,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadId;
     }
 
+    @Nullable
+    ThreadStatsComponent getThreadStatsComponent() {
+        return threadStatsComponent;
+    }
+
+    @Nullable
+    Thread getVirtualThread() {
+        return virtualThread;
+    }
+
     boolean isCompleted() {
         return traceEntryComponent.isCompleted();
     }
@@ -389,9 +405,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    private TraceEntryImpl startAsyncTraceEntry(long startTick, MessageSupplier messageSupplier,
+    private AsyncQueryEntry startAsyncTraceEntry(long startTick, MessageSupplier messageSupplier,
             TimerImpl syncTimer, AsyncTimer asyncTimer) {
-        TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier, syncTimer,
+        AsyncQueryEntry entry = traceEntryComponent.pushEntry(startTick, messageSupplier, syncTimer,
                 asyncTimer, null, 0);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
@@ -399,10 +415,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    private TraceEntryImpl startAsyncQueryEntry(long startTick,
+    private AsyncQueryEntry startAsyncQueryEntry(long startTick,
             QueryMessageSupplier queryMessageSupplier, TimerImpl syncTimer,
             AsyncTimer asyncTimer, @Nullable QueryData queryData, long queryExecutionCount) {
-        TraceEntryImpl entry =
+        AsyncQueryEntry entry =
                 traceEntryComponent.pushEntry(startTick, queryMessageSupplier, syncTimer,
                         asyncTimer, queryData, queryExecutionCount);
         // memory barrier write ensures partial trace capture will see data collected up to now
@@ -411,10 +427,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    private TraceEntryImpl startAsyncServiceCallEntry(long startTick,
+    private AsyncQueryEntry startAsyncServiceCallEntry(long startTick,
             MessageSupplier messageSupplier, TimerImpl syncTimer, AsyncTimer asyncTimer,
             @Nullable QueryData queryData) {
-        TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier,
+        AsyncQueryEntry entry = traceEntryComponent.pushEntry(startTick, messageSupplier,
                 syncTimer, asyncTimer, queryData, 1);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
@@ -422,8 +438,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
+    void releaseTraceEntries() {
+        traceEntryComponent.releaseArena();
+    }
+
     void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+        captureStackTrace(threadInfo.getStackTrace(), threadInfo.getThreadState());
+    }
+
+    void captureStackTrace(StackTraceElement[] stackTrace, Thread.State threadState) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.ThreadStatsComponent;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// captures the starting blocked and waited times (see ThreadStatsComponent) for thread contexts
+// that are still active after ThreadStatsComponent.BLOCKED_WAITED_THRESHOLD_MILLIS, using a single
+// bulk ThreadMXBean.getThreadInfo(long[], int) call, instead of calling
+// ThreadMXBean.getThreadInfo(long, int) at the start and end of every transaction
+public class ThreadStatsSampler extends ScheduledRunnable {
+
+    private final TransactionRegistry transactionRegistry;
+    private final Ticker ticker;
+
+    public ThreadStatsSampler(TransactionRegistry transactionRegistry, Ticker ticker) {
+        this.transactionRegistry = transactionRegistry;
+        this.ticker = ticker;
+    }
+
+    public static boolean isEnabled() {
+        return ThreadStatsComponent.BLOCKED_WAITED_THRESHOLD_MILLIS > 0;
+    }
+
+    // sampling twice per threshold bounds the start of the measurement to between one and one and a
+    // half thresholds into the thread context
+    public static long getPeriodMillis() {
+        return Math.max(ThreadStatsComponent.BLOCKED_WAITED_THRESHOLD_MILLIS / 2, 1);
+    }
+
+    @Override
+    protected void runInternal() {
+        long thresholdTick = ticker.read()
+                - MILLISECONDS.toNanos(ThreadStatsComponent.BLOCKED_WAITED_THRESHOLD_MILLIS);
+        List<ThreadStatsComponent> pending = Lists.newArrayList();
+        for (Transaction transaction : transactionRegistry.getTransactions()) {
+            if (!Tickers.lessThanOrEqual(transaction.getStartTick(), thresholdTick)) {
+                continue;
+            }
+            addIfPending(transaction.getMainThreadContext(), pending);
+            for (ThreadContextImpl auxThreadContext : transaction.getActiveAuxThreadContexts()) {
+                addIfPending(auxThreadContext, pending);
+            }
+        }
+        if (pending.isEmpty()) {
+            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+            // see https://bugs.openjdk.java.net/browse/JDK-8074368
+            return;
+        }
+        long[] threadIds = new long[pending.size()];
+        for (int i = 0; i < pending.size(); i++) {
+            threadIds[i] = pending.get(i).getThreadId();
+        }
+        @Nullable
+        ThreadInfo[] threadInfos = ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, 0);
+        for (int i = 0; i < pending.size(); i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo != null) {
+                // if the thread context has completed in the meantime (and the thread moved on to
+                // another transaction) this is a no-op, see captureStartingBlockedWaited()
+                pending.get(i).captureStartingBlockedWaited(threadInfo);
+            }
+        }
+    }
+
+    private static void addIfPending(ThreadContextImpl threadContext,
+            List<ThreadStatsComponent> pending) {
+        if (!threadContext.isActive()) {
+            return;
+        }
+        ThreadStatsComponent threadStatsComponent = threadContext.getThreadStatsComponent();
+        if (threadStatsComponent != null && threadStatsComponent.isPendingStartingBlockedWaited()) {
+            pending.add(threadStatsComponent);
+        }
+    }
+}
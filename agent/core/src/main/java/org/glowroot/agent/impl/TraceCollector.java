@@ -158,23 +158,26 @@ public class TraceCollector {
         }
     }
 
-    void collectTrace(Transaction transaction) {
+    // returns true if the trace was queued to be stored
+    boolean collectTrace(Transaction transaction) {
         boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
-            return;
+            return false;
         }
         // don't need to worry about race condition since only ever called from a single thread
+        // (except when using striped aggregation, in which case the pending limit is only
+        // approximate, but pendingTraces is still bounded)
         if (transaction.isPartiallyStored()
                 && partialCompletePendingCount.get() >= PENDING_LIMIT) {
             backPressureLogger.warn("not storing a completed (and once partial) trace because of an"
                     + " excessive backlog of {} completed (and once partial) traces already waiting"
                     + " to be stored", PENDING_LIMIT);
-            return;
+            return false;
         } else if (!transaction.isPartiallyStored()
                 && normalCompletePendingCount.get() >= PENDING_LIMIT) {
             backPressureLogger.warn("not storing a completed trace because of an excessive backlog"
                     + " of {} completed traces already waiting to be stored", PENDING_LIMIT);
-            return;
+            return false;
         }
         PendingTrace pendingTransaction = ImmutablePendingTrace.builder()
                 .transaction(transaction)
@@ -185,7 +188,9 @@ public class TraceCollector {
             // this should never happen
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT * 3);
+            return false;
         }
+        return true;
     }
 
     public void storePartialTrace(Transaction transaction) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.AsyncTimer;
+import org.glowroot.agent.model.QueryData;
+
+// chunked storage for the trace entries of a single thread context, so that the trace entries of
+// transactions that are not stored as traces (which is the vast majority of transactions) can be
+// recycled instead of becoming young generation garbage
+//
+// trace entries of transactions that are stored as traces are never released, so they simply
+// become regular heap objects owned by the transaction
+//
+// this is opt-in since trace entries are handed out to plugins, which (in rare cases, e.g.
+// navigating a jdbc result set after the transaction has completed) can still call into a trace
+// entry after its transaction has completed (plugins are handed a TraceEntryHandle so that these
+// calls become no-ops once the trace entry has been recycled)
+//
+// this is only accessed by the thread context's thread, except for release(), which is called by
+// the aggregate processing thread after the thread context has completed
+class TraceEntryArena {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.internal.traceEntryArena");
+
+    private static final int CHUNK_SIZE = 128;
+
+    private static final int MAX_POOLED_CHUNKS =
+            Integer.getInteger("glowroot.internal.traceEntryArena.maxPooledChunks", 256);
+
+    private static final @Nullable TraceEntryImpl[] EMPTY_CHUNK = new TraceEntryImpl[0];
+
+    // this pool is shared across threads (as opposed to per-thread pools) since chunks are released
+    // by the aggregate processing thread, and since per-thread pools would be unbounded when using
+    // virtual threads
+    private static final BlockingQueue<@Nullable TraceEntryImpl[]> sharedPool =
+            new ArrayBlockingQueue<@Nullable TraceEntryImpl[]>(MAX_POOLED_CHUNKS);
+
+    private final BlockingQueue<@Nullable TraceEntryImpl[]> pool;
+
+    private final List<@Nullable TraceEntryImpl[]> chunks = Lists.newArrayList();
+
+    private @Nullable TraceEntryImpl[] currChunk = EMPTY_CHUNK;
+    private int currIndex;
+
+    TraceEntryArena() {
+        this(sharedPool);
+    }
+
+    @VisibleForTesting
+    TraceEntryArena(BlockingQueue<@Nullable TraceEntryImpl[]> pool) {
+        this.pool = pool;
+    }
+
+    TraceEntryImpl allocate(ThreadContextImpl threadContext, TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, @Nullable QueryData queryData, long queryExecutionCount,
+            long startTick, TimerImpl syncTimer, @Nullable AsyncTimer asyncTimer) {
+        if (currIndex == currChunk.length) {
+            @Nullable
+            TraceEntryImpl[] chunk = pool.poll();
+            if (chunk == null) {
+                chunk = new TraceEntryImpl[CHUNK_SIZE];
+            }
+            chunks.add(chunk);
+            currChunk = chunk;
+            currIndex = 0;
+        }
+        TraceEntryImpl entry = currChunk[currIndex];
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+            currChunk[currIndex] = entry;
+        } else {
+            entry.reset(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        }
+        currIndex++;
+        return entry;
+    }
+
+    // returns false (and does not release anything) if any of the trace entries are still active,
+    // since then they may still be used by a plugin
+    boolean release() {
+        for (int i = 0; i < chunks.size(); i++) {
+            @Nullable
+            TraceEntryImpl[] chunk = chunks.get(i);
+            for (@Nullable TraceEntryImpl entry : chunk) {
+                if (entry != null && !entry.isCompleted()) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            @Nullable
+            TraceEntryImpl[] chunk = chunks.get(i);
+            for (@Nullable TraceEntryImpl entry : chunk) {
+                if (entry != null) {
+                    entry.clear();
+                }
+            }
+            if (!pool.offer(chunk)) {
+                // pool is full, remaining chunks will be garbage collected
+                break;
+            }
+        }
+        chunks.clear();
+        currChunk = EMPTY_CHUNK;
+        currIndex = 0;
+        return true;
+    }
+}
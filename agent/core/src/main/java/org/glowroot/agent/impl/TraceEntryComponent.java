@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.model.AsyncTimer;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryData;
+import org.glowroot.agent.plugin.api.AsyncQueryEntry;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 
 // this supports updating by a single thread and reading by multiple threads
@@ -43,6 +44,8 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    private final @Nullable TraceEntryArena arena;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
@@ -51,6 +54,7 @@ class TraceEntryComponent {
                 timer, null);
         activeEntry = rootEntry;
         tailEntry = rootEntry;
+        arena = TraceEntryArena.ENABLED ? new TraceEntryArena() : null;
     }
 
     TraceEntryImpl getRootEntry() {
@@ -69,15 +73,23 @@ class TraceEntryComponent {
         return endTick;
     }
 
-    TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
+    // when the trace entry arena is enabled, the returned trace entry is a handle that becomes a
+    // no-op once the underlying trace entry is recycled
+    AsyncQueryEntry pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimer asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry;
+        if (arena == null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        } else {
+            entry = arena.allocate(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
-        return entry;
+        return arena == null ? entry : new TraceEntryHandle(entry);
     }
 
     // typically pop() methods don't require the objects to pop, but for safety, the entry is
@@ -115,6 +127,18 @@ class TraceEntryComponent {
         return tailEntry;
     }
 
+    // this is called from another thread after the thread context has completed and is no longer
+    // needed for storing a trace
+    void releaseArena() {
+        if (arena != null && arena.release()) {
+            // error entries and the detached entry are not allocated from the arena, but they can
+            // be dropped along with the arena entries since nothing will read them anymore
+            rootEntry.setNextTraceEntry(null);
+            tailEntry = rootEntry;
+            activeEntry = rootEntry;
+        }
+    }
+
     boolean isEmpty() {
         return rootEntry == tailEntry;
     }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.impl.NopTransactionService.NopTimer;
+import org.glowroot.agent.plugin.api.AsyncQueryEntry;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.Timer;
+
+// this is what plugins are handed (instead of the trace entry itself) when trace entries are
+// allocated from a TraceEntryArena
+//
+// plugins can hold onto a trace entry after its transaction has completed (e.g. jdbc result set
+// row counting, or a pooled statement that still references its last query entry), and once the
+// trace entry has been recycled into another transaction, all calls through a stale handle are
+// no-ops instead of writing into the other transaction's trace entry
+class TraceEntryHandle implements AsyncQueryEntry, Timer {
+
+    private final TraceEntryImpl entry;
+    private final int generation;
+
+    TraceEntryHandle(TraceEntryImpl entry) {
+        this.entry = entry;
+        this.generation = entry.getGeneration();
+    }
+
+    @Override
+    public void end() {
+        if (isCurrent()) {
+            entry.end();
+        }
+    }
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+        if (isCurrent()) {
+            entry.endWithLocationStackTrace(threshold, unit);
+        }
+    }
+
+    @Override
+    public void endWithError(Throwable t) {
+        if (isCurrent()) {
+            entry.endWithError(t);
+        }
+    }
+
+    @Override
+    public void endWithError(@Nullable String message) {
+        if (isCurrent()) {
+            entry.endWithError(message);
+        }
+    }
+
+    @Override
+    public void endWithError(@Nullable String message, Throwable t) {
+        if (isCurrent()) {
+            entry.endWithError(message, t);
+        }
+    }
+
+    @Override
+    public void endWithInfo(Throwable t) {
+        if (isCurrent()) {
+            entry.endWithInfo(t);
+        }
+    }
+
+    @Override
+    public Timer extend() {
+        if (!isCurrent()) {
+            return NopTimer.INSTANCE;
+        }
+        Timer timer = entry.extend();
+        // the trace entry returns itself as the extension timer, which needs to go through the
+        // handle as well
+        return timer == entry ? this : timer;
+    }
+
+    // this is called for stopping an extension
+    @Override
+    public void stop() {
+        if (isCurrent()) {
+            entry.stop();
+        }
+    }
+
+    @Override
+    public @Nullable Object getMessageSupplier() {
+        if (isCurrent()) {
+            return entry.getMessageSupplier();
+        }
+        return null;
+    }
+
+    @Override
+    public void rowNavigationAttempted() {
+        if (isCurrent()) {
+            entry.rowNavigationAttempted();
+        }
+    }
+
+    @Override
+    public void incrementCurrRow() {
+        if (isCurrent()) {
+            entry.incrementCurrRow();
+        }
+    }
+
+    @Override
+    public void setCurrRow(long row) {
+        if (isCurrent()) {
+            entry.setCurrRow(row);
+        }
+    }
+
+    @Override
+    public void stopSyncTimer() {
+        if (isCurrent()) {
+            entry.stopSyncTimer();
+        }
+    }
+
+    @Override
+    public Timer extendSyncTimer(ThreadContext currThreadContext) {
+        if (isCurrent()) {
+            return entry.extendSyncTimer(currThreadContext);
+        }
+        return NopTimer.INSTANCE;
+    }
+
+    @Override
+    public String toString() {
+        return entry.toString();
+    }
+
+    private boolean isCurrent() {
+        return entry.getGeneration() == generation;
+    }
+}
@@ -57,14 +57,19 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // these fields are not final so that trace entries can be recycled (see TraceEntryArena)
+    private ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
+
+    // incremented each time this trace entry is recycled (see TraceEntryArena), so that handles
+    // held by plugins past the end of the transaction can detect that they are stale
+    private volatile int generation;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -76,8 +81,8 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private @Nullable TraceEntryImpl nextTraceEntry;
 
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
-    private final @Nullable AsyncTimer asyncTimer;
+    private @Nullable TimerImpl syncTimer;
+    private @Nullable AsyncTimer asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
@@ -117,6 +122,49 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         selfNestingLevel = 1;
     }
 
+    // same as the constructor, but for a trace entry recycled by TraceEntryArena
+    void reset(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
+            @Nullable Object messageSupplier, @Nullable QueryData queryData,
+            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
+            @Nullable AsyncTimer asyncTimer) {
+        resetQueryEntry(queryData, startTick, queryExecutionCount);
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        this.asyncTimer = asyncTimer;
+        errorMessage = null;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = null;
+        locationStackTrace = null;
+        locationStackTraceThreshold = 0;
+        extendedTimer = null;
+    }
+
+    // drops all references so that a pooled trace entry does not retain its prior transaction
+    @SuppressWarnings("assignment.type.incompatible")
+    void clear() {
+        generation++;
+        resetQueryEntry(null, 0, -1);
+        threadContext = null;
+        parentTraceEntry = null;
+        messageSupplier = null;
+        syncTimer = null;
+        asyncTimer = null;
+        errorMessage = null;
+        nextTraceEntry = null;
+        locationStackTrace = null;
+        extendedTimer = null;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
     @Override
     public @Nullable Object getMessageSupplier() {
         return messageSupplier;
@@ -402,7 +450,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return nextTraceEntry;
     }
 
-    void setNextTraceEntry(TraceEntryImpl nextTraceEntry) {
+    void setNextTraceEntry(@Nullable TraceEntryImpl nextTraceEntry) {
         this.nextTraceEntry = nextTraceEntry;
     }
 
@@ -411,7 +459,7 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
     }
 
-    private boolean isCompleted() {
+    boolean isCompleted() {
         // initialComplete is needed for async trace entries which have selfNestingLevel = 0 after
         // calling stopSyncTimer(), but are not complete until end() is called
         return initialComplete && selfNestingLevel == 0;
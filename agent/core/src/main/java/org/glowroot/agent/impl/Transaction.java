@@ -213,6 +213,13 @@ public class Transaction {
     @GuardedBy("mainThreadContext")
     private boolean stopMergingAuxThreadContexts;
 
+    // live trace reads (from the UI) in progress, the trace entries are not recycled while any of
+    // these could still be reading them
+    @GuardedBy("mainThreadContext")
+    private int liveTraceReaders;
+    @GuardedBy("mainThreadContext")
+    private boolean traceEntriesReleased;
+
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
             int maxTraceEntries, int maxQueryAggregates, int maxServiceCallAggregates,
@@ -689,12 +696,64 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    // called once the transaction is no longer needed for storing a trace, to recycle its trace
+    // entries (see TraceEntryArena)
+    void releaseTraceEntries() {
+        if (!TraceEntryArena.ENABLED || !completed || asyncComponents != null
+                || immedateTraceStoreRunnable != null) {
+            // async trace entries and partial trace stores can outlive (or race with) completion
+            return;
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null || unmergedLimitExceededAuxThreadContexts != null) {
+                // auxiliary thread contexts hold references to their parent trace entries
+                return;
+            }
+            if (liveTraceReaders > 0) {
+                // the trace entries are left to be garbage collected along with the transaction
+                return;
+            }
+            traceEntriesReleased = true;
+            mainThreadContext.releaseTraceEntries();
+        }
+    }
+
+    // returns false if the trace entries have already been recycled, in which case the transaction
+    // must be treated as no longer available (it was not stored either, since only transactions
+    // that are not stored have their trace entries recycled)
+    //
+    // each successful call must be followed by a call to endLiveTraceRead()
+    public boolean startLiveTraceRead() {
+        if (!TraceEntryArena.ENABLED) {
+            return true;
+        }
+        synchronized (mainThreadContext) {
+            if (traceEntriesReleased) {
+                return false;
+            }
+            liveTraceReaders++;
+            return true;
+        }
+    }
+
+    public void endLiveTraceRead() {
+        if (!TraceEntryArena.ENABLED) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            liveTraceReaders--;
+        }
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
-            long startTick, ThreadContextThreadLocal.Holder threadContextHolder,
+            long startTick, ThreadContextThreadLocal.Holder unboundThreadContextHolder,
             @Nullable ServletRequestInfo servletRequestInfo,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        // the holder is synchronized on below (and from other threads in detach()), so it needs to
+        // be the one bound to this thread, not the shared one that is used by virtual threads
+        ThreadContextThreadLocal.Holder threadContextHolder = unboundThreadContextHolder.bind();
         ThreadContextImpl auxThreadContext;
         synchronized (mainThreadContext) {
             // check completed and add aux thread context inside synchronized block to avoid race
@@ -782,7 +841,8 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, StackTraceElement[] stackTrace,
+            Thread.State threadState) {
         if (completed) {
             return;
         }
@@ -801,7 +861,7 @@ public class Transaction {
             // transaction profile field, so that it is not possible to read a profile that doesn't
             // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
+            profile.addStackTrace(stackTrace, threadState);
             if (auxiliary) {
                 auxThreadProfile = profile;
             } else {
@@ -809,7 +869,7 @@ public class Transaction {
             }
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(stackTrace, threadState);
     }
 
     void trackResourceAcquired(Object resource, boolean withLocationStackTrace) {
@@ -48,6 +48,12 @@ public class TransactionProcessor {
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // when enabled, completing threads merge directly into striped shards of the active interval
+    // collector, instead of handing off each transaction to the single TransactionProcessorLoop
+    private static final boolean STRIPED_AGGREGATION =
+            Boolean.getBoolean("glowroot.internal.aggregate.striped");
+    private static final int AGGREGATE_SHARD_COUNT = getAggregateShardCount();
+
     final Object monitor = new Object();
 
     private volatile AggregateIntervalCollector activeIntervalCollector;
@@ -75,6 +81,10 @@ public class TransactionProcessor {
     private int queueLength;
     private final Object queueLock = new Object();
 
+    // all changes to activeIntervalCollector are made under rolloverLock, since when using striped
+    // aggregation they can be made by any completing thread
+    private final Object rolloverLock = new Object();
+
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
 
@@ -91,11 +101,7 @@ public class TransactionProcessor {
                 .newFixedThreadPool(1, ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newFixedThreadPool(1, ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -130,6 +136,10 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
+        if (STRIPED_AGGREGATION) {
+            processOnCompletionConcurrently(transaction);
+            return;
+        }
         // this synchronized block is to ensure traces are placed into processing queue in the
         // order of captureTime (so that queue reader can assume if captureTime indicates time to
         // flush, then no new traces will come in with prior captureTime)
@@ -156,6 +166,76 @@ public class TransactionProcessor {
         }
     }
 
+    private void processOnCompletionConcurrently(Transaction transaction) {
+        long captureTime = clock.currentTimeMillis();
+        transaction.setCaptureTime(captureTime);
+        // send to the trace collector before removing from transaction registry so that the trace
+        // collector can cover the gap (via TraceCollector.getPendingTransactions()) between
+        // removing the transaction from the registry and storing it
+        boolean traceCollected = traceCollector.collectTrace(transaction);
+        transaction.removeFromActiveTransactions();
+        AggregateIntervalCollector intervalCollector = activeIntervalCollector;
+        if (captureTime > intervalCollector.getCaptureTime()) {
+            intervalCollector = rollOverActiveIntervalCollector(captureTime);
+        }
+        while (!intervalCollector.addConcurrently(transaction)) {
+            // the interval collector was sealed for flushing after it was read above, which can
+            // only happen after a newer interval collector has been (or is being) made active
+            synchronized (rolloverLock) {
+                intervalCollector = activeIntervalCollector;
+            }
+        }
+        if (!traceCollected) {
+            transaction.releaseTraceEntries();
+        }
+    }
+
+    private AggregateIntervalCollector rollOverActiveIntervalCollector(long currentTime) {
+        synchronized (rolloverLock) {
+            AggregateIntervalCollector intervalCollector = activeIntervalCollector;
+            if (currentTime <= intervalCollector.getCaptureTime()) {
+                // another thread has already rolled over to a new interval
+                return intervalCollector;
+            }
+            // the active interval collector is offered to the flushing queue before replacing it
+            // so that getOrderedAllIntervalCollectors() does not miss it in between
+            flushIntervalCollector(intervalCollector);
+            intervalCollector = createIntervalCollector(currentTime);
+            activeIntervalCollector = intervalCollector;
+            return intervalCollector;
+        }
+    }
+
+    private void flushIntervalCollector(AggregateIntervalCollector intervalCollector) {
+        boolean accepted;
+        synchronized (pendingIntervalCollectors) {
+            accepted = pendingIntervalCollectors.offer(intervalCollector);
+            if (accepted) {
+                pendingIntervalCollectors.notifyAll();
+            }
+        }
+        if (!accepted) {
+            // don't log under synchronized lock
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(),
+                STRIPED_AGGREGATION ? AGGREGATE_SHARD_COUNT : 0, clock);
+    }
+
+    private static int getAggregateShardCount() {
+        int shardCount = Integer.getInteger("glowroot.internal.aggregate.shards",
+                2 * Runtime.getRuntime().availableProcessors());
+        // round up to power of two so that shard can be selected using a mask
+        return Integer.highestOneBit(Math.max(shardCount, 1) * 2 - 1);
+    }
+
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
@@ -225,7 +305,7 @@ public class TransactionProcessor {
             // send to the trace collector before removing from transaction registry so that the
             // trace collector can cover the gap (via TraceCollector.getPendingTransactions())
             // between removing the transaction from the registry and storing it
-            traceCollector.collectTrace(transaction);
+            boolean traceCollected = traceCollector.collectTrace(transaction);
 
             transaction.removeFromActiveTransactions();
 
@@ -242,9 +322,12 @@ public class TransactionProcessor {
                 queueLength--;
             }
             if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+                rollOverActiveIntervalCollector(pendingTransaction.captureTime);
             }
             activeIntervalCollector.add(transaction);
+            if (!traceCollected) {
+                transaction.releaseTraceEntries();
+            }
             return hasNext;
         }
 
@@ -264,31 +347,9 @@ public class TransactionProcessor {
             if (safeToFlush) {
                 // safe to flush, no other pending transactions can enter queue with later time
                 // (since the check above was done under same lock used to add to queue)
-                flushAndResetActiveIntervalCollector(currentTime);
-            }
-        }
-
-        private void flushAndResetActiveIntervalCollector(long currentTime) {
-            flushActiveIntervalCollector();
-            activeIntervalCollector =
-                    new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
-                            configService.getAdvancedConfig().maxTransactionAggregates(),
-                            configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-        }
-
-        private void flushActiveIntervalCollector() {
-            boolean accepted;
-            synchronized (pendingIntervalCollectors) {
-                accepted = pendingIntervalCollectors.offer(activeIntervalCollector);
-                if (accepted) {
-                    pendingIntervalCollectors.notifyAll();
-                }
-            }
-            if (!accepted) {
-                // don't log under synchronized lock
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+                // (when using striped aggregation, completing threads may have already rolled over
+                // to a new interval, which rollOverActiveIntervalCollector() checks under its lock)
+                rollOverActiveIntervalCollector(currentTime);
             }
         }
     }
@@ -48,6 +48,7 @@ import org.glowroot.agent.impl.PluginServiceImpl;
 import org.glowroot.agent.impl.PluginServiceImpl.ConfigServiceFactory;
 import org.glowroot.agent.impl.PreloadSomeSuperTypesCache;
 import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.impl.ThreadStatsSampler;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TraceCollector;
 import org.glowroot.agent.impl.TransactionProcessor;
@@ -71,10 +72,12 @@ import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -99,6 +102,7 @@ public class AgentModule {
     private final TransactionRegistry transactionRegistry;
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
+    private final @Nullable WeavingCache weavingCache;
     private final AnalyzedWorld analyzedWorld;
     private final Weaver weaver;
     private final Random random;
@@ -116,6 +120,7 @@ public class AgentModule {
     private volatile @MonotonicNonNull StackTraceCollector stackTraceCollector;
 
     private volatile @MonotonicNonNull ImmediateTraceStoreWatcher immedateTraceStoreWatcher;
+    private volatile @MonotonicNonNull ThreadStatsSampler threadStatsSampler;
 
     private final boolean jvmRetransformClassesSupported;
 
@@ -153,11 +158,19 @@ public class AgentModule {
         analyzedWorld =
                 new AnalyzedWorld(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                         adviceCache.getMixinTypes(), preloadSomeSuperTypesCache);
+        if (Boolean.getBoolean("glowroot.internal.weaving.disableCache")) {
+            weavingCache = null;
+        } else {
+            weavingCache = new WeavingCache(new File(tmpDir, "weaving-cache"),
+                    Integer.getInteger("glowroot.internal.weaving.cacheMaxSize", 50000),
+                    Version.getVersion(AgentModule.class), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         TimerNameCache timerNameCache = new TimerNameCache();
 
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                timerNameCache, configService, weavingCache);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -280,6 +293,13 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        // stack trace collector pause can be tracked via gauge
+        lazyPlatformMBeanServer.lazyRegisterMBean(checkNotNull(stackTraceCollector),
+                "org.glowroot:type=StackTraceCollector");
+        if (weavingCache != null) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(weavingCache,
+                    "org.glowroot:type=WeavingCache");
+        }
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
@@ -291,6 +311,12 @@ public class AgentModule {
         immedateTraceStoreWatcher.scheduleWithFixedDelay(backgroundExecutor,
                 ImmediateTraceStoreWatcher.PERIOD_MILLIS, ImmediateTraceStoreWatcher.PERIOD_MILLIS,
                 MILLISECONDS);
+        if (ThreadStatsSampler.isEnabled()) {
+            threadStatsSampler = new ThreadStatsSampler(transactionRegistry, ticker);
+            threadStatsSampler.scheduleWithFixedDelay(backgroundExecutor,
+                    ThreadStatsSampler.getPeriodMillis(), ThreadStatsSampler.getPeriodMillis(),
+                    MILLISECONDS);
+        }
 
         liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry, traceCollector,
                 clock, ticker);
@@ -302,6 +328,9 @@ public class AgentModule {
                 glowrootJarFile, clock);
 
         preloadSomeSuperTypesCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        if (weavingCache != null) {
+            weavingCache.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
+        }
     }
 
     public ConfigService getConfigService() {
@@ -444,6 +473,9 @@ public class AgentModule {
         if (immedateTraceStoreWatcher != null) {
             immedateTraceStoreWatcher.cancel();
         }
+        if (threadStatsSampler != null) {
+            threadStatsSampler.cancel();
+        }
         if (stackTraceCollector != null) {
             stackTraceCollector.close();
         }
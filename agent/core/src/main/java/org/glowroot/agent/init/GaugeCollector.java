@@ -21,11 +21,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -36,6 +42,7 @@ import javax.management.openmbean.CompositeData;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
@@ -63,6 +70,9 @@ import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GaugeCollector extends ScheduledRunnable {
@@ -73,12 +83,24 @@ class GaugeCollector extends ScheduledRunnable {
     // back pressure on writing captured data to disk/network
     private static final int PENDING_LIMIT = 60;
 
+    // bulk mode caches mbean object name pattern expansions, fetches all attributes of an mbean
+    // with a single getAttributes() call, and collects gauges in parallel with a per-gauge timeout
+    // so that a single slow mbean cannot delay the whole collection
+    private static final boolean BULK = Boolean.getBoolean("glowroot.internal.gauges.bulk");
+
+    private static final int BULK_THREADS =
+            Integer.getInteger("glowroot.internal.gauges.bulk.threads", 4);
+
+    private static final long BULK_TIMEOUT_MILLIS =
+            Long.getLong("glowroot.internal.gauges.bulk.timeoutMillis", 2000);
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
     private final Clock clock;
     private final Ticker ticker;
     private final long startTimeMillis;
+    private final long bulkTimeoutMillis;
 
     private final Set<String> pendingLoggedMBeanGauges = Sets.newConcurrentHashSet();
     private final Set<String> loggedMBeanGauges = Sets.newConcurrentHashSet();
@@ -88,6 +110,13 @@ class GaugeCollector extends ScheduledRunnable {
     private final ScheduledExecutorService collectionExecutor;
     private final ExecutorService flushingExecutor;
 
+    // these are only non-null in bulk mode
+    private final @Nullable ExecutorService bulkExecutor;
+    private final @Nullable MBeanPatternCache mbeanPatternCache;
+
+    // key is mbean object name, only accessed by the collection thread
+    private final Map<String, BulkGaugeTask> inFlightGauges = Maps.newHashMap();
+
     // need to guarantee these are processed in order (at least when running embedded collector
     // due to rollups relying on not seeing old data after newer data has been seen)
     private final BlockingQueue<List<GaugeValue>> pending =
@@ -97,24 +126,43 @@ class GaugeCollector extends ScheduledRunnable {
             new RateLimitedLogger(GaugeCollector.class);
 
     // since gauges have their own dedicated thread, don't need to worry about thread safety of
-    // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
+    // priorRawCounterValues (except can't initialize here outside of the dedicated thread, and
+    // except in bulk mode, where it is accessed concurrently by the bulk executor threads)
     private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
 
     private volatile boolean closed;
 
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer,
-            final @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker) {
+            @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker) {
+        this(configService, collector, lazyPlatformMBeanServer, instrumentation, clock, ticker,
+                BULK, BULK_TIMEOUT_MILLIS);
+    }
+
+    @VisibleForTesting
+    GaugeCollector(ConfigService configService, Collector collector,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer,
+            final @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker,
+            boolean bulk, long bulkTimeoutMillis) {
         this.configService = configService;
         this.collector = collector;
         this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
         this.clock = clock;
         this.ticker = ticker;
+        this.bulkTimeoutMillis = bulkTimeoutMillis;
         startTimeMillis = clock.currentTimeMillis();
         collectionExecutor = Executors.newSingleThreadScheduledExecutor(
                 ThreadFactories.create("Glowroot-Gauge-Collection"));
         flushingExecutor = Executors
                 .newFixedThreadPool(1, ThreadFactories.create("Glowroot-Gauge-Flushing"));
+        if (bulk) {
+            bulkExecutor = Executors.newFixedThreadPool(BULK_THREADS,
+                    ThreadFactories.create("Glowroot-Gauge-Collection-Worker"));
+            mbeanPatternCache = new MBeanPatternCache(lazyPlatformMBeanServer);
+        } else {
+            bulkExecutor = null;
+            mbeanPatternCache = null;
+        }
         lazyPlatformMBeanServer.addInitListener(new InitListener() {
             @Override
             public void postInit(MBeanServer mbeanServer) {
@@ -142,11 +190,19 @@ class GaugeCollector extends ScheduledRunnable {
         final List<GaugeValue> gaugeValues = Lists.newArrayList();
         if (priorRawCounterValues == null) {
             // wait to now to initialize priorGaugeValues inside of the dedicated thread
-            priorRawCounterValues = Maps.newHashMap();
+            if (bulkExecutor == null) {
+                priorRawCounterValues = Maps.newHashMap();
+            } else {
+                priorRawCounterValues = Maps.newConcurrentMap();
+            }
         }
         List<MBeanServer> mbeanServers = lazyPlatformMBeanServer.findAllMBeanServers();
-        for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
-            gaugeValues.addAll(collectGaugeValues(gaugeConfig, mbeanServers));
+        if (bulkExecutor == null) {
+            for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
+                gaugeValues.addAll(collectGaugeValues(gaugeConfig, mbeanServers));
+            }
+        } else {
+            gaugeValues.addAll(collectGaugeValuesInParallel(bulkExecutor, mbeanServers));
         }
         if (!pending.offer(gaugeValues)) {
             backPressureLogger.warn("not storing a gauge collection because of an excessive backlog"
@@ -164,6 +220,16 @@ class GaugeCollector extends ScheduledRunnable {
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (bulkExecutor != null) {
+            // shutdownNow() is needed here to interrupt any hung mbean attribute access
+            bulkExecutor.shutdownNow();
+            if (!bulkExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        if (mbeanPatternCache != null) {
+            mbeanPatternCache.close();
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -175,6 +241,16 @@ class GaugeCollector extends ScheduledRunnable {
     @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig, List<MBeanServer> mbeanServers)
             throws Exception {
+        return collectGaugeValues(gaugeConfig, mbeanServers, priorRawCounterValues);
+    }
+
+    // new raw counter values are put into rawCounterValueUpdates, which in bulk mode is local to
+    // the task, so that a task which completes after its timeout does not update the prior raw
+    // counter values (which would skew the next delta)
+    @RequiresNonNull("priorRawCounterValues")
+    private List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig,
+            List<MBeanServer> mbeanServers, Map<String, RawCounterValue> rawCounterValueUpdates)
+            throws Exception {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
         ObjectName objectName;
         try {
@@ -186,10 +262,15 @@ class GaugeCollector extends ScheduledRunnable {
         }
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName,
-                    mbeanServers);
+                    mbeanServers, rawCounterValueUpdates);
+        }
+        Set<ObjectName> matchingObjectNames;
+        if (mbeanPatternCache == null) {
+            matchingObjectNames =
+                    lazyPlatformMBeanServer.queryNames(objectName, null, mbeanServers);
+        } else {
+            matchingObjectNames = mbeanPatternCache.queryNames(objectName, mbeanServers);
         }
-        Set<ObjectName> matchingObjectNames =
-                lazyPlatformMBeanServer.queryNames(objectName, null, mbeanServers);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -202,7 +283,7 @@ class GaugeCollector extends ScheduledRunnable {
             gaugeValues.addAll(collectGaugeValues(matchingObjectName, gaugeConfig.mbeanAttributes(),
                     matchingObjectName.getDomain() + ":"
                             + matchingObjectName.getKeyPropertyListString(),
-                    mbeanServers));
+                    mbeanServers, rawCounterValueUpdates));
         }
         return gaugeValues;
     }
@@ -210,17 +291,35 @@ class GaugeCollector extends ScheduledRunnable {
     @RequiresNonNull("priorRawCounterValues")
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName,
-            List<MBeanServer> mbeanServers) throws Exception {
+            List<MBeanServer> mbeanServers, Map<String, RawCounterValue> rawCounterValueUpdates)
+            throws Exception {
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         long captureTime = clock.currentTimeMillis();
+        Map<String, /*@Nullable*/ Object> bulkAttributeValues;
+        if (bulkExecutor == null) {
+            bulkAttributeValues = ImmutableMap.of();
+        } else {
+            try {
+                bulkAttributeValues = getAttributes(objectName, mbeanAttributes, mbeanServers);
+            } catch (InstanceNotFoundException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+                return gaugeValues;
+            } catch (Exception e) {
+                // fall back to accessing attributes individually, which will log the specific
+                // error(s) below
+                logger.debug(e.getMessage(), e);
+                bulkAttributeValues = ImmutableMap.of();
+            }
+        }
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
             Object attributeValue;
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, path[0], mbeanServers);
+                    attributeValue = getAttribute(objectName, path[0], bulkAttributeValues,
+                            mbeanServers);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -230,8 +329,8 @@ class GaugeCollector extends ScheduledRunnable {
                     }
                     attributeValue = compositeData.get(path[1]);
                 } else {
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName,
-                            mbeanAttributeName, mbeanServers);
+                    attributeValue = getAttribute(objectName, mbeanAttributeName,
+                            bulkAttributeValues, mbeanServers);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -289,7 +388,7 @@ class GaugeCollector extends ScheduledRunnable {
                                 .setWeight(intervalNanos)
                                 .build());
                     }
-                    priorRawCounterValues.put(gaugeNameStr,
+                    rawCounterValueUpdates.put(gaugeNameStr,
                             ImmutableRawCounterValue.of(value, captureTick));
                 } else {
                     gaugeValues.add(GaugeValue.newBuilder()
@@ -304,6 +403,101 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    @RequiresNonNull("priorRawCounterValues")
+    private List<GaugeValue> collectGaugeValuesInParallel(ExecutorService bulkExecutor,
+            List<MBeanServer> mbeanServers) throws InterruptedException {
+        List<GaugeConfig> gaugeConfigs = configService.getGaugeConfigs();
+        List</*@Nullable*/ BulkGaugeTask> tasks =
+                Lists.newArrayListWithCapacity(gaugeConfigs.size());
+        Set<String> mbeanObjectNames = Sets.newHashSet();
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
+            String mbeanObjectName = gaugeConfig.mbeanObjectName();
+            mbeanObjectNames.add(mbeanObjectName);
+            BulkGaugeTask inFlight = inFlightGauges.get(mbeanObjectName);
+            if (inFlight != null && inFlight.running) {
+                // still hung from a prior collection (cancelling it only interrupts the thread,
+                // which the mbean may ignore), don't pile up more threads behind it
+                tasks.add(null);
+                continue;
+            }
+            BulkGaugeTask task = new BulkGaugeTask(gaugeConfig, mbeanServers);
+            task.future = bulkExecutor.submit(task);
+            inFlightGauges.put(mbeanObjectName, task);
+            tasks.add(task);
+        }
+        // remove gauges which are no longer configured
+        inFlightGauges.keySet().retainAll(mbeanObjectNames);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        long deadlineTick = ticker.read() + MILLISECONDS.toNanos(bulkTimeoutMillis);
+        for (int i = 0; i < tasks.size(); i++) {
+            BulkGaugeTask task = tasks.get(i);
+            String mbeanObjectName = gaugeConfigs.get(i).mbeanObjectName();
+            if (task == null) {
+                logFirstTimeMBeanTimeout(mbeanObjectName);
+                continue;
+            }
+            Future<List<GaugeValue>> future = checkNotNull(task.future);
+            try {
+                // since gauges are collected in parallel, the timeout for each gauge is measured
+                // from the start of the collection
+                gaugeValues.addAll(future.get(Math.max(0, deadlineTick - ticker.read()),
+                        NANOSECONDS));
+                // only applied once the task has completed in time, see collectGaugeValues()
+                priorRawCounterValues.putAll(task.rawCounterValueUpdates);
+            } catch (TimeoutException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanTimeout(mbeanObjectName);
+                // interrupt the hung mbean access (if it responds to interrupts), its result is
+                // discarded either way
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return gaugeValues;
+    }
+
+    private List<GaugeValue> collectGaugeValuesChecked(GaugeConfig gaugeConfig,
+            List<MBeanServer> mbeanServers, Map<String, RawCounterValue> rawCounterValueUpdates)
+            throws Exception {
+        if (priorRawCounterValues == null) {
+            throw new IllegalStateException("Prior raw counter values have not been initialized");
+        }
+        return collectGaugeValues(gaugeConfig, mbeanServers, rawCounterValueUpdates);
+    }
+
+    // fetches all of the (top level) attributes with a single call, attributes which could not be
+    // accessed are missing from the returned map
+    private Map<String, /*@Nullable*/ Object> getAttributes(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes, List<MBeanServer> mbeanServers)
+            throws Exception {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            attributeNames.add(index == -1 ? mbeanAttributeName
+                    : mbeanAttributeName.substring(0, index));
+        }
+        AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                attributeNames.toArray(new String[attributeNames.size()]), mbeanServers);
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        for (Attribute attribute : attributeList.asList()) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    private @Nullable Object getAttribute(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> bulkAttributeValues, List<MBeanServer> mbeanServers)
+            throws Exception {
+        if (bulkAttributeValues.containsKey(attributeName)) {
+            return bulkAttributeValues.get(attributeName);
+        }
+        // not fetched in bulk, or failed in bulk (in which case the individual access is needed in
+        // order to get the specific exception)
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName, mbeanServers);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -331,6 +525,13 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    private void logFirstTimeMBeanTimeout(String mbeanObjectName) {
+        if (loggedMBeanGauges.add(mbeanObjectName + ":timeout")) {
+            logger.warn("mbean {} did not respond within {} milliseconds, skipping it until it"
+                    + " responds", mbeanObjectName, bulkTimeoutMillis);
+        }
+    }
+
     private void logFirstTimeMBeanException(String mbeanObjectName, Exception e) {
         if (loggedMBeanGauges.add(mbeanObjectName)) {
             logger.warn("error accessing mbean: {}", mbeanObjectName, e);
@@ -364,6 +565,38 @@ class GaugeCollector extends ScheduledRunnable {
         long captureTick();
     }
 
+    private class BulkGaugeTask implements Callable<List<GaugeValue>> {
+
+        private final GaugeConfig gaugeConfig;
+        private final List<MBeanServer> mbeanServers;
+
+        // only accessed by the worker thread until the future completes
+        private final Map<String, RawCounterValue> rawCounterValueUpdates = Maps.newHashMap();
+
+        // only accessed by the collection thread
+        private @Nullable Future<List<GaugeValue>> future;
+
+        // the future is done as soon as it is cancelled, this tracks whether the worker thread is
+        // actually still inside the mbean access
+        private volatile boolean running;
+
+        private BulkGaugeTask(GaugeConfig gaugeConfig, List<MBeanServer> mbeanServers) {
+            this.gaugeConfig = gaugeConfig;
+            this.mbeanServers = mbeanServers;
+        }
+
+        @Override
+        public List<GaugeValue> call() throws Exception {
+            running = true;
+            try {
+                return collectGaugeValuesChecked(gaugeConfig, mbeanServers,
+                        rawCounterValueUpdates);
+            } finally {
+                running = false;
+            }
+        }
+    }
+
     private class GaugeFlushingLoop implements Runnable {
         @Override
         public void run() {
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+
+// caches the expansion of mbean object name patterns (e.g. java.lang:type=GarbageCollector,name=*)
+// so that queryNames() does not need to walk the whole mbean registry at every gauge collection
+//
+// cached expansions are invalidated by mbean server registration/unregistration notifications,
+// and if an mbean server does not support these notifications, then its patterns are not cached
+class MBeanPatternCache implements NotificationListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(MBeanPatternCache.class);
+
+    private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
+
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> expansions =
+            Maps.newConcurrentMap();
+
+    // incremented on every invalidation, so that an expansion which was computed concurrently with
+    // a registration/unregistration is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    // weak since mbean servers can come and go (e.g. application redeployment)
+    @GuardedBy("lock")
+    private final Set<MBeanServer> subscribedMBeanServers =
+            Collections.newSetFromMap(new WeakHashMap<MBeanServer, Boolean>());
+    @GuardedBy("lock")
+    private final Set<MBeanServer> unsubscribableMBeanServers =
+            Collections.newSetFromMap(new WeakHashMap<MBeanServer, Boolean>());
+
+    private final Object lock = new Object();
+
+    MBeanPatternCache(LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
+    }
+
+    Set<ObjectName> queryNames(ObjectName pattern, List<MBeanServer> mbeanServers)
+            throws Exception {
+        if (!subscribeAll(mbeanServers)) {
+            return lazyPlatformMBeanServer.queryNames(pattern, null, mbeanServers);
+        }
+        Set<ObjectName> names = expansions.get(pattern);
+        if (names != null) {
+            return names;
+        }
+        long priorGeneration = generation.get();
+        names = ImmutableSet.copyOf(lazyPlatformMBeanServer.queryNames(pattern, null,
+                mbeanServers));
+        if (generation.get() == priorGeneration) {
+            expansions.put(pattern, names);
+            // an invalidation between the check above and the put would not have removed it
+            if (generation.get() != priorGeneration) {
+                expansions.remove(pattern, names);
+            }
+        }
+        return names;
+    }
+
+    void close() {
+        synchronized (lock) {
+            for (MBeanServer mbeanServer : subscribedMBeanServers) {
+                try {
+                    mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            this);
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+            subscribedMBeanServers.clear();
+        }
+        invalidateAll();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, @Nullable Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+        generation.incrementAndGet();
+        for (ObjectName pattern : expansions.keySet()) {
+            if (name == null || pattern.apply(name)) {
+                expansions.remove(pattern);
+            }
+        }
+    }
+
+    // returns false if any of the mbean servers does not support registration notifications
+    private boolean subscribeAll(List<MBeanServer> mbeanServers) {
+        synchronized (lock) {
+            boolean subscribedAll = true;
+            for (MBeanServer mbeanServer : mbeanServers) {
+                if (subscribedMBeanServers.contains(mbeanServer)) {
+                    continue;
+                }
+                if (unsubscribableMBeanServers.contains(mbeanServer)) {
+                    subscribedAll = false;
+                    continue;
+                }
+                MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+                filter.enableAllObjectNames();
+                try {
+                    mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this,
+                            filter, null);
+                    subscribedMBeanServers.add(mbeanServer);
+                    // expansions cached so far do not include the mbeans of this mbean server
+                    invalidateAll();
+                } catch (Exception e) {
+                    logger.debug(e.getMessage(), e);
+                    unsubscribableMBeanServers.add(mbeanServer);
+                    subscribedAll = false;
+                }
+            }
+            return subscribedAll;
+        }
+    }
+
+    private void invalidateAll() {
+        generation.incrementAndGet();
+        expansions.clear();
+    }
+}
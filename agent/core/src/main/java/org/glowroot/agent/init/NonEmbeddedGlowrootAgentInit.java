@@ -58,6 +58,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
     private final @Nullable String collectorAddress;
     private final @Nullable String collectorAuthority;
     private final @Nullable Class<? extends Collector> customCollectorClass;
+    private final @Nullable File dataDir;
 
     private volatile @MonotonicNonNull CollectorLogbackAppender collectorLogbackAppender;
     private volatile @MonotonicNonNull AgentModule agentModule;
@@ -69,10 +70,11 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
 
     public NonEmbeddedGlowrootAgentInit(@Nullable String collectorAddress,
             @Nullable String collectorAuthority,
-            @Nullable Class<? extends Collector> customCollectorClass) {
+            @Nullable Class<? extends Collector> customCollectorClass, @Nullable File dataDir) {
         this.collectorAddress = collectorAddress;
         this.collectorAuthority = collectorAuthority;
         this.customCollectorClass = customCollectorClass;
+        this.dataDir = dataDir;
     }
 
     @Override
@@ -131,7 +133,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                 } else {
                     centralCollector = new CentralCollector(properties,
                             checkNotNull(collectorAddress), collectorAuthority, confDirs,
-                            configReadOnly, agentModule.getLiveJvmService(),
+                            dataDir, configReadOnly, agentModule.getLiveJvmService(),
                             agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater,
                             configService);
@@ -72,7 +72,15 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 traceCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                return createTraceHeader(transaction);
+                if (!transaction.startLiveTraceRead()) {
+                    // the trace entries have been recycled, see startLiveTraceRead()
+                    return null;
+                }
+                try {
+                    return createTraceHeader(transaction);
+                } finally {
+                    transaction.endLiveTraceRead();
+                }
             }
         }
         return null;
@@ -83,13 +91,21 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 traceCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                CollectingEntryVisitor visitor = new CollectingEntryVisitor();
-                transaction.visitEntries(ticker.read(), visitor);
-                return ImmutableEntries.builder()
-                        .addAllEntries(visitor.entries)
-                        .addAllSharedQueryTexts(
-                                TraceCreator.toProto(transaction.getSharedQueryTexts()))
-                        .build();
+                if (!transaction.startLiveTraceRead()) {
+                    // the trace entries have been recycled, see startLiveTraceRead()
+                    return null;
+                }
+                try {
+                    CollectingEntryVisitor visitor = new CollectingEntryVisitor();
+                    transaction.visitEntries(ticker.read(), visitor);
+                    return ImmutableEntries.builder()
+                            .addAllEntries(visitor.entries)
+                            .addAllSharedQueryTexts(
+                                    TraceCreator.toProto(transaction.getSharedQueryTexts()))
+                            .build();
+                } finally {
+                    transaction.endLiveTraceRead();
+                }
             }
         }
         return null;
@@ -137,25 +153,34 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 traceCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
-                CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
-                TraceReader traceReader = createTraceReader(transaction);
-                traceReader.accept(traceVisitor);
-                Trace.Builder builder = Trace.newBuilder()
-                        .setId(traceId)
-                        .setUpdate(transaction.isPartiallyStored());
-                Profile mainThreadProfile = traceVisitor.mainThreadProfile;
-                if (mainThreadProfile != null) {
-                    builder.setMainThreadProfile(mainThreadProfile);
+                if (!transaction.startLiveTraceRead()) {
+                    // the trace entries have been recycled, see startLiveTraceRead()
+                    return null;
                 }
-                Profile auxThreadProfile = traceVisitor.auxThreadProfile;
-                if (auxThreadProfile != null) {
-                    builder.setAuxThreadProfile(auxThreadProfile);
+                try {
+                    CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
+                    TraceReader traceReader = createTraceReader(transaction);
+                    traceReader.accept(traceVisitor);
+                    Trace.Builder builder = Trace.newBuilder()
+                            .setId(traceId)
+                            .setUpdate(transaction.isPartiallyStored());
+                    Profile mainThreadProfile = traceVisitor.mainThreadProfile;
+                    if (mainThreadProfile != null) {
+                        builder.setMainThreadProfile(mainThreadProfile);
+                    }
+                    Profile auxThreadProfile = traceVisitor.auxThreadProfile;
+                    if (auxThreadProfile != null) {
+                        builder.setAuxThreadProfile(auxThreadProfile);
+                    }
+                    return builder.setHeader(checkNotNull(traceVisitor.header))
+                            .addAllEntry(traceVisitor.entries)
+                            .addAllQuery(traceVisitor.queries)
+                            .addAllSharedQueryText(
+                                    TraceCreator.toProto(traceVisitor.sharedQueryTexts))
+                            .build();
+                } finally {
+                    transaction.endLiveTraceRead();
                 }
-                return builder.setHeader(checkNotNull(traceVisitor.header))
-                        .addAllEntry(traceVisitor.entries)
-                        .addAllQuery(traceVisitor.queries)
-                        .addAllSharedQueryText(TraceCreator.toProto(traceVisitor.sharedQueryTexts))
-                        .build();
             }
         }
         return null;
@@ -15,9 +15,12 @@
  */
 package org.glowroot.agent.model;
 
+import java.io.IOException;
 import java.util.List;
 
 import com.google.common.collect.Lists;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -70,6 +73,27 @@ public class MutableAggregateTimer implements AggregatedTimer {
         timer.mergeChildTimersInto(this);
     }
 
+    public void addDataFrom(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended);
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.addDataFrom(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -81,4 +105,55 @@ public class MutableAggregateTimer implements AggregatedTimer {
         }
         return builder.build();
     }
+
+    // same serialized form as toProto(), without building the intermediate Aggregate.Timer messages
+    public int getSerializedSize() {
+        int size = 0;
+        if (!name.isEmpty()) {
+            size += CodedOutputStream.computeStringSize(1, name);
+        }
+        if (extended) {
+            size += CodedOutputStream.computeBoolSize(2, true);
+        }
+        if (Double.doubleToRawLongBits(totalDurationNanos) != 0) {
+            size += CodedOutputStream.computeDoubleSize(3, totalDurationNanos);
+        }
+        if (count != 0) {
+            size += CodedOutputStream.computeInt64Size(4, count);
+        }
+        for (MutableAggregateTimer childTimer : childTimers) {
+            size += childTimer.getSerializedSize(5);
+        }
+        return size;
+    }
+
+    public void writeTo(CodedOutputStream output) throws IOException {
+        if (!name.isEmpty()) {
+            output.writeString(1, name);
+        }
+        if (extended) {
+            output.writeBool(2, true);
+        }
+        if (Double.doubleToRawLongBits(totalDurationNanos) != 0) {
+            output.writeDouble(3, totalDurationNanos);
+        }
+        if (count != 0) {
+            output.writeInt64(4, count);
+        }
+        for (MutableAggregateTimer childTimer : childTimers) {
+            childTimer.writeTo(5, output);
+        }
+    }
+
+    public void writeTo(int fieldNumber, CodedOutputStream output) throws IOException {
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(getSerializedSize());
+        writeTo(output);
+    }
+
+    public int getSerializedSize(int fieldNumber) {
+        int size = getSerializedSize();
+        return CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
 }
@@ -22,15 +22,12 @@ import java.util.Map;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -139,7 +136,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = QueryTextDictionary.getFullTextSha1(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -160,14 +157,23 @@ public class QueryCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Map.Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
-                if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+        String fullQueryText = QueryTextDictionary.getFullText(fullQueryTextSha1);
+        if (fullQueryText != null) {
+            for (Map<String, MutableQuery> queriesForType : queries.values()) {
+                if (queriesForType.containsKey(fullQueryText)) {
+                    return fullQueryText;
+                }
+            }
+            return null;
+        }
+        // fall back to scanning in case the full query text has been evicted from the dictionary
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            for (String queryText : queriesForType.keySet()) {
+                if (queryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
-                    return fullQueryText;
+                if (fullQueryTextSha1.equals(QueryTextDictionary.getFullTextSha1(queryText))) {
+                    return queryText;
                 }
             }
         }
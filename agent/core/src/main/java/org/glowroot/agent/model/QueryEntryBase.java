@@ -24,7 +24,8 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 // addresses that must be navigated)
 public abstract class QueryEntryBase implements QueryEntry {
 
-    private final @Nullable QueryData queryData;
+    // not final so that trace entries can be recycled (see TraceEntryArena)
+    private @Nullable QueryData queryData;
 
     // row numbers start at 1
     private long currRow = -1;
@@ -38,7 +39,17 @@ public abstract class QueryEntryBase implements QueryEntry {
         if (queryData != null && queryExecutionCount != -1) {
             queryData.start(startTick, queryExecutionCount);
         }
+    }
 
+    // same as the constructor, but for a recycled instance
+    protected void resetQueryEntry(@Nullable QueryData queryData, long startTick,
+            long queryExecutionCount) {
+        this.queryData = queryData;
+        currRow = -1;
+        maxRow = 0;
+        if (queryData != null && queryExecutionCount != -1) {
+            queryData.start(startTick, queryExecutionCount);
+        }
     }
 
     public void extendQueryData(long startTick) {
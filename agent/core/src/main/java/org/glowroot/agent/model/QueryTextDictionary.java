@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// caches the sha1 of long query texts across aggregation intervals, since (orm generated) query
+// texts can be tens of kilobytes, and re-computing sha1 over them at every flush is expensive
+//
+// the dictionary is keyed by the query text itself, so lookups use the String's cached hash code
+// and (since query texts are typically the same String instance across executions) usually short
+// circuit on identity in String.equals()
+//
+// sha1 is only needed at the wire/storage boundary for compatibility, and is computed at most once
+// per query text (while it remains in the dictionary)
+public class QueryTextDictionary {
+
+    private static final long MAX_CHARS =
+            Long.getLong("glowroot.internal.queryTextDictionary.maxChars", 8 * 1024 * 1024L);
+
+    // key is sha1 of full query text
+    private static final ConcurrentMap<String, String> fullTexts = Maps.newConcurrentMap();
+
+    // key is full query text
+    private static final Cache<String, String> sha1s = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CHARS)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String fullText, String fullTextSha1) {
+                    return fullText.length();
+                }
+            })
+            .expireAfterAccess(1, HOURS)
+            .removalListener(new RemovalListener<String, String>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, String> notification) {
+                    if (!notification.wasEvicted()) {
+                        // replaced (by a racing thread) with the same sha1
+                        return;
+                    }
+                    String fullTextSha1 = notification.getValue();
+                    String fullText = notification.getKey();
+                    if (fullTextSha1 != null && fullText != null) {
+                        fullTexts.remove(fullTextSha1, fullText);
+                    }
+                }
+            })
+            .build();
+
+    private QueryTextDictionary() {}
+
+    public static String getFullTextSha1(String fullText) {
+        String fullTextSha1 = sha1s.getIfPresent(fullText);
+        if (fullTextSha1 == null) {
+            // benign race, worst case multiple threads compute the same sha1
+            fullTextSha1 = Hashing.sha1().hashString(fullText, UTF_8).toString();
+            // add to reverse index first so that it is never missing while the forward entry
+            // exists (the removal listener cleans up the reverse index)
+            fullTexts.put(fullTextSha1, fullText);
+            sha1s.put(fullText, fullTextSha1);
+        }
+        return fullTextSha1;
+    }
+
+    // returns null if the full text has not been seen recently (or has been evicted)
+    public static @Nullable String getFullText(String fullTextSha1) {
+        return fullTexts.get(fullTextSha1);
+    }
+}
@@ -21,10 +21,12 @@ import java.lang.management.ThreadMXBean;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
+import org.glowroot.agent.bytecode.api.VirtualThreads;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -37,13 +39,28 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // when this is positive, ThreadMXBean.getThreadInfo() (which is needed for blocked and waited
+    // times, and is much more expensive than the cpu time and allocated bytes calls) is not called
+    // at the start and end of every transaction, instead ThreadStatsSampler captures the starting
+    // blocked and waited times in bulk for thread contexts that are still active after this
+    // threshold, so blocked and waited times are then measured from that point on, and are reported
+    // as zero for thread contexts that complete before being sampled
+    public static final long BLOCKED_WAITED_THRESHOLD_MILLIS =
+            Long.getLong("glowroot.internal.threadStats.blockedWaitedThresholdMillis", 0);
+
     private final long threadId;
     private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
     private final long startingAllocatedBytes;
     private final boolean isVirtualThread;
 
+    @GuardedBy("lock")
+    private long startingBlockedMillis;
+    @GuardedBy("lock")
+    private long startingWaitedMillis;
+
+    // only used when BLOCKED_WAITED_THRESHOLD_MILLIS is positive
+    private volatile boolean pendingStartingBlockedWaited;
+
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
     @GuardedBy("lock")
@@ -52,21 +69,33 @@ public class ThreadStatsComponent {
     private final Object lock = new Object();
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
-        threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        isVirtualThread = threadInfo == null;
+        this(threadAllocatedBytes, BLOCKED_WAITED_THRESHOLD_MILLIS);
+    }
+
+    @VisibleForTesting
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            long blockedWaitedThresholdMillis) {
+        Thread currentThread = Thread.currentThread();
+        threadId = currentThread.getId();
+        isVirtualThread = VirtualThreads.isVirtual(currentThread);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED && !isVirtualThread) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
-        } else {
+        // avoid the ThreadMXBean call for virtual threads, since it always returns null for them
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED || isVirtualThread) {
+            startingBlockedMillis = -1;
+            startingWaitedMillis = -1;
+        } else if (blockedWaitedThresholdMillis > 0) {
             startingBlockedMillis = -1;
             startingWaitedMillis = -1;
+            pendingStartingBlockedWaited = true;
+        } else {
+            // thread info for current platform thread cannot be null
+            ThreadInfo threadInfo = checkNotNull(threadMXBean.getThreadInfo(threadId, 0));
+            startingBlockedMillis = threadInfo.getBlockedTime();
+            startingWaitedMillis = threadInfo.getWaitedTime();
         }
         if (threadAllocatedBytes != null) {
             startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
@@ -79,7 +108,30 @@ public class ThreadStatsComponent {
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            completedThreadStats = getThreadStatsInternal(true);
+            pendingStartingBlockedWaited = false;
+        }
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    // only true when BLOCKED_WAITED_THRESHOLD_MILLIS is positive, and the starting blocked and
+    // waited times have not been captured yet
+    public boolean isPendingStartingBlockedWaited() {
+        return pendingStartingBlockedWaited;
+    }
+
+    // called by ThreadStatsSampler (with thread info captured via the bulk
+    // ThreadMXBean.getThreadInfo(long[], int))
+    public void captureStartingBlockedWaited(ThreadInfo threadInfo) {
+        synchronized (lock) {
+            if (completedThreadStats == null && pendingStartingBlockedWaited) {
+                startingBlockedMillis = threadInfo.getBlockedTime();
+                startingWaitedMillis = threadInfo.getWaitedTime();
+                pendingStartingBlockedWaited = false;
+            }
         }
     }
 
@@ -90,7 +142,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -105,7 +157,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getCpuNanosInternal();
+                    return getCpuNanosInternal(false);
                 } else {
                     return -1;
                 }
@@ -115,26 +167,31 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
         long cpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            cpuNanos = getCpuNanosInternal();
+            cpuNanos = getCpuNanosInternal(currentThread);
         } else {
             cpuNanos = -1;
         }
         long blockedMillis;
         long waitedMillis;
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null && !isVirtualThread) {
-            // thread must have just recently terminated
-            return new ThreadStats(0, 0, 0, 0);
-        }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED && !isVirtualThread) {
-            waitedMillis = getWaitedMillisInternal(threadInfo);
-            blockedMillis = getBlockedMillisInternal(threadInfo);
-        } else {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED || isVirtualThread) {
             blockedMillis = -1;
             waitedMillis = -1;
+        } else if (pendingStartingBlockedWaited) {
+            // completed (or captured mid-way) before ThreadStatsSampler reached it, which means
+            // its duration is (so far) below the threshold
+            blockedMillis = 0;
+            waitedMillis = 0;
+        } else {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(0, 0, 0, 0);
+            }
+            waitedMillis = getWaitedMillisInternal(threadInfo);
+            blockedMillis = getBlockedMillisInternal(threadInfo);
         }
         long allocatedBytes;
         if (threadAllocatedBytes != null) {
@@ -145,10 +202,13 @@ public class ThreadStatsComponent {
         return new ThreadStats(cpuNanos, blockedMillis, waitedMillis, allocatedBytes);
     }
 
-    private long getCpuNanosInternal() {
+    private long getCpuNanosInternal(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        //
+        // getCurrentThreadCpuTime() avoids looking up the thread by id
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -139,7 +139,7 @@ abstract class AdviceMatcher {
         }
     }
 
-    private static boolean isClassMatch(String className, List<String> classAnnotations,
+    static boolean isClassMatch(String className, List<String> classAnnotations,
             Collection<String> superClassNames, Advice advice) {
         if (!isAnnotationMatch(classAnnotations, advice.pointcutClassAnnotationPattern(),
                 advice.pointcut().classAnnotation())) {
@@ -171,7 +171,7 @@ abstract class AdviceMatcher {
         return pointcutClassName.isEmpty() || pointcutClassName.equals(className);
     }
 
-    private static boolean isAnnotationMatch(List<String> annotations, @Nullable Pattern pattern,
+    static boolean isAnnotationMatch(List<String> annotations, @Nullable Pattern pattern,
             String strictMatch) {
         for (String annotation : annotations) {
             annotation = annotation.replace('/', '.').substring(1, annotation.length() - 1);
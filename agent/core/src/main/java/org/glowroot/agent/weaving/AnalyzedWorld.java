@@ -21,12 +21,11 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Supplier;
@@ -49,11 +48,15 @@ import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.util.Styles;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class AnalyzedWorld {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
+    private static final long IN_FLIGHT_ANALYSIS_MAX_WAIT_MILLIS =
+            Long.getLong("glowroot.internal.weaving.inFlightAnalysisMaxWaitMillis", 1000);
+
     private static final AtomicReference<Exception> findLoadedClassMethodException = new AtomicReference<>();
 
     private static final @Nullable Method findLoadedClassMethod = getFindLoadedClassMethod();
@@ -71,25 +74,30 @@ public class AnalyzedWorld {
     }
 
     // weak keys to prevent retention of class loaders
-    // it's important that the weak keys point directly to the class loaders themselves (as opposed
-    // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
-    // while their associated class loaders are still being used
+    //
+    // this is looked up (often many times) for every class that is loaded, so it needs to be
+    // concurrent, since application servers commonly load classes on many threads during startup
     //
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    private final WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>> world =
+            new WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
-    // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
-    // the weakness on the Optional instance which is not strongly referenced from anywhere and
-    // therefore the keys will most likely be cleared while their class loaders are still being used
+    // WeakClassLoaderMap doesn't accept null keys, and using an Optional<ClassLoader> for the key
+    // makes the weakness on the Optional instance which is not strongly referenced from anywhere
+    // and therefore the keys will most likely be cleared while their class loaders are still being
+    // used
     //
     // intentionally avoiding Maps.newConcurrentMap() for the same reason as above
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // entries only exist while an analysis is in progress
+    private final ConcurrentMap<InFlightKey, InFlightAnalysis> inFlightAnalyses =
+            new ConcurrentHashMap<InFlightKey, InFlightAnalysis>();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -116,7 +124,7 @@ public class AnalyzedWorld {
     }
 
     public void removeClasses(Iterable<Class<?>> classes) {
-        for (Map<String, AnalyzedClass> map : getWorldValues()) {
+        for (Map<String, AnalyzedClass> map : world.getValues()) {
             for (Class<?> clazz : classes) {
                 map.remove(clazz.getName());
             }
@@ -127,9 +135,7 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
-        }
+        return ImmutableList.copyOf(world.getKeys());
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -241,12 +247,46 @@ public class AnalyzedWorld {
                         subClassName, analyzedClassLoader.getClass().getName(),
                         analyzedClassLoader.hashCode());
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass =
+                    createAnalyzedClassOnce(className, analyzedClassLoader, loaderAnalyzedClasses);
         }
         return ImmutableAnalyzedClassAndLoader.of(analyzedClass, analyzedClassLoader);
     }
 
+    // when many threads are loading classes in parallel, they often need the same (not yet
+    // analyzed) super class at the same time, so concurrent requests share a single analysis
+    private AnalyzedClass createAnalyzedClassOnce(String className, @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        InFlightKey key = new InFlightKey(className, loader);
+        InFlightAnalysis inFlightAnalysis = new InFlightAnalysis();
+        InFlightAnalysis existingInFlightAnalysis = inFlightAnalyses.putIfAbsent(key,
+                inFlightAnalysis);
+        if (existingInFlightAnalysis != null) {
+            AnalyzedClass analyzedClass = existingInFlightAnalysis.await();
+            if (analyzedClass != null) {
+                return analyzedClass;
+            }
+            // the other analysis failed, or is taking too long (possibly blocked on a class
+            // loader lock held by this thread), or is further up this thread's own stack (only
+            // possible with a circular type hierarchy), so go ahead and analyze it here
+            return putAnalyzedClass(loaderAnalyzedClasses, createAnalyzedClass(className, loader));
+        }
+        try {
+            // need to check again since another analysis may have completed in between
+            AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+            if (analyzedClass == null) {
+                analyzedClass = putAnalyzedClass(loaderAnalyzedClasses,
+                        createAnalyzedClass(className, loader));
+            }
+            inFlightAnalysis.analyzedClass = analyzedClass;
+            return analyzedClass;
+        } finally {
+            inFlightAnalyses.remove(key, inFlightAnalysis);
+            inFlightAnalysis.latch.countDown();
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -367,21 +407,13 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map != null) {
                 return map;
             }
-        }
-    }
-
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+            map = new ConcurrentHashMap<String, AnalyzedClass>();
+            ConcurrentMap<String, AnalyzedClass> existingMap = world.putIfAbsent(loader, map);
+            return existingMap == null ? map : existingMap;
         }
     }
 
@@ -587,6 +619,58 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private static class InFlightKey {
+
+        private final String className;
+        private final @Nullable ClassLoader loader;
+
+        private InFlightKey(String className, @Nullable ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey that = (InFlightKey) obj;
+            // class loaders are compared by identity
+            return className.equals(that.className) && loader == that.loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * className.hashCode() + System.identityHashCode(loader);
+        }
+    }
+
+    private static class InFlightAnalysis {
+
+        private final Thread thread = Thread.currentThread();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // null if the analysis failed
+        private volatile @Nullable AnalyzedClass analyzedClass;
+
+        // returns null if the result is not available within a bounded amount of time
+        private @Nullable AnalyzedClass await() {
+            if (thread == Thread.currentThread()) {
+                return null;
+            }
+            try {
+                if (!latch.await(IN_FLIGHT_ANALYSIS_MAX_WAIT_MILLIS, MILLISECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                // restore interrupt status and analyze in the current thread instead
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return analyzedClass;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
@@ -270,8 +270,13 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.bytecode.api.ThreadContextPlus");
         types.add("org.glowroot.agent.bytecode.api.ThreadContextThreadLocal");
         types.add("org.glowroot.agent.bytecode.api.ThreadContextThreadLocal$1");
+        types.add(
+                "org.glowroot.agent.bytecode.api.ThreadContextThreadLocal$BoundVirtualThreadHolder");
         types.add("org.glowroot.agent.bytecode.api.ThreadContextThreadLocal$Holder");
+        types.add(
+                "org.glowroot.agent.bytecode.api.ThreadContextThreadLocal$UnboundVirtualThreadHolder");
         types.add("org.glowroot.agent.bytecode.api.Util");
+        types.add("org.glowroot.agent.bytecode.api.VirtualThreads");
         types.add("org.glowroot.agent.weaving.Advice");
         types.add("org.glowroot.agent.weaving.AdviceGenerator");
         types.add("org.glowroot.agent.weaving.Advice$AdviceOrdering");
@@ -285,6 +290,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalyzedClassAndLoader");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightAnalysis");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$InFlightKey");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
@@ -378,7 +385,18 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ValueAnnotationVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$LookupKey");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$WeakKey");
         types.add("org.glowroot.agent.weaving.Weaver");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorsContext");
+        types.add("org.glowroot.agent.weaving.WeavingCache$CacheEntry");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Lookup");
+        types.add("org.glowroot.agent.weaving.WeavingCacheMXBean");
+        types.add("org.glowroot.agent.weaving.WeavingPreFilter");
+        types.add("org.glowroot.agent.weaving.WeavingPreFilter$ScannedClass");
+        types.add("org.glowroot.agent.weaving.WeavingPreFilter$ScannedMethod");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// concurrent map with weak (identity) class loader keys, used instead of a synchronized WeakHashMap
+// so that class loading threads do not contend on a single lock
+class WeakClassLoaderMap<V> {
+
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    @Nullable
+    V get(ClassLoader loader) {
+        return map.get(new LookupKey(loader));
+    }
+
+    // returns the existing value if there is one, otherwise null
+    @Nullable
+    V putIfAbsent(ClassLoader loader, V value) {
+        expungeStaleEntries();
+        return map.putIfAbsent(new WeakKey(loader, queue), value);
+    }
+
+    List<ClassLoader> getKeys() {
+        expungeStaleEntries();
+        List<ClassLoader> loaders = Lists.newArrayList();
+        for (Object key : map.keySet()) {
+            ClassLoader loader = ((WeakKey) key).get();
+            if (loader != null) {
+                loaders.add(loader);
+            }
+        }
+        return loaders;
+    }
+
+    List<V> getValues() {
+        expungeStaleEntries();
+        List<V> values = Lists.newArrayList();
+        for (Map.Entry<Object, V> entry : map.entrySet()) {
+            if (((WeakKey) entry.getKey()).get() != null) {
+                values.add(entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    // the weak keys point directly to the class loaders themselves so that the keys won't be
+    // cleared while their associated class loaders are still being used
+    private static class WeakKey extends WeakReference<ClassLoader> {
+
+        private final int hashCode;
+
+        private WeakKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hashCode = System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof WeakKey)) {
+                return false;
+            }
+            ClassLoader loader = get();
+            // cleared keys are only equal to themselves
+            return loader != null && loader == ((WeakKey) obj).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // used for lookups to avoid creating (and later having the gc process) a weak reference
+    private static class LookupKey {
+
+        private final ClassLoader loader;
+
+        private LookupKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        // ConcurrentHashMap calls equals() on the key that is passed in, with the stored key as
+        // the argument
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            return obj instanceof WeakKey && ((WeakKey) obj).get() == loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+}
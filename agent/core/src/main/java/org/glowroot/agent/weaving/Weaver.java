@@ -57,6 +57,7 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.WeavingCache.Lookup;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
@@ -80,6 +81,9 @@ public class Weaver {
         }
     }
 
+    private static final boolean PRE_FILTER_DISABLED =
+            Boolean.getBoolean("glowroot.internal.weaving.disablePreFilter");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -87,6 +91,14 @@ public class Weaver {
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
+    private final TimerName cacheHitTimerName;
+    private final TimerName cacheMissTimerName;
+
+    // only null for tests and when disabled
+    private final @Nullable WeavingCache weavingCache;
+
+    // rebuilt whenever the advisors change (e.g. after reweaving instrumentation config)
+    private volatile @Nullable WeavingPreFilter preFilter;
 
     private volatile boolean weavingTimerEnabled;
 
@@ -100,7 +112,7 @@ public class Weaver {
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -114,6 +126,9 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.cacheHitTimerName = timerNameCache.getTimerName(OnlyForTheCacheHitTimerName.class);
+        this.cacheMissTimerName = timerNameCache.getTimerName(OnlyForTheCacheMissTimerName.class);
+        this.weavingCache = weavingCache;
     }
 
     public void setNoLongerNeedToWeaveMainMethods() {
@@ -145,8 +160,8 @@ public class Weaver {
                 activeWeavings.add(new ActiveWeaving(Thread.currentThread().getId(), startTick));
         try {
             logger.trace("transform(): className={}", className);
-            byte[] transformedBytes =
-                    weaveUnderTimer(classBytes, className, classBeingRedefined, codeSource, loader);
+            byte[] transformedBytes = weaveUnderTimer(classBytes, className, classBeingRedefined,
+                    codeSource, loader, weavingTimer);
             if (transformedBytes != null) {
                 logger.debug("transform(): transformed {}", className);
             }
@@ -177,9 +192,56 @@ public class Weaver {
 
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
-            @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+            @Nullable ClassLoader loader, @Nullable TimerImpl weavingTimer) {
+        List<Advice> currAdvisors = this.advisors.get();
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(currAdvisors,
                 classBytes, loader, className);
+        if (!PRE_FILTER_DISABLED && advisors == currAdvisors && classBeingRedefined == null) {
+            AnalyzedClass analyzedClass = getPreFilter(currAdvisors).analyze(classBytes, loader,
+                    codeSource, analyzedWorld, noLongerNeedToWeaveMainMethods);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                return null;
+            }
+        }
+        // classes with @Instrumentation annotations and re-weaving are not cached
+        if (weavingCache == null || advisors != currAdvisors || classBeingRedefined != null) {
+            return analyzeAndWeave(classBytes, className, classBeingRedefined, codeSource, loader,
+                    advisors, null, 0);
+        }
+        long startTick = ticker.read();
+        Lookup lookup = weavingCache.lookup(className, classBytes, loader,
+                codeSource, advisors, noLongerNeedToWeaveMainMethods, analyzedWorld);
+        AnalyzedClass cachedAnalyzedClass = lookup.getAnalyzedClass();
+        if (cachedAnalyzedClass != null) {
+            analyzedWorld.add(cachedAnalyzedClass, loader);
+            weavingCache.recordHit(ticker.read() - startTick);
+            if (weavingTimer != null) {
+                weavingTimer.startNestedTimer(cacheHitTimerName, startTick).stop();
+            }
+            return null;
+        }
+        byte[] transformedBytes = analyzeAndWeave(classBytes, className, classBeingRedefined,
+                codeSource, loader, advisors, lookup, startTick);
+        if (weavingTimer != null) {
+            weavingTimer.startNestedTimer(cacheMissTimerName, startTick).stop();
+        }
+        return transformedBytes;
+    }
+
+    private WeavingPreFilter getPreFilter(List<Advice> currAdvisors) {
+        WeavingPreFilter preFilter = this.preFilter;
+        if (preFilter == null || preFilter.advisors() != currAdvisors) {
+            preFilter = new WeavingPreFilter(currAdvisors, shimTypes, mixinTypes);
+            this.preFilter = preFilter;
+        }
+        return preFilter;
+    }
+
+    private byte /*@Nullable*/ [] analyzeAndWeave(byte[] classBytes, String className,
+            @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
+            @Nullable ClassLoader loader, List<Advice> advisors,
+            @Nullable Lookup weavingCacheLookup, long lookupStartTick) {
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         boolean frames = accv.getMajorVersion() >= V1_6;
@@ -223,7 +285,12 @@ public class Weaver {
             return null;
         }
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null && weavingCacheLookup != null && maybeProcessedBytes == null
+                    && weavingCache.put(weavingCacheLookup, analyzedClass)) {
+                weavingCache.recordStoredMiss(ticker.read() - lookupStartTick);
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -558,4 +625,16 @@ public class Weaver {
     private static class OnlyForTheTimerName {
         private OnlyForTheTimerName() {}
     }
+
+    @Pointcut(className = "", methodName = "", methodParameterTypes = {},
+            timerName = "glowroot weaving cache hit")
+    private static class OnlyForTheCacheHitTimerName {
+        private OnlyForTheCacheHitTimerName() {}
+    }
+
+    @Pointcut(className = "", methodName = "", methodParameterTypes = {},
+            timerName = "glowroot weaving cache miss")
+    private static class OnlyForTheCacheMissTimerName {
+        private OnlyForTheCacheMissTimerName() {}
+    }
 }
@@ -0,0 +1,688 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Files;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.weaving.MethodModifier;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+
+// persists the result of class analysis for classes that do not require weaving (which are the vast
+// majority of loaded classes), so that on subsequent JVM starts the ThinClassVisitor pass and the
+// ClassAnalyzer can be skipped for these classes
+//
+// woven bytecode itself is not cached since weaving has side effects that are specific to the
+// running JVM (e.g. meta holder classes and nesting group ids)
+//
+// a cache entry is only used when the class bytes, the analyzed super type hierarchy and the
+// active advisors are the same as when the entry was stored (the agent version, shim types and
+// mixin types are checked once when loading the file)
+public class WeavingCache extends ScheduledRunnable implements WeavingCacheMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int MAGIC = 0x676c7763;
+    // increment whenever the file format or the analysis captured in it changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    // FNV-1a, collisions on the class hash are further guarded by the class name being part of the
+    // key, and by the hierarchy and advisors being part of the context hash
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final int maxSize;
+    private final long fileFingerprint;
+
+    // intentionally avoiding Maps.newConcurrentMap() and Sets.newConcurrentHashSet() since this is
+    // called from inside ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+    private final ConcurrentMap<Long, CacheEntry> cache = new ConcurrentHashMap<Long, CacheEntry>();
+    private final Set<Long> needsToBeWritten =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private volatile int entriesInFile;
+    private volatile boolean rewriteFile;
+    private volatile boolean maxSizeReached;
+
+    private volatile @Nullable AdvisorsContext advisorsContext;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong hitNanos = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    // only tracks misses that resulted in a new cache entry, since those are what a hit replaces
+    private final AtomicLong storedMissCount = new AtomicLong();
+    private final AtomicLong storedMissNanos = new AtomicLong();
+
+    public WeavingCache(File file, int maxSize, String agentVersion, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this.file = file;
+        this.maxSize = maxSize;
+        long h = hash(FNV_OFFSET_BASIS, FORMAT_VERSION);
+        h = hash(h, agentVersion);
+        for (ShimType shimType : shimTypes) {
+            h = hash(h, shimType.iface().getInternalName());
+            h = hash(h, shimType.targets());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            h = hash(h, mixinType.targets());
+            for (Type mixinInterface : mixinType.interfaces()) {
+                h = hash(h, mixinInterface.getInternalName());
+            }
+        }
+        fileFingerprint = h;
+        loadFromFile();
+    }
+
+    Lookup lookup(String className, byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, List<Advice> advisors,
+            boolean noLongerNeedToWeaveMainMethods, AnalyzedWorld analyzedWorld) {
+        AdvisorsContext advisorsContext = getAdvisorsContext(advisors);
+        long key = getKey(className, loader, codeSource);
+        long classHash = hash(FNV_OFFSET_BASIS, classBytes);
+        long contextHash = hash(advisorsContext.fingerprint, noLongerNeedToWeaveMainMethods);
+        contextHash = hashHierarchy(contextHash, className, classBytes, loader, codeSource,
+                analyzedWorld);
+        Lookup lookup = new Lookup(key, classHash, contextHash, advisorsContext);
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.classHash == classHash && entry.contextHash == contextHash) {
+            AnalyzedClass analyzedClass = read(entry.analyzedClassBytes, advisorsContext);
+            if (analyzedClass != null) {
+                entry.used = true;
+                lookup.analyzedClass = analyzedClass;
+                return lookup;
+            }
+        }
+        missCount.incrementAndGet();
+        return lookup;
+    }
+
+    // only called for classes that do not require weaving, returns true if the entry was stored
+    boolean put(Lookup lookup, AnalyzedClass analyzedClass) {
+        byte[] analyzedClassBytes = write(analyzedClass, lookup.advisorsContext);
+        if (analyzedClassBytes == null) {
+            return false;
+        }
+        if (cache.size() >= maxSize && !cache.containsKey(lookup.key)) {
+            // room is made by removing entries that are not used by this JVM on next write
+            maxSizeReached = true;
+            return false;
+        }
+        CacheEntry entry =
+                new CacheEntry(lookup.classHash, lookup.contextHash, analyzedClassBytes);
+        entry.used = true;
+        cache.put(lookup.key, entry);
+        needsToBeWritten.add(lookup.key);
+        return true;
+    }
+
+    void recordHit(long nanos) {
+        hitCount.incrementAndGet();
+        hitNanos.addAndGet(nanos);
+    }
+
+    void recordStoredMiss(long nanos) {
+        storedMissCount.incrementAndGet();
+        storedMissNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public double getEstimatedTimeSavedMillis() {
+        long hitCount = this.hitCount.get();
+        long storedMissCount = this.storedMissCount.get();
+        if (hitCount == 0 || storedMissCount == 0) {
+            return 0;
+        }
+        double avgHitNanos = hitNanos.get() / (double) hitCount;
+        double avgMissNanos = storedMissNanos.get() / (double) storedMissCount;
+        return Math.max(0, hitCount * (avgMissNanos - avgHitNanos)) / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    protected void runInternal() throws IOException {
+        if (needsToBeWritten.isEmpty() && !maxSizeReached) {
+            return;
+        }
+        if (maxSizeReached) {
+            removeUnusedEntries();
+            maxSizeReached = false;
+            rewriteFile = true;
+        }
+        if (rewriteFile || entriesInFile + needsToBeWritten.size() > maxSize) {
+            writeAllToFile();
+            rewriteFile = false;
+        } else {
+            appendToFile();
+        }
+        // race condition on clearing is ok, worst case a few entries that were just added are not
+        // written until the next full write (or are re-analyzed on next JVM start)
+        needsToBeWritten.clear();
+    }
+
+    private AdvisorsContext getAdvisorsContext(List<Advice> advisors) {
+        AdvisorsContext advisorsContext = this.advisorsContext;
+        if (advisorsContext == null || advisorsContext.advisors != advisors) {
+            // advisors list instance only changes when instrumentation config changes
+            advisorsContext = new AdvisorsContext(advisors);
+            this.advisorsContext = advisorsContext;
+        }
+        return advisorsContext;
+    }
+
+    private void removeUnusedEntries() {
+        Iterator<CacheEntry> i = cache.values().iterator();
+        while (i.hasNext()) {
+            if (!i.next().used) {
+                i.remove();
+            }
+        }
+    }
+
+    private void loadFromFile() {
+        if (!file.exists() || file.length() == 0) {
+            rewriteFile = true;
+            return;
+        }
+        int entryCount = 0;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readLong() != fileFingerprint) {
+                    // different agent version or different plugins
+                    rewriteFile = true;
+                    return;
+                }
+                while (true) {
+                    long key;
+                    try {
+                        key = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    long classHash = in.readLong();
+                    long contextHash = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_ENTRY_SIZE) {
+                        throw new IOException("unexpected entry size: " + length);
+                    }
+                    byte[] analyzedClassBytes = new byte[length];
+                    in.readFully(analyzedClassBytes);
+                    // later entries for the same key replace earlier ones
+                    cache.put(key, new CacheEntry(classHash, contextHash, analyzedClassBytes));
+                    entryCount++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // e.g. truncated file if the JVM was terminated while appending
+            logger.warn("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+            rewriteFile = true;
+        }
+        entriesInFile = entryCount;
+    }
+
+    private void writeAllToFile() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        int entryCount = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(fileFingerprint);
+            for (Map.Entry<Long, CacheEntry> entry : cache.entrySet()) {
+                writeEntry(out, entry.getKey(), entry.getValue());
+                entryCount++;
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile, file);
+        entriesInFile = entryCount;
+    }
+
+    private void appendToFile() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)));
+        int entryCount = 0;
+        try {
+            for (Long key : needsToBeWritten) {
+                CacheEntry entry = cache.get(key);
+                if (entry != null) {
+                    writeEntry(out, key, entry);
+                    entryCount++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        entriesInFile += entryCount;
+    }
+
+    private static void writeEntry(DataOutputStream out, long key, CacheEntry entry)
+            throws IOException {
+        out.writeLong(key);
+        out.writeLong(entry.classHash);
+        out.writeLong(entry.contextHash);
+        out.writeInt(entry.analyzedClassBytes.length);
+        out.write(entry.analyzedClassBytes);
+    }
+
+    private static long getKey(String className, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource) {
+        // including loader and code source so that the same class name in different class
+        // loaders (e.g. different versions of a library in different webapps) do not keep
+        // replacing each other's entry
+        long h = hash(FNV_OFFSET_BASIS, className);
+        h = hash(h, loader == null ? "" : loader.getClass().getName());
+        URL location = codeSource == null ? null : codeSource.getLocation();
+        // comparing results of URL.toExternalForm() since URL.hashCode() performs name resolution
+        return hash(h, location == null ? "" : location.toExternalForm());
+    }
+
+    private static long hashHierarchy(long h, String className, byte[] classBytes,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource,
+            AnalyzedWorld analyzedWorld) {
+        // ClassReader constructor only parses the constant pool offsets, which is much cheaper
+        // than ClassReader.accept()
+        ClassReader cr = new ClassReader(classBytes);
+        String subClassName = ClassNames.fromInternalName(className);
+        ParseContext parseContext = ImmutableParseContext.of(subClassName, codeSource);
+        int access = cr.getAccess();
+        h = hash(h, access);
+        for (String interfaceName : cr.getInterfaces()) {
+            h = hashAnalyzedClasses(h, analyzedWorld.getAnalyzedHierarchy(
+                    ClassNames.fromInternalName(interfaceName), loader, subClassName,
+                    parseContext));
+        }
+        if ((access & ACC_INTERFACE) == 0) {
+            h = hashAnalyzedClasses(h, analyzedWorld.getAnalyzedHierarchy(
+                    ClassNames.fromInternalName(cr.getSuperName()), loader, subClassName,
+                    parseContext));
+        }
+        return h;
+    }
+
+    private static long hashAnalyzedClasses(long h, List<AnalyzedClass> analyzedClasses) {
+        for (AnalyzedClass analyzedClass : analyzedClasses) {
+            h = hash(h, analyzedClass.name());
+            h = hash(h, analyzedClass.modifiers());
+            h = hash(h, analyzedClass.superName());
+            h = hash(h, analyzedClass.interfaceNames());
+            for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+                h = hash(h, analyzedMethod.name());
+                h = hash(h, analyzedMethod.parameterTypes());
+                h = hash(h, analyzedMethod.returnType());
+                h = hash(h, analyzedMethod.modifiers());
+                for (Advice advice : analyzedMethod.advisors()) {
+                    h = hash(h, advice.adviceType().getInternalName());
+                }
+                // separator between advisors and sub type restricted advisors
+                h = hash(h, -2);
+                for (Advice advice : analyzedMethod.subTypeRestrictedAdvisors()) {
+                    h = hash(h, advice.adviceType().getInternalName());
+                }
+            }
+            for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+                h = hash(h, publicFinalMethod.name());
+                h = hash(h, publicFinalMethod.parameterTypes());
+            }
+            h = hash(h, analyzedClass.shimTypes().size());
+            h = hash(h, analyzedClass.mixinTypes().size());
+            h = hash(h, analyzedClass.nonReweavableMixinTypes().size());
+            h = hash(h, analyzedClass.ejbRemote());
+        }
+        return h;
+    }
+
+    @VisibleForTesting
+    static byte /*@Nullable*/ [] write(AnalyzedClass analyzedClass,
+            AdvisorsContext advisorsContext) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(analyzedClass.modifiers());
+            out.writeUTF(analyzedClass.name());
+            writeNullableString(out, analyzedClass.superName());
+            writeStrings(out, analyzedClass.interfaceNames());
+            out.writeInt(analyzedClass.analyzedMethods().size());
+            for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+                out.writeUTF(analyzedMethod.name());
+                writeStrings(out, analyzedMethod.parameterTypes());
+                out.writeUTF(analyzedMethod.returnType());
+                out.writeInt(analyzedMethod.modifiers());
+                writeNullableString(out, analyzedMethod.signature());
+                writeStrings(out, analyzedMethod.exceptions());
+                if (!writeAdvisors(out, analyzedMethod.advisors(), advisorsContext)
+                        || !writeAdvisors(out, analyzedMethod.subTypeRestrictedAdvisors(),
+                                advisorsContext)) {
+                    // e.g. advice generated from @Instrumentation or @javax.ejb.Remote
+                    return null;
+                }
+            }
+            out.writeInt(analyzedClass.publicFinalMethods().size());
+            for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+                out.writeUTF(publicFinalMethod.name());
+                writeStrings(out, publicFinalMethod.parameterTypes());
+            }
+            out.writeBoolean(analyzedClass.ejbRemote());
+        } catch (IOException e) {
+            // not expected from ByteArrayOutputStream (other than strings over 64k)
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    @VisibleForTesting
+    static @Nullable AnalyzedClass read(byte[] analyzedClassBytes,
+            AdvisorsContext advisorsContext) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(analyzedClassBytes));
+        try {
+            ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder()
+                    .modifiers(in.readInt())
+                    .name(in.readUTF())
+                    .superName(readNullableString(in))
+                    .addAllInterfaceNames(readStrings(in));
+            int analyzedMethodCount = in.readInt();
+            for (int i = 0; i < analyzedMethodCount; i++) {
+                ImmutableAnalyzedMethod.Builder methodBuilder = ImmutableAnalyzedMethod.builder()
+                        .name(in.readUTF())
+                        .addAllParameterTypes(readStrings(in))
+                        .returnType(in.readUTF())
+                        .modifiers(in.readInt())
+                        .signature(readNullableString(in))
+                        .addAllExceptions(readStrings(in));
+                List<Advice> advisors = readAdvisors(in, advisorsContext);
+                List<Advice> subTypeRestrictedAdvisors = readAdvisors(in, advisorsContext);
+                if (advisors == null || subTypeRestrictedAdvisors == null) {
+                    return null;
+                }
+                classBuilder.addAnalyzedMethods(methodBuilder.addAllAdvisors(advisors)
+                        .addAllSubTypeRestrictedAdvisors(subTypeRestrictedAdvisors)
+                        .build());
+            }
+            int publicFinalMethodCount = in.readInt();
+            for (int i = 0; i < publicFinalMethodCount; i++) {
+                classBuilder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name(in.readUTF())
+                        .addAllParameterTypes(readStrings(in))
+                        .build());
+            }
+            return classBuilder.ejbRemote(in.readBoolean())
+                    .build();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static boolean writeAdvisors(DataOutputStream out, List<Advice> advisors,
+            AdvisorsContext advisorsContext) throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            String name = advice.adviceType().getInternalName();
+            if (advisorsContext.advisorsByName.get(name) != advice) {
+                return false;
+            }
+            out.writeUTF(name);
+        }
+        return true;
+    }
+
+    private static @Nullable List<Advice> readAdvisors(DataInputStream in,
+            AdvisorsContext advisorsContext) throws IOException {
+        int count = in.readInt();
+        Advice[] advisors = new Advice[count];
+        boolean found = true;
+        for (int i = 0; i < count; i++) {
+            // need to read all names even if not found, to leave the stream at the right position
+            Advice advice = advisorsContext.advisorsByName.get(in.readUTF());
+            if (advice == null) {
+                found = false;
+            } else {
+                advisors[i] = advice;
+            }
+        }
+        return found ? Arrays.asList(advisors) : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return Arrays.asList(strings);
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String string)
+            throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static long hash(long h, byte[] bytes) {
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long hash(long h, @Nullable String string) {
+        if (string == null) {
+            return hash(h, -1);
+        }
+        for (int i = 0; i < string.length(); i++) {
+            h ^= string.charAt(i);
+            h *= FNV_PRIME;
+        }
+        // terminator so that adjacent strings cannot run together
+        return hash(h, 0);
+    }
+
+    private static long hash(long h, List<String> strings) {
+        for (String string : strings) {
+            h = hash(h, string);
+        }
+        return hash(h, strings.size());
+    }
+
+    private static long hash(long h, boolean value) {
+        return hash(h, value ? 1 : 2);
+    }
+
+    private static long hash(long h, long value) {
+        h ^= value;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+    static class Lookup {
+
+        private final long key;
+        private final long classHash;
+        private final long contextHash;
+        private final AdvisorsContext advisorsContext;
+
+        private @Nullable AnalyzedClass analyzedClass;
+
+        private Lookup(long key, long classHash, long contextHash,
+                AdvisorsContext advisorsContext) {
+            this.key = key;
+            this.classHash = classHash;
+            this.contextHash = contextHash;
+            this.advisorsContext = advisorsContext;
+        }
+
+        // non-null on cache hit
+        @Nullable
+        AnalyzedClass getAnalyzedClass() {
+            return analyzedClass;
+        }
+    }
+
+    @VisibleForTesting
+    static class AdvisorsContext {
+
+        private final List<Advice> advisors;
+        private final long fingerprint;
+        private final Map<String, Advice> advisorsByName;
+
+        @VisibleForTesting
+        AdvisorsContext(List<Advice> advisors) {
+            this.advisors = advisors;
+            Map<String, Advice> advisorsByName = new HashMap<String, Advice>();
+            Set<String> duplicateNames = new HashSet<String>();
+            long h = FNV_OFFSET_BASIS;
+            for (Advice advice : advisors) {
+                h = hash(h, advice);
+                addAdvice(advice, advisorsByName, duplicateNames);
+                Advice nonBootstrapLoaderAdvice = advice.nonBootstrapLoaderAdvice();
+                if (nonBootstrapLoaderAdvice != null) {
+                    addAdvice(nonBootstrapLoaderAdvice, advisorsByName, duplicateNames);
+                }
+            }
+            // ambiguous advice names make entries referencing them non-cacheable
+            for (String duplicateName : duplicateNames) {
+                advisorsByName.remove(duplicateName);
+            }
+            this.fingerprint = h;
+            this.advisorsByName = advisorsByName;
+        }
+
+        private static void addAdvice(Advice advice, Map<String, Advice> advisorsByName,
+                Set<String> duplicateNames) {
+            String name = advice.adviceType().getInternalName();
+            Advice existing = advisorsByName.put(name, advice);
+            if (existing != null && existing != advice) {
+                duplicateNames.add(name);
+            }
+        }
+
+        private static long hash(long h, Advice advice) {
+            h = WeavingCache.hash(h, advice.adviceType().getInternalName());
+            Pointcut pointcut = advice.pointcut();
+            h = WeavingCache.hash(h, pointcut.className());
+            h = WeavingCache.hash(h, pointcut.classAnnotation());
+            h = WeavingCache.hash(h, pointcut.subTypeRestriction());
+            h = WeavingCache.hash(h, pointcut.superTypeRestriction());
+            h = WeavingCache.hash(h, pointcut.methodName());
+            h = WeavingCache.hash(h, pointcut.methodAnnotation());
+            for (String methodParameterType : pointcut.methodParameterTypes()) {
+                h = WeavingCache.hash(h, methodParameterType);
+            }
+            h = WeavingCache.hash(h, pointcut.methodReturnType());
+            for (MethodModifier methodModifier : pointcut.methodModifiers()) {
+                h = WeavingCache.hash(h, methodModifier.name());
+            }
+            h = WeavingCache.hash(h, pointcut.nestingGroup());
+            h = WeavingCache.hash(h, pointcut.timerName());
+            h = WeavingCache.hash(h, pointcut.order());
+            h = WeavingCache.hash(h, pointcut.suppressibleUsingKey());
+            h = WeavingCache.hash(h, pointcut.suppressionKey());
+            return WeavingCache.hash(h, advice.reweavable());
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final long classHash;
+        private final long contextHash;
+        private final byte[] analyzedClassBytes;
+
+        // whether the entry has been hit or stored by this JVM
+        private volatile boolean used;
+
+        private CacheEntry(long classHash, long contextHash, byte[] analyzedClassBytes) {
+            this.classHash = classHash;
+            this.contextHash = contextHash;
+            this.analyzedClassBytes = analyzedClassBytes;
+        }
+    }
+}
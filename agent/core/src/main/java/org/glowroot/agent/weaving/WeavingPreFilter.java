@@ -0,0 +1,529 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
+import static org.objectweb.asm.Opcodes.ACC_DEPRECATED;
+import static org.objectweb.asm.Opcodes.ACC_MODULE;
+import static org.objectweb.asm.Opcodes.ACC_RECORD;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+
+// the large majority of classes loaded by an application are not matched by any advice, and for
+// those classes this reads just the class file structure (without ASM) and builds the same
+// AnalyzedClass that ClassAnalyzer would have built, returning null whenever the class may need
+// weaving (or cannot be handled here) so that the caller falls back to full analysis
+class WeavingPreFilter {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    // these are handled specially by Weaver or ClassAnalyzer
+    private static final ImmutableSet<String> SPECIAL_ANNOTATIONS = ImmutableSet.of(
+            "Lorg/glowroot/agent/plugin/api/weaving/Pointcut;", "Ljavax/ejb/Remote;",
+            "Ljakarta/ejb/Remote;", "Ljavax/ejb/Stateless;", "Ljakarta/ejb/Stateless;");
+    private static final ImmutableSet<String> SPECIAL_CLASS_NAMES =
+            ImmutableSet.of(ImportantClassNames.JBOSS_WELD_HACK_CLASS_NAME,
+                    ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME, "java/lang/ClassLoader");
+
+    private static final String MAIN_METHOD_DESCRIPTOR = "([Ljava/lang/String;)V";
+
+    private final List<Advice> advisors;
+
+    // advisors are indexed by the part of the pointcut that matches the class name, so that only a
+    // handful of them need to be checked for any given class
+    private final Map<String, List<Advice>> advisorsByClassName;
+    private final @Nullable Pattern combinedClassNamePattern;
+    private final ImmutableList<Advice> classNamePatternAdvisors;
+    private final ImmutableList<Advice> anyClassNameAdvisors;
+
+    private final ImmutableSet<String> shimAndMixinTargets;
+
+    WeavingPreFilter(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this.advisors = advisors;
+        Map<String, List<Advice>> advisorsByClassName = Maps.newHashMap();
+        List<Advice> classNamePatternAdvisors = Lists.newArrayList();
+        List<Advice> anyClassNameAdvisors = Lists.newArrayList();
+        StringBuilder combinedClassNamePattern = new StringBuilder();
+        for (Advice advice : advisors) {
+            Pattern classNamePattern = advice.pointcutClassNamePattern();
+            String className = advice.pointcut().className();
+            if (classNamePattern != null) {
+                classNamePatternAdvisors.add(advice);
+                if (combinedClassNamePattern.length() > 0) {
+                    combinedClassNamePattern.append('|');
+                }
+                combinedClassNamePattern.append("(?:");
+                combinedClassNamePattern.append(classNamePattern.pattern());
+                combinedClassNamePattern.append(')');
+            } else if (className.isEmpty()) {
+                anyClassNameAdvisors.add(advice);
+            } else {
+                List<Advice> list = advisorsByClassName.get(className);
+                if (list == null) {
+                    list = Lists.newArrayList();
+                    advisorsByClassName.put(className, list);
+                }
+                list.add(advice);
+            }
+        }
+        this.advisorsByClassName = advisorsByClassName;
+        if (combinedClassNamePattern.length() == 0) {
+            this.combinedClassNamePattern = null;
+        } else {
+            this.combinedClassNamePattern = Pattern.compile(combinedClassNamePattern.toString());
+        }
+        this.classNamePatternAdvisors = ImmutableList.copyOf(classNamePatternAdvisors);
+        this.anyClassNameAdvisors = ImmutableList.copyOf(anyClassNameAdvisors);
+        Set<String> shimAndMixinTargets = Sets.newHashSet();
+        for (ShimType shimType : shimTypes) {
+            shimAndMixinTargets.addAll(shimType.targets());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            shimAndMixinTargets.addAll(mixinType.targets());
+        }
+        this.shimAndMixinTargets = ImmutableSet.copyOf(shimAndMixinTargets);
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returns null if the class may need weaving, in which case full analysis is required
+    @Nullable
+    AnalyzedClass analyze(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, AnalyzedWorld analyzedWorld,
+            boolean noLongerNeedToWeaveMainMethods) {
+        ScannedClass scannedClass = ScannedClass.scan(classBytes);
+        if (scannedClass == null) {
+            return null;
+        }
+        // interfaces are excluded since ClassAnalyzer captures all of their methods (with generic
+        // signatures and exceptions) for use by implementing classes
+        if (Modifier.isInterface(scannedClass.access) || (scannedClass.access & ACC_MODULE) != 0
+                || SPECIAL_CLASS_NAMES.contains(scannedClass.name)) {
+            return null;
+        }
+        for (String annotation : scannedClass.annotations) {
+            if (SPECIAL_ANNOTATIONS.contains(annotation)) {
+                return null;
+            }
+        }
+        String className = ClassNames.fromInternalName(scannedClass.name);
+        if (shimAndMixinTargets.contains(className)) {
+            return null;
+        }
+        if (!noLongerNeedToWeaveMainMethods && (hasMainOrPossibleProcrunStartMethod(scannedClass)
+                || className.equals("org.apache.commons.daemon.support.DaemonLoader"))) {
+            return null;
+        }
+        // advisors that can still match once the super types are known
+        List<Advice> superTypeDependentAdvisors = Lists.newArrayList();
+        if (!addCandidates(superTypeDependentAdvisors, advisorsByClassName.get(className),
+                scannedClass)) {
+            return null;
+        }
+        if (combinedClassNamePattern != null
+                && combinedClassNamePattern.matcher(className).matches()) {
+            List<Advice> matchingAdvisors = Lists.newArrayList();
+            for (Advice advice : classNamePatternAdvisors) {
+                if (checkNotNull(advice.pointcutClassNamePattern()).matcher(className).matches()) {
+                    matchingAdvisors.add(advice);
+                }
+            }
+            if (!addCandidates(superTypeDependentAdvisors, matchingAdvisors, scannedClass)) {
+                return null;
+            }
+        }
+        if (!addCandidates(superTypeDependentAdvisors, anyClassNameAdvisors, scannedClass)) {
+            return null;
+        }
+        // same hierarchy resolution (and in the same order) as ClassAnalyzer
+        ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(scannedClass.interfaces);
+        String superClassName = ClassNames.fromInternalName(scannedClass.superName);
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        Set<String> superClassNames = Sets.newHashSet();
+        superClassNames.add(className);
+        for (String interfaceName : interfaceNames) {
+            for (AnalyzedClass analyzedClass : analyzedWorld.getAnalyzedHierarchy(interfaceName,
+                    loader, className, parseContext)) {
+                if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                        || !analyzedClass.analyzedMethods().isEmpty()) {
+                    return null;
+                }
+                superClassNames.add(analyzedClass.name());
+            }
+        }
+        for (AnalyzedClass analyzedClass : analyzedWorld.getAnalyzedHierarchy(superClassName,
+                loader, className, parseContext)) {
+            if (!analyzedClass.nonReweavableMixinTypes().isEmpty()
+                    || !analyzedClass.analyzedMethods().isEmpty()
+                    || analyzedClass.name().equals(ClassLoader.class.getName())) {
+                return null;
+            }
+            superClassNames.add(analyzedClass.name());
+        }
+        for (Advice advice : superTypeDependentAdvisors) {
+            if (AdviceMatcher.isClassMatch(className, scannedClass.annotations, superClassNames,
+                    advice)) {
+                return null;
+            }
+        }
+        return buildAnalyzedClass(scannedClass, className, superClassName, interfaceNames);
+    }
+
+    // returns false if any of the advisors could match regardless of the super types
+    private static boolean addCandidates(List<Advice> superTypeDependentAdvisors,
+            @Nullable List<Advice> advisors, ScannedClass scannedClass) {
+        if (advisors == null) {
+            return true;
+        }
+        for (Advice advice : advisors) {
+            Pointcut pointcut = advice.pointcut();
+            if (!AdviceMatcher.isAnnotationMatch(scannedClass.annotations,
+                    advice.pointcutClassAnnotationPattern(), pointcut.classAnnotation())) {
+                continue;
+            }
+            // the method annotation is checked against the annotations from all methods combined,
+            // since if none of the methods have it, then none of the methods can match
+            if (!AdviceMatcher.isAnnotationMatch(scannedClass.methodAnnotations,
+                    advice.pointcutMethodAnnotationPattern(), pointcut.methodAnnotation())) {
+                continue;
+            }
+            if (advice.pointcutSuperTypeRestrictionPattern() == null
+                    && pointcut.superTypeRestriction().isEmpty()) {
+                return false;
+            }
+            superTypeDependentAdvisors.add(advice);
+        }
+        return true;
+    }
+
+    private static boolean hasMainOrPossibleProcrunStartMethod(ScannedClass scannedClass) {
+        for (ScannedMethod method : scannedClass.methods) {
+            // same check as ClassAnalyzer
+            if (Modifier.isPublic(method.access) && Modifier.isStatic(method.access)
+                    && (method.access & ACC_BRIDGE) == 0
+                    && (method.name.equals("main") || method.name.startsWith("start"))
+                    && method.descriptor.equals(MAIN_METHOD_DESCRIPTOR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AnalyzedClass buildAnalyzedClass(ScannedClass scannedClass, String className,
+            @Nullable String superClassName, ImmutableList<String> interfaceNames) {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(scannedClass.access)
+                .name(className)
+                .superName(superClassName)
+                .addAllInterfaceNames(interfaceNames)
+                .ejbRemote(false);
+        // same order as ClassAnalyzer.analyzeMethods(), bridge methods first
+        for (ScannedMethod method : scannedClass.methods) {
+            if ((method.access & ACC_BRIDGE) != 0) {
+                addIfPublicFinal(builder, method);
+            }
+        }
+        for (ScannedMethod method : scannedClass.methods) {
+            if ((method.access & ACC_BRIDGE) == 0) {
+                addIfPublicFinal(builder, method);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void addIfPublicFinal(ImmutableAnalyzedClass.Builder builder,
+            ScannedMethod method) {
+        if (Modifier.isFinal(method.access) && Modifier.isPublic(method.access)) {
+            ImmutablePublicFinalMethod.Builder publicFinalMethod =
+                    ImmutablePublicFinalMethod.builder()
+                            .name(method.name);
+            for (Type parameterType : Type.getArgumentTypes(method.descriptor)) {
+                publicFinalMethod.addParameterTypes(parameterType.getClassName());
+            }
+            builder.addPublicFinalMethods(publicFinalMethod.build());
+        }
+    }
+
+    // reads only what is needed from the class file: the constant pool, the class header, the
+    // method names and descriptors, and the class and method annotations
+    private static class ScannedClass {
+
+        private final byte[] b;
+        private final int[] cpOffsets;
+        private final @Nullable String[] cpStrings;
+
+        private int access;
+        private String name = "";
+        private @Nullable String superName;
+        private final List<String> interfaces = Lists.newArrayList();
+        private final List<String> annotations = Lists.newArrayList();
+        private final List<String> methodAnnotations = Lists.newArrayList();
+        private final List<ScannedMethod> methods = Lists.newArrayList();
+
+        private ScannedClass(byte[] b, int cpCount) {
+            this.b = b;
+            cpOffsets = new int[cpCount];
+            cpStrings = new String[cpCount];
+        }
+
+        // returns null if the class file is not one that can be handled here
+        static @Nullable ScannedClass scan(byte[] b) {
+            try {
+                return scanInternal(b);
+            } catch (IndexOutOfBoundsException e) {
+                // malformed class file, leave it to ASM to report
+                return null;
+            }
+        }
+
+        private static @Nullable ScannedClass scanInternal(byte[] b) {
+            if (readInt(b, 0) != 0xCAFEBABE) {
+                return null;
+            }
+            int cpCount = readUnsignedShort(b, 8);
+            ScannedClass scannedClass = new ScannedClass(b, cpCount);
+            int offset = 10;
+            for (int i = 1; i < cpCount; i++) {
+                int tag = b[offset];
+                scannedClass.cpOffsets[i] = offset + 1;
+                switch (tag) {
+                    case CONSTANT_UTF8:
+                        offset += 3 + readUnsignedShort(b, offset + 1);
+                        break;
+                    case CONSTANT_INTEGER:
+                    case CONSTANT_FLOAT:
+                    case CONSTANT_FIELDREF:
+                    case CONSTANT_METHODREF:
+                    case CONSTANT_INTERFACE_METHODREF:
+                    case CONSTANT_NAME_AND_TYPE:
+                    case CONSTANT_DYNAMIC:
+                    case CONSTANT_INVOKE_DYNAMIC:
+                        offset += 5;
+                        break;
+                    case CONSTANT_LONG:
+                    case CONSTANT_DOUBLE:
+                        offset += 9;
+                        // long and double constants take up two entries
+                        i++;
+                        break;
+                    case CONSTANT_METHOD_HANDLE:
+                        offset += 4;
+                        break;
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                    case CONSTANT_METHOD_TYPE:
+                    case CONSTANT_MODULE:
+                    case CONSTANT_PACKAGE:
+                        offset += 3;
+                        break;
+                    default:
+                        // constant pool tag introduced after this was written
+                        return null;
+                }
+            }
+            scannedClass.access = readUnsignedShort(b, offset);
+            scannedClass.name = scannedClass.readClass(readUnsignedShort(b, offset + 2));
+            int superIndex = readUnsignedShort(b, offset + 4);
+            if (superIndex != 0) {
+                scannedClass.superName = scannedClass.readClass(superIndex);
+            }
+            int interfacesCount = readUnsignedShort(b, offset + 6);
+            offset += 8;
+            for (int i = 0; i < interfacesCount; i++) {
+                scannedClass.interfaces.add(scannedClass.readClass(readUnsignedShort(b, offset)));
+                offset += 2;
+            }
+            int fieldsCount = readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < fieldsCount; i++) {
+                offset = skipAttributes(b, offset + 6);
+            }
+            int methodsCount = readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < methodsCount; i++) {
+                int methodAccess = readUnsignedShort(b, offset);
+                String methodName = scannedClass.readUtf8(readUnsignedShort(b, offset + 2));
+                String descriptor = scannedClass.readUtf8(readUnsignedShort(b, offset + 4));
+                scannedClass.methods.add(new ScannedMethod(methodAccess, methodName, descriptor));
+                offset = scannedClass.readAttributes(offset + 6,
+                        scannedClass.methodAnnotations, false);
+            }
+            scannedClass.readAttributes(offset, scannedClass.annotations, true);
+            return scannedClass;
+        }
+
+        private int readAttributes(int offset, List<String> annotations, boolean classAttributes) {
+            int attributesCount = readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < attributesCount; i++) {
+                String attributeName = readUtf8(readUnsignedShort(b, offset));
+                int attributeLength = readInt(b, offset + 2);
+                offset += 6;
+                if (attributeName.equals("RuntimeVisibleAnnotations")
+                        || attributeName.equals("RuntimeInvisibleAnnotations")) {
+                    readAnnotationTypes(offset, annotations);
+                } else if (classAttributes) {
+                    // ASM merges these into the access flags passed to ClassVisitor.visit()
+                    if (attributeName.equals("Deprecated")) {
+                        access |= ACC_DEPRECATED;
+                    } else if (attributeName.equals("Synthetic")) {
+                        access |= ACC_SYNTHETIC;
+                    } else if (attributeName.equals("Record")) {
+                        access |= ACC_RECORD;
+                    }
+                }
+                offset += attributeLength;
+            }
+            return offset;
+        }
+
+        private void readAnnotationTypes(int offset, List<String> annotations) {
+            int annotationsCount = readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < annotationsCount; i++) {
+                annotations.add(readUtf8(readUnsignedShort(b, offset)));
+                offset = skipAnnotation(b, offset);
+            }
+        }
+
+        private String readClass(int cpIndex) {
+            return readUtf8(readUnsignedShort(b, cpOffsets[cpIndex]));
+        }
+
+        // decodes modified UTF-8
+        private String readUtf8(int cpIndex) {
+            String value = cpStrings[cpIndex];
+            if (value != null) {
+                return value;
+            }
+            int offset = cpOffsets[cpIndex];
+            int endOffset = offset + 2 + readUnsignedShort(b, offset);
+            offset += 2;
+            char[] chars = new char[endOffset - offset];
+            int length = 0;
+            while (offset < endOffset) {
+                int c = b[offset++];
+                if ((c & 0x80) == 0) {
+                    chars[length++] = (char) (c & 0x7F);
+                } else if ((c & 0xE0) == 0xC0) {
+                    chars[length++] = (char) (((c & 0x1F) << 6) + (b[offset++] & 0x3F));
+                } else {
+                    chars[length++] = (char) (((c & 0xF) << 12) + ((b[offset++] & 0x3F) << 6)
+                            + (b[offset++] & 0x3F));
+                }
+            }
+            value = new String(chars, 0, length);
+            cpStrings[cpIndex] = value;
+            return value;
+        }
+
+        private static int skipAttributes(byte[] b, int offset) {
+            int attributesCount = readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < attributesCount; i++) {
+                offset += 6 + readInt(b, offset + 2);
+            }
+            return offset;
+        }
+
+        private static int skipAnnotation(byte[] b, int offset) {
+            int elementValuePairsCount = readUnsignedShort(b, offset + 2);
+            offset += 4;
+            for (int i = 0; i < elementValuePairsCount; i++) {
+                offset = skipElementValue(b, offset + 2);
+            }
+            return offset;
+        }
+
+        private static int skipElementValue(byte[] b, int offset) {
+            switch (b[offset]) {
+                case 'e':
+                    return offset + 5;
+                case '@':
+                    return skipAnnotation(b, offset + 1);
+                case '[':
+                    int valuesCount = readUnsignedShort(b, offset + 1);
+                    offset += 3;
+                    for (int i = 0; i < valuesCount; i++) {
+                        offset = skipElementValue(b, offset);
+                    }
+                    return offset;
+                default:
+                    // constant values and class values
+                    return offset + 3;
+            }
+        }
+
+        private static int readUnsignedShort(byte[] b, int offset) {
+            return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+        }
+
+        private static int readInt(byte[] b, int offset) {
+            return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                    | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+        }
+    }
+
+    private static class ScannedMethod {
+
+        private final int access;
+        private final String name;
+        private final String descriptor;
+
+        private ScannedMethod(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.central;
 
+import io.grpc.Status;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -59,4 +60,30 @@ public class CentralCollectorTest {
         assertThat(CentralCollector.isAgentVersionGreaterThanCentralVersion("1.10.2", "2.10.2"))
                 .isFalse();
     }
+
+    @Test
+    public void shouldOnlyDropSpooledRecordOnNonRetryableStatus() {
+        assertThat(CentralCollector.isNonRetryable(Status.INVALID_ARGUMENT.asRuntimeException()))
+                .isTrue();
+        assertThat(CentralCollector.isNonRetryable(Status.UNIMPLEMENTED.asRuntimeException()))
+                .isTrue();
+        assertThat(CentralCollector.isNonRetryable(Status.UNAVAILABLE.asRuntimeException()))
+                .isFalse();
+        assertThat(
+                CentralCollector.isNonRetryable(Status.RESOURCE_EXHAUSTED.asRuntimeException()))
+                        .isFalse();
+        assertThat(CentralCollector.isNonRetryable(new IllegalStateException())).isFalse();
+    }
+
+    @Test
+    public void shouldOnlyChunkTraceEntriesForCentralVersionsThatSupportIt() {
+        assertThat(CentralCollector.isTraceEntryChunksSupported("0.14.3")).isTrue();
+        assertThat(CentralCollector.isTraceEntryChunksSupported(
+                "0.14.3-SNAPSHOT, built 2023-01-01 00:00:00 +0000")).isTrue();
+        assertThat(CentralCollector.isTraceEntryChunksSupported("0.15.0")).isTrue();
+        assertThat(CentralCollector.isTraceEntryChunksSupported("1.0.0")).isTrue();
+        assertThat(CentralCollector.isTraceEntryChunksSupported("0.14.2")).isFalse();
+        assertThat(CentralCollector.isTraceEntryChunksSupported("0.13.6")).isFalse();
+        assertThat(CentralCollector.isTraceEntryChunksSupported("")).isFalse();
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.central.CentralSpool.SpooledRecord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private File spoolFile;
+
+    @BeforeEach
+    public void beforeEachTest() throws Exception {
+        spoolFile = File.createTempFile("glowroot-test-", ".spool");
+    }
+
+    @AfterEach
+    public void afterEachTest() throws Exception {
+        spoolFile.delete();
+    }
+
+    @Test
+    public void shouldAppendAndRemoveInOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(spoolFile, 1024);
+
+        // when
+        spool.append(CentralSpool.AGGREGATES, new byte[] {1, 2, 3});
+        spool.append(CentralSpool.TRACE, new byte[] {4, 5});
+
+        // then
+        SpooledRecord record = spool.peek();
+        assertThat(record.recordType()).isEqualTo(CentralSpool.AGGREGATES);
+        assertThat(record.payload()).containsExactly(1, 2, 3);
+        spool.remove(record);
+        record = spool.peek();
+        assertThat(record.recordType()).isEqualTo(CentralSpool.TRACE);
+        assertThat(record.payload()).containsExactly(4, 5);
+        spool.remove(record);
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+        spool.close();
+    }
+
+    @Test
+    public void shouldSurviveReopen() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(spoolFile, 1024);
+        spool.append(CentralSpool.TRACE, new byte[] {7, 8, 9});
+        spool.close();
+
+        // when
+        spool = new CentralSpool(spoolFile, 1024);
+
+        // then
+        SpooledRecord record = spool.peek();
+        assertThat(record.recordType()).isEqualTo(CentralSpool.TRACE);
+        assertThat(record.payload()).containsExactly(7, 8, 9);
+        spool.close();
+    }
+
+    @Test
+    public void shouldCompactAndDropWhenFull() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(spoolFile, 24 + 2 * (5 + 40));
+        spool.append(CentralSpool.AGGREGATES, new byte[40]);
+        spool.append(CentralSpool.AGGREGATES, new byte[40]);
+
+        // when
+        spool.append(CentralSpool.TRACE, new byte[40]);
+        spool.remove(spool.peek());
+        spool.append(CentralSpool.TRACE, new byte[40]);
+
+        // then
+        SpooledRecord record = spool.peek();
+        assertThat(record.recordType()).isEqualTo(CentralSpool.AGGREGATES);
+        spool.remove(record);
+        record = spool.peek();
+        assertThat(record.recordType()).isEqualTo(CentralSpool.TRACE);
+        spool.remove(record);
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void shouldDiscardCorruptRecord() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(spoolFile, 1024);
+        spool.append(CentralSpool.TRACE, new byte[] {7, 8, 9});
+        spool.close();
+        // simulate record bytes that never made it to disk
+        RandomAccessFile file = new RandomAccessFile(spoolFile, "rw");
+        file.seek(24);
+        file.writeInt(1000);
+        file.close();
+
+        // when
+        spool = new CentralSpool(spoolFile, 1024);
+
+        // then
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.isEmpty()).isTrue();
+        spool.append(CentralSpool.AGGREGATES, new byte[] {1});
+        assertThat(spool.peek().payload()).containsExactly(1);
+        spool.close();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveStackSamplerTest {
+
+    @Test
+    public void shouldDetectUnchangedWaitingThread() {
+        ThreadInfo last = mockThreadInfo(Thread.State.WAITING, 3, 7);
+        assertThat(AdaptiveStackSampler.isUnchanged(last,
+                mockThreadInfo(Thread.State.WAITING, 3, 7))).isTrue();
+        assertThat(AdaptiveStackSampler.isUnchanged(last,
+                mockThreadInfo(Thread.State.WAITING, 3, 8))).isFalse();
+        assertThat(AdaptiveStackSampler.isUnchanged(last,
+                mockThreadInfo(Thread.State.TIMED_WAITING, 3, 7))).isFalse();
+    }
+
+    @Test
+    public void shouldNeverSkipRunnableThread() {
+        ThreadInfo last = mockThreadInfo(Thread.State.RUNNABLE, 0, 0);
+        assertThat(AdaptiveStackSampler.isUnchanged(last,
+                mockThreadInfo(Thread.State.RUNNABLE, 0, 0))).isFalse();
+    }
+
+    @Test
+    public void shouldDeepenUntilStackFits() {
+        assertThat(AdaptiveStackSampler.nextMaxDepth(64, 10)).isEqualTo(64);
+        assertThat(AdaptiveStackSampler.nextMaxDepth(64, 64)).isEqualTo(128);
+        assertThat(AdaptiveStackSampler.nextMaxDepth(64, 300)).isEqualTo(512);
+    }
+
+    @Test
+    public void shouldKeepLearnedMaxDepthPerThread() {
+        // given
+        AdaptiveStackSampler sampler = new AdaptiveStackSampler();
+
+        // when
+        sampler.learnMaxDepth(1, 256);
+
+        // then
+        assertThat(sampler.getLearnedMaxDepth(1)).isEqualTo(256);
+        assertThat(sampler.getLearnedMaxDepth(2)).isEqualTo(64);
+    }
+
+    @Test
+    public void shouldShrinkBatchWhenPauseExceedsTarget() {
+        assertThat(AdaptiveStackSampler.nextBatchSize(256, 256, 5000000)).isEqualTo(128);
+        assertThat(AdaptiveStackSampler.nextBatchSize(16, 16, 5000000)).isEqualTo(16);
+        assertThat(AdaptiveStackSampler.nextBatchSize(128, 128, 100000)).isEqualTo(144);
+        // not enough threads to know whether a larger batch would stay under target
+        assertThat(AdaptiveStackSampler.nextBatchSize(128, 20, 100000)).isEqualTo(128);
+    }
+
+    private static ThreadInfo mockThreadInfo(Thread.State threadState, long blockedCount,
+            long waitedCount) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        when(threadInfo.getBlockedCount()).thenReturn(blockedCount);
+        when(threadInfo.getWaitedCount()).thenReturn(waitedCount);
+        return threadInfo;
+    }
+}
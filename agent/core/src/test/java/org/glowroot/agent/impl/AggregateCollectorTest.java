@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.google.protobuf.CodedOutputStream;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector.EncodedAggregate;
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
+import org.glowroot.agent.model.AggregatedTimer;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.ServiceCallCollector;
+import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.ThreadProfile;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.TransactionTimer;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.util.NotAvailableAware;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    @Test
+    public void shouldEncodeSameAsBuild() throws Exception {
+        // given
+        AggregateCollector aggregateCollector = new AggregateCollector(null, 100, 100);
+        aggregateCollector.mergeDataFrom(mockTransaction(123456789, true));
+        aggregateCollector.mergeDataFrom(mockTransaction(987654321, false));
+
+        // when
+        EncodedAggregate encodedAggregate = aggregateCollector
+                .encode(new SharedQueryTextCollectionImpl(), new ScratchBuffer());
+        byte[] encoded = new byte[encodedAggregate.getSerializedSize()];
+        CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+        encodedAggregate.writeTo(output);
+        output.checkNoSpaceLeft();
+
+        // then
+        byte[] built = aggregateCollector
+                .build(new SharedQueryTextCollectionImpl(), new ScratchBuffer()).toByteArray();
+        assertThat(encoded).isEqualTo(built);
+        aggregateCollector.release();
+    }
+
+    private static Transaction mockTransaction(long durationNanos, boolean error) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        if (error) {
+            when(transaction.getErrorMessage()).thenReturn(mock(ErrorMessage.class));
+        }
+        when(transaction.isAsync()).thenReturn(true);
+        // blocked and allocated are not available
+        when(transaction.getMainThreadStats()).thenReturn(new ThreadStats(durationNanos / 2,
+                NotAvailableAware.NA, 12, NotAvailableAware.NA));
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        when(mainThreadRootTimer.getName()).thenReturn("http request");
+        when(mainThreadRootTimer.getTotalNanos()).thenReturn(durationNanos);
+        when(mainThreadRootTimer.getCount()).thenReturn(1L);
+        final TransactionTimer nestedTimer = mockTimer("jdbc query", durationNanos / 3);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                AggregatedTimer timer = invocation.getArgument(0);
+                timer.newChildTimer("jdbc query", false).addDataFrom(nestedTimer);
+                return null;
+            }
+        }).when(mainThreadRootTimer).mergeChildTimersInto(any(AggregatedTimer.class));
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+
+        when(transaction.hasAuxThreadContexts()).thenReturn(true);
+        final TransactionTimer auxThreadTimer = mockTimer("auxiliary thread", durationNanos / 4);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                AggregatedTimer rootAuxThreadTimer = invocation.getArgument(0);
+                rootAuxThreadTimer.addDataFrom(auxThreadTimer);
+                return null;
+            }
+        }).when(transaction).mergeAuxThreadTimersInto(any(AggregatedTimer.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ThreadStatsCollector collector = invocation.getArgument(0);
+                collector.mergeThreadStats(new ThreadStats(NotAvailableAware.NA, 3, 4, 5000));
+                return null;
+            }
+        }).when(transaction).mergeAuxThreadStatsInto(any(ThreadStatsCollector.class));
+
+        when(transaction.hasAsyncTimers()).thenReturn(true);
+        final TransactionTimer asyncTimer = mockTimer("http client request", durationNanos / 5);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                RootTimerCollector collector = invocation.getArgument(0);
+                collector.mergeRootTimer(asyncTimer);
+                return null;
+            }
+        }).when(transaction).mergeAsyncTimersInto(any(RootTimerCollector.class));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                QueryCollector collector = invocation.getArgument(0);
+                collector.mergeQuery("SQL", "select 1", 1000, 1, true, 1, false);
+                collector.mergeQuery("SQL", "select 2", 2000, 2, false, 0, false);
+                return null;
+            }
+        }).when(transaction).mergeQueriesInto(any(QueryCollector.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ServiceCallCollector collector = invocation.getArgument(0);
+                collector.mergeServiceCall("HTTP", "GET http://example.org", 3000, 1);
+                return null;
+            }
+        }).when(transaction).mergeServiceCallsInto(any(ServiceCallCollector.class));
+
+        ThreadProfile mainThreadProfile = new ThreadProfile(100);
+        mainThreadProfile.addStackTrace(new Exception().getStackTrace(), Thread.State.RUNNABLE);
+        when(transaction.getMainThreadProfile()).thenReturn(mainThreadProfile);
+        ThreadProfile auxThreadProfile = new ThreadProfile(100);
+        auxThreadProfile.addStackTrace(new Exception().getStackTrace(), Thread.State.WAITING);
+        when(transaction.getAuxThreadProfile()).thenReturn(auxThreadProfile);
+        return transaction;
+    }
+
+    private static TransactionTimer mockTimer(String name, long totalNanos) {
+        TransactionTimer timer = mock(TransactionTimer.class);
+        when(timer.getName()).thenReturn(name);
+        when(timer.getTotalNanos()).thenReturn(totalNanos);
+        when(timer.getCount()).thenReturn(1L);
+        return timer;
+    }
+
+    private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
+
+        private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+
+        @Override
+        public int getSharedQueryTextIndex(String queryText) {
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(queryText);
+            if (sharedQueryTextIndex == null) {
+                sharedQueryTextIndex = sharedQueryTextIndexes.size();
+                sharedQueryTextIndexes.put(queryText, sharedQueryTextIndex);
+            }
+            return sharedQueryTextIndex;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.model.ThreadStatsComponent;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThreadStatsSamplerTest {
+
+    @Test
+    public void shouldOnlyCapturePendingThreadContextsPastThreshold() {
+        // given
+        // the threshold is zero in tests, so thread contexts started at or before the current tick
+        // are past the threshold
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(1000L);
+        ThreadStatsComponent pastThreshold = mockThreadStatsComponent(true);
+        ThreadStatsComponent notPastThreshold = mockThreadStatsComponent(true);
+        // completed in the meantime
+        ThreadStatsComponent notPending = mockThreadStatsComponent(false);
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getTransactions()).thenReturn(ImmutableList.of(
+                mockTransaction(500, pastThreshold),
+                mockTransaction(2000, notPastThreshold),
+                mockTransaction(0, notPending)));
+        ThreadStatsSampler sampler = new ThreadStatsSampler(transactionRegistry, ticker);
+
+        // when
+        sampler.runInternal();
+
+        // then
+        verify(pastThreshold).captureStartingBlockedWaited(any(ThreadInfo.class));
+        verify(notPastThreshold, never()).captureStartingBlockedWaited(any(ThreadInfo.class));
+        verify(notPending, never()).captureStartingBlockedWaited(any(ThreadInfo.class));
+    }
+
+    private static Transaction mockTransaction(long startTick,
+            ThreadStatsComponent threadStatsComponent) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.isActive()).thenReturn(true);
+        when(threadContext.getThreadStatsComponent()).thenReturn(threadStatsComponent);
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getStartTick()).thenReturn(startTick);
+        when(transaction.getMainThreadContext()).thenReturn(threadContext);
+        return transaction;
+    }
+
+    private static ThreadStatsComponent mockThreadStatsComponent(boolean pending) {
+        ThreadStatsComponent threadStatsComponent = mock(ThreadStatsComponent.class);
+        // the bulk ThreadMXBean.getThreadInfo() returns null thread info for unknown thread ids
+        when(threadStatsComponent.getThreadId()).thenReturn(Thread.currentThread().getId());
+        when(threadStatsComponent.isPendingStartingBlockedWaited()).thenReturn(pending);
+        return threadStatsComponent;
+    }
+}
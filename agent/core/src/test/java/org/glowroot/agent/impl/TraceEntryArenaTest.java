@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TraceEntryArenaTest {
+
+    // not using the shared pool so that recycling does not depend on other tests
+    private final BlockingQueue<@Nullable TraceEntryImpl[]> pool =
+            new ArrayBlockingQueue<@Nullable TraceEntryImpl[]>(4);
+
+    @Test
+    public void shouldRecycleCompletedEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl parentTraceEntry = mock(TraceEntryImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryArena arena = new TraceEntryArena(pool);
+        TraceEntryImpl entry = arena.allocate(threadContext, parentTraceEntry, messageSupplier,
+                null, 0, 0, timer, null);
+        entry.end();
+        // when
+        boolean released = arena.release();
+        // then
+        assertThat(released).isTrue();
+        assertThat(entry.getMessageSupplier()).isNull();
+        assertThat(entry.getParentTraceEntry()).isNull();
+        TraceEntryImpl recycled = new TraceEntryArena(pool).allocate(threadContext,
+                parentTraceEntry, messageSupplier, null, 0, 5, timer, null);
+        assertThat(recycled).isSameAs(entry);
+        assertThat(recycled.getMessageSupplier()).isSameAs(messageSupplier);
+        assertThat(recycled.getStartTick()).isEqualTo(5);
+        assertThat(recycled.isCompleted()).isFalse();
+    }
+
+    @Test
+    public void shouldNotRecycleActiveEntries() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl parentTraceEntry = mock(TraceEntryImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryArena arena = new TraceEntryArena(pool);
+        TraceEntryImpl entry = arena.allocate(threadContext, parentTraceEntry, messageSupplier,
+                null, 0, 0, timer, null);
+        // when
+        boolean released = arena.release();
+        // then
+        assertThat(released).isFalse();
+        assertThat(entry.getMessageSupplier()).isSameAs(messageSupplier);
+    }
+
+    @Test
+    public void shouldIgnoreStaleHandle() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl parentTraceEntry = mock(TraceEntryImpl.class);
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        TimerImpl timer = mock(TimerImpl.class);
+        TraceEntryArena arena = new TraceEntryArena(pool);
+        TraceEntryImpl entry = arena.allocate(threadContext, parentTraceEntry, messageSupplier,
+                null, 0, 0, timer, null);
+        TraceEntryHandle handle = new TraceEntryHandle(entry);
+        handle.end();
+        arena.release();
+        TraceEntryImpl recycled = new TraceEntryArena(pool).allocate(threadContext,
+                parentTraceEntry, messageSupplier2, null, 0, 5, timer, null);
+        // when
+        handle.end();
+        // then
+        assertThat(recycled).isSameAs(entry);
+        assertThat(handle.getMessageSupplier()).isNull();
+        assertThat(recycled.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(recycled.isCompleted()).isFalse();
+        assertThat(new TraceEntryHandle(recycled).getMessageSupplier())
+                .isSameAs(messageSupplier2);
+    }
+}
@@ -16,7 +16,11 @@
 package org.glowroot.agent.init;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
@@ -25,9 +29,13 @@ import javax.management.ObjectName;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.collector.Collector;
@@ -45,6 +53,8 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -334,6 +344,95 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldCaptureGaugesInBulk() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.of(gaugeConfig));
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        attributeList.add(new Attribute("ddd", 666));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class),
+                anyMBeanServerList())).thenReturn(attributeList);
+        GaugeCollector bulkGaugeCollector = new GaugeCollector(configService,
+                mock(Collector.class), lazyPlatformMBeanServer, null, clock, ticker, true, 2000);
+
+        // need to execute run() once in order to initialize internal priorRawCounterValues map
+        bulkGaugeCollector.run();
+
+        // when
+        List<GaugeValue> gaugeValues = bulkGaugeCollector.collectGaugeValues(gaugeConfig,
+                ImmutableList.<MBeanServer>of());
+
+        // then
+        bulkGaugeCollector.close();
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(555);
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(666);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class), anyString(),
+                anyMBeanServerList());
+    }
+
+    @Test
+    public void shouldNotLetHungMBeanStallOtherGauges() throws Exception {
+        // given
+        ConfigService configService = mock(ConfigService.class);
+        GaugeConfig hungGaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:name=hung")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:name=other")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        when(configService.getGaugeConfigs())
+                .thenReturn(ImmutableList.of(hungGaugeConfig, gaugeConfig));
+        final AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(lazyPlatformMBeanServer.getAttributes(eq(ObjectName.getInstance("test:name=hung")),
+                any(String[].class), anyMBeanServerList())).thenAnswer(new Answer<AttributeList>() {
+                    @Override
+                    public AttributeList answer(InvocationOnMock invocation) {
+                        // ignores the interrupt from cancellation, like a truly hung mbean
+                        Uninterruptibles.awaitUninterruptibly(latch);
+                        return attributeList;
+                    }
+                });
+        when(lazyPlatformMBeanServer.getAttributes(eq(ObjectName.getInstance("test:name=other")),
+                any(String[].class), anyMBeanServerList())).thenReturn(attributeList);
+        Collector collector = mock(Collector.class);
+        GaugeCollector bulkGaugeCollector = new GaugeCollector(configService, collector,
+                lazyPlatformMBeanServer, null, clock, ticker, true, 100);
+
+        // when
+        bulkGaugeCollector.run();
+        bulkGaugeCollector.run();
+
+        // then
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<GaugeValue>> captor = ArgumentCaptor.forClass(List.class);
+        verify(collector, timeout(5000).times(2)).collectGaugeValues(captor.capture());
+        for (List<GaugeValue> gaugeValues : captor.getAllValues()) {
+            assertThat(gaugeValues).hasSize(1);
+            assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("test:name=other:ccc");
+        }
+        // the second collection does not submit another task behind the hung one
+        verify(lazyPlatformMBeanServer).getAttributes(eq(ObjectName.getInstance("test:name=hung")),
+                any(String[].class), anyMBeanServerList());
+        verify(logger).debug(nullable(String.class), any(TimeoutException.class));
+        verify(logger).warn("mbean {} did not respond within {} milliseconds, skipping it until it"
+                + " responds", "test:name=hung", 100L);
+        latch.countDown();
+        bulkGaugeCollector.close();
+    }
+
+
     private List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws Exception {
         return gaugeCollector.collectGaugeValues(gaugeConfig, ImmutableList.<MBeanServer>of());
     }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MBeanPatternCacheTest {
+
+    private MBeanServer mbeanServer;
+    private List<MBeanServer> mbeanServers;
+    private LazyPlatformMBeanServer lazyPlatformMBeanServer;
+    private MBeanPatternCache mbeanPatternCache;
+
+    @BeforeEach
+    public void beforeEachTest() throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer();
+        mbeanServers = ImmutableList.of(mbeanServer);
+        lazyPlatformMBeanServer = mock(LazyPlatformMBeanServer.class);
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), isNull(QueryExp.class),
+                anyList())).thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) {
+                        ObjectName pattern = invocation.getArgument(0);
+                        return mbeanServer.queryNames(pattern, null);
+                    }
+                });
+        mbeanPatternCache = new MBeanPatternCache(lazyPlatformMBeanServer);
+    }
+
+    @AfterEach
+    public void afterEachTest() {
+        mbeanPatternCache.close();
+    }
+
+    @Test
+    public void shouldCachePatternExpansion() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Test,name=*");
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Test,name=one"));
+
+        // when
+        mbeanPatternCache.queryNames(pattern, mbeanServers);
+        mbeanPatternCache.queryNames(pattern, mbeanServers);
+
+        // then
+        assertThat(mbeanPatternCache.queryNames(pattern, mbeanServers)).containsExactly(
+                ObjectName.getInstance("test:type=Test,name=one"));
+        verify(lazyPlatformMBeanServer).queryNames(pattern, null, mbeanServers);
+    }
+
+    @Test
+    public void shouldInvalidatePatternExpansionOnRegistration() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Test,name=*");
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Test,name=one"));
+        mbeanPatternCache.queryNames(pattern, mbeanServers);
+
+        // when
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Test,name=two"));
+
+        // then
+        assertThat(mbeanPatternCache.queryNames(pattern, mbeanServers)).containsOnly(
+                ObjectName.getInstance("test:type=Test,name=one"),
+                ObjectName.getInstance("test:type=Test,name=two"));
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null, mbeanServers);
+    }
+
+    @Test
+    public void shouldNotInvalidateUnrelatedPatternExpansion() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Test,name=*");
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Test,name=one"));
+        mbeanPatternCache.queryNames(pattern, mbeanServers);
+
+        // when
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Other"));
+
+        // then
+        assertThat(mbeanPatternCache.queryNames(pattern, mbeanServers)).containsExactly(
+                ObjectName.getInstance("test:type=Test,name=one"));
+        verify(lazyPlatformMBeanServer).queryNames(pattern, null, mbeanServers);
+    }
+
+    @Test
+    public void shouldInvalidatePatternExpansionOnUnregistration() throws Exception {
+        // given
+        ObjectName pattern = ObjectName.getInstance("test:type=Test,name=*");
+        mbeanServer.registerMBean(new Sample(), ObjectName.getInstance("test:type=Test,name=one"));
+        mbeanPatternCache.queryNames(pattern, mbeanServers);
+
+        // when
+        mbeanServer.unregisterMBean(ObjectName.getInstance("test:type=Test,name=one"));
+
+        // then
+        assertThat(mbeanPatternCache.queryNames(pattern, mbeanServers)).isEmpty();
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(pattern, null, mbeanServers);
+    }
+
+    public interface SampleMBean {
+        int getValue();
+    }
+
+    public static class Sample implements SampleMBean {
+        @Override
+        public int getValue() {
+            return 1;
+        }
+    }
+}
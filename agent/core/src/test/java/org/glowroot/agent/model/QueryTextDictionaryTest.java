@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextDictionaryTest {
+
+    @Test
+    public void shouldComputeSameSha1AsBefore() {
+        // given
+        String fullText = "select " + Strings.repeat("x, ", 100) + "y from z";
+        // when
+        String fullTextSha1 = QueryTextDictionary.getFullTextSha1(fullText);
+        // then
+        assertThat(fullTextSha1)
+                .isEqualTo(Hashing.sha1().hashString(fullText, UTF_8).toString());
+        assertThat(QueryTextDictionary.getFullTextSha1(fullText)).isEqualTo(fullTextSha1);
+    }
+
+    @Test
+    public void shouldLookupFullTextBySha1() {
+        // given
+        String fullText = "select " + Strings.repeat("a, ", 100) + "b from c";
+        String fullTextSha1 = QueryTextDictionary.getFullTextSha1(fullText);
+        // when
+        String found = QueryTextDictionary.getFullText(fullTextSha1);
+        // then
+        assertThat(found).isSameAs(fullText);
+    }
+
+    @Test
+    public void shouldFindFullQueryTextInCollector() {
+        // given
+        String fullText = "select " + Strings.repeat("d, ", 100) + "e from f";
+        QueryCollector collector = new QueryCollector(100, 1);
+        collector.mergeQuery("SQL", fullText, 1, 1, false, 0, false);
+        String fullTextSha1 = QueryTextDictionary.getFullTextSha1(fullText);
+        // when
+        String found = collector.getFullQueryText(fullTextSha1);
+        String notFound = new QueryCollector(100, 1).getFullQueryText(fullTextSha1);
+        // then
+        assertThat(found).isEqualTo(fullText);
+        assertThat(notFound).isNull();
+    }
+}
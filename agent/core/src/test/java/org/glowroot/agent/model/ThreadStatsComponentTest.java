@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @BeforeAll
+    public static void setUp() {
+        // same as AgentModule
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    @Test
+    public void shouldReportZeroWhenCompletedBeforeCapture() {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, 1000);
+        assertThat(component.isPendingStartingBlockedWaited()).isTrue();
+        // captured mid-way, before the sampler reached it
+        ThreadStats threadStats = component.getThreadStats();
+        assertThat(threadStats.getBlockedMillis()).isEqualTo(0);
+        assertThat(threadStats.getWaitedMillis()).isEqualTo(0);
+
+        // when
+        component.onComplete();
+
+        // then
+        assertThat(component.isPendingStartingBlockedWaited()).isFalse();
+        threadStats = component.getThreadStats();
+        assertThat(threadStats.getBlockedMillis()).isEqualTo(0);
+        assertThat(threadStats.getWaitedMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldIgnoreCaptureAfterComplete() {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, 1000);
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        component.onComplete();
+
+        // when
+        // the sampler found the thread context pending just before it completed
+        component.captureStartingBlockedWaited(threadInfo);
+
+        // then
+        verifyNoInteractions(threadInfo);
+        ThreadStats threadStats = component.getThreadStats();
+        assertThat(threadStats.getBlockedMillis()).isEqualTo(0);
+        assertThat(threadStats.getWaitedMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldMeasureFromCaptureWhenCapturedBeforeComplete() {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, 1000);
+        ThreadInfo currThreadInfo =
+                threadMXBean.getThreadInfo(Thread.currentThread().getId(), 0);
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getBlockedTime()).thenReturn(currThreadInfo.getBlockedTime() - 7);
+        when(threadInfo.getWaitedTime()).thenReturn(currThreadInfo.getWaitedTime() - 11);
+
+        // when
+        component.captureStartingBlockedWaited(threadInfo);
+        component.onComplete();
+
+        // then
+        assertThat(component.isPendingStartingBlockedWaited()).isFalse();
+        ThreadStats threadStats = component.getThreadStats();
+        assertThat(threadStats.getBlockedMillis()).isGreaterThanOrEqualTo(7);
+        assertThat(threadStats.getWaitedMillis()).isGreaterThanOrEqualTo(11);
+    }
+
+    @Test
+    public void shouldIgnoreSecondCapture() {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, 1000);
+        component.captureStartingBlockedWaited(
+                threadMXBean.getThreadInfo(Thread.currentThread().getId(), 0));
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+
+        // when
+        component.captureStartingBlockedWaited(threadInfo);
+
+        // then
+        verifyNoInteractions(threadInfo);
+    }
+}
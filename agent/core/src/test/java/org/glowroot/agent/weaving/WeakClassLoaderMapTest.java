@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeakClassLoaderMapTest {
+
+    @Test
+    public void shouldUseIdentityOfClassLoader() {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        ClassLoader loader1 = new URLClassLoader(new URL[0]);
+        ClassLoader loader2 = new URLClassLoader(new URL[0]);
+        // when
+        assertThat(map.putIfAbsent(loader1, "one")).isNull();
+        assertThat(map.putIfAbsent(loader2, "two")).isNull();
+        // then
+        assertThat(map.putIfAbsent(loader1, "three")).isEqualTo("one");
+        assertThat(map.get(loader1)).isEqualTo("one");
+        assertThat(map.get(loader2)).isEqualTo("two");
+        assertThat(map.get(new URLClassLoader(new URL[0]))).isNull();
+        assertThat(map.getKeys()).containsOnly(loader1, loader2);
+        assertThat(map.getValues()).containsOnly("one", "two");
+    }
+
+    @Test
+    public void shouldNotRetainClassLoader() throws Exception {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        map.putIfAbsent(new URLClassLoader(new URL[0]), "one");
+        // when
+        for (int i = 0; i < 100 && !map.getKeys().isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        // then
+        assertThat(map.getKeys()).isEmpty();
+        assertThat(map.getValues()).isEmpty();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.WeavingCache.AdvisorsContext;
+import org.glowroot.agent.weaving.WeavingCache.Lookup;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final List<Advice> NO_ADVISORS = ImmutableList.of();
+
+    private File file;
+    private AnalyzedWorld analyzedWorld;
+    private ClassLoader loader;
+    private byte[] classBytes;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        file = File.createTempFile("glowroot-unit-test-", "");
+        analyzedWorld = new AnalyzedWorld(Suppliers.ofInstance(NO_ADVISORS),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+        loader = WeavingCacheTest.class.getClassLoader();
+        String path = ClassNames.toInternalName(Sample.class.getName()) + ".class";
+        classBytes = Resources.toByteArray(Resources.getResource(path));
+    }
+
+    @AfterEach
+    public void afterEach() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() {
+        // given
+        AnalyzedClass analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name("org.example.Abc")
+                .superName("java.lang.Object")
+                .addInterfaceNames("org.example.Xyz")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute")
+                        .addParameterTypes("java.lang.String", "int[]")
+                        .returnType("void")
+                        .modifiers(Modifier.PUBLIC | Modifier.ABSTRACT)
+                        .addExceptions("java.io.IOException")
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("finish")
+                        .build())
+                .ejbRemote(true)
+                .build();
+        AdvisorsContext advisorsContext = new AdvisorsContext(NO_ADVISORS);
+        // when
+        byte[] bytes = WeavingCache.write(analyzedClass, advisorsContext);
+        // then
+        assertThat(WeavingCache.read(bytes, advisorsContext)).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldHitAfterReload() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1");
+        Lookup lookup = lookup(weavingCache, classBytes);
+        assertThat(lookup.getAnalyzedClass()).isNull();
+        AnalyzedClass analyzedClass = analyze();
+        assertThat(weavingCache.put(lookup, analyzedClass)).isTrue();
+        weavingCache.runInternal();
+        // when
+        weavingCache = newWeavingCache("1");
+        // then
+        assertThat(lookup(weavingCache, classBytes).getAnalyzedClass()).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldMissAfterClassChange() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1");
+        weavingCache.put(lookup(weavingCache, classBytes), analyze());
+        weavingCache.runInternal();
+        byte[] changedClassBytes = classBytes.clone();
+        changedClassBytes[changedClassBytes.length - 1]++;
+        // when
+        weavingCache = newWeavingCache("1");
+        // then
+        assertThat(lookup(weavingCache, changedClassBytes).getAnalyzedClass()).isNull();
+        assertThat(weavingCache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMissAfterAgentVersionChange() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1");
+        weavingCache.put(lookup(weavingCache, classBytes), analyze());
+        weavingCache.runInternal();
+        // when
+        weavingCache = newWeavingCache("2");
+        // then
+        assertThat(weavingCache.getSize()).isZero();
+        assertThat(lookup(weavingCache, classBytes).getAnalyzedClass()).isNull();
+    }
+
+    private WeavingCache newWeavingCache(String agentVersion) {
+        return new WeavingCache(file, 100, agentVersion, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private Lookup lookup(WeavingCache weavingCache, byte[] classBytes) {
+        return weavingCache.lookup(ClassNames.toInternalName(Sample.class.getName()), classBytes,
+                loader, null, NO_ADVISORS, true, analyzedWorld);
+    }
+
+    private AnalyzedClass analyze() throws Exception {
+        ThinClassVisitor accv = new ThinClassVisitor();
+        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), NO_ADVISORS,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), loader,
+                analyzedWorld, null, classBytes, null, true);
+        classAnalyzer.analyzeMethods();
+        assertThat(classAnalyzer.isWeavingRequired()).isFalse();
+        return classAnalyzer.getAnalyzedClass();
+    }
+
+    @SuppressWarnings("serial")
+    public static class Sample implements Serializable {
+
+        public final void execute(String name) {}
+    }
+}
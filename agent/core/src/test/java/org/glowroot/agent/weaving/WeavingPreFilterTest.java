@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.SuperBasicAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.SuperBasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingPreFilterTest {
+
+    private List<Advice> advisors;
+    private AnalyzedWorld analyzedWorld;
+    private WeavingPreFilter preFilter;
+    private ClassLoader loader;
+
+    @BeforeEach
+    public void beforeEach() throws Exception {
+        advisors = ImmutableList.of(newAdvice(BasicAdvice.class),
+                newAdvice(SuperBasicAdvice.class));
+        analyzedWorld = new AnalyzedWorld(Suppliers.ofInstance(advisors),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+        preFilter = new WeavingPreFilter(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        loader = WeavingPreFilterTest.class.getClassLoader();
+    }
+
+    @Test
+    public void shouldBuildSameAnalyzedClassAsClassAnalyzer() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(Sample.class);
+        // when
+        AnalyzedClass analyzedClass =
+                preFilter.analyze(classBytes, loader, null, analyzedWorld, true);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass).isEqualTo(analyze(classBytes));
+        assertThat(analyzedClass.publicFinalMethods()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotFilterClassMatchedByName() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = preFilter.analyze(getClassBytes(SuperBasicMisc.class),
+                loader, null, analyzedWorld, true);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotFilterClassWithSuperAdvice() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = preFilter.analyze(getClassBytes(BasicMisc.class), loader,
+                null, analyzedWorld, true);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotFilterMainMethodUntilNoLongerNeeded() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(SampleWithMain.class);
+        // when
+        AnalyzedClass analyzedClass =
+                preFilter.analyze(classBytes, loader, null, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNull();
+        assertThat(preFilter.analyze(classBytes, loader, null, analyzedWorld, true)).isNotNull();
+    }
+
+    private AnalyzedClass analyze(byte[] classBytes) throws Exception {
+        ThinClassVisitor accv = new ThinClassVisitor();
+        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), loader,
+                analyzedWorld, null, classBytes, null, true);
+        classAnalyzer.analyzeMethods();
+        assertThat(classAnalyzer.isWeavingRequired()).isFalse();
+        return classAnalyzer.getAnalyzedClass();
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        String path = ClassNames.toInternalName(clazz.getName()) + ".class";
+        return Resources.toByteArray(Resources.getResource(path));
+    }
+
+    private static Advice newAdvice(Class<?> clazz) throws Exception {
+        return new AdviceBuilder(PluginDetailBuilder.buildAdviceClass(clazz)).build();
+    }
+
+    @Deprecated
+    public abstract static class Sample implements Callable<String> {
+
+        // the compiler generates a bridge method for this
+        @Override
+        public final String call() {
+            return "";
+        }
+
+        public abstract void execute(String name, int[] values);
+    }
+
+    public static class SampleWithMain {
+
+        public static void main(String[] args) {}
+    }
+}
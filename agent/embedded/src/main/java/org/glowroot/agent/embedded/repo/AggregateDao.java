@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -49,6 +50,7 @@ import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
+import org.glowroot.common.live.ImmutableAggregateQuery;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
@@ -153,6 +155,21 @@ public class AggregateDao implements AggregateRepository {
                     "main_thread_total_cpu_nanos", "aux_thread_total_cpu_nanos",
                     "main_thread_total_allocated_bytes", "aux_thread_total_allocated_bytes");
 
+    private static final ImmutableList<Column> overallSegmentColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT), // end of segment
+            ImmutableColumn.of("segment", ColumnType.VARBINARY)); // see AggregateSegment
+
+    private static final ImmutableList<Column> transactionSegmentColumns =
+            ImmutableList.<Column>of(
+                    ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+                    ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+                    ImmutableColumn.of("capture_time", ColumnType.BIGINT), // end of segment
+                    ImmutableColumn.of("segment", ColumnType.VARBINARY)); // see AggregateSegment
+
+    // number of rollup intervals covered by each aggregate segment
+    private static final int INTERVALS_PER_SEGMENT = 64;
+
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final ConfigRepositoryImpl configRepository;
@@ -160,6 +177,10 @@ public class AggregateDao implements AggregateRepository {
     private final FullQueryTextDao fullQueryTextDao;
 
     private final AtomicLongArray lastRollupTimes;
+    // aggregate segments are complete for all capture times <= lastSegmentTimes[rollupLevel]
+    private final AtomicLongArray lastSegmentTimes;
+    // the level 0 aggregate rows are complete for all capture times <= lastStoredCaptureTime
+    private volatile long lastStoredCaptureTime;
 
     private final Object rollupLock = new Object();
 
@@ -182,6 +203,16 @@ public class AggregateDao implements AggregateRepository {
             dataSource.syncTable(transactionTableName, transactionAggregateColumns);
             dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
                     .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            String overallSegmentTableName = "aggregate_tt_segment_rollup_" + castUntainted(i);
+            dataSource.syncTable(overallSegmentTableName, overallSegmentColumns);
+            dataSource.syncIndexes(overallSegmentTableName, ImmutableList.<Index>of(
+                    ImmutableIndex.of(overallSegmentTableName + "_idx",
+                            ImmutableList.of("transaction_type", "capture_time"))));
+            String transactionSegmentTableName = "aggregate_tn_segment_rollup_" + castUntainted(i);
+            dataSource.syncTable(transactionSegmentTableName, transactionSegmentColumns);
+            dataSource.syncIndexes(transactionSegmentTableName, ImmutableList.<Index>of(
+                    ImmutableIndex.of(transactionSegmentTableName + "_idx", ImmutableList
+                            .of("transaction_type", "transaction_name", "capture_time"))));
         }
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
@@ -194,6 +225,16 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        // transaction segments are always written before overall segments for the same window, so
+        // the overall segment table is sufficient to know which windows are complete (if the jvm
+        // stops in between, the window is re-written on the next run, see writeSegments())
+        long[] lastSegmentTimes = new long[rollupConfigs.size()];
+        for (int i = 0; i < lastSegmentTimes.length; i++) {
+            lastSegmentTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
+                    + " from aggregate_tt_segment_rollup_" + castUntainted(i));
+        }
+        this.lastSegmentTimes = new AtomicLongArray(lastSegmentTimes);
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -252,6 +293,17 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         }
+        lastStoredCaptureTime = captureTime;
+    }
+
+    // this is called periodically from the background reaper, so that writing segments does not
+    // delay storing aggregates
+    void writeSegments() throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            long completeThroughTime = i == 0 ? lastStoredCaptureTime : lastRollupTimes.get(i);
+            writeSegments(i, rollupConfigs.get(i).intervalMillis(), completeThroughTime);
+        }
     }
 
     // query.from() is non-inclusive
@@ -321,6 +373,8 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public CompletionStage<List<PercentileAggregate>> readPercentileAggregates(String agentRollupId,
             AggregateQuery query, CassandraProfile profile) {
+        // segments don't include histograms (see AggregateSegment), so these are read from the
+        // aggregate rows
         try {
             return CompletableFuture.completedFuture(dataSource.query(new PercentileAggregateQuery(query)));
         } catch (SQLException e) {
@@ -333,8 +387,15 @@ public class AggregateDao implements AggregateRepository {
     public CompletionStage<List<ThroughputAggregate>> readThroughputAggregates(String agentRollupId,
                                                               AggregateQuery query, CassandraProfile profile) {
         try {
-            return CompletableFuture.completedFuture(dataSource.query(new ThroughputAggregateQuery(query)));
-        } catch (SQLException e) {
+            List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
+            AggregateQuery remainingQuery =
+                    readSegments(query, new ThroughputSegmentVisitor(throughputAggregates));
+            if (remainingQuery != null) {
+                throughputAggregates
+                        .addAll(dataSource.query(new ThroughputAggregateQuery(remainingQuery)));
+            }
+            return CompletableFuture.completedFuture(throughputAggregates);
+        } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
@@ -477,6 +538,74 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        // segment capture time is the end of the segment, so this only deletes segments that are
+        // entirely before captureTime
+        dataSource.deleteBefore("aggregate_tt_segment_rollup_" + castUntainted(rollupLevel),
+                captureTime);
+        dataSource.deleteBefore("aggregate_tn_segment_rollup_" + castUntainted(rollupLevel),
+                captureTime);
+    }
+
+    // reads the part of the query that is covered by complete segments, and returns the remaining
+    // part of the query (if any) that needs to be read from the aggregate tables
+    private @Nullable AggregateQuery readSegments(AggregateQuery query, SegmentVisitor visitor)
+            throws Exception {
+        long lastSegmentTime = lastSegmentTimes.get(query.rollupLevel());
+        if (query.from() > lastSegmentTime) {
+            return query;
+        }
+        long segmentMillis = getSegmentMillis(query.rollupLevel());
+        List<byte[]> segments =
+                dataSource.query(new SegmentQuery(query, segmentMillis, lastSegmentTime));
+        for (byte[] segment : segments) {
+            AggregateSegment aggregateSegment = AggregateSegment.decode(ByteBuffer.wrap(segment));
+            for (int i = 0; i < aggregateSegment.count(); i++) {
+                long captureTime = aggregateSegment.captureTime(i);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    visitor.visit(aggregateSegment, i);
+                }
+            }
+        }
+        if (query.to() <= lastSegmentTime) {
+            return null;
+        }
+        return ImmutableAggregateQuery.copyOf(query).withFrom(lastSegmentTime + 1);
+    }
+
+    // writes segments for all complete segment windows up to and including completeThroughTime
+    private void writeSegments(int rollupLevel, long intervalMillis, long completeThroughTime)
+            throws Exception {
+        long segmentMillis = intervalMillis * INTERVALS_PER_SEGMENT;
+        long lastCompleteSegmentTime = (completeThroughTime / segmentMillis) * segmentMillis;
+        long lastSegmentTime = lastSegmentTimes.get(rollupLevel);
+        while (lastSegmentTime < lastCompleteSegmentTime) {
+            // skip over windows with no data (e.g. on first use, or after the jvm was down)
+            Long nextCaptureTime = dataSource.queryForOptionalLong(
+                    "select min(capture_time) from aggregate_tt_rollup_" + castUntainted(rollupLevel)
+                            + " where capture_time > ?",
+                    lastSegmentTime);
+            if (nextCaptureTime == null || nextCaptureTime > lastCompleteSegmentTime) {
+                // no data in the remaining complete windows
+                lastSegmentTime = lastCompleteSegmentTime;
+                break;
+            }
+            long segmentTime = ((nextCaptureTime + segmentMillis - 1) / segmentMillis)
+                    * segmentMillis;
+            // transaction segments are written first (see comment in constructor), and both are
+            // written using merge so that re-writing a window that was partially written before the
+            // jvm stopped replaces the existing segments instead of double counting them
+            dataSource.query(new WriteTransactionSegments(rollupLevel, segmentTime, segmentMillis));
+            dataSource.query(new WriteOverallSegments(rollupLevel, segmentTime, segmentMillis));
+            lastSegmentTime = segmentTime;
+        }
+        if (lastSegmentTime > lastSegmentTimes.get(rollupLevel)) {
+            lastSegmentTimes.set(rollupLevel, lastSegmentTime);
+        }
+    }
+
+    private long getSegmentMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * INTERVALS_PER_SEGMENT;
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -1324,6 +1453,202 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class SegmentQuery implements JdbcRowQuery<byte[]> {
+
+        private final AggregateQuery query;
+        private final long segmentMillis;
+        private final long lastSegmentTime;
+
+        private SegmentQuery(AggregateQuery query, long segmentMillis, long lastSegmentTime) {
+            this.query = query;
+            this.segmentMillis = segmentMillis;
+            this.lastSegmentTime = lastSegmentTime;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            String tableName = query.transactionName() == null
+                    ? "aggregate_tt_segment_rollup_" : "aggregate_tn_segment_rollup_";
+            return "select segment from " + castUntainted(tableName)
+                    + castUntainted(query.rollupLevel()) + " where transaction_type = ?"
+                    + getTransactionNameCriteria(query)
+                    + " and capture_time >= ? and capture_time < ? and capture_time <= ?"
+                    + " order by capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setString(i++, query.transactionType());
+            String transactionName = query.transactionName();
+            if (transactionName != null) {
+                preparedStatement.setString(i++, transactionName);
+            }
+            // segment capture time is the end of the segment window
+            preparedStatement.setLong(i++, query.from());
+            preparedStatement.setLong(i++, query.to() + segmentMillis);
+            preparedStatement.setLong(i++, lastSegmentTime);
+        }
+
+        @Override
+        public byte[] mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getBytes(1));
+        }
+    }
+
+    private class WriteOverallSegments implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final int rollupLevel;
+        private final long segmentTime;
+        private final long segmentMillis;
+
+        private WriteOverallSegments(int rollupLevel, long segmentTime, long segmentMillis) {
+            this.rollupLevel = rollupLevel;
+            this.segmentTime = segmentTime;
+            this.segmentMillis = segmentMillis;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select transaction_type, capture_time, total_duration_nanos, transaction_count,"
+                    + " error_count from aggregate_tt_rollup_"
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by transaction_type, capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {
+            preparedStatement.setLong(1, segmentTime - segmentMillis);
+            preparedStatement.setLong(2, segmentTime);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            String currTransactionType = null;
+            AggregateSegment.Builder curr = null;
+            while (resultSet.next()) {
+                String transactionType = checkNotNull(resultSet.getString(1));
+                if (curr == null || !transactionType.equals(currTransactionType)) {
+                    if (curr != null) {
+                        insert(checkNotNull(currTransactionType), curr);
+                    }
+                    currTransactionType = transactionType;
+                    curr = new AggregateSegment.Builder();
+                }
+                curr.add(resultSet.getLong(2), resultSet.getDouble(3), resultSet.getLong(4),
+                        resultSet.getLong(5));
+            }
+            if (curr != null) {
+                insert(checkNotNull(currTransactionType), curr);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+
+        private void insert(String transactionType, AggregateSegment.Builder segment)
+                throws SQLException {
+            dataSource.update("merge into aggregate_tt_segment_rollup_"
+                    + castUntainted(rollupLevel) + " (transaction_type, capture_time, segment)"
+                    + " key (transaction_type, capture_time) values (?, ?, ?)",
+                    transactionType, segmentTime, segment.build());
+        }
+    }
+
+    private class WriteTransactionSegments implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final int rollupLevel;
+        private final long segmentTime;
+        private final long segmentMillis;
+
+        private WriteTransactionSegments(int rollupLevel, long segmentTime, long segmentMillis) {
+            this.rollupLevel = rollupLevel;
+            this.segmentTime = segmentTime;
+            this.segmentMillis = segmentMillis;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select transaction_type, transaction_name, capture_time, total_duration_nanos,"
+                    + " transaction_count, error_count from aggregate_tn_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ? and capture_time <= ? order by transaction_type,"
+                    + " transaction_name, capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {
+            preparedStatement.setLong(1, segmentTime - segmentMillis);
+            preparedStatement.setLong(2, segmentTime);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            String currTransactionType = null;
+            String currTransactionName = null;
+            AggregateSegment.Builder curr = null;
+            while (resultSet.next()) {
+                String transactionType = checkNotNull(resultSet.getString(1));
+                String transactionName = checkNotNull(resultSet.getString(2));
+                if (curr == null || !transactionType.equals(currTransactionType)
+                        || !transactionName.equals(currTransactionName)) {
+                    if (curr != null) {
+                        insert(checkNotNull(currTransactionType),
+                                checkNotNull(currTransactionName), curr);
+                    }
+                    currTransactionType = transactionType;
+                    currTransactionName = transactionName;
+                    curr = new AggregateSegment.Builder();
+                }
+                curr.add(resultSet.getLong(3), resultSet.getDouble(4), resultSet.getLong(5),
+                        resultSet.getLong(6));
+            }
+            if (curr != null) {
+                insert(checkNotNull(currTransactionType), checkNotNull(currTransactionName),
+                        curr);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+
+        private void insert(String transactionType, String transactionName,
+                AggregateSegment.Builder segment) throws SQLException {
+            dataSource.update("merge into aggregate_tn_segment_rollup_"
+                    + castUntainted(rollupLevel) + " (transaction_type, transaction_name,"
+                    + " capture_time, segment) key (transaction_type, transaction_name,"
+                    + " capture_time) values (?, ?, ?, ?)", transactionType,
+                    transactionName, segmentTime, segment.build());
+        }
+    }
+
+    private interface SegmentVisitor {
+        void visit(AggregateSegment segment, int index);
+    }
+
+    private static class ThroughputSegmentVisitor implements SegmentVisitor {
+
+        private final List<ThroughputAggregate> throughputAggregates;
+
+        private ThroughputSegmentVisitor(List<ThroughputAggregate> throughputAggregates) {
+            this.throughputAggregates = throughputAggregates;
+        }
+
+        @Override
+        public void visit(AggregateSegment segment, int index) {
+            throughputAggregates.add(ImmutableThroughputAggregate.builder()
+                    .captureTime(segment.captureTime(index))
+                    .transactionCount(segment.transactionCount(index))
+                    .errorCount(segment.errorCount(index))
+                    .build());
+        }
+    }
+
     private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
         private final int rollupLevel;
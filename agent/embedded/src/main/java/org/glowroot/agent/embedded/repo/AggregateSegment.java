@@ -0,0 +1,329 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+// columnar encoding of the per-capture-time values that are needed for the throughput chart, so
+// that a chart over a long time range can be served by sequentially scanning a small number of
+// segments instead of reading and decoding each aggregate row
+//
+// segments are stored in addition to the aggregate rows (not instead of them), and are only used
+// for throughput reads, overview and percentile reads still read the aggregate rows
+//
+// layout: [version][count][capture times][total durations][transaction counts][error counts]
+//
+// capture times are encoded as delta-of-delta, total durations as gorilla-style xor of
+// consecutive doubles, and counts as zigzag deltas
+//
+// duration histograms are intentionally not included, since the aggregate rows (which are still
+// needed for the overview, summaries and rollups) already store them, and copying them would
+// roughly double the size of the aggregate tables
+class AggregateSegment {
+
+    private static final byte VERSION = 2;
+    // version 1 segments have length-prefixed histograms after the error counts, which are ignored
+    private static final byte VERSION_WITH_HISTOGRAMS = 1;
+
+    private final int count;
+    private final long[] captureTimes;
+    private final double[] totalDurationNanos;
+    private final long[] transactionCounts;
+    private final long[] errorCounts;
+
+    private AggregateSegment(int count, long[] captureTimes, double[] totalDurationNanos,
+            long[] transactionCounts, long[] errorCounts) {
+        this.count = count;
+        this.captureTimes = captureTimes;
+        this.totalDurationNanos = totalDurationNanos;
+        this.transactionCounts = transactionCounts;
+        this.errorCounts = errorCounts;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long captureTime(int index) {
+        return captureTimes[index];
+    }
+
+    double totalDurationNanos(int index) {
+        return totalDurationNanos[index];
+    }
+
+    long transactionCount(int index) {
+        return transactionCounts[index];
+    }
+
+    long errorCount(int index) {
+        return errorCounts[index];
+    }
+
+    static AggregateSegment decode(ByteBuffer buffer) throws IOException {
+        byte version = buffer.get();
+        if (version != VERSION && version != VERSION_WITH_HISTOGRAMS) {
+            throw new IOException("Unexpected aggregate segment version: " + version);
+        }
+        int count = (int) readVarLong(buffer);
+        long[] captureTimes = new long[count];
+        long prevCaptureTime = 0;
+        long prevDelta = 0;
+        for (int i = 0; i < count; i++) {
+            long deltaOfDelta = decodeZigZag(readVarLong(buffer));
+            long delta = prevDelta + deltaOfDelta;
+            captureTimes[i] = prevCaptureTime + delta;
+            prevCaptureTime = captureTimes[i];
+            prevDelta = delta;
+        }
+        int totalDurationNanosLength = (int) readVarLong(buffer);
+        double[] totalDurationNanos = new double[count];
+        BitReader bitReader = new BitReader(buffer, buffer.position());
+        decodeXorDoubles(bitReader, totalDurationNanos);
+        position(buffer, buffer.position() + totalDurationNanosLength);
+        long[] transactionCounts = readDeltas(buffer, count);
+        long[] errorCounts = readDeltas(buffer, count);
+        return new AggregateSegment(count, captureTimes, totalDurationNanos, transactionCounts,
+                errorCounts);
+    }
+
+    static class Builder {
+
+        private final ByteArrayOutputStream captureTimes = new ByteArrayOutputStream();
+        private final BitWriter totalDurationNanos = new BitWriter();
+        private final ByteArrayOutputStream transactionCounts = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream errorCounts = new ByteArrayOutputStream();
+
+        private int count;
+
+        private long prevCaptureTime;
+        private long prevCaptureTimeDelta;
+        private long prevTransactionCount;
+        private long prevErrorCount;
+
+        private long prevDoubleBits;
+        private int prevLeadingZeros = -1;
+        private int prevTrailingZeros;
+
+        // capture times must be added in increasing order
+        void add(long captureTime, double totalDurationNanos, long transactionCount,
+                long errorCount) {
+            long captureTimeDelta = captureTime - prevCaptureTime;
+            writeVarLong(captureTimes, encodeZigZag(captureTimeDelta - prevCaptureTimeDelta));
+            prevCaptureTime = captureTime;
+            prevCaptureTimeDelta = captureTimeDelta;
+
+            addXorDouble(totalDurationNanos);
+
+            writeVarLong(transactionCounts, encodeZigZag(transactionCount - prevTransactionCount));
+            prevTransactionCount = transactionCount;
+            writeVarLong(errorCounts, encodeZigZag(errorCount - prevErrorCount));
+            prevErrorCount = errorCount;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(VERSION);
+            writeVarLong(out, count);
+            writeTo(captureTimes, out);
+            byte[] totalDurationNanosBytes = totalDurationNanos.toByteArray();
+            writeVarLong(out, totalDurationNanosBytes.length);
+            out.write(totalDurationNanosBytes, 0, totalDurationNanosBytes.length);
+            writeTo(transactionCounts, out);
+            writeTo(errorCounts, out);
+            return out.toByteArray();
+        }
+
+        private void addXorDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                totalDurationNanos.writeBits(bits, 64);
+                prevDoubleBits = bits;
+                return;
+            }
+            long xor = bits ^ prevDoubleBits;
+            prevDoubleBits = bits;
+            if (xor == 0) {
+                totalDurationNanos.writeBit(false);
+                return;
+            }
+            totalDurationNanos.writeBit(true);
+            // leading zeros are stored in 5 bits
+            int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+            if (prevLeadingZeros != -1 && leadingZeros >= prevLeadingZeros
+                    && trailingZeros >= prevTrailingZeros) {
+                // meaningful bits fit inside the previous window
+                totalDurationNanos.writeBit(false);
+                int meaningfulBits = 64 - prevLeadingZeros - prevTrailingZeros;
+                totalDurationNanos.writeBits(xor >>> prevTrailingZeros, meaningfulBits);
+            } else {
+                totalDurationNanos.writeBit(true);
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                totalDurationNanos.writeBits(leadingZeros, 5);
+                // meaningful bits is between 1 and 64, so store minus one in 6 bits
+                totalDurationNanos.writeBits(meaningfulBits - 1, 6);
+                totalDurationNanos.writeBits(xor >>> trailingZeros, meaningfulBits);
+                prevLeadingZeros = leadingZeros;
+                prevTrailingZeros = trailingZeros;
+            }
+        }
+    }
+
+    private static void decodeXorDoubles(BitReader bitReader, double[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        long bits = bitReader.readBits(64);
+        values[0] = Double.longBitsToDouble(bits);
+        int leadingZeros = 0;
+        int trailingZeros = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (bitReader.readBit()) {
+                if (bitReader.readBit()) {
+                    leadingZeros = (int) bitReader.readBits(5);
+                    int meaningfulBits = (int) bitReader.readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                int meaningfulBits = 64 - leadingZeros - trailingZeros;
+                bits ^= bitReader.readBits(meaningfulBits) << trailingZeros;
+            }
+            values[i] = Double.longBitsToDouble(bits);
+        }
+    }
+
+    private static long[] readDeltas(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            prev += decodeZigZag(readVarLong(buffer));
+            values[i] = prev;
+        }
+        return values;
+    }
+
+    private static void writeTo(ByteArrayOutputStream from, ByteArrayOutputStream to) {
+        byte[] bytes = from.toByteArray();
+        to.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void position(ByteBuffer buffer, int position) {
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).position(position);
+    }
+
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private int currentByte;
+        private int bitsInCurrentByte;
+
+        private void writeBit(boolean bit) {
+            currentByte = (currentByte << 1) | (bit ? 1 : 0);
+            if (++bitsInCurrentByte == 8) {
+                out.write(currentByte);
+                currentByte = 0;
+                bitsInCurrentByte = 0;
+            }
+        }
+
+        private void writeBits(long value, int numBits) {
+            for (int i = numBits - 1; i >= 0; i--) {
+                writeBit(((value >>> i) & 1) != 0);
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (bitsInCurrentByte > 0) {
+                out.write(currentByte << (8 - bitsInCurrentByte));
+                currentByte = 0;
+                bitsInCurrentByte = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // reads using absolute positions so the buffer position is not affected
+    private static class BitReader {
+
+        private final ByteBuffer buffer;
+
+        private int bytePosition;
+        private int bitPosition;
+
+        private BitReader(ByteBuffer buffer, int bytePosition) {
+            this.buffer = buffer;
+            this.bytePosition = bytePosition;
+        }
+
+        private boolean readBit() {
+            boolean bit = ((buffer.get(bytePosition) >>> (7 - bitPosition)) & 1) != 0;
+            if (++bitPosition == 8) {
+                bytePosition++;
+                bitPosition = 0;
+            }
+            return bit;
+        }
+
+        private long readBits(int numBits) {
+            long value = 0;
+            for (int i = 0; i < numBits; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+}
@@ -53,6 +53,7 @@ class ReaperRunnable extends ScheduledRunnable {
 
     @Override
     protected void runInternal() throws Exception {
+        aggregateDao.writeSegments();
         long minCaptureTime = Long.MAX_VALUE;
         long currentTime = clock.currentTimeMillis();
         EmbeddedStorageConfig storageConfig = configRepository.getEmbeddedStorageConfig();
@@ -173,6 +173,12 @@ class RepoAdminImpl implements RepoAdmin {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public List<CassandraWriteAmplification> getCassandraWriteAmplificationPerAgentRollup(
+            int limit) {
+        throw new UnsupportedOperationException();
+    }
+
     private static class TraceOverallCountQuery implements JdbcQuery<List<TraceOverallCount>> {
 
         @Override
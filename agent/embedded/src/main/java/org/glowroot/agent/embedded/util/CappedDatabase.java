@@ -16,15 +16,18 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -50,6 +53,7 @@ import com.ning.compress.lzf.util.ChunkEncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.embedded.util.CappedDatabaseOutputStream.MappedRegion;
 import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
@@ -62,6 +66,23 @@ public class CappedDatabase {
 
     private static final boolean USE_SAFE_LZF_ENCODER;
 
+    // memory-mapped reads are not used on windows since a mapped file cannot be deleted (and there
+    // is no supported way to unmap it), which would break resize()
+    private static final boolean USE_MAPPED_READS = !Boolean
+            .getBoolean("glowroot.internal.cappedDatabase.disableMappedReads") && !isWindows();
+
+    // compression buffers larger than this are not retained by the thread local, in order to
+    // avoid holding on to the memory from a single large trace indefinitely
+    private static final int MAX_RETAINED_COMPRESSION_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<CompressionBuffer> compressionBuffers =
+            new ThreadLocal<CompressionBuffer>() {
+                @Override
+                protected CompressionBuffer initialValue() {
+                    return new CompressionBuffer();
+                }
+            };
+
     static {
         String arch = StandardSystemProperty.OS_ARCH.value();
         // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
@@ -79,6 +100,8 @@ public class CappedDatabase {
     private final Thread shutdownHookThread;
     @GuardedBy("lock")
     private RandomAccessFile inFile;
+    // reads through the mapped region do not need to obtain the lock
+    private volatile @Nullable MappedRegion mappedRegion;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
@@ -91,6 +114,7 @@ public class CappedDatabase {
         this.ticker = ticker;
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
         inFile = new RandomAccessFile(file, "r");
+        mappedRegion = mapForReading(out);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -135,32 +159,42 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
-        long blockStartIndex;
-        synchronized (lock) {
-            if (closed) {
-                return -1;
-            }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+        if (closed) {
+            return -1;
+        }
+        // compression is performed outside of the lock, into a thread local buffer, so that
+        // concurrent writers only contend on copying the compressed bytes into the capped database
+        CompressionBuffer buffer = compressionBuffers.get();
+        buffer.reset();
+        long startTick = ticker.read();
+        CountingOutputStream countingStreamBeforeCompression =
+                new CountingOutputStream(newLZFOutputStream(buffer));
+        try {
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+            long blockStartIndex;
+            synchronized (lock) {
+                if (closed) {
+                    return -1;
+                }
+                blockStartIndex = out.writeBlock(buffer.getBuf(), buffer.size());
+                CappedDatabaseStats stats = statsByType.get(type);
+                if (stats == null) {
+                    stats = new CappedDatabaseStats();
+                    statsByType.put(type, stats);
+                }
+                stats.record(countingStreamBeforeCompression.getCount(), buffer.size(),
+                        endTick - startTick);
+            }
+            // fsync (if really needed here) does not need to be done under lock
+            out.fsyncIfReallyNeeded();
+            return blockStartIndex;
+        } finally {
+            if (buffer.getBuf().length > MAX_RETAINED_COMPRESSION_BUFFER_SIZE) {
+                compressionBuffers.remove();
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            blockStartIndex = out.endBlock();
         }
-        // fsync (if really needed here) does not need to be done under lock
-        out.fsyncIfReallyNeeded();
-        return blockStartIndex;
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
@@ -247,8 +281,12 @@ public class CappedDatabase {
                 return;
             }
             inFile.close();
+            // readers that already obtained the prior mapped region can continue reading from it
+            // since it is consistent with the (now possibly deleted) prior file
+            mappedRegion = null;
             out.resize(newSizeKb);
             inFile = new RandomAccessFile(file, "r");
+            mappedRegion = mapForReading(out);
         }
     }
 
@@ -256,12 +294,26 @@ public class CappedDatabase {
     public void close() throws IOException {
         synchronized (lock) {
             closed = true;
+            mappedRegion = null;
             out.close();
             inFile.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private static @Nullable MappedRegion mapForReading(CappedDatabaseOutputStream out)
+            throws IOException {
+        if (!USE_MAPPED_READS || out.getSizeKb() * 1024L > Integer.MAX_VALUE) {
+            return null;
+        }
+        return out.mapForReading();
+    }
+
+    private static boolean isWindows() {
+        String osName = System.getProperty("os.name");
+        return osName != null && osName.toLowerCase(Locale.ENGLISH).startsWith("windows");
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -301,11 +353,13 @@ public class CappedDatabase {
     private class CappedBlockInputStream extends InputStream {
 
         private final long cappedId;
+        private final @Nullable MappedRegion mappedRegion;
         private long blockLength = -1;
         private long blockIndex;
 
         private CappedBlockInputStream(long cappedId) {
             this.cappedId = cappedId;
+            mappedRegion = CappedDatabase.this.mappedRegion;
         }
 
         @Override
@@ -313,6 +367,10 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
+            MappedRegion mappedRegion = this.mappedRegion;
+            if (mappedRegion != null) {
+                return readFromMappedRegion(mappedRegion, bytes, off, len);
+            }
             synchronized (lock) {
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
@@ -334,6 +392,45 @@ public class CappedDatabase {
             }
         }
 
+        // this is not performed under lock, so the bytes may be overwritten while they are being
+        // read, which is detected by checking isOverwritten() after reading (writeBlock() advances
+        // the smallest non-overwritten id before overwriting any bytes)
+        private int readFromMappedRegion(MappedRegion mappedRegion, byte[] bytes, int off,
+                int len) throws IOException {
+            ByteBuffer buffer = mappedRegion.buffer().duplicate();
+            if (blockLength == -1) {
+                long blockLength =
+                        buffer.getLong((int) mappedRegion.convertToFilePosition(cappedId));
+                checkNotOverwritten();
+                if (blockLength < 0 || blockLength > mappedRegion.sizeBytes()) {
+                    throw new IOException("Invalid block length: " + blockLength);
+                }
+                this.blockLength = blockLength;
+                if (blockLength == 0) {
+                    return -1;
+                }
+            }
+            long filePosition = mappedRegion.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = mappedRegion.sizeBytes() - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            // this cast is needed in order to avoid
+            // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+            // when this code is compiled with Java 9 and run with Java 8 or earlier
+            ((Buffer) buffer).position((int) filePosition);
+            buffer.get(bytes, off, numToRead);
+            checkNotOverwritten();
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
+
         @Override
         public int read(byte[] bytes) throws IOException {
             // this is never called since CappedBlockInputStream is always wrapped in a
@@ -377,31 +474,15 @@ public class CappedDatabase {
         }
     }
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
+    // exposes the underlying buffer to avoid copying it
+    private static class CompressionBuffer extends ByteArrayOutputStream {
 
-        private long count;
-
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
+        private CompressionBuffer() {
+            super(32768);
         }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            count += len;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            count++;
-        }
-
-        @Override
-        public void close() {}
-
-        private long getCount() {
-            return count;
+        private byte[] getBuf() {
+            return buf;
         }
     }
 }
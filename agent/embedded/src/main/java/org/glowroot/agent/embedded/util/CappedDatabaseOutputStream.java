@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2023 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -32,7 +34,7 @@ import org.glowroot.common.util.ScheduledRunnable;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/writeBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -128,6 +130,31 @@ class CappedDatabaseOutputStream extends OutputStream {
         return blockStartIndex;
     }
 
+    // writes an entire (already compressed) block and returns the block start index
+    long writeBlock(byte[] b, int len) throws IOException {
+        if (BLOCK_HEADER_SKIP_BYTES + len > sizeBytes) {
+            throw new IOException(
+                    "A single block cannot have more bytes than size of the capped database");
+        }
+        startBlock();
+        // advance smallestNonOverwrittenId before overwriting any bytes, so that readers that are
+        // not externally synchronized can check isOverwritten() after reading to detect a block
+        // that was overwritten while they were reading it
+        smallestNonOverwrittenId = calculateSmallestNonOverwrittenId(lastResizeBaseIndex,
+                currIndex + len, sizeBytes);
+        write(b, 0, len);
+        return endBlock();
+    }
+
+    // the returned region is only valid until the next resize()
+    MappedRegion mapForReading() throws IOException {
+        // mapping the file through the read/write channel extends the file to the full capped size
+        // if needed (mapping a region beyond the end of the file through a read-only channel fails)
+        MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                HEADER_SKIP_BYTES, sizeBytes);
+        return new MappedRegion(buffer, lastResizeBaseIndex, sizeBytes);
+    }
+
     void fsyncIfReallyNeeded() throws IOException {
         if (ticker.read() - lastFsyncTick.get() > SECONDS.toNanos(2)) {
             // scheduled fsyncs must have fallen behind (since they share a single thread with other
@@ -304,6 +331,31 @@ class CappedDatabaseOutputStream extends OutputStream {
         }
     }
 
+    static class MappedRegion {
+
+        private final MappedByteBuffer buffer;
+        private final long lastResizeBaseIndex;
+        private final long sizeBytes;
+
+        private MappedRegion(MappedByteBuffer buffer, long lastResizeBaseIndex, long sizeBytes) {
+            this.buffer = buffer;
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+            this.sizeBytes = sizeBytes;
+        }
+
+        MappedByteBuffer buffer() {
+            return buffer;
+        }
+
+        long sizeBytes() {
+            return sizeBytes;
+        }
+
+        long convertToFilePosition(long index) {
+            return (index - lastResizeBaseIndex) % sizeBytes;
+        }
+    }
+
     private class FsyncRunnable extends ScheduledRunnable {
         @Override
         protected void runInternal() throws IOException {
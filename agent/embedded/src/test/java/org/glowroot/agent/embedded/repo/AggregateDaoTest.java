@@ -38,6 +38,7 @@ import org.glowroot.common.live.ImmutableSummaryQuery;
 import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
@@ -64,6 +65,7 @@ public class AggregateDaoTest {
     private File cappedFile;
     private ScheduledExecutorService scheduledExecutor;
     private CappedDatabase cappedDatabase;
+    private ConfigRepositoryImpl configRepository;
     private AggregateDao aggregateDao;
 
     @BeforeEach
@@ -79,17 +81,14 @@ public class AggregateDaoTest {
         scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
         cappedDatabase =
                 new CappedDatabase(cappedFile, 1000000, scheduledExecutor, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(CompletableFuture.completedFuture(AdvancedConfig.getDefaultInstance()));
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
                 ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(
-                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
-                        cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        aggregateDao = newAggregateDao();
     }
 
     @AfterEach
@@ -140,6 +139,56 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldNotDoubleCountSegmentsRewrittenAfterRestart() throws Exception {
+        // given
+        populateAggregates();
+        // level 0 segment windows are 64 seconds, so this completes the first window
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return 70000;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) {}
+        });
+        aggregateDao.writeSegments();
+        // simulate the jvm stopping after the transaction segments were written, but before the
+        // overall segments were written
+        dataSource.execute("delete from aggregate_tt_segment_rollup_0");
+
+        // when
+        aggregateDao = newAggregateDao();
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return 71000;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) {}
+        });
+        aggregateDao.writeSegments();
+
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from aggregate_tn_segment_rollup_0"))
+                .isEqualTo(3);
+        assertThat(dataSource.queryForLong("select count(*) from aggregate_tt_segment_rollup_0"))
+                .isEqualTo(1);
+        AggregateQuery query = ImmutableAggregateQuery.builder()
+                .transactionType("a type")
+                .transactionName("seven")
+                .from(0)
+                .to(64000)
+                .rollupLevel(0)
+                .build();
+        List<ThroughputAggregate> throughputAggregates = aggregateDao
+                .readThroughputAggregates(AGENT_ID, query, CassandraProfile.web)
+                .toCompletableFuture().join();
+        assertThat(throughputAggregates).hasSize(2);
+        assertThat(throughputAggregates.get(0).transactionCount()).isEqualTo(7);
+        assertThat(throughputAggregates.get(1).transactionCount()).isEqualTo(7);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -244,6 +293,13 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private AggregateDao newAggregateDao() throws Exception {
+        return new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+    }
+
     private static Aggregate.Timer getFakeRootTimer() {
         return Aggregate.Timer.newBuilder()
                 .setName("top")
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSegmentTest {
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        // given
+        Random random = new Random();
+        long[] captureTimes = new long[64];
+        double[] totalDurationNanos = new double[64];
+        long[] transactionCounts = new long[64];
+        long[] errorCounts = new long[64];
+        long captureTime = 1500000000000L;
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        for (int i = 0; i < 64; i++) {
+            // skip an interval every so often
+            captureTime += random.nextInt(10) == 0 ? 120000 : 60000;
+            captureTimes[i] = captureTime;
+            // repeat the prior value every so often
+            totalDurationNanos[i] = i > 0 && random.nextInt(5) == 0 ? totalDurationNanos[i - 1]
+                    : random.nextDouble() * 1000000000;
+            transactionCounts[i] = random.nextInt(1000);
+            errorCounts[i] = random.nextInt(10);
+            builder.add(captureTimes[i], totalDurationNanos[i], transactionCounts[i],
+                    errorCounts[i]);
+        }
+
+        // when
+        AggregateSegment segment = AggregateSegment.decode(ByteBuffer.wrap(builder.build()));
+
+        // then
+        assertThat(segment.count()).isEqualTo(64);
+        for (int i = 0; i < 64; i++) {
+            assertThat(segment.captureTime(i)).isEqualTo(captureTimes[i]);
+            assertThat(segment.totalDurationNanos(i)).isEqualTo(totalDurationNanos[i]);
+            assertThat(segment.transactionCount(i)).isEqualTo(transactionCounts[i]);
+            assertThat(segment.errorCount(i)).isEqualTo(errorCounts[i]);
+        }
+    }
+
+    @Test
+    public void shouldIgnoreHistogramsInVersion1() throws Exception {
+        // given
+        AggregateSegment.Builder builder = new AggregateSegment.Builder();
+        builder.add(60000, 123.0, 3, 1);
+        byte[] segment = builder.build();
+        // version 1 had a length-prefixed histogram per capture time after the error counts
+        byte[] version1Segment = Arrays.copyOf(segment, segment.length + 4);
+        version1Segment[0] = 1;
+        version1Segment[segment.length] = 3;
+
+        // when
+        AggregateSegment decoded = AggregateSegment.decode(ByteBuffer.wrap(version1Segment));
+
+        // then
+        assertThat(decoded.count()).isEqualTo(1);
+        assertThat(decoded.captureTime(0)).isEqualTo(60000);
+        assertThat(decoded.totalDurationNanos(0)).isEqualTo(123.0);
+        assertThat(decoded.transactionCount(0)).isEqualTo(3);
+        assertThat(decoded.errorCount(0)).isEqualTo(1);
+    }
+}
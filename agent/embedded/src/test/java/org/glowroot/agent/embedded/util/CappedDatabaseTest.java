@@ -18,11 +18,16 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -152,4 +157,35 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldWriteAndReadConcurrently() throws Exception {
+        // given
+        cappedDatabase.resize(1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            final String text = "thread " + i + " ";
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 100; j++) {
+                        String value = text + j;
+                        ByteSource byteSource = ByteSource.wrap(value.getBytes(UTF_8));
+                        long cappedId = cappedDatabase.write(byteSource, "test");
+                        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(value);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        // then
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
 }
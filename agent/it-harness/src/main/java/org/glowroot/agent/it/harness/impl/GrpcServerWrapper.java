@@ -239,6 +239,9 @@ class GrpcServerWrapper {
                         case ENTRY:
                             entries.add(value.getEntry());
                             break;
+                        case ENTRIES:
+                            entries.addAll(value.getEntries().getEntryList());
+                            break;
                         case QUERIES:
                             queries.addAll(value.getQueries().getQueryList());
                             break;
@@ -18,6 +18,7 @@ package org.glowroot.agent.plugin.executor;
 import java.util.Collection;
 import java.util.TimerTask;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -228,6 +229,25 @@ public class ExecutorAspect {
         }
     }
 
+    // virtual threads do not go through the public Thread constructors, but all of the ways to
+    // create one (Thread.startVirtualThread(), Thread.ofVirtual().start()/unstarted(), the virtual
+    // thread factory, and Executors.newVirtualThreadPerTaskExecutor() via that factory) go through
+    // this method
+    @Pointcut(className = "java.lang.ThreadBuilders", methodName = "newVirtualThread",
+            methodParameterTypes = {"java.util.concurrent.Executor", "java.lang.String", "int",
+                    "java.lang.Runnable"},
+            nestingGroup = "executor-execute")
+    public static class NewVirtualThreadAdvice {
+        @OnBefore
+        public static void onBefore(ThreadContext context,
+                @SuppressWarnings("unused") @BindParameter @Nullable Executor scheduler,
+                @SuppressWarnings("unused") @BindParameter @Nullable String name,
+                @SuppressWarnings("unused") @BindParameter int characteristics,
+                @BindParameter ParameterHolder<Runnable> runnableHolder) {
+            onThreadInitCommon(context, runnableHolder);
+        }
+    }
+
     @Pointcut(className = "com.google.common.util.concurrent.ListenableFuture",
             methodName = "addListener",
             methodParameterTypes = {"java.lang.Runnable", "java.util.concurrent.Executor"},
@@ -512,8 +532,7 @@ public class ExecutorAspect {
             return;
         } else if (runnable instanceof RunnableEtcMixin) {
             onBeforeCommon(context, (RunnableEtcMixin) runnable);
-        } else if (runnable != null &&
-                (runnable.getClass().getName().contains("$$Lambda/") /* jdk21+ */ || runnable.getClass().getName().contains("$$Lambda$")) /* jdk8-20 */) {
+        } else if (isLambda(runnable)) {
             wrapRunnable(runnableHolder, context);
         }
     }
@@ -523,7 +542,7 @@ public class ExecutorAspect {
         Callable<T> callable = callableHolder.get();
         if (callable instanceof RunnableEtcMixin) {
             onBeforeCommon(context, (RunnableEtcMixin) callable);
-        } else if (callable != null && callable.getClass().getName().contains("$$Lambda$")) {
+        } else if (isLambda(callable)) {
             wrapCallable(callableHolder, context);
         }
     }
@@ -541,7 +560,7 @@ public class ExecutorAspect {
             if (runnable instanceof RunnableEtcMixin) {
                 onBeforeCommon(context, (RunnableEtcMixin) runnable);
                 return true;
-            } else if (runnable != null && runnable.getClass().getName().contains("$$Lambda$")) {
+            } else if (isLambda(runnable)) {
                 wrapRunnable(runnableHolder, context);
                 return true;
             }
@@ -549,6 +568,15 @@ public class ExecutorAspect {
         return false;
     }
 
+    private static boolean isLambda(@Nullable Object task) {
+        if (task == null) {
+            return false;
+        }
+        String className = task.getClass().getName();
+        // jdk 21+ names hidden lambda classes with "$$Lambda/", jdk 8-20 with "$$Lambda$"
+        return className.contains("$$Lambda/") || className.contains("$$Lambda$");
+    }
+
     private static void onBeforeCommon(ThreadContext context, RunnableEtcMixin runnableEtc) {
         RunnableEtcMixin runnableMixin = runnableEtc;
         AuxThreadContext auxContext = context.createAuxThreadContext();
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TraceEntryMarker;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// virtual thread apis are called reflectively since tests are compiled against older jdks
+public class VirtualThreadIT {
+
+    private static Container container;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        Assumptions.assumeTrue(isVirtualThreadSupported());
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that create virtual threads
+        container = JavaagentContainer.create();
+    }
+
+    @AfterAll
+    public static void tearDown() throws Exception {
+        // need null check in case assumption is false in setUp()
+        if (container != null) {
+            container.close();
+        }
+    }
+
+    @AfterEach
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCaptureSubmitCallable() throws Exception {
+        // when
+        Trace trace = container.execute(DoSubmitCallable.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCaptureSubmitCallableWithLambda() throws Exception {
+        // when
+        Trace trace = container.execute(DoSubmitCallableWithLambda.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCaptureStartVirtualThread() throws Exception {
+        // when
+        Trace trace = container.execute(DoStartVirtualThread.class);
+        // then
+        checkTrace(trace);
+    }
+
+    private static void checkTrace(Trace trace) {
+        Trace.Header header = trace.getHeader();
+        assertThat(header.hasAuxThreadRootTimer()).isTrue();
+        assertThat(header.getAsyncTimerCount()).isZero();
+        assertThat(header.getAuxThreadRootTimer().getName()).isEqualTo("auxiliary thread");
+        assertThat(header.getAuxThreadRootTimer().getCount()).isEqualTo(3);
+        // should be 300ms, but margin of error, esp. in travis builds is high
+        assertThat(header.getAuxThreadRootTimer().getTotalNanos())
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(250));
+        assertThat(header.getAuxThreadRootTimer().getChildTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer().getChildTimer(0).getName())
+                .isEqualTo("mock trace entry marker");
+        List<Trace.Entry> entries = trace.getEntryList();
+
+        assertThat(entries).hasSize(6);
+        for (int i = 0; i < entries.size(); i += 2) {
+            assertThat(entries.get(i).getDepth()).isEqualTo(0);
+            assertThat(entries.get(i).getMessage()).isEqualTo("auxiliary thread");
+
+            assertThat(entries.get(i + 1).getDepth()).isEqualTo(1);
+            assertThat(entries.get(i + 1).getMessage())
+                    .isEqualTo("trace entry marker / CreateTraceEntry");
+        }
+    }
+
+    private static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() throws Exception {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+    }
+
+    public static class DoSubmitCallable implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            Future<Void> future1 = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new CreateTraceEntry().traceEntryMarker();
+                    return null;
+                }
+            });
+            Future<Void> future2 = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new CreateTraceEntry().traceEntryMarker();
+                    return null;
+                }
+            });
+            Future<Void> future3 = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    new CreateTraceEntry().traceEntryMarker();
+                    return null;
+                }
+            });
+            future1.get();
+            future2.get();
+            future3.get();
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    public static class DoSubmitCallableWithLambda implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            Future<Void> future1 = executor.submit(this::call);
+            Future<Void> future2 = executor.submit(this::call);
+            Future<Void> future3 = executor.submit(this::call);
+            future1.get();
+            future2.get();
+            future3.get();
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+
+        private Void call() {
+            new CreateTraceEntry().traceEntryMarker();
+            return null;
+        }
+    }
+
+    public static class DoStartVirtualThread implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            Thread thread1 = startVirtualThread(new CreateTraceEntryRunnable());
+            Thread thread2 = startVirtualThread(new CreateTraceEntryRunnable());
+            Thread thread3 = startVirtualThread(new CreateTraceEntryRunnable());
+            thread1.join();
+            thread2.join();
+            thread3.join();
+        }
+
+        private static Thread startVirtualThread(Runnable runnable) throws Exception {
+            return (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class)
+                    .invoke(null, runnable);
+        }
+    }
+
+    private static class CreateTraceEntryRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            new CreateTraceEntry().traceEntryMarker();
+        }
+    }
+
+    private static class CreateTraceEntry implements TraceEntryMarker {
+
+        @Override
+        public void traceEntryMarker() {
+            try {
+                MILLISECONDS.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
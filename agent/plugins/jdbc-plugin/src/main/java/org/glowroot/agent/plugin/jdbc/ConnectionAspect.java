@@ -75,7 +75,9 @@ public class ConnectionAspect {
                 return;
             }
             if (preparedStatement instanceof HasStatementMirrorMixin) {
-                ((HasStatementMirrorMixin) preparedStatement).glowroot$setStatementMirror(new PreparedStatementMirror(sql));
+                ((HasStatementMirrorMixin) preparedStatement).glowroot$setStatementMirror(
+                        new PreparedStatementMirror(sql,
+                                SqlNormalizer.isBackslashEscapes(preparedStatement)));
             }
         }
         @OnAfter
@@ -92,7 +94,8 @@ public class ConnectionAspect {
         @OnReturn
         public static void onReturn(@BindReturn @Nullable Object statement) {
             if (statement instanceof HasStatementMirrorMixin) {
-                ((HasStatementMirrorMixin) statement).glowroot$setStatementMirror(new StatementMirror());
+                ((HasStatementMirrorMixin) statement).glowroot$setStatementMirror(
+                        new StatementMirror(SqlNormalizer.isBackslashEscapes(statement)));
             }
         }
     }
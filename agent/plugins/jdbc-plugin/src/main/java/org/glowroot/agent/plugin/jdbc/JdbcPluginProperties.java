@@ -34,6 +34,9 @@ public class JdbcPluginProperties {
     // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
     private static int stackTraceThresholdMillis;
 
+    // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
+    private static boolean normalizeQueryText;
+
     private static volatile Map<String, Set<Integer>> displayBinaryParameterAsHex =
             Collections.emptyMap();
 
@@ -43,6 +46,8 @@ public class JdbcPluginProperties {
             public void onChange() {
                 Double value = configService.getDoubleProperty("stackTraceThresholdMillis").value();
                 stackTraceThresholdMillis = value == null ? Integer.MAX_VALUE : value.intValue();
+                normalizeQueryText =
+                        configService.getBooleanProperty("normalizeQueryText").value();
             }
         });
     }
@@ -72,6 +77,10 @@ public class JdbcPluginProperties {
         return stackTraceThresholdMillis;
     }
 
+    static boolean normalizeQueryText() {
+        return normalizeQueryText;
+    }
+
     static boolean displayBinaryParameterAsHex(String sql, int parameterIndex) {
         Set<Integer> set = displayBinaryParameterAsHex.get(sql);
         return set != null && set.contains(parameterIndex);
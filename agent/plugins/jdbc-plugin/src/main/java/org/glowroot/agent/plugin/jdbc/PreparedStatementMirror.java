@@ -31,6 +31,9 @@ class PreparedStatementMirror extends StatementMirror {
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
     private final String sql;
+    // ok for this field to be non-volatile since it is only a cache, and it is only accessed by
+    // the thread executing the prepared statement
+    private @Nullable String normalizedSql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private BindParameterList parameters;
@@ -40,7 +43,8 @@ class PreparedStatementMirror extends StatementMirror {
     private @Nullable Collection<BindParameterList> batchedParameters;
     private int batchSize;
 
-    PreparedStatementMirror(String sql) {
+    PreparedStatementMirror(String sql, boolean backslashEscapes) {
+        super(backslashEscapes);
         this.sql = sql;
         // TODO delay creation to optimize case when bind parameter capture is disabled
         parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
@@ -75,6 +79,17 @@ class PreparedStatementMirror extends StatementMirror {
         return sql;
     }
 
+    // query text used for aggregation, see SqlNormalizer
+    String getQueryText() {
+        if (!JdbcPluginProperties.normalizeQueryText()) {
+            return sql;
+        }
+        if (normalizedSql == null) {
+            normalizedSql = SqlNormalizer.normalizeCached(sql, isBackslashEscapes());
+        }
+        return normalizedSql;
+    }
+
     int getBatchSize() {
         return batchSize;
     }
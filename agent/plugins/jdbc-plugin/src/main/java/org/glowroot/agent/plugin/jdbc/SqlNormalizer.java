@@ -0,0 +1,318 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+
+// replaces string and numeric literals with "?" and collapses IN lists, e.g.
+//
+// select * from t where a = 'x' and b in (1, 2, 3)
+//
+// becomes
+//
+// select * from t where a = ? and b in (?)
+//
+// so that queries which only differ by their inlined literals (or by the length of their IN lists)
+// are aggregated under a single query text, instead of quickly exceeding the max query aggregates
+// limit
+//
+// quoted identifiers and comments are left as is
+//
+// IN lists are only collapsed when they consist entirely of literals, since collapsing a list of
+// bind parameter placeholders would make the query text disagree with the captured bind parameters
+//
+// backslashes are only treated as escapes inside string literals for drivers (mysql and mariadb)
+// whose default dialect uses them (see isBackslashEscapes()), and inside postgresql escape string
+// literals (e.g. E'it\'s'), since in standard sql (e.g. 'C:\') a backslash is a regular character
+//
+// this is a single pass tokenizer, which does not allocate anything when the query text is
+// unchanged (e.g. for most prepared statements)
+//
+// this is public so it can be used from benchmarks
+public class SqlNormalizer {
+
+    private static final int CACHE_SIZE = 500;
+
+    // long query texts are not cached since they would make the worst case cache memory usage
+    // unreasonable, and since they are typically prepared statements (which are only normalized
+    // once per PreparedStatementMirror anyways)
+    private static final int MAX_CACHED_LENGTH = 2000;
+
+    // key is raw query text, value is normalized query text
+    private static final Map<String, String> cache = createCache();
+    private static final Map<String, String> backslashEscapesCache = createCache();
+
+    private SqlNormalizer() {}
+
+    // the statement is the jdbc driver's Statement implementation
+    //
+    // mysql's NO_BACKSLASH_ESCAPES sql mode is not detected, since that would require a query per
+    // connection
+    static boolean isBackslashEscapes(Object statement) {
+        String className = statement.getClass().getName();
+        return className.startsWith("com.mysql.") || className.startsWith("org.mariadb.");
+    }
+
+    static String normalizeCached(String sql, boolean backslashEscapes) {
+        if (sql.length() > MAX_CACHED_LENGTH) {
+            return normalize(sql, backslashEscapes);
+        }
+        Map<String, String> dialectCache = backslashEscapes ? backslashEscapesCache : cache;
+        String normalized;
+        synchronized (dialectCache) {
+            normalized = dialectCache.get(sql);
+        }
+        if (normalized == null) {
+            normalized = normalize(sql, backslashEscapes);
+            synchronized (dialectCache) {
+                dialectCache.put(sql, normalized);
+            }
+        }
+        return normalized;
+    }
+
+    public static String normalize(String sql) {
+        return normalize(sql, false);
+    }
+
+    public static String normalize(String sql, boolean backslashEscapes) {
+        int length = sql.length();
+        // lazily allocated on the first change, the normalized text is always sb + sql[mark, i)
+        @Nullable
+        StringBuilder sb = null;
+        int mark = 0;
+        boolean afterIn = false;
+        boolean inList = false;
+        boolean expectingValue = false;
+        boolean inListPlaceholder = false;
+        int inListValueCount = 0;
+        int inListStart = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                i = skipLineComment(sql, i + 2);
+                continue;
+            }
+            if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                i = skipBlockComment(sql, i + 2);
+                continue;
+            }
+            boolean value = false;
+            if (c == '\'') {
+                int start = i;
+                boolean escapeString = false;
+                if (i > 0 && isLiteralPrefix(sql.charAt(i - 1))
+                        && (i == 1 || !isIdentifierPart(sql.charAt(i - 2)))) {
+                    // e.g. N'abc' or X'0F'
+                    start = i - 1;
+                    escapeString = isEscapeStringPrefix(sql.charAt(i - 1));
+                }
+                int end = skipStringLiteral(sql, i + 1, backslashEscapes || escapeString);
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(sql, mark, start).append('?');
+                mark = end;
+                i = end;
+                value = true;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                i = skipQuoted(sql, i + 1, c);
+            } else if (isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                int end = skipNumericLiteral(sql, i + 1);
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(sql, mark, i).append('?');
+                mark = end;
+                i = end;
+                value = true;
+            } else if (c == '?') {
+                i++;
+                value = true;
+                inListPlaceholder = true;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int end = skipIdentifier(sql, i + 1);
+                boolean in = end - i == 2 && (c == 'i' || c == 'I')
+                        && (sql.charAt(i + 1) == 'n' || sql.charAt(i + 1) == 'N');
+                inList = false;
+                afterIn = in;
+                i = end;
+                continue;
+            } else if (c == '(') {
+                i++;
+                if (afterIn) {
+                    inList = true;
+                    expectingValue = true;
+                    inListPlaceholder = false;
+                    inListValueCount = 0;
+                    // position in the normalized text right after the opening parenthesis
+                    inListStart = (sb == null ? 0 : sb.length()) + i - mark;
+                } else {
+                    inList = false;
+                }
+                afterIn = false;
+                continue;
+            } else if (c == ',' && inList && !expectingValue) {
+                expectingValue = true;
+                i++;
+                continue;
+            } else if (c == ')' && inList && !expectingValue) {
+                if (inListValueCount > 1 && !inListPlaceholder) {
+                    if (sb == null) {
+                        sb = new StringBuilder(length);
+                    }
+                    sb.append(sql, mark, i);
+                    sb.setLength(inListStart);
+                    sb.append('?');
+                    mark = i;
+                }
+                inList = false;
+                i++;
+                continue;
+            } else {
+                i++;
+            }
+            afterIn = false;
+            if (inList) {
+                if (value && expectingValue) {
+                    inListValueCount++;
+                    expectingValue = false;
+                } else {
+                    // not a simple list of values, e.g. a sub-query or expression
+                    inList = false;
+                }
+            }
+        }
+        if (sb == null) {
+            return sql;
+        }
+        sb.append(sql, mark, length);
+        return sb.toString();
+    }
+
+    private static int skipLineComment(String sql, int from) {
+        int index = sql.indexOf('\n', from);
+        return index == -1 ? sql.length() : index + 1;
+    }
+
+    private static int skipBlockComment(String sql, int from) {
+        int index = sql.indexOf("*/", from);
+        return index == -1 ? sql.length() : index + 2;
+    }
+
+    // returns the index after the closing quote
+    private static int skipStringLiteral(String sql, int from, boolean backslashEscapes) {
+        int length = sql.length();
+        int i = from;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                    // escaped quote
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            if (backslashEscapes && c == '\\' && i + 1 < length) {
+                i += 2;
+                continue;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    // returns the index after the closing quote
+    private static int skipQuoted(String sql, int from, char quote) {
+        int index = sql.indexOf(quote, from);
+        return index == -1 ? sql.length() : index + 1;
+    }
+
+    // handles integers, decimals, exponents, hex (0x1F) and type suffixes (e.g. 1L, 1.5f)
+    private static int skipNumericLiteral(String sql, int from) {
+        int length = sql.length();
+        int i = from;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '.' || isDigit(c) || Character.isLetter(c)) {
+                i++;
+            } else if ((c == '+' || c == '-') && isExponent(sql.charAt(i - 1))
+                    && !isHexLiteral(sql, from - 1)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int skipIdentifier(String sql, int from) {
+        int length = sql.length();
+        int i = from;
+        while (i < length && isIdentifierPart(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isHexLiteral(String sql, int start) {
+        return start + 1 < sql.length() && sql.charAt(start) == '0'
+                && (sql.charAt(start + 1) == 'x' || sql.charAt(start + 1) == 'X');
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        // '.' so that e.g. "t1.col2" is not treated as containing numeric literals
+        return Character.isJavaIdentifierPart(c) || c == '.';
+    }
+
+    private static boolean isLiteralPrefix(char c) {
+        return c == 'N' || c == 'n' || c == 'X' || c == 'x' || c == 'B' || c == 'b' || c == 'E'
+                || c == 'e';
+    }
+
+    // postgresql escape string constant, e.g. E'it\'s'
+    private static boolean isEscapeStringPrefix(char c) {
+        return c == 'E' || c == 'e';
+    }
+
+    private static boolean isExponent(char c) {
+        return c == 'e' || c == 'E';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @SuppressWarnings("serial")
+    private static Map<String, String> createCache() {
+        return new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+}
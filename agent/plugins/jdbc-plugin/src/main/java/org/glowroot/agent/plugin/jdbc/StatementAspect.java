@@ -72,6 +72,15 @@ public class StatementAspect {
         });
     }
 
+    // query text used for aggregation, see SqlNormalizer
+    private static String getQueryText(String sql, StatementMirror mirror) {
+        if (JdbcPluginProperties.normalizeQueryText()) {
+            return SqlNormalizer.normalizeCached(sql, mirror.isBackslashEscapes());
+        } else {
+            return sql;
+        }
+    }
+
     @Shim("java.sql.PreparedStatement")
     public interface PreparedStatement {}
 
@@ -316,7 +325,7 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
+            QueryEntry query = context.startQueryEntry(QUERY_TYPE, getQueryText(sql, mirror),
                     QueryMessageSupplier.create("jdbc query: "), timerName);
             mirror.setLastQueryEntry(query);
             return query;
@@ -426,15 +435,15 @@ public class StatementAspect {
             PreparedStatementMirror mirror =
                     (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
             QueryMessageSupplier queryMessageSupplier;
-            String queryText = mirror.getSql();
             if (captureBindParameters) {
-                queryMessageSupplier =
-                        new PreparedStatementMessageSupplier(mirror.getParameters(), queryText);
+                // bind parameter capture include/exclude patterns are matched against raw sql
+                queryMessageSupplier = new PreparedStatementMessageSupplier(
+                        mirror.getParameters(), mirror.getSql());
             } else {
                 queryMessageSupplier = QueryMessageSupplier.create("jdbc query: ");
             }
-            QueryEntry queryEntry =
-                    context.startQueryEntry(QUERY_TYPE, queryText, queryMessageSupplier, timerName);
+            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, mirror.getQueryText(),
+                    queryMessageSupplier, timerName);
             mirror.setLastQueryEntry(queryEntry);
             return queryEntry;
         }
@@ -558,7 +567,7 @@ public class StatementAspect {
         private static QueryEntry onBeforePreparedStatement(ThreadContext context,
                 PreparedStatementMirror mirror) {
             QueryMessageSupplier queryMessageSupplier;
-            String queryText = mirror.getSql();
+            String queryText = mirror.getQueryText();
             int batchSize = mirror.getBatchSize();
             if (batchSize <= 0) {
                 queryText = "[empty batch] " + queryText;
@@ -588,7 +597,7 @@ public class StatementAspect {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(sql);
+                    sb.append(getQueryText(sql, mirror));
                     first = false;
                 }
                 concatenated = sb.toString();
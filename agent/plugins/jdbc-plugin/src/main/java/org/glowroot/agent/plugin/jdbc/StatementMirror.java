@@ -28,6 +28,9 @@ import org.glowroot.agent.plugin.api.checker.Nullable;
 // this class must be public since it is referenced from bytecode inside other packages via @Mixin
 public class StatementMirror {
 
+    // see SqlNormalizer.isBackslashEscapes()
+    private final boolean backslashEscapes;
+
     // this field is not used by PreparedStatementMirror subclass
     //
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
@@ -38,6 +41,14 @@ public class StatementMirror {
     // while that thread is adding batches into the statement and executing it
     private @Nullable QueryEntry lastQueryEntry;
 
+    StatementMirror(boolean backslashEscapes) {
+        this.backslashEscapes = backslashEscapes;
+    }
+
+    boolean isBackslashEscapes() {
+        return backslashEscapes;
+    }
+
     void addBatch(String sql) {
         // synchronization isn't an issue here as this method is called only by
         // the monitored thread
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = 'x' and b = 12.5e-3"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("insert into t values ('it''s', N'x', 0x1F, 42)"))
+                .isEqualTo("insert into t values (?, ?, ?, ?)");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, 2, 3) and b in ('x')"))
+                .isEqualTo("select * from t where a in (?) and b in (?)");
+        assertThat(SqlNormalizer.normalize("select * from t where a not IN (1,2,3)"))
+                .isEqualTo("select * from t where a not IN (?)");
+    }
+
+    @Test
+    public void shouldNotCollapseInListsWithPlaceholders() {
+        // collapsing would make the query text disagree with the captured bind parameters
+        String sql = "select * from t where a in (?, ?, ?)";
+        assertThat(SqlNormalizer.normalize(sql)).isSameAs(sql);
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, ?, 3)"))
+                .isEqualTo("select * from t where a in (?, ?, ?)");
+    }
+
+    @Test
+    public void shouldOnlyTreatBackslashAsEscapeForDialectsThatUseIt() {
+        assertThat(SqlNormalizer.normalize("select * from t where a = 'C:\\' and b = 1"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a = E'it\\'s' and b = 1"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where a = 'it\\'s' and b = 1", true))
+                .isEqualTo("select * from t where a = ? and b = ?");
+    }
+
+    @Test
+    public void shouldNotCollapseSubqueries() {
+        assertThat(SqlNormalizer.normalize("select * from t where a in (select b from u)"))
+                .isEqualTo("select * from t where a in (select b from u)");
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, b + 1)"))
+                .isEqualTo("select * from t where a in (?, b + ?)");
+    }
+
+    @Test
+    public void shouldNotChangeIdentifiersOrComments() {
+        String sql = "select t1.col2, \"x 'y' 1\" from t1 /* 'a' 1 */ where c = ? -- 'b' 2";
+        assertThat(SqlNormalizer.normalize(sql)).isSameAs(sql);
+    }
+}
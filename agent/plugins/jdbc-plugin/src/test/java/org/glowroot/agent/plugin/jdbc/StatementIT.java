@@ -150,6 +150,27 @@ public class StatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testStatementWithNormalizeQueryText() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty("jdbc", "normalizeQueryText", true);
+
+        // when
+        Trace trace = container.execute(ExecuteStatementsWithLiterals.class);
+
+        // then
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+        Iterator<Aggregate.Query> j = trace.getQueryList().iterator();
+
+        Aggregate.Query query = j.next();
+        assertThat(query.getType()).isEqualTo("SQL");
+        assertThat(sharedQueryTexts.get(query.getSharedQueryTextIndex()).getFullText())
+                .isEqualTo("select * from employee where name = ? or name in (?)");
+        assertThat(query.getExecutionCount()).isEqualTo(2);
+
+        assertThat(j.hasNext()).isFalse();
+    }
+
     @Test
     public void testNullStatement() throws Exception {
         // when
@@ -495,6 +516,31 @@ public class StatementIT {
         }
     }
 
+    public static class ExecuteStatementsWithLiterals implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(
+                        "select * from employee where name = 'john' or name in ('a', 'b')");
+                statement.execute(
+                        "select * from employee where name = 'jane' or name in ('c', 'd', 'e')");
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteNullStatement implements AppUnderTest, TransactionMarker {
         private Connection delegatingConnection;
         @Override
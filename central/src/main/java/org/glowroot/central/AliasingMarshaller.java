@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor.Marshaller;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+
+// parses messages with aliasing enabled, so that bytes fields (e.g. the encoded duration
+// histograms in aggregates) reference the single received buffer instead of each being copied out
+// into its own array
+class AliasingMarshaller<T extends MessageLite> implements Marshaller<T> {
+
+    private final Marshaller<T> delegate;
+    private final Parser<T> parser;
+
+    @SuppressWarnings("unchecked")
+    AliasingMarshaller(T defaultInstance) {
+        delegate = ProtoUtils.marshaller(defaultInstance);
+        parser = (Parser<T>) defaultInstance.getParserForType();
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        return delegate.stream(value);
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        try {
+            byte[] bytes;
+            if (stream instanceof KnownLength) {
+                bytes = new byte[stream.available()];
+                ByteStreams.readFully(stream, bytes);
+            } else {
+                bytes = ByteStreams.toByteArray(stream);
+            }
+            CodedInputStream input = CodedInputStream.newInstance(bytes);
+            // safe since the byte array is never modified after this
+            input.enableAliasing(true);
+            T message = parser.parseFrom(input, ExtensionRegistryLite.getEmptyRegistry());
+            input.checkLastTagWas(0);
+            return message;
+        } catch (InvalidProtocolBufferException e) {
+            throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence")
+                    .withCause(e)
+                    .asRuntimeException();
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Error reading message")
+                    .withCause(e)
+                    .asRuntimeException();
+        }
+    }
+}
@@ -229,9 +229,12 @@ public class CentralModule {
                             .updateAgentConfigIfNeededAndConnectedAsync(agentId);
                 }
             });
+            LockSet<String> agentRollupLockSet =
+                    clusterManager.createReplicatedLockSet("agentRollupLockSet", 5, MINUTES);
             rollupService = new RollupService(repos.getActiveAgentDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    agentRollupLockSet, centralConfig.rollupConcurrency(),
+                    repos.getRollupLagStats(), clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getActiveAgentDao(),
                     repos.getConfigRepository(), repos.getAlertingDisabledDao(),
                     repos.getIncidentDao(), alertingService, repos.getSyntheticResultDao(),
@@ -648,6 +651,10 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraPoolTimeoutMillis)) {
             builder.cassandraPoolTimeoutMillis(Integer.parseInt(cassandraPoolTimeoutMillis));
         }
+        String cassandraBatchWrites = properties.get("glowroot.cassandra.batchWrites");
+        if (!Strings.isNullOrEmpty(cassandraBatchWrites)) {
+            builder.cassandraBatchWrites(Boolean.parseBoolean(cassandraBatchWrites));
+        }
         String helmMode = properties.get("glowroot.helmMode");
         if (!Strings.isNullOrEmpty(helmMode)) {
             builder.helmMode(Boolean.parseBoolean(helmMode));
@@ -692,6 +699,10 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(threadPoolMaxSize)) {
             builder.threadPoolMaxSize(Integer.parseInt(threadPoolMaxSize));
         }
+        String rollupConcurrency = properties.get("glowroot.central.rollupConcurrency");
+        if (!Strings.isNullOrEmpty(rollupConcurrency)) {
+            builder.rollupConcurrency(Integer.parseInt(rollupConcurrency));
+        }
         for (Map.Entry<String, String> entry : properties.entrySet()) {
             String propertyName = entry.getKey();
             if (propertyName.startsWith("glowroot.jgroups.")) {
@@ -828,7 +839,8 @@ public class CentralModule {
                     session = new Session(
                             createCluster(centralConfig).build(),
                             keyspace, writeConsistencyLevelOverride,
-                            centralConfig.cassandraGcGraceSeconds());
+                            centralConfig.cassandraGcGraceSeconds(),
+                            centralConfig.cassandraBatchWrites());
                 }
                 String cassandraVersion = verifyCassandraVersion(session);
                 KeyspaceMetadata keyspaceMetadata =
@@ -1001,6 +1013,12 @@ public class CentralModule {
         	return 50;
         }
 
+        // max number of top-level agent rollups rolled up concurrently by this node
+        @Value.Default
+        int rollupConcurrency() {
+            return 16;
+        }
+
         @Value.Default
         int cassandraPort() {
         	return 9042;
@@ -1081,6 +1099,11 @@ public class CentralModule {
             return 10000;
         }
 
+        @Value.Default
+        boolean cassandraBatchWrites() {
+            return false;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -19,6 +19,7 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -51,7 +52,9 @@ import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -62,6 +65,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
     private static final Logger logger = LoggerFactory.getLogger(CollectorServiceImpl.class);
 
+    private static final int MAX_CONCURRENT_TRACE_WRITES_PER_AGENT =
+            Integer.getInteger("glowroot.internal.collector.maxConcurrentTraceWritesPerAgent", 4);
+
     private final AgentDisplayDao agentDisplayDao;
     private final AgentConfigDao agentConfigDao;
     private final ActiveAgentDao activeAgentDao;
@@ -88,6 +94,17 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 }
             });
 
+    // bounds the number of concurrent trace writes (streamed trace entry chunks and trace headers)
+    // per agent, without blocking the grpc thread
+    private final LoadingCache<String, Semaphore> traceThrottlePerAgentId = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(new CacheLoader<String, Semaphore>() {
+                @Override
+                public Semaphore load(String key) throws Exception {
+                    return new Semaphore(MAX_CONCURRENT_TRACE_WRITES_PER_AGENT);
+                }
+            });
+
     CollectorServiceImpl(AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
                          ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
                          AggregateDao aggregateDao, GaugeValueDao gaugeValueDao, TraceDao traceDao,
@@ -194,7 +211,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     @Override
     public StreamObserver<TraceStreamMessage> collectTraceStream(
             StreamObserver<EmptyMessage> responseObserver) {
-        return new TraceStreamObserver(responseObserver);
+        ServerCallStreamObserver<EmptyMessage> serverCallStreamObserver =
+                (ServerCallStreamObserver<EmptyMessage>) responseObserver;
+        // messages are requested one at a time, see TraceStreamObserver.requestNext()
+        serverCallStreamObserver.disableAutoRequest();
+        serverCallStreamObserver.request(1);
+        return new TraceStreamObserver(serverCallStreamObserver);
     }
 
     @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
@@ -260,9 +282,43 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         return collectGaugeValuesUnderThrottle(request, responseObserver);
     }
 
-    private CompletionStage<?> throttledCollectTrace(String agentId, boolean postV09, Trace trace,
-                                       StreamObserver<EmptyMessage> responseObserver) {
-        return collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
+    // completes with true if the trace was stored
+    private CompletionStage<Boolean> throttledCollectTrace(String agentId, boolean postV09,
+            Trace trace, StreamObserver<EmptyMessage> responseObserver) {
+        Semaphore semaphore = traceThrottlePerAgentId.getUnchecked(agentId);
+        if (!semaphore.tryAcquire()) {
+            logger.warn("{} - trace collection rejected due to backlog",
+                    getAgentIdForLogging(agentId, postV09));
+            responseObserver.onError(newTraceBacklogException());
+            return CompletableFuture.completedFuture(false);
+        }
+        return collectTraceUnderThrottle(agentId, postV09, trace, responseObserver)
+                .whenComplete((stored, t) -> semaphore.release());
+    }
+
+    // same throttle as throttledCollectTrace()
+    private CompletionStage<?> throttledStoreEntries(String agentId, boolean postV09,
+            Supplier<CompletionStage<?>> storeEntries) {
+        Semaphore semaphore = traceThrottlePerAgentId.getUnchecked(agentId);
+        if (!semaphore.tryAcquire()) {
+            logger.warn("{} - trace collection rejected due to backlog",
+                    getAgentIdForLogging(agentId, postV09));
+            return CompletableFuture.failedFuture(newTraceBacklogException());
+        }
+        CompletionStage<?> future;
+        try {
+            future = storeEntries.get();
+        } catch (Throwable t) {
+            semaphore.release();
+            return CompletableFuture.failedFuture(t);
+        }
+        return future.whenComplete((results, t) -> semaphore.release());
+    }
+
+    private static RuntimeException newTraceBacklogException() {
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription("collection rejected due to backlog")
+                .asRuntimeException();
     }
 
     private <T> void throttle(String agentId, boolean postV09, String collectionType,
@@ -379,15 +435,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         });
     }
 
-    private CompletionStage<?> collectTraceUnderThrottle(String agentId, boolean postV09, Trace trace,
-                                           StreamObserver<EmptyMessage> responseObserver) {
+    private CompletionStage<Boolean> collectTraceUnderThrottle(String agentId, boolean postV09,
+            Trace trace, StreamObserver<EmptyMessage> responseObserver) {
         String postV09AgentId;
         try {
             postV09AgentId = grpcCommon.getAgentId(agentId, postV09);
         } catch (Throwable t) {
             logger.error("{} - {}", getAgentIdForLogging(agentId, postV09), t.getMessage(), t);
             responseObserver.onError(t);
-            return CompletableFuture.completedFuture(null);
+            return CompletableFuture.completedFuture(false);
         }
         try {
             return traceDao.store(postV09AgentId, getFutureProofTrace(trace))
@@ -399,11 +455,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                             responseObserver.onNext(EmptyMessage.getDefaultInstance());
                             responseObserver.onCompleted();
                         }
-                    });
+                    })
+                    .thenApply(results -> true);
         } catch (Throwable t) {
             logger.error("{} - {}", postV09AgentId, t.getMessage(), t);
             responseObserver.onError(t);
-            return CompletableFuture.completedFuture(null);
+            return CompletableFuture.completedFuture(false);
         }
     }
 
@@ -603,12 +660,22 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         }
     }
 
+    // the next message of the stream is only requested once the streamed entries received so far
+    // have been written (see requestNext()), which applies back pressure to the agent (via grpc
+    // flow control) when cassandra is slower than the agent, instead of blocking a grpc thread
+    //
+    // streamed entries are written ahead of the trace header, so they are deleted if the header is
+    // never stored (see deleteStreamedEntries())
     private final class TraceStreamObserver implements StreamObserver<TraceStreamMessage> {
 
-        private final StreamObserver<EmptyMessage> responseObserver;
+        private final ServerCallStreamObserver<EmptyMessage> responseObserver;
         private @MonotonicNonNull TraceStreamHeader streamHeader;
         private List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private @MonotonicNonNull Trace trace;
+        // entries of post v09 agents are written as they are received, entries of older agents
+        // are buffered since their agent id can require a v09 lookup and their trace can require
+        // storing under the v09 agent id
+        private @MonotonicNonNull TraceEntryStreamWriter entryWriter;
         private List<Trace.Entry> entries = new ArrayList<>();
         private List<Aggregate.Query> queries = new ArrayList<>();
         private @MonotonicNonNull Profile mainThreadProfile;
@@ -616,24 +683,37 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private Trace. /*@MonotonicNonNull*/ Header header;
         private @MonotonicNonNull TraceStreamCounts streamCounts;
 
-        private TraceStreamObserver(StreamObserver<EmptyMessage> responseObserver) {
+        // set once the stream has failed (or has been cancelled), chunk write failures are
+        // reported from cassandra driver threads
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private TraceStreamObserver(ServerCallStreamObserver<EmptyMessage> responseObserver) {
             this.responseObserver = responseObserver;
         }
 
         @Override
         public void onNext(TraceStreamMessage value) {
+            if (failed.get()) {
+                // failure has already been reported
+                return;
+            }
             try {
                 onNextInternal(value);
             } catch (Throwable t) {
-                logError(t);
-                throw t;
+                fail(t);
+                return;
             }
+            requestNext();
         }
 
         @Instrumentation.Transaction(transactionType = "gRPC", transactionName = "Trace",
                 traceHeadline = "Collect trace: {{this.streamHeader.agentId}}", timer = "trace")
         @Override
         public void onCompleted() {
+            if (failed.get()) {
+                // failure has already been reported
+                return;
+            }
             try {
                 onCompletedInternal().toCompletableFuture().join();
             } catch (Throwable t) {
@@ -642,9 +722,57 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             }
         }
 
+        // e.g. the stream was cancelled by the agent
         @Override
         public void onError(Throwable t) {
-            logError(t);
+            if (failed.compareAndSet(false, true)) {
+                logError(t);
+                deleteStreamedEntries();
+            }
+        }
+
+        private void requestNext() {
+            if (entryWriter == null) {
+                responseObserver.request(1);
+                return;
+            }
+            entryWriter.getWritten().whenComplete((results, t) -> {
+                if (t == null) {
+                    responseObserver.request(1);
+                } else {
+                    fail(t);
+                }
+            });
+        }
+
+        private void fail(Throwable t) {
+            if (failed.compareAndSet(false, true)) {
+                logError(t);
+                deleteStreamedEntries();
+                responseObserver.onError(t);
+            }
+        }
+
+        // entries are written ahead of the trace header, so without this they would linger
+        // (unreferenced) for the full trace TTL if the header is never stored
+        private void deleteStreamedEntries() {
+            if (entryWriter == null || streamHeader == null || streamHeader.getUpdate()) {
+                // the entries of a trace update are already referenced by the header of the prior
+                // update, and are overwritten by the next update
+                return;
+            }
+            String agentId = streamHeader.getAgentId();
+            String traceId = streamHeader.getTraceId();
+            // wait for any in flight chunk write (even if it fails), since otherwise it could
+            // land after the delete
+            entryWriter.getWritten()
+                    .handle((results, t) -> null)
+                    .thenCompose(ignored -> traceDao.deleteEntries(agentId, traceId))
+                    .whenComplete((results, t) -> {
+                        if (t != null) {
+                            logError(t);
+                        }
+                    });
         }
 
         private void onNextInternal(TraceStreamMessage value) {
@@ -660,7 +788,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     trace = value.getTrace();
                     break;
                 case ENTRY:
-                    entries.add(value.getEntry());
+                    if (checkNotNull(streamHeader).getPostV09()) {
+                        getEntryWriter(streamHeader).add(value.getEntry());
+                    } else {
+                        entries.add(value.getEntry());
+                    }
+                    break;
+                case ENTRIES:
+                    getEntryWriter(checkNotNull(streamHeader))
+                            .addAll(value.getEntries().getEntryList());
                     break;
                 case QUERIES:
                     queries.addAll(value.getQueries().getQueryList());
@@ -688,12 +824,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 // this is for 0.9.13 and later agents
                 checkNotNull(streamCounts);
                 if (!isEverythingReceived()) {
+                    deleteStreamedEntries();
                     // no point in calling onError to force re-try since gRPC maxMessageSize limit
                     // will just be hit again
                     responseObserver.onNext(EmptyMessage.getDefaultInstance());
                     responseObserver.onCompleted();
                     return CompletableFuture.completedFuture(null);
                 }
+                // streamed entries have already been (or are still being) written by the entry
+                // writer
                 Trace.Builder builder = Trace.newBuilder()
                         .setId(streamHeader.getTraceId())
                         .setUpdate(streamHeader.getUpdate())
@@ -708,6 +847,26 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     builder.setAuxThreadProfile(auxThreadProfile);
                 }
                 trace = builder.build();
+                if (entryWriter != null) {
+                    String agentId = streamHeader.getAgentId();
+                    boolean postV09 = streamHeader.getPostV09();
+                    Trace finalTrace = trace;
+                    return entryWriter.finish()
+                            .handle((ignored, t) -> t)
+                            .thenCompose(t -> {
+                                if (t != null) {
+                                    fail(t);
+                                    return CompletableFuture.completedFuture(null);
+                                }
+                                return throttledCollectTrace(agentId, postV09, finalTrace,
+                                        responseObserver).handle((stored, t2) -> {
+                                            if (t2 != null || !stored) {
+                                                deleteStreamedEntries();
+                                            }
+                                            return null;
+                                        });
+                            });
+                }
             } else {
                 trace = trace.toBuilder()
                         .addAllSharedQueryText(sharedQueryTexts)
@@ -717,6 +876,22 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     responseObserver);
         }
 
+        private TraceEntryStreamWriter getEntryWriter(TraceStreamHeader streamHeader) {
+            if (entryWriter == null) {
+                String agentId = streamHeader.getAgentId();
+                boolean postV09 = streamHeader.getPostV09();
+                String traceId = streamHeader.getTraceId();
+                entryWriter = new TraceEntryStreamWriter(
+                        (startIndex, chunk) -> throttledStoreEntries(agentId, postV09,
+                                () -> traceDao.storeEntries(agentId, traceId, startIndex, chunk)));
+            }
+            return entryWriter;
+        }
+
+        private int getEntryCount() {
+            return entryWriter == null ? entries.size() : entryWriter.getEntryCount();
+        }
+
         @RequiresNonNull({"streamHeader", "streamCounts"})
         private boolean isEverythingReceived() {
             // validate that all data was received, may not receive everything due to gRPC
@@ -733,14 +908,14 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                         sharedQueryTexts.size());
                 return false;
             }
-            if (entries.size() < streamCounts.getEntryCount()) {
+            if (getEntryCount() < streamCounts.getEntryCount()) {
                 logger.error("{} - expected {} entries, but only received {}, likely due to gRPC"
                                 + " maxMessageSize limit exceeded for some of them", getAgentIdForLogging(),
-                        streamCounts.getEntryCount(), entries.size());
+                        streamCounts.getEntryCount(), getEntryCount());
                 return false;
             }
             checkState(sharedQueryTexts.size() == streamCounts.getSharedQueryTextCount());
-            checkState(entries.size() == streamCounts.getEntryCount());
+            checkState(getEntryCount() == streamCounts.getEntryCount());
             return true;
         }
 
@@ -31,7 +31,10 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSessionContext;
 
 import com.google.common.base.Stopwatch;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
 import io.netty.buffer.ByteBufAllocator;
@@ -52,6 +55,9 @@ import org.glowroot.central.repo.V09AgentRollupDao;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
@@ -120,7 +126,7 @@ class GrpcServer {
             builder.sslContext(
                     DelegatingSslContext.create(confDir, checkNotNull(confDirWatchExecutor)));
         }
-        return builder.addService(collectorService.bindService())
+        return builder.addService(withAliasingAggregateStream(collectorService.bindService()))
                 .addService(downstreamService.bindService())
                 // need to override default max message size of 4mb until streaming is implemented
                 // for DownstreamService.EntriesResponse and FullTraceResponse
@@ -135,6 +141,37 @@ class GrpcServer {
                 .start();
     }
 
+    // aggregate streams carry the bulk of the collected data, so their messages are parsed without
+    // copying the encoded histogram bytes (the wire format is unchanged)
+    private static ServerServiceDefinition withAliasingAggregateStream(
+            ServerServiceDefinition serviceDefinition) {
+        String aggregateStreamMethodName =
+                CollectorServiceGrpc.getCollectAggregateStreamMethod().getFullMethodName();
+        // using the service name (instead of the service descriptor) since the service descriptor
+        // requires the original method descriptor instances
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition
+                .builder(serviceDefinition.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> methodDefinition : serviceDefinition.getMethods()) {
+            if (methodDefinition.getMethodDescriptor().getFullMethodName()
+                    .equals(aggregateStreamMethodName)) {
+                @SuppressWarnings("unchecked")
+                ServerMethodDefinition<AggregateStreamMessage, AggregateResponseMessage> aggregateStreamMethodDefinition =
+                        (ServerMethodDefinition<AggregateStreamMessage, AggregateResponseMessage>) methodDefinition;
+                MethodDescriptor<AggregateStreamMessage, AggregateResponseMessage> methodDescriptor =
+                        aggregateStreamMethodDefinition.getMethodDescriptor();
+                builder.addMethod(aggregateStreamMethodDefinition.withMethodDescriptor(
+                        methodDescriptor.toBuilder(
+                                new AliasingMarshaller<>(
+                                        AggregateStreamMessage.getDefaultInstance()),
+                                methodDescriptor.getResponseMarshaller())
+                                .build()));
+            } else {
+                builder.addMethod(methodDefinition);
+            }
+        }
+        return builder.build();
+    }
+
     DownstreamServiceImpl getDownstreamService() {
         return downstreamService;
     }
@@ -24,18 +24,26 @@ import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
 import org.glowroot.central.util.MoreExecutors2;
+import org.glowroot.central.util.RollupLagStats;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ActiveAgentRepository.AgentRollup;
 import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.util.LockSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import static java.util.concurrent.TimeUnit.*;
 
@@ -43,6 +51,8 @@ class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final String ROLLUP_LAG_OBJECT_NAME = "org.glowroot.central:type=RollupLag";
+
     private final ActiveAgentDao activeAgentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
@@ -50,19 +60,32 @@ class RollupService implements Runnable {
     private final CentralAlertingService centralAlertingService;
     private final Clock clock;
 
+    // top-level agent rollups currently being rolled up by any central node in the cluster
+    private final LockSet<String> agentRollupLockSet;
+    // bounds the number of top-level agent rollups being rolled up concurrently by this node, which
+    // also provides back pressure on the cassandra session since each agent rollup can fan out to a
+    // large number of concurrent queries
+    private final Semaphore agentRollupPermits;
+    private final RollupLagStats rollupLagStats;
+
     private final ExecutorService mainLoopExecutor;
 
     private volatile boolean closed;
 
     RollupService(ActiveAgentDao activeAgentDao, AggregateDao aggregateDao,
                   GaugeValueDao gaugeValueDao, SyntheticResultDao syntheticResultDao,
-                  CentralAlertingService centralAlertingService, Clock clock) {
+                  CentralAlertingService centralAlertingService, LockSet<String> agentRollupLockSet,
+                  int rollupConcurrency, RollupLagStats rollupLagStats, Clock clock) {
         this.activeAgentDao = activeAgentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
+        this.agentRollupLockSet = agentRollupLockSet;
+        agentRollupPermits = new Semaphore(rollupConcurrency);
+        this.rollupLagStats = rollupLagStats;
         this.clock = clock;
+        registerMBean(rollupLagStats);
         mainLoopExecutor = MoreExecutors2.newSingleThreadExecutor("Rollup-Main-Loop");
         mainLoopExecutor.execute(castInitialized(this));
     }
@@ -75,7 +98,6 @@ class RollupService implements Runnable {
                 MILLISECONDS.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
                 // perform larger sweep approx every 100 minutes
                 long lastXMillis = counter++ % 100 == 0 ? DAYS.toMillis(7) : MINUTES.toMillis(30);
-                Stopwatch stopwatch = Stopwatch.createStarted();
                 List<AgentRollup> agentRollups =
                         activeAgentDao.readRecentlyActiveAgentRollups(lastXMillis, CassandraProfile.rollup).toCompletableFuture().get();
                 runInternal(agentRollups);
@@ -98,33 +120,87 @@ class RollupService implements Runnable {
             throw new IllegalStateException(
                     "Timed out waiting for main rollup thread to terminate");
         }
+        unregisterMBean();
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal(List<AgentRollup> agentRollups) {
+    private void runInternal(List<AgentRollup> agentRollups) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
         List<CompletableFuture<?>> futures = new ArrayList<>();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentRollups)) {
-            CompletableFuture<?> fut = rollupAggregates(agentRollup)
-                    .thenCompose(ignore -> {
-                        return rollupGauges(agentRollup);
-                    }).thenCompose(ignore -> {
-                        return rollupSyntheticMonitors(agentRollup);
-                    }).thenCompose(ignore -> {
-                        // checking aggregate and gauge alerts after rollup since their calculation can depend
-                        // on rollups depending on time period length (and alerts on rollups are not checked
-                        // anywhere else)
-                        //
-                        // agent (not rollup) alerts are also checked right after receiving the respective data
-                        // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-                        // minute in case no data has been received from the agent recently
-                        return checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
-                    }).toCompletableFuture();
-            futures.add(fut);
+        int skippedCount = 0;
+        for (int i = 0; i < agentRollups.size(); i++) {
+            rollupLagStats.agentRollupQueued();
+        }
+        // randomize order so that multiple central collector nodes will be less likely to contend
+        // for the same agent rollup locks
+        List<AgentRollup> shuffledAgentRollups = shuffle(agentRollups);
+        for (int i = 0; i < shuffledAgentRollups.size(); i++) {
+            AgentRollup agentRollup = shuffledAgentRollups.get(i);
+            // block the main loop (instead of queueing up unbounded work) until a permit is available
+            try {
+                agentRollupPermits.acquire();
+            } catch (InterruptedException e) {
+                // none of the remaining agent rollups (including this one) will be started
+                for (int j = i; j < shuffledAgentRollups.size(); j++) {
+                    rollupLagStats.agentRollupSkipped();
+                }
+                throw e;
+            }
+            UUID lockToken = null;
+            try {
+                lockToken = agentRollupLockSet.lock(agentRollup.id());
+                if (lockToken == null) {
+                    // another central collector node is already rolling up this agent rollup
+                    agentRollupPermits.release();
+                    rollupLagStats.agentRollupSkipped();
+                    skippedCount++;
+                    continue;
+                }
+                rollupLagStats.agentRollupStarted();
+                UUID lockTokenFinal = lockToken;
+                CompletableFuture<?> fut = rollupAggregates(agentRollup)
+                        .thenCompose(ignore -> {
+                            return rollupGauges(agentRollup);
+                        }).thenCompose(ignore -> {
+                            return rollupSyntheticMonitors(agentRollup);
+                        }).thenCompose(ignore -> {
+                            // checking aggregate and gauge alerts after rollup since their
+                            // calculation can depend on rollups depending on time period length
+                            // (and alerts on rollups are not checked anywhere else)
+                            //
+                            // agent (not rollup) alerts are also checked right after receiving the
+                            // respective data (aggregate/gauge/heartbeat) from the agent, but need
+                            // to also check these once a minute in case no data has been received
+                            // from the agent recently
+                            return checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+                        }).whenComplete((ignore, t) -> {
+                            if (t != null) {
+                                logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                            }
+                            agentRollupLockSet.unlock(agentRollup.id(), lockTokenFinal);
+                            agentRollupPermits.release();
+                            rollupLagStats.agentRollupCompleted();
+                        }).toCompletableFuture();
+                futures.add(fut);
+            } catch (Throwable t) {
+                // failed synchronously (before the completion handler above was registered), so
+                // need to clean up here, otherwise the permit and the lock would never be released
+                logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+                if (lockToken == null) {
+                    agentRollupPermits.release();
+                    rollupLagStats.agentRollupSkipped();
+                    skippedCount++;
+                } else {
+                    agentRollupLockSet.unlock(agentRollup.id(), lockToken);
+                    agentRollupPermits.release();
+                    rollupLagStats.agentRollupCompleted();
+                }
+            }
         }
+        int agentRollupCount = agentRollups.size();
+        int skippedCountFinal = skippedCount;
         // none of the futures should fail since they all catch and log exception at the end
         CompletableFutures.allAsList(futures).thenCompose(ignore -> {
             return centralAlertingService.checkForAllDeletedAlerts(CassandraProfile.rollup);
@@ -132,6 +208,8 @@ class RollupService implements Runnable {
             logger.error(t.getMessage(), t);
             return null;
         }).toCompletableFuture().join();
+        rollupLagStats.passCompleted(stopwatch.elapsed(MILLISECONDS), agentRollupCount,
+                skippedCountFinal);
     }
 
     private CompletionStage<?> rollupAggregates(AgentRollup agentRollup) {
@@ -235,6 +313,28 @@ class RollupService implements Runnable {
         return count;
     }
 
+    private static void registerMBean(RollupLagStats rollupLagStats) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(rollupLagStats, ObjectName.getInstance(ROLLUP_LAG_OBJECT_NAME));
+        } catch (Exception e) {
+            // e.g. multiple central modules running in the same jvm during integration tests
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private static void unregisterMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = ObjectName.getInstance(ROLLUP_LAG_OBJECT_NAME);
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
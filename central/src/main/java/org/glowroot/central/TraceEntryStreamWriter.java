@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// writes trace entries in chunks as they are received, instead of buffering all of the entries of
+// a (possibly huge) trace until the end of the stream
+//
+// this never blocks, chunks are written one after another, and the caller bounds memory (and
+// provides back pressure) by only receiving more entries once the chunks flushed so far have been
+// written (see getWritten())
+class TraceEntryStreamWriter {
+
+    static final int CHUNK_SIZE =
+            Integer.getInteger("glowroot.internal.traceEntryStreamChunkSize", 1000);
+
+    private final ChunkStore chunkStore;
+
+    private final List<Trace.Entry> chunk = new ArrayList<>();
+    private int entryCount;
+
+    private CompletableFuture<?> written = CompletableFuture.completedFuture(null);
+
+    TraceEntryStreamWriter(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    void add(Trace.Entry entry) {
+        chunk.add(entry);
+        entryCount++;
+        if (chunk.size() >= CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+    void addAll(List<Trace.Entry> entries) {
+        for (Trace.Entry entry : entries) {
+            add(entry);
+        }
+    }
+
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    // completes once all chunks flushed so far have been written, and fails if any of them failed
+    CompletionStage<?> getWritten() {
+        return written;
+    }
+
+    // completes once all entries have been written
+    CompletionStage<?> finish() {
+        flush();
+        return written;
+    }
+
+    private void flush() {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        int startIndex = entryCount - chunk.size();
+        List<Trace.Entry> entries = List.copyOf(chunk);
+        chunk.clear();
+        // a failure writing a prior chunk also fails (and skips) this chunk
+        written = written.thenCompose(ignored -> chunkStore.storeEntries(startIndex, entries));
+    }
+
+    interface ChunkStore {
+        CompletionStage<?> storeEntries(int startIndex, List<Trace.Entry> entries);
+    }
+}
@@ -32,9 +32,12 @@ import edu.umd.cs.findbugs.annotations.CheckReturnValue;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.RollupLagStats;
 import org.glowroot.central.util.Session;
+import org.glowroot.central.util.WriteBatcher;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableAggregateQuery;
@@ -73,6 +76,7 @@ import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static org.glowroot.common2.repo.CassandraProfile.collector;
 import static org.glowroot.common2.repo.CassandraProfile.rollup;
@@ -82,6 +86,8 @@ public class AggregateDaoImpl implements AggregateDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    private static final int ROLLUP_COMPLETED_THROUGH_TTL = Ints.saturatedCast(DAYS.toSeconds(1));
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -190,6 +196,10 @@ public class AggregateDaoImpl implements AggregateDao {
     private final Executor asyncExecutor;
     private final Clock clock;
 
+    private final RollupLagStats rollupLagStats;
+
+    private final TransactionSummaryCache transactionSummaryCache;
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -213,11 +223,15 @@ public class AggregateDaoImpl implements AggregateDao {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
+    private final PreparedStatement insertRollupCompletedThrough;
+    private final PreparedStatement readRollupCompletedThrough;
+
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
                      TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-                     ConfigRepositoryImpl configRepository, Executor asyncExecutor, int cassandraGcGraceSeconds, Clock clock)
+                     ConfigRepositoryImpl configRepository, ClusterManager clusterManager, Executor asyncExecutor,
+                     int cassandraGcGraceSeconds, Clock clock)
             throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
@@ -228,6 +242,10 @@ public class AggregateDaoImpl implements AggregateDao {
         this.clock = clock;
 
         int count = configRepository.getRollupConfigs().size();
+        rollupLagStats = new RollupLagStats(count, clock);
+        transactionSummaryCache = new TransactionSummaryCache(clusterManager,
+                configRepository.getRollupConfigs(), clock, this::readRollupCompletedThroughTime,
+                this::readOverallSummaryInto, this::readTransactionNameSummariesInto);
         List<Integer> rollupExpirationHours =
                 configRepository.getCentralStorageConfig().toCompletableFuture().join().rollupExpirationHours();
         List<Integer> queryAndServiceCallRollupExpirationHours =
@@ -379,6 +397,19 @@ public class AggregateDaoImpl implements AggregateDao {
                 + " where agent_rollup = ?");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+
+        // this is tracked per agent rollup (instead of per central collector node) since different
+        // central collector nodes can roll up the same agent rollup on different passes
+        session.createTableWithLCS("create table if not exists aggregate_rollup_completed_through"
+                + " (agent_rollup varchar, rollup_level int, completed_through timestamp, primary"
+                + " key (agent_rollup, rollup_level))");
+        // TTL is used so that rows for agent rollups that are no longer rolled up (e.g. deleted
+        // agents) do not stick around, the rows are re-written on every rollup pass
+        insertRollupCompletedThrough = session.prepare("insert into"
+                + " aggregate_rollup_completed_through (agent_rollup, rollup_level,"
+                + " completed_through) values (?, ?, ?) using TTL ?");
+        readRollupCompletedThrough = session.prepare("select rollup_level, completed_through"
+                + " from aggregate_rollup_completed_through where agent_rollup = ?");
     }
 
     @CheckReturnValue
@@ -396,6 +427,7 @@ public class AggregateDaoImpl implements AggregateDao {
                                     String agentIdForMeta, List<String> agentRollupIdsForMeta, long captureTime,
                                     List<OldAggregatesByType> aggregatesByTypeList,
                                     List<Aggregate.SharedQueryText> initialSharedQueryTexts) {
+        recordBytesReceived(agentId, aggregatesByTypeList, initialSharedQueryTexts);
         if (aggregatesByTypeList.isEmpty()) {
             return activeAgentDao.insert(agentIdForMeta, captureTime);
         }
@@ -426,34 +458,41 @@ public class AggregateDaoImpl implements AggregateDao {
             // fullTextSha1
             return CompletableFutures.allAsList(completableFutures).thenCompose(ignored -> {
                 List<CompletableFuture<?>> futures = new ArrayList<>();
+                WriteBatcher batcher = session.newWriteBatcher(collector);
 
                 for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
                     String transactionType = aggregatesByType.getTransactionType();
                     Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
                     List<CompletableFuture<?>> futures1 = new ArrayList<>(
                             storeOverallAggregate(agentId, transactionType, captureTime,
-                                    overallAggregate, sharedQueryTexts, adjustedTTL));
+                                    overallAggregate, sharedQueryTexts, adjustedTTL, batcher));
                     for (OldTransactionAggregate transactionAggregate : aggregatesByType
                             .getTransactionAggregateList()) {
                         futures1.addAll(storeTransactionAggregate(agentId, transactionType,
                                 transactionAggregate.getTransactionName(), captureTime,
-                                transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                                transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                                batcher));
                     }
                     // wait for success before proceeding in order to ensure cannot end up with
                     // "no overview table records found" during a transactionName rollup, since
                     // transactionName rollups are based on finding transactionName in summary table
                     futures.add(CompletableFutures.allAsList(futures1).thenCompose(ignoredResult -> {
                         List<CompletionStage<?>> futuresInner = new ArrayList<>();
+                        WriteBatcher innerBatcher = session.newWriteBatcher(collector);
                         for (OldTransactionAggregate transactionAggregate : aggregatesByType
                                 .getTransactionAggregateList()) {
                             futuresInner.addAll(storeTransactionNameSummary(agentId, transactionType,
                                     transactionAggregate.getTransactionName(), captureTime,
-                                    transactionAggregate.getAggregate(), adjustedTTL));
+                                    transactionAggregate.getAggregate(), adjustedTTL, innerBatcher));
                         }
+                        innerBatcher.flush();
                         futuresInner.add(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
                         return CompletableFutures.allAsList(futuresInner);
                     }));
                 }
+                // the futures above (and therefore the callbacks chained on them) do not complete
+                // until the batched writes are flushed
+                batcher.flush();
                 return CompletableFutures.allAsList(futures)
                         // wait for success before inserting "needs rollup" records
                         .thenCompose(ignoredResult -> activeAgentDao.insert(agentIdForMeta, captureTime));
@@ -495,10 +534,41 @@ public class AggregateDaoImpl implements AggregateDao {
         });
     }
 
+    private void recordBytesReceived(String agentId, List<OldAggregatesByType> aggregatesByTypeList,
+                                     List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        long bytes = 0;
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            bytes += aggregatesByType.getSerializedSize();
+        }
+        for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            bytes += sharedQueryText.getSerializedSize();
+        }
+        session.getCassandraWriteMetrics().recordBytesReceived(agentId, bytes);
+    }
+
     // query.from() is non-inclusive
     @Override
     public CompletionStage<?> mergeOverallSummaryInto(String agentRollupId, SummaryQuery query,
                                                       OverallSummaryCollector collector, CassandraProfile profile) {
+        return transactionSummaryCache.mergeOverallSummaryInto(agentRollupId, query, collector,
+                profile);
+    }
+
+    // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
+    // repository which currently has to pull in all records anyways just delegates ordering and
+    // limit to TransactionNameSummaryCollector
+    //
+    // query.from() is non-inclusive
+    @Override
+    public CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
+                                                                SummarySortOrder sortOrder, int limit, TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        return transactionSummaryCache.mergeTransactionNameSummariesInto(agentRollupId, query,
+                collector, profile);
+    }
+
+    // query.from() is non-inclusive
+    private CompletionStage<?> readOverallSummaryInto(String agentRollupId, SummaryQuery query,
+                                                      OverallSummaryCollector collector, CassandraProfile profile) {
         // currently have to do aggregation client-site (don't want to require Cassandra 2.2 yet)
         Function<AsyncResultSet, CompletableFuture<Void>> compute = new Function<AsyncResultSet, CompletableFuture<Void>>() {
             @Override
@@ -523,14 +593,9 @@ public class AggregateDaoImpl implements AggregateDao {
         return executeQuery(agentRollupId, query, summaryTable, profile).thenCompose(compute);
     }
 
-    // sortOrder and limit are only used by embedded H2 repository, while the central cassandra
-    // repository which currently has to pull in all records anyways just delegates ordering and
-    // limit to TransactionNameSummaryCollector
-    //
     // query.from() is non-inclusive
-    @Override
-    public CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
-                                                                SummarySortOrder sortOrder, int limit, TransactionNameSummaryCollector collector, CassandraProfile profile) {
+    private CompletionStage<?> readTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
+                                                                TransactionNameSummaryCollector collector, CassandraProfile profile) {
         // currently have to do group by / sort / limit client-side
         BoundStatement boundStatement =
                 checkNotNull(readTransactionPS.get(summaryTable)).get(query.rollupLevel()).bind();
@@ -870,6 +935,10 @@ public class AggregateDaoImpl implements AggregateDao {
         return CompletableFuture.completedFuture(false);
     }
 
+    public RollupLagStats getRollupLagStats() {
+        return rollupLagStats;
+    }
+
     @Override
     public CompletionStage<?> rollup(String agentRollupId) {
         return rollup(agentRollupId, agentRollupId, AgentRollupIds.getParent(agentRollupId),
@@ -878,6 +947,90 @@ public class AggregateDaoImpl implements AggregateDao {
 
     public CompletionStage<?> rollup(String agentRollupId, String agentRollupIdForMeta,
                                      @Nullable String parentAgentRollupId, boolean leaf) {
+        // capture current time before reading any "needs rollup" data, see
+        // getRollupCompletedThroughTimes()
+        long passStartTime = clock.currentTimeMillis();
+        return readRollupCompletedThroughTimes(agentRollupId, rollup).thenCompose(
+                priorCompletedThroughTimes -> rollupAllLevels(agentRollupId,
+                        agentRollupIdForMeta, parentAgentRollupId, leaf).thenCompose(ignored -> {
+                            long[] completedThroughTimes = getRollupCompletedThroughTimes(
+                                    passStartTime, priorCompletedThroughTimes);
+                            return storeRollupCompletedThroughTimes(agentRollupId,
+                                    completedThroughTimes);
+                        }));
+    }
+
+    // returns the capture time through which each rollup level of the agent rollup is known to be
+    // fully rolled up (or zero if unknown), as of the last completed rollup of that agent rollup
+    // (by any central collector node)
+    CompletionStage<Long> readRollupCompletedThroughTime(String agentRollupId, int rollupLevel,
+            CassandraProfile profile) {
+        return readRollupCompletedThroughTimes(agentRollupId, profile)
+                .thenApply(completedThroughTimes -> completedThroughTimes[rollupLevel]);
+    }
+
+    private CompletionStage<long[]> readRollupCompletedThroughTimes(String agentRollupId,
+            CassandraProfile profile) {
+        BoundStatement boundStatement = readRollupCompletedThrough.bind()
+                .setString(0, agentRollupId);
+        return session.readAsync(boundStatement, profile).thenApply(results -> {
+            long[] completedThroughTimes = new long[configRepository.getRollupConfigs().size()];
+            // all rows are in a single partition, and there is at most one row per rollup level
+            for (Row row : results.currentPage()) {
+                int rollupLevel = row.getInt(0);
+                if (rollupLevel < completedThroughTimes.length) {
+                    completedThroughTimes[rollupLevel] =
+                            checkNotNull(row.getInstant(1)).toEpochMilli();
+                }
+            }
+            return completedThroughTimes;
+        });
+    }
+
+    // capture times are only rolled up once they are older than the rollup interval (see
+    // Common.isOldEnoughToRollup()), so after a successful rollup of the agent rollup, each
+    // rollup level is complete through passStartTime minus the rollup interval, except that "needs
+    // rollup" records for rollup level 2 and above are only inserted when the prior rollup level is
+    // rolled up, and that happens concurrently (see rollup(String, String, int, TTL) above), so
+    // for these levels only the "needs rollup" records that were inserted by a prior pass are
+    // known to have been seen
+    //
+    // "needs rollup" records for rollup level 1 are inserted when the aggregates are stored (or
+    // for non-leaf agent rollups, when rolling up from children which happens before the other
+    // rollup levels, and after the children themselves have been rolled up, see RollupService)
+    private long[] getRollupCompletedThroughTimes(long passStartTime,
+            long[] priorCompletedThroughTimes) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long[] completedThroughTimes = new long[rollupConfigs.size()];
+        for (int i = 0; i < completedThroughTimes.length; i++) {
+            completedThroughTimes[i] = passStartTime - rollupConfigs.get(i).intervalMillis() - 1;
+            if (i >= 2) {
+                completedThroughTimes[i] = Math.min(completedThroughTimes[i],
+                        priorCompletedThroughTimes[i - 1]);
+            }
+        }
+        return completedThroughTimes;
+    }
+
+    private CompletionStage<?> storeRollupCompletedThroughTimes(String agentRollupId,
+            long[] completedThroughTimes) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < completedThroughTimes.length; i++) {
+            if (completedThroughTimes[i] <= 0) {
+                continue;
+            }
+            BoundStatement boundStatement = insertRollupCompletedThrough.bind()
+                    .setString(0, agentRollupId)
+                    .setInt(1, i)
+                    .setInstant(2, Instant.ofEpochMilli(completedThroughTimes[i]))
+                    .setInt(3, ROLLUP_COMPLETED_THROUGH_TTL);
+            futures.add(session.writeAsync(boundStatement, rollup).toCompletableFuture());
+        }
+        return CompletableFutures.allAsList(futures);
+    }
+
+    private CompletionStage<?> rollupAllLevels(String agentRollupId, String agentRollupIdForMeta,
+                                               @Nullable String parentAgentRollupId, boolean leaf) {
         return getTTLs().thenCompose(ttls -> {
             CompletionStage<?> future = CompletableFuture.completedFuture(null);
             if (!leaf) {
@@ -913,6 +1066,8 @@ public class AggregateDaoImpl implements AggregateDao {
             session.updateSchemaWithRetry("truncate aggregate_needs_rollup_" + i);
         }
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
+        session.updateSchemaWithRetry("truncate aggregate_rollup_completed_through");
+        transactionSummaryCache.invalidateAll();
     }
 
     private CompletionStage<?> rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
@@ -933,6 +1088,7 @@ public class AggregateDaoImpl implements AggregateDao {
                             }
                             NeedsRollupFromChildren needsRollupFromChildren = needsRollupFromChildrenList.get(indexNeedsRollupFromChildrenList);
                             long captureTime = needsRollupFromChildren.getCaptureTime();
+                            rollupLagStats.recordPendingRollup(rollupLevel, captureTime);
                             TTL adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
 
                             return getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL).thenCompose(rollupParams -> {
@@ -993,6 +1149,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     }
                     NeedsRollup needsRollup = needsRollupList.get(indexNeedsRollupList);
                     long captureTime = needsRollup.getCaptureTime();
+                    rollupLagStats.recordPendingRollup(rollupLevel, captureTime);
                     TTL adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
                     int needsRollupAdjustedTTL =
                             Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
@@ -1051,13 +1208,11 @@ public class AggregateDaoImpl implements AggregateDao {
                 transactionNames));
         futures.add(rollupTransactionErrorSummaryFromChildren(rollup, query, childAgentRollupIds));
 
-        ScratchBuffer scratchBuffer = new ScratchBuffer();
-        futures.addAll(
-                rollupOtherPartsFromChildren(rollup, query, childAgentRollupIds, scratchBuffer));
+        futures.addAll(rollupOtherPartsFromChildren(rollup, query, childAgentRollupIds));
 
         for (Map.Entry<String, Collection<String>> entry : transactionNames.asMap().entrySet()) {
             futures.addAll(rollupOtherPartsFromChildren(rollup,
-                    query.withTransactionName(entry.getKey()), entry.getValue(), scratchBuffer));
+                    query.withTransactionName(entry.getKey()), entry.getValue()));
         }
         return futures;
     }
@@ -1080,21 +1235,18 @@ public class AggregateDaoImpl implements AggregateDao {
         futures.add(rollupTransactionSummary(rollup, query, transactionNames));
         futures.add(rollupTransactionErrorSummary(rollup, query));
 
-        ScratchBuffer scratchBuffer = new ScratchBuffer();
-        futures.addAll(rollupOtherParts(rollup, query, scratchBuffer));
+        futures.addAll(rollupOtherParts(rollup, query));
 
         for (String transactionName : transactionNames) {
-            futures.addAll(rollupOtherParts(rollup, query.withTransactionName(transactionName),
-                    scratchBuffer));
+            futures.addAll(rollupOtherParts(rollup, query.withTransactionName(transactionName)));
         }
         return futures;
     }
 
-    private List<CompletionStage<?>> rollupOtherParts(RollupParams rollup, AggregateQuery query,
-                                                      ScratchBuffer scratchBuffer) {
+    private List<CompletionStage<?>> rollupOtherParts(RollupParams rollup, AggregateQuery query) {
         List<CompletionStage<?>> futures = new ArrayList<>();
         futures.add(rollupOverview(rollup, query));
-        futures.add(rollupHistogram(rollup, query, scratchBuffer));
+        futures.add(rollupHistogram(rollup, query));
         futures.add(rollupThroughput(rollup, query));
         futures.add(rollupQueries(rollup, query));
         futures.add(rollupServiceCalls(rollup, query));
@@ -1104,11 +1256,10 @@ public class AggregateDaoImpl implements AggregateDao {
     }
 
     private List<CompletionStage<?>> rollupOtherPartsFromChildren(RollupParams rollup,
-                                                                  AggregateQuery query, Collection<String> childAgentRollupIds,
-                                                                  ScratchBuffer scratchBuffer) {
+                                                                  AggregateQuery query, Collection<String> childAgentRollupIds) {
         List<CompletionStage<?>> futures = new ArrayList<>();
         futures.add(rollupOverviewFromChildren(rollup, query, childAgentRollupIds));
-        futures.add(rollupHistogramFromChildren(rollup, query, childAgentRollupIds, scratchBuffer));
+        futures.add(rollupHistogramFromChildren(rollup, query, childAgentRollupIds));
         futures.add(rollupThroughputFromChildren(rollup, query, childAgentRollupIds));
         futures.add(rollupQueriesFromChildren(rollup, query, childAgentRollupIds));
         futures.add(rollupServiceCallsFromChildren(rollup, query, childAgentRollupIds));
@@ -1529,30 +1680,28 @@ public class AggregateDaoImpl implements AggregateDao {
                 });
     }
 
-    private CompletableFuture<?> rollupHistogram(RollupParams rollup, AggregateQuery query,
-                                                 ScratchBuffer scratchBuffer) {
+    private CompletableFuture<?> rollupHistogram(RollupParams rollup, AggregateQuery query) {
         CompletableFuture<AsyncResultSet> future =
                 executeQueryForRollup(rollup.agentRollupId(), query, histogramTable, true);
         return MoreFutures.rollupAsync(future, asyncExecutor, new MoreFutures.DoRollup() {
             @Override
             public CompletableFuture<?> execute(AsyncResultSet rows) {
-                return rollupHistogramFromRows(rollup, query, Lists.newArrayList(rows), scratchBuffer);
+                return rollupHistogramFromRows(rollup, query, Lists.newArrayList(rows));
             }
         });
     }
 
     private CompletionStage<?> rollupHistogramFromChildren(RollupParams rollup,
-                                                           AggregateQuery query, Collection<String> childAgentRollupIds,
-                                                           ScratchBuffer scratchBuffer) {
+                                                           AggregateQuery query, Collection<String> childAgentRollupIds) {
         List<CompletionStage<AsyncResultSet>> futures =
                 getRowsForRollupFromChildren(query, childAgentRollupIds, histogramTable, true);
         return CompletableFutures.allAsList(futures).thenCompose(rows -> {
-            return rollupHistogramFromRows(rollup, query, rows, scratchBuffer);
+            return rollupHistogramFromRows(rollup, query, rows);
         });
     }
 
     private CompletableFuture<?> rollupHistogramFromRows(RollupParams rollup, AggregateQuery query,
-                                                         List<AsyncResultSet> results, ScratchBuffer scratchBuffer) {
+                                                         List<AsyncResultSet> results) {
         DoubleAccumulator totalDurationNanos = new DoubleAccumulator(Double::sum, 0.0);
         AtomicLong transactionCount = new AtomicLong(0);
         LazyHistogram durationNanosHistogram = new LazyHistogram();
@@ -1597,7 +1746,10 @@ public class AggregateDaoImpl implements AggregateDao {
                     boundStatement = boundStatement.setInstant(i++, Instant.ofEpochMilli(query.to()))
                             .setDouble(i++, totalDurationNanos.doubleValue())
                             .setLong(i++, transactionCount.get())
-                            .setByteBuffer(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)))
+                            // rollup callbacks run concurrently on driver threads, so each callback
+                            // encodes with its own scratch buffer
+                            .setByteBuffer(i++, toByteBuffer(
+                                    durationNanosHistogram.toProto(new ScratchBuffer())))
                             .setInt(i++, rollup.adjustedTTL().generalTTL());
                     return session.writeAsync(boundStatement, CassandraProfile.rollup).toCompletableFuture();
                 });
@@ -1876,7 +2028,8 @@ public class AggregateDaoImpl implements AggregateDao {
     @CheckReturnValue
     private List<CompletableFuture<?>> storeOverallAggregate(String agentRollupId,
                                                              String transactionType, long captureTime, Aggregate aggregate,
-                                                             List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) {
+                                                             List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+                                                             WriteBatcher batcher) {
 
         final int rollupLevel = 0;
 
@@ -1887,7 +2040,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setString(i++, transactionType)
                 .setInstant(i++, Instant.ofEpochMilli(captureTime));
         boundStatement = bindAggregateForSummary(boundStatement, aggregate, i, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             i = 0;
@@ -1898,7 +2051,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setLong(i++, aggregate.getErrorCount())
                     .setLong(i++, aggregate.getTransactionCount())
                     .setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
 
         i = 0;
@@ -1907,7 +2060,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setString(i++, transactionType)
                 .setInstant(i++, Instant.ofEpochMilli(captureTime));
         boundStatement = bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         i = 0;
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind()
@@ -1918,7 +2071,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setLong(i++, aggregate.getTransactionCount())
                 .setByteBuffer(i++, toByteBuffer(aggregate.getDurationNanosHistogram()))
                 .setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         i = 0;
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind()
@@ -1928,7 +2081,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setLong(i++, aggregate.getTransactionCount())
                 .setLong(i++, aggregate.getErrorCount())
                 .setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1939,7 +2092,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setInstant(i++, Instant.ofEpochMilli(captureTime))
                     .setByteBuffer(i++, toByteBuffer(profile))
                     .setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1950,18 +2103,19 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setInstant(i++, Instant.ofEpochMilli(captureTime))
                     .setByteBuffer(i++, toByteBuffer(profile))
                     .setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, batcher));
         futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, batcher));
         return futures;
     }
 
     private List<CompletableFuture<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
                                                                  String transactionName, long captureTime, Aggregate aggregate,
-                                                                 List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) {
+                                                                 List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+                                                                 WriteBatcher batcher) {
 
         final int rollupLevel = 0;
 
@@ -1973,7 +2127,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setString(i++, transactionName)
                 .setInstant(i++, Instant.ofEpochMilli(captureTime));
         boundStatement = bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         i = 0;
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind()
@@ -1985,7 +2139,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setLong(i++, aggregate.getTransactionCount())
                 .setByteBuffer(i++, toByteBuffer(aggregate.getDurationNanosHistogram()))
                 .setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         i = 0;
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind()
@@ -1996,7 +2150,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setLong(i++, aggregate.getTransactionCount())
                 .setLong(i++, aggregate.getErrorCount())
                 .setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -2008,7 +2162,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setInstant(i++, Instant.ofEpochMilli(captureTime))
                     .setByteBuffer(i++, toByteBuffer(profile))
                     .setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -2020,18 +2174,18 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setInstant(i++, Instant.ofEpochMilli(captureTime))
                     .setByteBuffer(i++, toByteBuffer(profile))
                     .setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL, batcher));
         futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL, batcher));
         return futures;
     }
 
     private List<CompletableFuture<?>> storeTransactionNameSummary(String agentRollupId,
                                                                    String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-                                                                   TTL adjustedTTL) {
+                                                                   TTL adjustedTTL, WriteBatcher batcher) {
 
         final int rollupLevel = 0;
 
@@ -2043,7 +2197,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 .setInstant(i++, Instant.ofEpochMilli(captureTime))
                 .setString(i++, transactionName);
         boundStatement = bindAggregateForSummary(boundStatement, aggregate, i, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+        futures.add(batcher.writeAsync(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             i = 0;
@@ -2055,7 +2209,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setLong(i++, aggregate.getErrorCount())
                     .setLong(i++, aggregate.getTransactionCount())
                     .setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         return futures;
     }
@@ -2064,7 +2218,7 @@ public class AggregateDaoImpl implements AggregateDao {
     private List<CompletableFuture<?>> insertQueries(List<Aggregate.Query> queries,
                                                      List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
                                                      String transactionType, @Nullable String transactionName, long captureTime,
-                                                     TTL adjustedTTL) {
+                                                     TTL adjustedTTL, WriteBatcher batcher) {
         List<CompletableFuture<?>> futures = new ArrayList<>();
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
@@ -2100,7 +2254,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement = boundStatement.setToNull(i++);
             }
             boundStatement = boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         return futures;
     }
@@ -2146,7 +2300,7 @@ public class AggregateDaoImpl implements AggregateDao {
     private List<CompletableFuture<?>> insertServiceCallsProto(
             List<Aggregate.ServiceCall> serviceCalls, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) {
+            TTL adjustedTTL, WriteBatcher batcher) {
         List<CompletableFuture<?>> futures = new ArrayList<>();
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
@@ -2167,7 +2321,7 @@ public class AggregateDaoImpl implements AggregateDao {
                     .setDouble(i++, serviceCall.getTotalDurationNanos())
                     .setLong(i++, serviceCall.getExecutionCount())
                     .setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.writeAsync(boundStatement, collector).toCompletableFuture());
+            futures.add(batcher.writeAsync(boundStatement));
         }
         return futures;
     }
@@ -30,6 +30,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagStats;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.AggregateDaoWithV09Support;
 import org.glowroot.central.v09support.GaugeValueDaoWithV09Support;
@@ -63,6 +64,7 @@ public class CentralRepoModule {
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final AggregateDao aggregateDao;
+    private final RollupLagStats rollupLagStats;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
@@ -149,9 +151,11 @@ public class CentralRepoModule {
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, cassandraGcGraceSeconds, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager, asyncExecutor,
+                cassandraGcGraceSeconds, clock);
+        rollupLagStats = aggregateDaoImpl.getRollupLagStats();
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
-                clusterManager, asyncExecutor, cassandraGcGraceSeconds, clock);
+                clusterManager, asyncExecutor, cassandraGcGraceSeconds, rollupLagStats, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
                 configRepository, asyncExecutor, cassandraGcGraceSeconds, clock);
         if (v09AggregateLastExpirationTime < clock.currentTimeMillis()) {
@@ -234,6 +238,10 @@ public class CentralRepoModule {
         return aggregateDao;
     }
 
+    public RollupLagStats getRollupLagStats() {
+        return rollupLagStats;
+    }
+
     public TraceDao getTraceDao() {
         return traceDao;
     }
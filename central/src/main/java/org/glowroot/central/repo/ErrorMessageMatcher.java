@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.glowroot.common2.repo.TraceRepository.ErrorMessageFilter;
+
+// during an incident, the same (or a small number of) error messages are typically repeated
+// across a huge number of traces, so the match result is memoized per distinct error message
+// instead of evaluating the filter (upper casing and substring search, or regex) for every row
+//
+// substring filters whose terms can be matched against error message templates (see
+// ErrorMessageTemplates) are resolved against the templates instead of against every error message
+//
+// not thread safe, rows are matched while paging sequentially through the result set
+class ErrorMessageMatcher {
+
+    // bounds memory when error messages are mostly distinct (e.g. they embed ids), this is in
+    // characters instead of number of error messages since error messages can be large (e.g. they
+    // embed stack traces or response bodies)
+    private static final long MAX_MEMOIZED_CHARS = Long
+            .getLong("glowroot.internal.errorMessageMatcher.maxMemoizedChars", 10 * 1024 * 1024);
+
+    private final Predicate<String> predicate;
+    private final boolean matchesAll;
+    private final boolean canMatchTemplates;
+
+    private final Map<String, Boolean> matchResults = new HashMap<>();
+    private long memoizedChars;
+
+    private ErrorMessageMatcher(Predicate<String> predicate, boolean matchesAll,
+            boolean canMatchTemplates) {
+        this.predicate = predicate;
+        this.matchesAll = matchesAll;
+        this.canMatchTemplates = canMatchTemplates;
+    }
+
+    // also used to match error message templates when canMatchTemplates() is true
+    boolean matches(String errorMessage) {
+        if (matchesAll) {
+            return true;
+        }
+        Boolean matches = matchResults.get(errorMessage);
+        if (matches == null) {
+            matches = predicate.test(errorMessage);
+            if (memoizedChars + errorMessage.length() <= MAX_MEMOIZED_CHARS) {
+                matchResults.put(errorMessage, matches);
+                memoizedChars += errorMessage.length();
+            }
+        }
+        return matches;
+    }
+
+    boolean isMatchesAll() {
+        return matchesAll;
+    }
+
+    // true if an error message matches if and only if its template matches
+    boolean canMatchTemplates() {
+        return canMatchTemplates;
+    }
+
+    // case insensitive substring includes and excludes
+    static ErrorMessageMatcher create(ErrorMessageFilter filter) {
+        if (filter.includes().isEmpty() && filter.excludes().isEmpty()) {
+            return new ErrorMessageMatcher(errorMessage -> true, true, true);
+        }
+        // upper case the filter terms once, instead of for every row
+        List<String> includes = toUpperCase(filter.includes());
+        List<String> excludes = toUpperCase(filter.excludes());
+        boolean canMatchTemplates = canMatchTemplates(includes) && canMatchTemplates(excludes);
+        return new ErrorMessageMatcher(errorMessage -> {
+            String upper = errorMessage.toUpperCase(Locale.ENGLISH);
+            for (String include : includes) {
+                if (!upper.contains(include)) {
+                    return false;
+                }
+            }
+            for (String exclude : excludes) {
+                if (upper.contains(exclude)) {
+                    return false;
+                }
+            }
+            return true;
+        }, false, canMatchTemplates);
+    }
+
+    // case sensitive substring, or regex if the filter is surrounded by slashes
+    static ErrorMessageMatcher create(String errorMessageFilter) {
+        if (errorMessageFilter.startsWith("/") && errorMessageFilter.endsWith("/")) {
+            // case insensitive search must be explicit via (?i) at beginning of pattern
+            Pattern errorMessagePattern = Pattern.compile(
+                    errorMessageFilter.substring(1, errorMessageFilter.length() - 1),
+                    Pattern.DOTALL);
+            return new ErrorMessageMatcher(
+                    errorMessage -> errorMessagePattern.matcher(errorMessage).find(), false,
+                    false);
+        } else {
+            return new ErrorMessageMatcher(
+                    errorMessage -> errorMessage.contains(errorMessageFilter), false,
+                    ErrorMessageTemplates.canMatchTemplate(errorMessageFilter));
+        }
+    }
+
+    private static boolean canMatchTemplates(List<String> terms) {
+        for (String term : terms) {
+            if (!ErrorMessageTemplates.canMatchTemplate(term)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> toUpperCase(List<String> terms) {
+        List<String> upperTerms = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            upperTerms.add(term.toUpperCase(Locale.ENGLISH));
+        }
+        return upperTerms;
+    }
+}
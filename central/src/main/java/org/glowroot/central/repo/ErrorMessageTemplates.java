@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common.util.CaptureTimes;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// error messages are normalized into templates at ingestion by replacing each run of digits with
+// "#", so that error messages which only differ by embedded numbers and ids (e.g. "Order 123 not
+// found") share a single template
+//
+// a substring filter term that contains no digits and no "#" cannot overlap a replaced run of
+// digits, so it matches an error message if and only if it matches the error message's template,
+// which allows such filters to be resolved against the (few) templates instead of against every
+// error message
+final class ErrorMessageTemplates {
+
+    // templates are indexed per time bucket, identified by the bucket's end time (same as rollup
+    // capture times), so a time bucket covers (bucketTime - BUCKET_MILLIS, bucketTime]
+    static final long BUCKET_MILLIS = HOURS.toMillis(1);
+
+    // number of matching templates whose counts are read in parallel
+    static final int PARALLELISM = 8;
+
+    private static final HashFunction SHA_1 = Hashing.sha1();
+
+    private ErrorMessageTemplates() {}
+
+    static String getTemplate(String errorMessage) {
+        @Nullable StringBuilder sb = null;
+        boolean inDigits = false;
+        for (int i = 0; i < errorMessage.length(); i++) {
+            char c = errorMessage.charAt(i);
+            if (isDigit(c)) {
+                if (sb == null) {
+                    sb = new StringBuilder(errorMessage.length());
+                    sb.append(errorMessage, 0, i);
+                }
+                if (!inDigits) {
+                    sb.append('#');
+                    inDigits = true;
+                }
+            } else {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                inDigits = false;
+            }
+        }
+        // optimization for error messages without digits
+        return sb == null ? errorMessage : sb.toString();
+    }
+
+    // templates are not used directly as clustering or partition key since error messages can be
+    // large
+    static String getTemplateId(String template) {
+        return SHA_1.hashString(template, UTF_8).toString();
+    }
+
+    static long getBucketTime(long captureTime) {
+        return CaptureTimes.getRollup(captureTime, BUCKET_MILLIS);
+    }
+
+    static boolean canMatchTemplate(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (isDigit(c) || c == '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
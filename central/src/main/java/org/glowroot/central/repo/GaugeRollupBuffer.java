@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+// accumulates the weighted average of many gauges of a single agent rollup into primitive arrays
+// (indexed by gauge), instead of allocating accumulators per gauge
+//
+// not thread safe, callers must synchronize when accumulating rows from concurrent reads
+class GaugeRollupBuffer {
+
+    private final String[] gaugeNames;
+    private final Map<String, Integer> indexes;
+
+    private final double[] totalWeightedValues;
+    private final long[] totalWeights;
+
+    private long valueCount;
+
+    GaugeRollupBuffer(Collection<String> gaugeNames) {
+        this.gaugeNames = gaugeNames.toArray(new String[0]);
+        indexes = new HashMap<>(this.gaugeNames.length * 2);
+        for (int i = 0; i < this.gaugeNames.length; i++) {
+            indexes.put(this.gaugeNames[i], i);
+        }
+        totalWeightedValues = new double[this.gaugeNames.length];
+        totalWeights = new long[this.gaugeNames.length];
+    }
+
+    void add(String gaugeName, double value, long weight) {
+        Integer index = indexes.get(gaugeName);
+        if (index == null) {
+            // not requested, this shouldn't happen since rows are read by gauge name
+            return;
+        }
+        totalWeightedValues[index] += value * weight;
+        totalWeights[index] += weight;
+        valueCount++;
+    }
+
+    int size() {
+        return gaugeNames.length;
+    }
+
+    String getGaugeName(int index) {
+        return gaugeNames[index];
+    }
+
+    // zero if no values were found for the gauge
+    long getTotalWeight(int index) {
+        return totalWeights[index];
+    }
+
+    double getWeightedAverage(int index) {
+        return totalWeightedValues[index] / totalWeights[index];
+    }
+
+    // number of (lower rollup level) values accumulated across all gauges
+    long getValueCount() {
+        return valueCount;
+    }
+}
@@ -27,6 +27,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
 import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.RollupLagStats;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -38,6 +39,8 @@ import org.glowroot.common2.repo.util.Gauges;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 import org.immutables.serial.Serial;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.time.Instant;
@@ -46,21 +49,25 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.DoubleAccumulator;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.*;
 
 public class GaugeValueDaoImpl implements GaugeValueDao {
 
+    private static final Logger logger = LoggerFactory.getLogger(GaugeValueDaoImpl.class);
+
+    // max number of gauges read by a single rollup query (gauge_name in ?), each gauge is a
+    // separate partition so this bounds the fan-out handled by the coordinator
+    private static final int ROLLUP_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.gaugeRollup.batchSize", 50);
+
     private final Session session;
     private final ConfigRepositoryImpl configRepository;
     private final ExecutorService asyncExecutor;
     private final Clock clock;
+    private final RollupLagStats rollupLagStats;
 
     private final GaugeNameDao gaugeNameDao;
 
@@ -68,8 +75,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final ImmutableList<PreparedStatement> insertValuePS;
     private final ImmutableList<PreparedStatement> readValuePS;
     private final ImmutableList<PreparedStatement> readOldestCaptureTimePS;
-    private final ImmutableList<PreparedStatement> readValueForRollupPS;
-    private final PreparedStatement readValueForRollupFromChildPS;
+    private final ImmutableList<PreparedStatement> readValuesForRollupPS;
+    private final PreparedStatement readValuesForRollupFromChildPS;
 
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
@@ -85,11 +92,12 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
     GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository,
                       ClusterManager clusterManager, ExecutorService asyncExecutor,
-                      int cassandraGcGraceSeconds, Clock clock)
+                      int cassandraGcGraceSeconds, RollupLagStats rollupLagStats, Clock clock)
             throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
+        this.rollupLagStats = rollupLagStats;
         this.clock = clock;
 
         gaugeNameDao = new GaugeNameDao(session, configRepository, clock);
@@ -102,7 +110,7 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         List<PreparedStatement> insertValuePS = new ArrayList<>();
         List<PreparedStatement> readValuePS = new ArrayList<>();
         List<PreparedStatement> readOldestCaptureTimePS = new ArrayList<>();
-        List<PreparedStatement> readValueForRollupPS = new ArrayList<>();
+        List<PreparedStatement> readValuesForRollupPS = new ArrayList<>();
         for (int i = 0; i <= count; i++) {
             // name already has "[counter]" suffix when it is a counter
             session.createTableWithTWCS("create table if not exists gauge_value_rollup_" + i
@@ -118,16 +126,16 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             readOldestCaptureTimePS.add(session.prepare("select capture_time from"
                     + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
                     + " limit 1"));
-            readValueForRollupPS.add(session.prepare("select value, weight from gauge_value_rollup_"
-                    + i + " where agent_rollup = ? and gauge_name = ? and capture_time > ? and"
-                    + " capture_time <= ?"));
+            readValuesForRollupPS.add(session.prepare("select gauge_name, value, weight from"
+                    + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name in ? and"
+                    + " capture_time > ? and capture_time <= ?"));
         }
         this.insertValuePS = ImmutableList.copyOf(insertValuePS);
         this.readValuePS = ImmutableList.copyOf(readValuePS);
         this.readOldestCaptureTimePS = ImmutableList.copyOf(readOldestCaptureTimePS);
-        this.readValueForRollupPS = ImmutableList.copyOf(readValueForRollupPS);
-        this.readValueForRollupFromChildPS = session.prepare("select value, weight from"
-                + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ? and"
+        this.readValuesForRollupPS = ImmutableList.copyOf(readValuesForRollupPS);
+        this.readValuesForRollupFromChildPS = session.prepare("select gauge_name, value, weight"
+                + " from gauge_value_rollup_1 where agent_rollup = ? and gauge_name in ? and"
                 + " capture_time = ?");
 
         List<PreparedStatement> insertNeedsRollup = new ArrayList<>();
@@ -384,16 +392,9 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                     long captureTime = needsRollupFromChildren.getCaptureTime();
                     int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
 
-                    List<CompletableFuture<?>> futures = new ArrayList<>();
-                    for (Map.Entry<String, Collection<String>> entry : needsRollupFromChildren.getKeys()
-                            .asMap()
-                            .entrySet()) {
-                        String gaugeName = entry.getKey();
-                        Collection<String> childAgentRollupIds = entry.getValue();
-                        futures.add(rollupOneFromChildren(rollupLevel, agentRollupId, gaugeName,
-                                childAgentRollupIds, captureTime, adjustedTTL, profile));
-                    }
-                    return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
+                    return rollupManyFromChildren(rollupLevel, agentRollupId,
+                            needsRollupFromChildren.getKeys(), captureTime, adjustedTTL, profile)
+                            .thenCompose(ignored -> {
                         int needsRollupAdjustedTTL =
                                 Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
 
@@ -445,13 +446,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                     long from = captureTime - rollupIntervalMillis;
                     int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
                     Set<String> gaugeNames = needsRollup.getKeys();
-                    List<CompletableFuture<?>> futures = new ArrayList<>();
-                    for (String gaugeName : gaugeNames) {
-                        futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                                adjustedTTL, profile));
-                    }
-                    if (futures.isEmpty()) {
-                        // no rollups occurred, warning already logged inside rollupOne() above
+                    if (gaugeNames.isEmpty()) {
+                        // no rollups occurred
                         // this can happen there is an old "needs rollup" record that was created prior to
                         // TTL was introduced in 0.9.6, and when the "last needs rollup" record wasn't
                         // processed (also prior to 0.9.6), and when the corresponding old data has expired
@@ -459,7 +455,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                                 needsRollup.getUniquenessKeysForDeletion(), null, null,
                                 deleteNeedsRollup.get(rollupLevel - 1), -1, session, profile).thenApply(ignored -> indexNeedsRollup + 1);
                     }
-                    return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
+                    return rollupMany(rollupLevel, agentRollupId, gaugeNames, from, captureTime,
+                            adjustedTTL, profile).thenCompose(ignored -> {
                         int needsRollupAdjustedTTL =
                                 Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
                         CompletionStage<?> starting = CompletableFuture.completedFuture(null);
@@ -489,80 +486,117 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         });
     }
 
-    private CompletableFuture<?> rollupOneFromChildren(int rollupLevel, String agentRollupId,
-                                                       String gaugeName, Collection<String> childAgentRollupIds, long captureTime,
-                                                       int adjustedTTL, CassandraProfile profile) {
-        List<CompletableFuture<AsyncResultSet>> futures = new ArrayList<>();
-        for (String childAgentRollupId : childAgentRollupIds) {
-            int i = 0;
-            BoundStatement boundStatement = readValueForRollupFromChildPS.bind()
-                    .setString(i++, childAgentRollupId)
-                    .setString(i++, gaugeName)
-                    .setInstant(i++, Instant.ofEpochMilli(captureTime));
-            futures.add(session.readAsyncWarnIfNoRows(boundStatement, profile, "no gauge value table"
-                            + " records found for agentRollupId={}, gaugeName={}, captureTime={}, level={}",
-                    childAgentRollupId, gaugeName, captureTime, rollupLevel).toCompletableFuture());
+    // all gauges of the agent rollup are rolled up together, reading many gauges per query and
+    // accumulating into a single buffer, instead of one read (per child) and one accumulator per
+    // gauge
+    private CompletableFuture<?> rollupManyFromChildren(int rollupLevel, String agentRollupId,
+            Multimap<String, String> childAgentRollupIdsByGaugeName, long captureTime,
+            int adjustedTTL, CassandraProfile profile) {
+        GaugeRollupBuffer buffer =
+                new GaugeRollupBuffer(childAgentRollupIdsByGaugeName.keySet());
+        Multimap<String, String> gaugeNamesByChildAgentRollupId =
+                Multimaps.invertFrom(childAgentRollupIdsByGaugeName, ArrayListMultimap.create());
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, Collection<String>> entry : gaugeNamesByChildAgentRollupId.asMap()
+                .entrySet()) {
+            String childAgentRollupId = entry.getKey();
+            for (List<String> gaugeNames : Iterables.partition(entry.getValue(),
+                    ROLLUP_BATCH_SIZE)) {
+                int i = 0;
+                BoundStatement boundStatement = readValuesForRollupFromChildPS.bind()
+                        .setString(i++, childAgentRollupId)
+                        .setList(i++, gaugeNames, String.class)
+                        .setInstant(i++, Instant.ofEpochMilli(captureTime));
+                futures.add(session.readAsync(boundStatement, profile)
+                        .thenCompose(results -> accumulate(results, buffer))
+                        .toCompletableFuture());
+            }
         }
-        return CompletableFutures.allAsList(futures).thenCompose(rows -> {
-            return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, captureTime,
-                    adjustedTTL, rows, profile);
+        return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
+            for (int i = 0; i < buffer.size(); i++) {
+                if (buffer.getTotalWeight(i) == 0) {
+                    String gaugeName = buffer.getGaugeName(i);
+                    logger.warn("no gauge value table records found for agentRollupIds={},"
+                            + " gaugeName={}, captureTime={}, level={}",
+                            childAgentRollupIdsByGaugeName.get(gaugeName), gaugeName,
+                            captureTime, rollupLevel);
+                }
+            }
+            return writeRollups(rollupLevel, agentRollupId, buffer, captureTime, adjustedTTL,
+                    profile);
         });
     }
 
     // from is non-inclusive
-    private CompletableFuture<?> rollupOne(int rollupLevel, String agentRollupId,
-                                           String gaugeName, long from, long to, int adjustedTTL, CassandraProfile profile) {
-        int i = 0;
-        BoundStatement boundStatement = readValueForRollupPS.get(rollupLevel - 1).bind()
-                .setString(i++, agentRollupId)
-                .setString(i++, gaugeName)
-                .setInstant(i++, Instant.ofEpochMilli(from))
-                .setInstant(i++, Instant.ofEpochMilli(to));
-        CompletableFuture<AsyncResultSet> future = session.readAsyncWarnIfNoRows(boundStatement, profile,
-                "no gauge value table records found for agentRollupId={}, gaugeName={}, from={},"
-                        + " to={}, level={}",
-                agentRollupId, gaugeName, from, to, rollupLevel).toCompletableFuture();
-        return future.thenCompose(rows -> {
-            return rollupOneFromRows(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
-                    Lists.newArrayList(rows), profile);
+    private CompletableFuture<?> rollupMany(int rollupLevel, String agentRollupId,
+            Collection<String> gaugeNames, long from, long to, int adjustedTTL,
+            CassandraProfile profile) {
+        GaugeRollupBuffer buffer = new GaugeRollupBuffer(gaugeNames);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (List<String> batch : Iterables.partition(gaugeNames, ROLLUP_BATCH_SIZE)) {
+            int i = 0;
+            BoundStatement boundStatement = readValuesForRollupPS.get(rollupLevel - 1).bind()
+                    .setString(i++, agentRollupId)
+                    .setList(i++, batch, String.class)
+                    .setInstant(i++, Instant.ofEpochMilli(from))
+                    .setInstant(i++, Instant.ofEpochMilli(to));
+            futures.add(session.readAsync(boundStatement, profile)
+                    .thenCompose(results -> accumulate(results, buffer))
+                    .toCompletableFuture());
+        }
+        return CompletableFutures.allAsList(futures).thenCompose(ignored -> {
+            for (int i = 0; i < buffer.size(); i++) {
+                if (buffer.getTotalWeight(i) == 0) {
+                    logger.warn("no gauge value table records found for agentRollupId={},"
+                            + " gaugeName={}, from={}, to={}, level={}", agentRollupId,
+                            buffer.getGaugeName(i), from, to, rollupLevel);
+                }
+            }
+            return writeRollups(rollupLevel, agentRollupId, buffer, to, adjustedTTL, profile);
         });
     }
 
-    private CompletionStage<?> rollupOneFromRows(int rollupLevel, String agentRollupId,
-                                                 String gaugeName, long to, int adjustedTTL, List<AsyncResultSet> results, CassandraProfile profile) {
-        DoubleAccumulator totalWeightedValue = new DoubleAccumulator(Double::sum, 0.0);
-        AtomicLong totalWeight = new AtomicLong(0);
+    private static CompletionStage<?> accumulate(AsyncResultSet results,
+            GaugeRollupBuffer buffer) {
+        // pages of different queries into the same buffer can complete concurrently
+        synchronized (buffer) {
+            for (Row row : results.currentPage()) {
+                int i = 0;
+                buffer.add(checkNotNull(row.getString(i++)), row.getDouble(i++),
+                        row.getLong(i++));
+            }
+        }
+        if (results.hasMorePages()) {
+            return results.fetchNextPage().thenCompose(nextResults -> accumulate(nextResults,
+                    buffer));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-        Function<AsyncResultSet, CompletableFuture<?>> compute = new Function<AsyncResultSet, CompletableFuture<?>>() {
-            @Override
-            public CompletableFuture<?> apply(AsyncResultSet asyncResultSet) {
-                for (Row row : asyncResultSet.currentPage()) {
-                    double value = row.getDouble(0);
-                    long weight = row.getLong(1);
-                    totalWeightedValue.accumulate(value * weight);
-                    totalWeight.addAndGet(weight);
+    private CompletableFuture<?> writeRollups(int rollupLevel, String agentRollupId,
+            GaugeRollupBuffer buffer, long captureTime, int adjustedTTL,
+            CassandraProfile profile) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        synchronized (buffer) {
+            for (int j = 0; j < buffer.size(); j++) {
+                long totalWeight = buffer.getTotalWeight(j);
+                if (totalWeight == 0) {
+                    // warning already logged by caller
+                    continue;
                 }
-                if (asyncResultSet.hasMorePages()) {
-                    return asyncResultSet.fetchNextPage().thenCompose(this::apply).toCompletableFuture();
-                }
-                return CompletableFuture.completedFuture(null);
+                int i = 0;
+                BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind()
+                        .setString(i++, agentRollupId)
+                        .setString(i++, buffer.getGaugeName(j))
+                        .setInstant(i++, Instant.ofEpochMilli(captureTime))
+                        .setDouble(i++, buffer.getWeightedAverage(j))
+                        .setLong(i++, totalWeight)
+                        .setInt(i++, adjustedTTL);
+                futures.add(session.writeAsync(boundStatement, profile).toCompletableFuture());
             }
-        };
-        return CompletableFutures.allAsList(results.stream().map(compute::apply).collect(Collectors.toList()))
-                .thenCompose(ignored -> {
-                    int i = 0;
-                    BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind()
-                            .setString(i++, agentRollupId)
-                            .setString(i++, gaugeName)
-                            .setInstant(i++, Instant.ofEpochMilli(to));
-                    // individual gauge value weights cannot be zero, and rows is non-empty
-                    // (see callers of this method), so totalWeight is guaranteed non-zero
-                    checkState(totalWeight.get() != 0);
-                    boundStatement = boundStatement.setDouble(i++, totalWeightedValue.get() / totalWeight.get())
-                            .setLong(i++, totalWeight.get())
-                            .setInt(i++, adjustedTTL);
-                    return session.writeAsync(boundStatement, profile);
-                });
+            rollupLagStats.gaugeValuesRolledUp(buffer.getValueCount());
+        }
+        return CompletableFutures.allAsList(futures);
     }
 
     private CompletionStage<List<Integer>> getTTLs() {
@@ -162,6 +162,12 @@ public class RepoAdminImpl implements RepoAdmin {
                 agentRollupId, transactionType, limit);
     }
 
+    @Override
+    public List<CassandraWriteAmplification> getCassandraWriteAmplificationPerAgentRollup(
+            int limit) {
+        return cassandraWriteMetrics.getWriteAmplificationPerAgentRollup(limit);
+    }
+
     static int getExpirationHoursForTable(String tableName,
             CentralStorageConfig storageConfig) {
         if (tableName.startsWith("trace_")) {
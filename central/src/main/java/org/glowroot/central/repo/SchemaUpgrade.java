@@ -35,6 +35,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -97,7 +98,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 91;
+    private static final int CURR_SCHEMA_VERSION = 93;
 
     private final Session session;
     private final int cassandraGcGraceSeconds;
@@ -531,6 +532,14 @@ public class SchemaUpgrade {
             addAggregateSummaryColumns();
             updateSchemaVersion(91);
         }
+        if (initialSchemaVersion < 92) {
+            populateTraceSlowMaxTables();
+            updateSchemaVersion(92);
+        }
+        if (initialSchemaVersion < 93) {
+            populateTraceErrorTemplateTables();
+            updateSchemaVersion(93);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -2855,6 +2864,225 @@ public class SchemaUpgrade {
         addColumnIfNotExists("aggregate_tn_summary_rollup_3", "total_allocated_bytes", "double");
     }
 
+    private void populateTraceSlowMaxTables() throws Exception {
+        CentralStorageConfig storageConfig = getCentralStorageConfig(session);
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_max (agent_rollup"
+                + " varchar, transaction_type varchar, bucket_time timestamp, duration_nanos"
+                + " bigint, primary key ((agent_rollup, transaction_type), bucket_time,"
+                + " duration_nanos))", storageConfig.traceExpirationHours());
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_max (agent_rollup"
+                + " varchar, transaction_type varchar, transaction_name varchar, bucket_time"
+                + " timestamp, duration_nanos bigint, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name), bucket_time, duration_nanos))",
+                storageConfig.traceExpirationHours());
+        addColumnIfNotExists("trace_tt_slow_count", "slow_max", "boolean");
+        addColumnIfNotExists("trace_tn_slow_count", "slow_max", "boolean");
+        populateTraceSlowMaxTable("trace_tt", "agent_rollup, transaction_type", 2,
+                storageConfig.getTraceTTL());
+        populateTraceSlowMaxTable("trace_tn", "agent_rollup, transaction_type, transaction_name",
+                3, storageConfig.getTraceTTL());
+    }
+
+    private void populateTraceSlowMaxTable(String tablePrefix, String partitionKeyColumns,
+            int partitionKeyColumnCount, int ttl) throws Exception {
+        logger.info("populating {}_slow_max table - this could take several minutes on large data"
+                + " sets...", tablePrefix);
+        PreparedStatement insertPS = session.prepare("insert into " + tablePrefix + "_slow_max ("
+                + partitionKeyColumns + ", bucket_time, duration_nanos) values ("
+                + Strings.repeat("?, ", partitionKeyColumnCount) + "?, ?) using ttl ?");
+        // marks the slow count rows whose duration is now covered by the slow max table (any slow
+        // count row that is not marked is read in full by TraceDaoImpl.readSlowPoints(), e.g. if
+        // written by an older central node during a rolling upgrade)
+        PreparedStatement updateCountPS = session.prepare("update " + tablePrefix + "_slow_count"
+                + " using ttl ? set slow_max = true where "
+                + partitionKeyColumns.replace(", ", " = ? and ") + " = ? and capture_time = ? and"
+                + " agent_id = ? and trace_id = ?");
+        ResultSet results = session.read("select " + partitionKeyColumns + ", capture_time,"
+                + " duration_nanos, agent_id, trace_id from " + tablePrefix + "_slow_point", slow);
+        Queue<CompletableFuture<?>> futures = new ArrayDeque<>();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int rowCount = 0;
+        // the rows of a partition are read together and in capture time order, so only the max of
+        // the current partition and time bucket needs to be tracked
+        @Nullable List<String> currPartitionKey = null;
+        long currBucketTime = 0;
+        long currMaxDurationNanos = 0;
+        for (Row row : results) {
+            List<String> partitionKey = new ArrayList<>(partitionKeyColumnCount);
+            for (int i = 0; i < partitionKeyColumnCount; i++) {
+                partitionKey.add(checkNotNull(row.getString(i)));
+            }
+            long captureTime =
+                    checkNotNull(row.getInstant(partitionKeyColumnCount)).toEpochMilli();
+            long durationNanos = row.getLong(partitionKeyColumnCount + 1);
+            String agentId = checkNotNull(row.getString(partitionKeyColumnCount + 2));
+            String traceId = checkNotNull(row.getString(partitionKeyColumnCount + 3));
+            futures.add(updateSlowCount(updateCountPS, partitionKey, captureTime, agentId,
+                    traceId, ttl));
+            long bucketTime = SlowPointBuckets.getBucketTime(captureTime);
+            if (partitionKey.equals(currPartitionKey) && bucketTime == currBucketTime) {
+                currMaxDurationNanos = Math.max(currMaxDurationNanos, durationNanos);
+            } else {
+                if (currPartitionKey != null) {
+                    futures.add(insertSlowMax(insertPS, currPartitionKey, currBucketTime,
+                            currMaxDurationNanos, ttl));
+                }
+                currPartitionKey = partitionKey;
+                currBucketTime = bucketTime;
+                currMaxDurationNanos = durationNanos;
+            }
+            rowCount++;
+            if (stopwatch.elapsed(SECONDS) > 60) {
+                logger.info("processed {} records", rowCount);
+                stopwatch.reset().start();
+            }
+            waitForSome(futures);
+        }
+        if (currPartitionKey != null) {
+            futures.add(insertSlowMax(insertPS, currPartitionKey, currBucketTime,
+                    currMaxDurationNanos, ttl));
+        }
+        MoreFutures.waitForAll(futures);
+        logger.info("populating {}_slow_max table - complete", tablePrefix);
+    }
+
+    private CompletableFuture<?> insertSlowMax(PreparedStatement insertPS,
+            List<String> partitionKey, long bucketTime, long maxDurationNanos, int ttl) {
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        for (String value : partitionKey) {
+            boundStatement = boundStatement.setString(i++, value);
+        }
+        int adjustedTTL = Common.getAdjustedTTL(ttl, bucketTime, clock);
+        boundStatement = boundStatement.setInstant(i++, Instant.ofEpochMilli(bucketTime))
+                .setLong(i++, maxDurationNanos)
+                .setInt(i++, adjustedTTL);
+        return session.writeAsync(boundStatement, slow).toCompletableFuture();
+    }
+
+    private CompletableFuture<?> updateSlowCount(PreparedStatement updatePS,
+            List<String> partitionKey, long captureTime, String agentId, String traceId,
+            int ttl) {
+        int i = 0;
+        BoundStatement boundStatement = updatePS.bind()
+                .setInt(i++, Common.getAdjustedTTL(ttl, captureTime, clock));
+        for (String value : partitionKey) {
+            boundStatement = boundStatement.setString(i++, value);
+        }
+        boundStatement = boundStatement.setInstant(i++, Instant.ofEpochMilli(captureTime))
+                .setString(i++, agentId)
+                .setString(i++, traceId);
+        return session.writeAsync(boundStatement, slow).toCompletableFuture();
+    }
+
+    private void populateTraceErrorTemplateTables() throws Exception {
+        CentralStorageConfig storageConfig = getCentralStorageConfig(session);
+        session.createTableWithTWCS("create table if not exists trace_tt_error_template"
+                + " (agent_rollup varchar, transaction_type varchar, bucket_time timestamp,"
+                + " template_id varchar, template varchar, primary key ((agent_rollup,"
+                + " transaction_type), bucket_time, template_id))",
+                storageConfig.traceExpirationHours());
+        session.createTableWithTWCS("create table if not exists trace_tn_error_template"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " bucket_time timestamp, template_id varchar, template varchar, primary key"
+                + " ((agent_rollup, transaction_type, transaction_name), bucket_time,"
+                + " template_id))", storageConfig.traceExpirationHours());
+        session.createTableWithTWCS("create table if not exists trace_tt_error_template_count"
+                + " (agent_rollup varchar, transaction_type varchar, template_id varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
+                + " ((agent_rollup, transaction_type, template_id), capture_time, agent_id,"
+                + " trace_id))", storageConfig.traceExpirationHours());
+        session.createTableWithTWCS("create table if not exists trace_tn_error_template_count"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " template_id varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, primary key ((agent_rollup, transaction_type, transaction_name,"
+                + " template_id), capture_time, agent_id, trace_id))",
+                storageConfig.traceExpirationHours());
+        populateTraceErrorTemplateTable("trace_tt", "agent_rollup, transaction_type", 2,
+                storageConfig.getTraceTTL());
+        populateTraceErrorTemplateTable("trace_tn",
+                "agent_rollup, transaction_type, transaction_name", 3,
+                storageConfig.getTraceTTL());
+    }
+
+    private void populateTraceErrorTemplateTable(String tablePrefix, String partitionKeyColumns,
+            int partitionKeyColumnCount, int ttl) throws Exception {
+        logger.info("populating {}_error_template and {}_error_template_count tables - this could"
+                + " take several minutes on large data sets...", tablePrefix, tablePrefix);
+        PreparedStatement insertTemplatePS = session.prepare("insert into " + tablePrefix
+                + "_error_template (" + partitionKeyColumns + ", bucket_time, template_id,"
+                + " template) values (" + Strings.repeat("?, ", partitionKeyColumnCount)
+                + "?, ?, ?) using ttl ?");
+        PreparedStatement insertCountPS = session.prepare("insert into " + tablePrefix
+                + "_error_template_count (" + partitionKeyColumns + ", template_id, capture_time,"
+                + " agent_id, trace_id) values (" + Strings.repeat("?, ", partitionKeyColumnCount)
+                + "?, ?, ?, ?) using ttl ?");
+        ResultSet results = session.read("select " + partitionKeyColumns + ", capture_time,"
+                + " agent_id, trace_id, error_message from " + tablePrefix + "_error_message",
+                slow);
+        Queue<CompletableFuture<?>> futures = new ArrayDeque<>();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int rowCount = 0;
+        // the rows of a partition are read together and in capture time order, so only the
+        // templates of the current partition and time bucket need to be tracked
+        @Nullable List<String> currPartitionKey = null;
+        long currBucketTime = 0;
+        Set<String> currTemplateIds = new HashSet<>();
+        for (Row row : results) {
+            List<String> partitionKey = new ArrayList<>(partitionKeyColumnCount);
+            for (int i = 0; i < partitionKeyColumnCount; i++) {
+                partitionKey.add(checkNotNull(row.getString(i)));
+            }
+            int i = partitionKeyColumnCount;
+            long captureTime = checkNotNull(row.getInstant(i++)).toEpochMilli();
+            String agentId = checkNotNull(row.getString(i++));
+            String traceId = checkNotNull(row.getString(i++));
+            String errorMessage = checkNotNull(row.getString(i++));
+            String template = ErrorMessageTemplates.getTemplate(errorMessage);
+            String templateId = ErrorMessageTemplates.getTemplateId(template);
+
+            BoundStatement boundStatement = insertCountPS.bind();
+            int j = 0;
+            for (String value : partitionKey) {
+                boundStatement = boundStatement.setString(j++, value);
+            }
+            boundStatement = boundStatement.setString(j++, templateId)
+                    .setInstant(j++, Instant.ofEpochMilli(captureTime))
+                    .setString(j++, agentId)
+                    .setString(j++, traceId)
+                    .setInt(j++, Common.getAdjustedTTL(ttl, captureTime, clock));
+            futures.add(session.writeAsync(boundStatement, slow).toCompletableFuture());
+
+            long bucketTime = ErrorMessageTemplates.getBucketTime(captureTime);
+            if (!partitionKey.equals(currPartitionKey) || bucketTime != currBucketTime) {
+                currPartitionKey = partitionKey;
+                currBucketTime = bucketTime;
+                currTemplateIds.clear();
+            }
+            if (currTemplateIds.add(templateId)) {
+                boundStatement = insertTemplatePS.bind();
+                j = 0;
+                for (String value : partitionKey) {
+                    boundStatement = boundStatement.setString(j++, value);
+                }
+                boundStatement = boundStatement.setInstant(j++, Instant.ofEpochMilli(bucketTime))
+                        .setString(j++, templateId)
+                        .setString(j++, template)
+                        .setInt(j++, Common.getAdjustedTTL(ttl, bucketTime, clock));
+                futures.add(session.writeAsync(boundStatement, slow).toCompletableFuture());
+            }
+            rowCount++;
+            if (stopwatch.elapsed(SECONDS) > 60) {
+                logger.info("processed {} records", rowCount);
+                stopwatch.reset().start();
+            }
+            waitForSome(futures);
+        }
+        MoreFutures.waitForAll(futures);
+        logger.info("populating {}_error_template and {}_error_template_count tables - complete",
+                tablePrefix, tablePrefix);
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType)
             throws Exception {
         try {
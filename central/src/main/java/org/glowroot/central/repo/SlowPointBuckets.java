@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import com.spotify.futures.CompletableFutures;
+
+import org.glowroot.common.util.CaptureTimes;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// max duration of the (completed) slow trace points per time bucket, as read from the
+// trace_tt_slow_max/trace_tn_slow_max tables, so that reading the slowest trace points only reads
+// the time buckets (slowest first) that can still affect the result, instead of reading every slow
+// trace point in the time range
+//
+// time buckets that have trace points whose duration is not covered by the max duration (stored
+// before the max duration tables existed, stored by an older central node during a rolling
+// upgrade, or whose max duration failed to write) are always read
+//
+// not thread safe, bucket max durations are added while paging sequentially through the result set
+class SlowPointBuckets {
+
+    // time buckets are identified by their end time (same as rollup capture times), so a time
+    // bucket covers (bucketTime - BUCKET_MILLIS, bucketTime], same as a trace query covers
+    // (from, to]
+    static final long BUCKET_MILLIS = MINUTES.toMillis(5);
+
+    // number of time buckets that are read in parallel
+    static final int PARALLELISM = 8;
+
+    private final Map<Long, Long> maxDurationNanos = new HashMap<>();
+
+    private final Set<Long> notCoveredBucketTimes = new HashSet<>();
+
+    static long getBucketTime(long captureTime) {
+        return CaptureTimes.getRollup(captureTime, BUCKET_MILLIS);
+    }
+
+    // there can be more than one row per time bucket, since a row is written whenever a central
+    // node sees a new max duration for the time bucket
+    void add(long bucketTime, long durationNanos) {
+        maxDurationNanos.merge(bucketTime, durationNanos, Math::max);
+    }
+
+    void addNotCovered(long bucketTime) {
+        notCoveredBucketTimes.add(bucketTime);
+    }
+
+    // the reader reads the trace points of a single time bucket (restricted to the query's time
+    // range)
+    CompletionStage<TopTracePoints> read(Function<Long, CompletionStage<TopTracePoints>> reader,
+            long durationNanosLow, int limit) {
+        Map<Long, Long> allMaxDurationNanos = new HashMap<>(maxDurationNanos);
+        for (long bucketTime : notCoveredBucketTimes) {
+            // the max duration of the time bucket is unknown
+            allMaxDurationNanos.put(bucketTime, Long.MAX_VALUE);
+        }
+        List<Map.Entry<Long, Long>> buckets = new ArrayList<>(allMaxDurationNanos.entrySet());
+        // slowest time bucket first
+        buckets.sort((b1, b2) -> Long.compare(b2.getValue(), b1.getValue()));
+        return read(buckets, 0, reader, durationNanosLow, new TopTracePoints(limit));
+    }
+
+    private static CompletionStage<TopTracePoints> read(List<Map.Entry<Long, Long>> buckets,
+            int index, Function<Long, CompletionStage<TopTracePoints>> reader,
+            long durationNanosLow, TopTracePoints tracePoints) {
+        List<CompletionStage<TopTracePoints>> futures = new ArrayList<>();
+        int i = index;
+        while (i < buckets.size() && futures.size() < PARALLELISM) {
+            long maxDurationNanos = buckets.get(i).getValue();
+            if (maxDurationNanos < durationNanosLow) {
+                // none of the trace points in this or the remaining (faster) time buckets can
+                // match the duration filter
+                break;
+            }
+            if (tracePoints.isFull() && maxDurationNanos <= tracePoints.getMinDurationNanos()) {
+                // none of the trace points in this or the remaining (faster) time buckets can
+                // affect the result, but (some of) them match the duration filter
+                tracePoints.markLimitExceeded();
+                break;
+            }
+            futures.add(reader.apply(buckets.get(i).getKey()));
+            i++;
+        }
+        if (futures.isEmpty()) {
+            return CompletableFuture.completedFuture(tracePoints);
+        }
+        int nextIndex = i;
+        return CompletableFutures.allAsList(futures).thenCompose(bucketTracePointsList -> {
+            for (TopTracePoints bucketTracePoints : bucketTracePointsList) {
+                tracePoints.addAll(bucketTracePoints);
+            }
+            // the stopping conditions are re-checked against the (now fuller) trace points
+            return read(buckets, nextIndex, reader, durationNanosLow, tracePoints);
+        });
+    }
+}
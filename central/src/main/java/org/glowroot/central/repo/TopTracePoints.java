@@ -0,0 +1,112 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+
+// bounded min-heap (by duration) of the slowest matching trace points, so that reading a large time
+// range only holds the trace points that can make it into the result, instead of every matching
+// trace point
+//
+// not thread safe, trace points are added while paging sequentially through the result set
+class TopTracePoints {
+
+    // caps the initial heap allocation when the limit is large (or unbounded)
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+
+    private final int limit;
+    private final PriorityQueue<TracePoint> heap;
+
+    // true once more trace points have matched than the limit
+    private boolean limitExceeded;
+
+    TopTracePoints(int limit) {
+        this.limit = limit;
+        heap = new PriorityQueue<>(Math.max(1, Math.min(limit, MAX_INITIAL_CAPACITY)),
+                Comparator.comparingLong(TracePoint::durationNanos));
+    }
+
+    // returns false if a trace point with this duration cannot affect the result, in which case
+    // the (more expensive) remaining filters do not need to be evaluated for it
+    boolean isCandidate(long durationNanos) {
+        if (heap.size() < limit || !limitExceeded) {
+            // still need to know whether the limit is exceeded
+            return true;
+        }
+        return durationNanos > heap.element().durationNanos();
+    }
+
+    void add(TracePoint tracePoint) {
+        if (heap.size() < limit) {
+            heap.add(tracePoint);
+            return;
+        }
+        limitExceeded = true;
+        if (limit > 0 && tracePoint.durationNanos() > heap.element().durationNanos()) {
+            // ties are resolved in favor of the trace point that was added first, same as a
+            // stable sort by duration
+            heap.remove();
+            heap.add(tracePoint);
+        }
+    }
+
+    // merges the trace points read (in parallel) from another time bucket
+    void addAll(TopTracePoints other) {
+        for (TracePoint tracePoint : other.heap) {
+            add(tracePoint);
+        }
+        if (other.limitExceeded) {
+            limitExceeded = true;
+        }
+    }
+
+    boolean isFull() {
+        return heap.size() >= limit;
+    }
+
+    // duration that a trace point must exceed in order to affect the result once the heap is full
+    long getMinDurationNanos() {
+        TracePoint tracePoint = heap.peek();
+        return tracePoint == null ? Long.MAX_VALUE : tracePoint.durationNanos();
+    }
+
+    // used when trace points were skipped without being added (e.g. a time bucket that was not
+    // read because none of its trace points could affect the result)
+    void markLimitExceeded() {
+        limitExceeded = true;
+    }
+
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    // unordered
+    List<TracePoint> getTracePoints() {
+        return new ArrayList<>(heap);
+    }
+
+    Result<TracePoint> toResult() {
+        List<TracePoint> tracePoints = getTracePoints();
+        tracePoints.sort(Comparator.comparingLong(TracePoint::captureTime));
+        return new Result<>(tracePoints, limitExceeded);
+    }
+}
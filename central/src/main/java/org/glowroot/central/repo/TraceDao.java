@@ -20,6 +20,7 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import java.util.List;
 import java.util.concurrent.CompletionStage;
 
 public interface TraceDao extends TraceRepository {
@@ -27,6 +28,17 @@ public interface TraceDao extends TraceRepository {
     @CheckReturnValue
     CompletionStage<?> store(String agentId, Trace trace) throws Exception;
 
+    // stores a chunk of entries ahead of the trace itself, so that huge traces do not need to be
+    // buffered in memory, the trace passed to store() then does not contain these entries
+    @CheckReturnValue
+    CompletionStage<?> storeEntries(String agentId, String traceId, int startIndex,
+                                    List<Trace.Entry> entries);
+
+    // deletes the entries stored via storeEntries() when the trace itself ends up not being stored
+    // (e.g. the trace stream failed or was cancelled)
+    @CheckReturnValue
+    CompletionStage<?> deleteEntries(String agentId, String traceId);
+
     @OnlyUsedByTests
     void truncateAll() throws Exception;
 }
@@ -20,6 +20,8 @@ import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.datastax.oss.driver.api.core.cql.Row;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Ordering;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -28,6 +30,7 @@ import com.spotify.futures.CompletableFutures;
 import edu.umd.cs.findbugs.annotations.CheckReturnValue;
 import org.glowroot.central.util.CassandraWriteMetrics;
 import org.glowroot.central.util.Messages;
+import org.glowroot.central.util.RateLimiter;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableEntries;
@@ -58,7 +61,6 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -89,6 +91,12 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertTransactionSlowPoint;
     private final PreparedStatement insertTransactionSlowPointPartial;
 
+    private final PreparedStatement insertOverallSlowMax;
+    private final PreparedStatement insertTransactionSlowMax;
+
+    private final PreparedStatement insertOverallSlowCountWithSlowMax;
+    private final PreparedStatement insertTransactionSlowCountWithSlowMax;
+
     private final PreparedStatement insertOverallErrorCount;
     private final PreparedStatement insertTransactionErrorCount;
 
@@ -98,8 +106,14 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertOverallErrorTemplate;
+    private final PreparedStatement insertTransactionErrorTemplate;
+    private final PreparedStatement insertOverallErrorTemplateCount;
+    private final PreparedStatement insertTransactionErrorTemplateCount;
+
     private final PreparedStatement insertHeaderV2;
     private final PreparedStatement insertEntryV2;
+    private final PreparedStatement deleteEntriesV2;
     private final PreparedStatement insertQueryV2;
     private final PreparedStatement insertSharedQueryTextV2;
     private final PreparedStatement insertMainThreadProfileV2;
@@ -115,6 +129,12 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readTransactionSlowPoint;
     private final PreparedStatement readTransactionSlowPointPartial;
 
+    private final PreparedStatement readOverallSlowMax;
+    private final PreparedStatement readTransactionSlowMax;
+
+    private final PreparedStatement readOverallSlowCountSlowMax;
+    private final PreparedStatement readTransactionSlowCountSlowMax;
+
     private final PreparedStatement readOverallErrorCount;
     private final PreparedStatement readTransactionErrorCount;
 
@@ -124,6 +144,13 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readOverallErrorTemplate;
+    private final PreparedStatement readTransactionErrorTemplate;
+    private final PreparedStatement readOverallErrorTemplateCaptureTime;
+    private final PreparedStatement readTransactionErrorTemplateCaptureTime;
+    private final PreparedStatement readOverallErrorTemplateCount;
+    private final PreparedStatement readTransactionErrorTemplateCount;
+
     private final PreparedStatement readHeaderV1;
     private final PreparedStatement readEntriesV1;
     private final PreparedStatement readSharedQueryTextsV1;
@@ -143,6 +170,16 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement deleteOverallSlowPointPartial;
     private final PreparedStatement deleteTransactionSlowPointPartial;
 
+    // max duration per time bucket that this central node has written to the trace_tt_slow_max
+    // and trace_tn_slow_max tables
+    private final Cache<SlowMaxKey, Long> slowMaxWritten =
+            CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    // error templates per time bucket that this central node has written to the
+    // trace_tt_error_template and trace_tn_error_template tables
+    private final RateLimiter<ErrorTemplateKey> errorTemplatesWritten =
+            new RateLimiter<>(10000, false);
+
     TraceDaoImpl(Session session, TransactionTypeDao transactionTypeDao,
                  FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
                  ConfigRepositoryImpl configRepository, Clock clock) throws Exception {
@@ -165,10 +202,15 @@ public class TraceDaoImpl implements TraceDao {
         // using a counter would be nice since only need sum over capture_time range
         // but counter has no TTL, see https://issues.apache.org/jira/browse/CASSANDRA-2103
         // so adding trace_id to provide uniqueness
+        //
+        // slow_max is true when the trace's duration is covered by the trace_tt_slow_max (or
+        // trace_tn_slow_max) table, and is null for traces stored before those tables existed (or
+        // stored by an older central node during a rolling upgrade, or whose max failed to write),
+        // see readSlowPoints()
         session.createTableWithTWCS("create table if not exists trace_tt_slow_count (agent_rollup"
                 + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
-                + " trace_id varchar, primary key ((agent_rollup, transaction_type), capture_time,"
-                + " agent_id, trace_id))", expirationHours);
+                + " trace_id varchar, slow_max boolean, primary key ((agent_rollup,"
+                + " transaction_type), capture_time, agent_id, trace_id))", expirationHours);
 
         // "capture_time" column now should be "capture_time_partial_rollup" (since 0.13.1)
         // (and "real_capture_time" column now should be "capture_time")
@@ -180,9 +222,9 @@ public class TraceDaoImpl implements TraceDao {
 
         session.createTableWithTWCS("create table if not exists trace_tn_slow_count (agent_rollup"
                         + " varchar, transaction_type varchar, transaction_name varchar, capture_time"
-                        + " timestamp, agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
-                        + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
-                expirationHours);
+                        + " timestamp, agent_id varchar, trace_id varchar, slow_max boolean, primary key"
+                        + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
+                        + " trace_id))", expirationHours);
 
         // "capture_time" column now should be "capture_time_partial_rollup" (since 0.13.1)
         // (and "real_capture_time" column now should be "capture_time")
@@ -224,6 +266,22 @@ public class TraceDaoImpl implements TraceDao {
                         + " transaction_name), capture_time, agent_id, trace_id))", expirationHours, false,
                 true);
 
+        // max duration of the (completed) slow trace points per time bucket, so that reading the
+        // slowest trace points doesn't need to read every slow trace point in the time range
+        //
+        // a row is only written when a central node sees a new max duration for the time bucket,
+        // so there are only a few rows per time bucket
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_max (agent_rollup"
+                + " varchar, transaction_type varchar, bucket_time timestamp, duration_nanos"
+                + " bigint, primary key ((agent_rollup, transaction_type), bucket_time,"
+                + " duration_nanos))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_max (agent_rollup"
+                + " varchar, transaction_type varchar, transaction_name varchar, bucket_time"
+                + " timestamp, duration_nanos bigint, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name), bucket_time, duration_nanos))",
+                expirationHours);
+
         session.createTableWithTWCS("create table if not exists trace_tt_error_count (agent_rollup"
                 + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
                 + " trace_id varchar, primary key ((agent_rollup, transaction_type), capture_time,"
@@ -260,6 +318,34 @@ public class TraceDaoImpl implements TraceDao {
                 + " varchar, primary key ((agent_rollup, transaction_type, transaction_name),"
                 + " capture_time, agent_id, trace_id))", expirationHours);
 
+        // error message templates (see ErrorMessageTemplates) seen per time bucket, so that
+        // error message filters can be resolved against the templates, and then only the counts
+        // of the matching templates need to be read (from the *_error_template_count tables below)
+        session.createTableWithTWCS("create table if not exists trace_tt_error_template"
+                + " (agent_rollup varchar, transaction_type varchar, bucket_time timestamp,"
+                + " template_id varchar, template varchar, primary key ((agent_rollup,"
+                + " transaction_type), bucket_time, template_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_template"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " bucket_time timestamp, template_id varchar, template varchar, primary key"
+                + " ((agent_rollup, transaction_type, transaction_name), bucket_time,"
+                + " template_id))", expirationHours);
+
+        // per template counts, same as trace_tt_error_count (see comment on trace_tt_slow_count
+        // about counters), but without copying the error messages
+        session.createTableWithTWCS("create table if not exists trace_tt_error_template_count"
+                + " (agent_rollup varchar, transaction_type varchar, template_id varchar,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
+                + " ((agent_rollup, transaction_type, template_id), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_template_count"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " template_id varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, primary key ((agent_rollup, transaction_type, transaction_name,"
+                + " template_id), capture_time, agent_id, trace_id))", expirationHours);
+
         // ===== trace components v1 =====
 
         session.createTableWithTWCS("create table if not exists trace_header (agent_id varchar,"
@@ -334,6 +420,14 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSlowCountWithSlowMax = session.prepare("insert into trace_tt_slow_count"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id, slow_max)"
+                + " values (?, ?, ?, ?, ?, true) using ttl ?");
+
+        insertTransactionSlowCountWithSlowMax = session.prepare("insert into trace_tn_slow_count"
+                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+                + " trace_id, slow_max) values (?, ?, ?, ?, ?, ?, true) using ttl ?");
+
         insertTransactionSlowCountPartial = session.prepare("insert into"
                 + " trace_tn_slow_count_partial (agent_rollup, transaction_type, transaction_name,"
                 + " capture_time, agent_id, trace_id, real_capture_time) values (?, ?, ?, ?, ?, ?,"
@@ -359,6 +453,14 @@ public class TraceDaoImpl implements TraceDao {
                 + " headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using"
                 + " ttl ?");
 
+        insertOverallSlowMax = session.prepare("insert into trace_tt_slow_max (agent_rollup,"
+                + " transaction_type, bucket_time, duration_nanos) values (?, ?, ?, ?) using ttl"
+                + " ?");
+
+        insertTransactionSlowMax = session.prepare("insert into trace_tn_slow_max (agent_rollup,"
+                + " transaction_type, transaction_name, bucket_time, duration_nanos) values (?, ?,"
+                + " ?, ?, ?) using ttl ?");
+
         insertOverallErrorCount = session.prepare("insert into trace_tt_error_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -385,6 +487,23 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallErrorTemplate = session.prepare("insert into trace_tt_error_template"
+                + " (agent_rollup, transaction_type, bucket_time, template_id, template) values"
+                + " (?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorTemplate = session.prepare("insert into trace_tn_error_template"
+                + " (agent_rollup, transaction_type, transaction_name, bucket_time, template_id,"
+                + " template) values (?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertOverallErrorTemplateCount = session.prepare("insert into"
+                + " trace_tt_error_template_count (agent_rollup, transaction_type, template_id,"
+                + " capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorTemplateCount = session.prepare("insert into"
+                + " trace_tn_error_template_count (agent_rollup, transaction_type,"
+                + " transaction_name, template_id, capture_time, agent_id, trace_id) values (?, ?,"
+                + " ?, ?, ?, ?, ?) using ttl ?");
+
         insertHeaderV2 = session.prepare("insert into trace_header_v2 (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -393,6 +512,8 @@ public class TraceDaoImpl implements TraceDao {
                 + " shared_query_text_index, query_message_prefix, query_message_suffix, detail,"
                 + " location_stack_trace, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
                 + " using ttl ?");
+        deleteEntriesV2 = session.prepare("delete from trace_entry_v2 where agent_id = ? and"
+                + " trace_id = ?");
 
         insertQueryV2 = session.prepare("insert into trace_query_v2 (agent_id, trace_id, type,"
                 + " shared_query_text_index, total_duration_nanos, execution_count, total_rows,"
@@ -480,6 +601,24 @@ public class TraceDaoImpl implements TraceDao {
                     + " allow filtering");
         }
 
+        // time buckets are identified by their end time, so this reads the time buckets that
+        // overlap (from, to]
+        readOverallSlowMax = session.prepare("select bucket_time, duration_nanos from"
+                + " trace_tt_slow_max where agent_rollup = ? and transaction_type = ? and"
+                + " bucket_time > ? and bucket_time < ?");
+
+        readTransactionSlowMax = session.prepare("select bucket_time, duration_nanos from"
+                + " trace_tn_slow_max where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and bucket_time > ? and bucket_time < ?");
+
+        readOverallSlowCountSlowMax = session.prepare("select capture_time, slow_max from"
+                + " trace_tt_slow_count where agent_rollup = ? and transaction_type = ? and"
+                + " capture_time > ? and capture_time <= ?");
+
+        readTransactionSlowCountSlowMax = session.prepare("select capture_time, slow_max from"
+                + " trace_tn_slow_count where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and capture_time > ? and capture_time <= ?");
+
         readOverallErrorCount = session.prepare("select count(*) from trace_tt_error_count where"
                 + " agent_rollup = ? and transaction_type = ? and capture_time > ? and"
                 + " capture_time <= ?");
@@ -506,6 +645,34 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_tn_error_message where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        // time buckets are identified by their end time, so this reads the time buckets that
+        // overlap (from, to]
+        readOverallErrorTemplate = session.prepare("select template_id, template from"
+                + " trace_tt_error_template where agent_rollup = ? and transaction_type = ? and"
+                + " bucket_time > ? and bucket_time < ?");
+
+        readTransactionErrorTemplate = session.prepare("select template_id, template from"
+                + " trace_tn_error_template where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and bucket_time > ? and bucket_time < ?");
+
+        readOverallErrorTemplateCaptureTime = session.prepare("select capture_time from"
+                + " trace_tt_error_template_count where agent_rollup = ? and transaction_type = ?"
+                + " and template_id = ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorTemplateCaptureTime = session.prepare("select capture_time from"
+                + " trace_tn_error_template_count where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and template_id = ? and capture_time > ? and"
+                + " capture_time <= ?");
+
+        readOverallErrorTemplateCount = session.prepare("select count(*) from"
+                + " trace_tt_error_template_count where agent_rollup = ? and transaction_type = ?"
+                + " and template_id = ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorTemplateCount = session.prepare("select count(*) from"
+                + " trace_tn_error_template_count where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and template_id = ? and capture_time > ? and"
+                + " capture_time <= ?");
+
         readHeaderV1 = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
 
@@ -656,21 +823,20 @@ public class TraceDaoImpl implements TraceDao {
 
                                 if (header.getPartial()) {
                                     boundStatement = insertOverallSlowCountPartial.bind();
-                                } else {
-                                    boundStatement = insertOverallSlowCount.bind();
-                                }
-                                boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        true, header.getPartial(), cassandra2x);
-                                futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+                                    boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                                            true, true, cassandra2x);
+                                    futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
-                                if (header.getPartial()) {
                                     boundStatement = insertTransactionSlowCountPartial.bind();
+                                    boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                                            false, true, cassandra2x);
+                                    futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
                                 } else {
-                                    boundStatement = insertTransactionSlowCount.bind();
+                                    futures.add(storeSlowMaxAndCount(agentRollupId, agentId, traceId, header,
+                                            adjustedTTL, centralStorageConfig.getTraceTTL(), true));
+                                    futures.add(storeSlowMaxAndCount(agentRollupId, agentId, traceId, header,
+                                            adjustedTTL, centralStorageConfig.getTraceTTL(), false));
                                 }
-                                boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                                        false, header.getPartial(), cassandra2x);
-                                futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
                                 if (priorHeader != null && priorHeader.getCaptureTimePartialRollup() != header
                                         .getCaptureTimePartialRollup()) {
@@ -712,6 +878,11 @@ public class TraceDaoImpl implements TraceDao {
                                         adjustedTTL, false);
                                 futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
 
+                                storeErrorTemplate(futures, agentRollupId, agentId, traceId, header,
+                                        centralStorageConfig.getTraceTTL(), true);
+                                storeErrorTemplate(futures, agentRollupId, agentId, traceId, header,
+                                        centralStorageConfig.getTraceTTL(), false);
+
                                 boundStatement = insertOverallErrorPoint.bind();
                                 boundStatement = bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                                         true);
@@ -750,47 +921,7 @@ public class TraceDaoImpl implements TraceDao {
 
                         int index = 0;
                         for (Trace.Entry entry : trace.getEntryList()) {
-                            i = 0;
-                            boundStatement = insertEntryV2.bind()
-                                    .setString(i++, agentId)
-                                    .setString(i++, traceId)
-                                    .setInt(i++, index++)
-                                    .setInt(i++, entry.getDepth())
-                                    .setLong(i++, entry.getStartOffsetNanos())
-                                    .setLong(i++, entry.getDurationNanos())
-                                    .setBoolean(i++, entry.getActive());
-                            if (entry.hasQueryEntryMessage()) {
-                                boundStatement = boundStatement.setToNull(i++)
-                                        .setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex())
-                                        .setString(i++,
-                                                Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()))
-                                        .setString(i++,
-                                                Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
-                            } else {
-                                // message is empty for trace entries added using addErrorEntry()
-                                boundStatement = boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()))
-                                        .setToNull(i++)
-                                        .setToNull(i++)
-                                        .setToNull(i++);
-                            }
-                            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
-                            if (detailEntries.isEmpty()) {
-                                boundStatement = boundStatement.setToNull(i++);
-                            } else {
-                                boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(detailEntries));
-                            }
-                            List<StackTraceElement> location = entry.getLocationStackTraceElementList();
-                            if (location.isEmpty()) {
-                                boundStatement = boundStatement.setToNull(i++);
-                            } else {
-                                boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(location));
-                            }
-                            if (entry.hasError()) {
-                                boundStatement = boundStatement.setByteBuffer(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
-                            } else {
-                                boundStatement = boundStatement.setToNull(i++);
-                            }
-                            boundStatement = boundStatement.setInt(i++, adjustedTTL);
+                            boundStatement = bindEntry(agentId, traceId, index++, entry, adjustedTTL);
                             futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
                         }
 
@@ -855,6 +986,37 @@ public class TraceDaoImpl implements TraceDao {
         });
     }
 
+    // entries are streamed ahead of the trace header (which is sent last by the agent), so the
+    // entry TTL is based on the current time instead of the trace capture time, which at worst
+    // means the entries outlive the header by the time it took to collect the trace (entries are
+    // only ever read via the header), and the entries of a trace whose header ends up not being
+    // stored are deleted by the collector (see deleteEntries())
+    @CheckReturnValue
+    @Override
+    public CompletionStage<?> storeEntries(String agentId, String traceId, int startIndex,
+                                           List<Trace.Entry> entries) {
+        return configRepository.getCentralStorageConfig().thenCompose(centralStorageConfig -> {
+            int adjustedTTL = Common.getAdjustedTTL(centralStorageConfig.getTraceTTL(),
+                    clock.currentTimeMillis(), clock);
+            List<CompletionStage<?>> futures = new ArrayList<>(entries.size());
+            int index = startIndex;
+            for (Trace.Entry entry : entries) {
+                BoundStatement boundStatement = bindEntry(agentId, traceId, index++, entry, adjustedTTL);
+                futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+            }
+            return CompletableFutures.allAsList(futures);
+        });
+    }
+
+    @CheckReturnValue
+    @Override
+    public CompletionStage<?> deleteEntries(String agentId, String traceId) {
+        BoundStatement boundStatement = deleteEntriesV2.bind()
+                .setString(0, agentId)
+                .setString(1, traceId);
+        return session.writeAsync(boundStatement, CassandraProfile.collector);
+    }
+
     @Override
     public CompletionStage<Long> readSlowCount(String agentRollupId, TraceQuery query) {
         BoundStatement boundStatement;
@@ -882,30 +1044,207 @@ public class TraceDaoImpl implements TraceDao {
     @Override
     public CompletionStage<Result<TracePoint>> readSlowPoints(String agentRollupId, TraceQuery query,
                                                               TracePointFilter filter, int limit) {
-        BoundStatement boundStatement;
+        BoundStatement boundStatementMax;
+        BoundStatement boundStatementSlowMax;
         BoundStatement boundStatementPartial;
         String transactionName = query.transactionName();
         if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
+            boundStatementMax = readOverallSlowMax.bind();
+            boundStatementSlowMax = readOverallSlowCountSlowMax.bind();
             boundStatementPartial = readOverallSlowPointPartial.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, true);
+            boundStatementMax = bindTraceQueryBuckets(boundStatementMax, agentRollupId, query, true,
+                    SlowPointBuckets.BUCKET_MILLIS);
+            boundStatementSlowMax = bindTraceQuery(boundStatementSlowMax, agentRollupId, query, true);
             boundStatementPartial = bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, true, cassandra2x);
         } else {
-            boundStatement = readTransactionSlowPoint.bind();
+            boundStatementMax = readTransactionSlowMax.bind();
+            boundStatementSlowMax = readTransactionSlowCountSlowMax.bind();
             boundStatementPartial = readTransactionSlowPointPartial.bind();
-            boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
+            boundStatementMax = bindTraceQueryBuckets(boundStatementMax, agentRollupId, query, false,
+                    SlowPointBuckets.BUCKET_MILLIS);
+            boundStatementSlowMax = bindTraceQuery(boundStatementSlowMax, agentRollupId, query, false);
             boundStatementPartial = bindTraceQueryPartial(boundStatementPartial, agentRollupId, query, false, cassandra2x);
         }
 
-        CompletionStage<List<TracePoint>> completedPointsCS = session.readAsync(boundStatement, CassandraProfile.web)
-                .thenCompose(future -> processPoints(future, filter, false, false));
-        CompletionStage<List<TracePoint>> partialPointsCS = session.readAsync(boundStatementPartial, CassandraProfile.web)
-                .thenCompose(futurePartial -> processPoints(futurePartial, filter, true, false));
+        // only the time buckets whose max duration can affect the result are read, slowest first
+        //
+        // the (narrow) slow count rows are read in order to find the time buckets that have trace
+        // points that are not covered by the max duration (e.g. stored before the max duration
+        // tables existed), which are then read regardless of their max duration
+        CompletionStage<SlowPointBuckets> bucketsCS = session.readAsync(boundStatementMax, CassandraProfile.web)
+                .thenCompose(results -> processSlowMaxes(results, new SlowPointBuckets()));
+        CompletionStage<Set<Long>> notCoveredBucketTimesCS = session.readAsync(boundStatementSlowMax, CassandraProfile.web)
+                .thenCompose(results -> processSlowCountSlowMaxes(results, new HashSet<>()));
+        CompletionStage<TopTracePoints> completedPointsCS = bucketsCS
+                .thenCombine(notCoveredBucketTimesCS, (buckets, notCoveredBucketTimes) -> {
+                    for (long bucketTime : notCoveredBucketTimes) {
+                        buckets.addNotCovered(bucketTime);
+                    }
+                    return buckets;
+                })
+                .thenCompose(buckets -> buckets.read(
+                        bucketTime -> readSlowPoints(agentRollupId, query, bucketTime, filter, limit),
+                        filter.durationNanosLow(), limit));
+        // partial points are not limited here since they are needed in full to remove duplicates
+        // (and there are few of them since they are deleted once the trace completes)
+        CompletionStage<TopTracePoints> partialPointsCS = session.readAsync(boundStatementPartial, CassandraProfile.web)
+                .thenCompose(futurePartial -> processPoints(futurePartial, filter, true, false,
+                        Integer.MAX_VALUE));
 
         return completedPointsCS.thenCombine(partialPointsCS,
                 (completedPoints, partialPoints) -> combine(completedPoints, partialPoints, limit));
     }
 
+    private CompletionStage<TopTracePoints> readSlowPoints(String agentRollupId, TraceQuery query,
+            long bucketTime, TracePointFilter filter, int limit) {
+        // restrict the query's time range to the time bucket
+        TraceQuery bucketQuery = ImmutableTraceQuery.copyOf(query)
+                .withFrom(Math.max(query.from(), bucketTime - SlowPointBuckets.BUCKET_MILLIS))
+                .withTo(Math.min(query.to(), bucketTime));
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallSlowPoint.bind();
+            boundStatement = bindTraceQuery(boundStatement, agentRollupId, bucketQuery, true);
+        } else {
+            boundStatement = readTransactionSlowPoint.bind();
+            boundStatement = bindTraceQuery(boundStatement, agentRollupId, bucketQuery, false);
+        }
+        return session.readAsync(boundStatement, CassandraProfile.web)
+                .thenCompose(results -> processPoints(results, filter, false, false, limit));
+    }
+
+    // the slow count row records whether the trace's duration is covered by the max duration of
+    // its time bucket, so that a failure to write the max duration doesn't hide the trace point
+    private CompletionStage<?> storeSlowMaxAndCount(String agentRollupId, String agentId,
+            String traceId, Trace.Header header, int adjustedTTL, int ttl, boolean overall) {
+        return storeSlowMax(agentRollupId, header, ttl, overall).thenCompose(slowMax -> {
+            BoundStatement boundStatement;
+            if (overall) {
+                boundStatement = slowMax ? insertOverallSlowCountWithSlowMax.bind()
+                        : insertOverallSlowCount.bind();
+            } else {
+                boundStatement = slowMax ? insertTransactionSlowCountWithSlowMax.bind()
+                        : insertTransactionSlowCount.bind();
+            }
+            boundStatement = bindCount(boundStatement, agentRollupId, agentId, traceId, header,
+                    adjustedTTL, overall, false, cassandra2x);
+            return session.writeAsync(boundStatement, CassandraProfile.collector);
+        });
+    }
+
+    // only writes a row when this is a new max duration for the time bucket (as far as this central
+    // node knows), so there are only a few rows per time bucket
+    //
+    // completes with true if the trace's duration is covered by a (successfully written) max
+    // duration row, and never completes exceptionally
+    private CompletionStage<Boolean> storeSlowMax(String agentRollupId, Trace.Header header,
+            int ttl, boolean overall) {
+        long bucketTime = SlowPointBuckets.getBucketTime(header.getCaptureTime());
+        long durationNanos = header.getDurationNanos();
+        SlowMaxKey key = ImmutableSlowMaxKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(header.getTransactionType())
+                .transactionName(overall ? "" : header.getTransactionName())
+                .bucketTime(bucketTime)
+                .build();
+        Long maxDurationNanosWritten = slowMaxWritten.getIfPresent(key);
+        if (maxDurationNanosWritten != null && durationNanos <= maxDurationNanosWritten) {
+            return CompletableFuture.completedFuture(true);
+        }
+        BoundStatement boundStatement;
+        if (overall) {
+            boundStatement = insertOverallSlowMax.bind();
+        } else {
+            boundStatement = insertTransactionSlowMax.bind();
+        }
+        int i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, header.getTransactionName());
+        }
+        // TTL is based on the end of the time bucket, so that the max does not expire before any
+        // of the slow trace points in the time bucket
+        boundStatement = boundStatement.setInstant(i++, Instant.ofEpochMilli(bucketTime))
+                .setLong(i++, durationNanos)
+                .setInt(i++, Common.getAdjustedTTL(ttl, bucketTime, clock));
+        return session.writeAsync(boundStatement, CassandraProfile.collector)
+                .handle((results, t) -> {
+                    if (t != null) {
+                        // the slow count row is then written without slow_max, so the trace
+                        // point is still read, see readSlowPoints()
+                        return false;
+                    }
+                    // only recorded once written, so that a trace whose duration is not written
+                    // (because a slower trace in the same time bucket has already been written)
+                    // is always covered by a max duration row
+                    slowMaxWritten.asMap().merge(key, durationNanos, Math::max);
+                    return true;
+                });
+    }
+
+    private void storeErrorTemplate(List<CompletionStage<?>> futures, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, int ttl, boolean overall) {
+        String errorMessage = header.getError().getMessage();
+        String template = ErrorMessageTemplates.getTemplate(errorMessage);
+        String templateId = ErrorMessageTemplates.getTemplateId(template);
+        BoundStatement boundStatement;
+        if (overall) {
+            boundStatement = insertOverallErrorTemplateCount.bind();
+        } else {
+            boundStatement = insertTransactionErrorTemplateCount.bind();
+        }
+        int i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement = boundStatement.setString(i++, templateId)
+                .setInstant(i++, Instant.ofEpochMilli(header.getCaptureTime()))
+                .setString(i++, agentId)
+                .setString(i++, traceId)
+                .setInt(i++, Common.getAdjustedTTL(ttl, header.getCaptureTime(), clock));
+        futures.add(session.writeAsync(boundStatement, CassandraProfile.collector));
+
+        long bucketTime = ErrorMessageTemplates.getBucketTime(header.getCaptureTime());
+        ErrorTemplateKey key = ImmutableErrorTemplateKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(header.getTransactionType())
+                .transactionName(overall ? "" : header.getTransactionName())
+                .bucketTime(bucketTime)
+                .templateId(templateId)
+                .build();
+        // the template only needs to be written once per time bucket
+        if (!errorTemplatesWritten.tryAcquire(key)) {
+            return;
+        }
+        if (overall) {
+            boundStatement = insertOverallErrorTemplate.bind();
+        } else {
+            boundStatement = insertTransactionErrorTemplate.bind();
+        }
+        i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, header.getTransactionName());
+        }
+        // TTL is based on the end of the time bucket, so that the template does not expire before
+        // any of the error messages in the time bucket
+        boundStatement = boundStatement.setInstant(i++, Instant.ofEpochMilli(bucketTime))
+                .setString(i++, templateId)
+                .setString(i++, template)
+                .setInt(i++, Common.getAdjustedTTL(ttl, bucketTime, clock));
+        futures.add(session.writeAsync(boundStatement, CassandraProfile.collector)
+                .whenComplete((results, t) -> {
+                    if (t != null) {
+                        // so that the next error message of this template writes the template
+                        errorTemplatesWritten.release(key);
+                    }
+                }));
+    }
+
     @Override
     public CompletionStage<Long> readErrorCount(String agentRollupId, TraceQuery query) {
         BoundStatement boundStatement;
@@ -934,13 +1273,18 @@ public class TraceDaoImpl implements TraceDao {
             boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
         }
         return session.readAsync(boundStatement, CassandraProfile.web)
-                .thenCompose(results -> processPoints(results, filter, false, true))
-                .thenApply(errorPoints -> createResult(errorPoints, limit));
+                .thenCompose(results -> processPoints(results, filter, false, true, limit))
+                .thenApply(TopTracePoints::toResult);
     }
 
     @Override
     public CompletionStage<ErrorMessageResult> readErrorMessages(String agentRollupId, TraceQuery query,
                                                 ErrorMessageFilter filter, long resolutionMillis, int limit) {
+        ErrorMessageMatcher errorMessageMatcher = ErrorMessageMatcher.create(filter);
+        if (!errorMessageMatcher.isMatchesAll() && errorMessageMatcher.canMatchTemplates()) {
+            return readErrorMessagesByTemplate(agentRollupId, query, errorMessageMatcher,
+                    resolutionMillis, limit);
+        }
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
         if (transactionName == null) {
@@ -959,7 +1303,7 @@ public class TraceDaoImpl implements TraceDao {
                 for (Row row : results.currentPage()) {
                     long captureTime = checkNotNull(row.getInstant(0)).toEpochMilli();
                     String errorMessage = checkNotNull(row.getString(1));
-                    if (!matches(filter, errorMessage)) {
+                    if (!errorMessageMatcher.matches(errorMessage)) {
                         continue;
                     }
                     long rollupCaptureTime = CaptureTimes.getRollup(captureTime, resolutionMillis);
@@ -972,34 +1316,133 @@ public class TraceDaoImpl implements TraceDao {
                 return CompletableFuture.completedFuture(null);
             }
         };
-        return session.readAsync(boundStatement, CassandraProfile.web).thenCompose(compute).thenApply((ignored) -> {
-            // pointCounts is linked hash map and is already sorted by capture time
-            List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
-                    .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<ErrorMessagePoint>toList());
-            List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
-                    .map(e1 -> ImmutableErrorMessageCount.of(e1.getKey(), e1.getValue().value))
-                    .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<ErrorMessageCount>toList());
-
-            if (counts.size() > limit) {
-                return ImmutableErrorMessageResult.builder()
-                        .addAllPoints(points)
-                        .counts(new Result<>(counts.subList(0, limit), true))
-                        .build();
-            } else {
-                return ImmutableErrorMessageResult.builder()
-                        .addAllPoints(points)
-                        .counts(new Result<>(counts, false))
-                        .build();
+        // pointCounts is linked hash map and is already sorted by capture time
+        return session.readAsync(boundStatement, CassandraProfile.web).thenCompose(compute)
+                .thenApply(ignored -> toErrorMessageResult(pointCounts, messageCounts, limit));
+    }
+
+    // only reads the counts of the templates that match the filter, so the error message counts
+    // are per template (e.g. "Order # not found") instead of per error message
+    private CompletionStage<ErrorMessageResult> readErrorMessagesByTemplate(String agentRollupId,
+            TraceQuery query, ErrorMessageMatcher errorMessageMatcher, long resolutionMillis,
+            int limit) {
+        return readMatchingTemplates(agentRollupId, query, errorMessageMatcher,
+                CassandraProfile.web)
+                .thenCompose(templates -> {
+                    List<String> templateIds = new ArrayList<>(templates.keySet());
+                    return readTemplates(templateIds, templateId -> readErrorTemplatePointCounts(
+                            agentRollupId, query, templateId, resolutionMillis))
+                            .thenApply(templatePointCountsList -> toErrorMessageResult(templates,
+                                    templateIds, templatePointCountsList, limit));
+                });
+    }
+
+    private static ErrorMessageResult toErrorMessageResult(Map<String, String> templates,
+            List<String> templateIds, List<Map<Long, MutableLong>> templatePointCountsList,
+            int limit) {
+        // templates are read separately, so need to sort by capture time
+        Map<Long, MutableLong> pointCounts = new TreeMap<>();
+        Map<String, MutableLong> messageCounts = new HashMap<>();
+        for (int i = 0; i < templateIds.size(); i++) {
+            MutableLong messageCount = new MutableLong();
+            for (Map.Entry<Long, MutableLong> entry : templatePointCountsList.get(i).entrySet()) {
+                long count = entry.getValue().value;
+                pointCounts.computeIfAbsent(entry.getKey(), k -> new MutableLong()).add(count);
+                messageCount.add(count);
+            }
+            // the template's time buckets can extend beyond the query's time range
+            if (messageCount.value > 0) {
+                messageCounts.put(checkNotNull(templates.get(templateIds.get(i))), messageCount);
             }
+        }
+        return toErrorMessageResult(pointCounts, messageCounts, limit);
+    }
+
+    private CompletionStage<Map<Long, MutableLong>> readErrorTemplatePointCounts(
+            String agentRollupId, TraceQuery query, String templateId, long resolutionMillis) {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallErrorTemplateCaptureTime.bind();
+            boundStatement = bindTraceQueryByTemplate(boundStatement, agentRollupId, query,
+                    templateId, true);
+        } else {
+            boundStatement = readTransactionErrorTemplateCaptureTime.bind();
+            boundStatement = bindTraceQueryByTemplate(boundStatement, agentRollupId, query,
+                    templateId, false);
+        }
+        return session.readAsync(boundStatement, CassandraProfile.web)
+                .thenCompose(results -> processErrorTemplateCaptureTimes(results,
+                        new HashMap<>(), resolutionMillis));
+    }
+
+    // template id -> template
+    private CompletionStage<Map<String, String>> readMatchingTemplates(String agentRollupId,
+            TraceQuery query, ErrorMessageMatcher errorMessageMatcher, CassandraProfile profile) {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallErrorTemplate.bind();
+            boundStatement = bindTraceQueryBuckets(boundStatement, agentRollupId, query, true,
+                    ErrorMessageTemplates.BUCKET_MILLIS);
+        } else {
+            boundStatement = readTransactionErrorTemplate.bind();
+            boundStatement = bindTraceQueryBuckets(boundStatement, agentRollupId, query, false,
+                    ErrorMessageTemplates.BUCKET_MILLIS);
+        }
+        return session.readAsync(boundStatement, profile).thenCompose(
+                results -> processErrorTemplates(results, errorMessageMatcher, new HashMap<>()));
+    }
+
+    // reads at most ErrorMessageTemplates.PARALLELISM templates at a time, since there can be
+    // many matching templates (e.g. a filter on a common word), results are in the same order as
+    // the template ids
+    private static <T> CompletionStage<List<T>> readTemplates(List<String> templateIds,
+            Function<String, CompletionStage<T>> reader) {
+        return readTemplates(templateIds, 0, reader, new ArrayList<>(templateIds.size()));
+    }
+
+    private static <T> CompletionStage<List<T>> readTemplates(List<String> templateIds,
+            int index, Function<String, CompletionStage<T>> reader, List<T> results) {
+        if (index == templateIds.size()) {
+            return CompletableFuture.completedFuture(results);
+        }
+        int endIndex = Math.min(index + ErrorMessageTemplates.PARALLELISM, templateIds.size());
+        List<CompletionStage<T>> futures = new ArrayList<>(endIndex - index);
+        for (String templateId : templateIds.subList(index, endIndex)) {
+            futures.add(reader.apply(templateId));
+        }
+        return CompletableFutures.allAsList(futures).thenCompose(batchResults -> {
+            results.addAll(batchResults);
+            return readTemplates(templateIds, endIndex, reader, results);
         });
     }
 
+    private static ErrorMessageResult toErrorMessageResult(Map<Long, MutableLong> pointCounts,
+            Map<String, MutableLong> messageCounts, int limit) {
+        List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
+                .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
+                // explicit type on this line is needed for Checker Framework
+                // see https://github.com/typetools/checker-framework/issues/531
+                .collect(Collectors.<ErrorMessagePoint>toList());
+        List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
+                .map(e1 -> ImmutableErrorMessageCount.of(e1.getKey(), e1.getValue().value))
+                .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
+                // explicit type on this line is needed for Checker Framework
+                // see https://github.com/typetools/checker-framework/issues/531
+                .collect(Collectors.<ErrorMessageCount>toList());
+
+        if (counts.size() > limit) {
+            return ImmutableErrorMessageResult.builder()
+                    .addAllPoints(points)
+                    .counts(new Result<>(counts.subList(0, limit), true))
+                    .build();
+        } else {
+            return ImmutableErrorMessageResult.builder()
+                    .addAllPoints(points)
+                    .counts(new Result<>(counts, false))
+                    .build();
+        }
+    }
+
     @Override
     public CompletionStage<Long> readErrorMessageCount(String agentRollupId, TraceQuery query,
                                                        String errorMessageFilter, CassandraProfile profile) {
@@ -1012,14 +1455,12 @@ public class TraceDaoImpl implements TraceDao {
             boundStatement = readTransactionErrorMessage.bind();
             boundStatement = bindTraceQuery(boundStatement, agentRollupId, query, false);
         }
-        Pattern errorMessagePattern;
-        if (errorMessageFilter.startsWith("/") && errorMessageFilter.endsWith("/")) {
-            // case insensitive search must be explicit via (?i) at beginning of pattern
-            errorMessagePattern = Pattern.compile(
-                    errorMessageFilter.substring(1, errorMessageFilter.length() - 1),
-                    Pattern.DOTALL);
-        } else {
-            errorMessagePattern = null;
+        ErrorMessageMatcher errorMessageMatcher = ErrorMessageMatcher.create(errorMessageFilter);
+        if (errorMessageMatcher.canMatchTemplates()) {
+            // only counts the error messages of the templates that match the filter
+            return readMatchingTemplates(agentRollupId, query, errorMessageMatcher, profile)
+                    .thenCompose(templates -> readErrorMessageCountByTemplate(agentRollupId,
+                            query, new ArrayList<>(templates.keySet()), profile));
         }
         AtomicLong count = new AtomicLong(0);
         Function<AsyncResultSet, CompletableFuture<Long>> compute = new com.google.common.base.Function<AsyncResultSet, CompletableFuture<Long>>() {
@@ -1027,9 +1468,7 @@ public class TraceDaoImpl implements TraceDao {
             public CompletableFuture<Long> apply(AsyncResultSet results) {
                 for (Row row : results.currentPage()) {
                     String errorMessage = checkNotNull(row.getString(1));
-                    if (errorMessagePattern == null && errorMessage.contains(errorMessageFilter)
-                            || errorMessagePattern != null
-                            && errorMessagePattern.matcher(errorMessage).find()) {
+                    if (errorMessageMatcher.matches(errorMessage)) {
                         count.incrementAndGet();
                     }
                 }
@@ -1042,6 +1481,24 @@ public class TraceDaoImpl implements TraceDao {
         return session.readAsync(boundStatement, profile).thenCompose(compute);
     }
 
+    private CompletionStage<Long> readErrorMessageCountByTemplate(String agentRollupId,
+            TraceQuery query, List<String> templateIds, CassandraProfile profile) {
+        return readTemplates(templateIds, templateId -> {
+            BoundStatement boundStatement;
+            if (query.transactionName() == null) {
+                boundStatement = readOverallErrorTemplateCount.bind();
+                boundStatement = bindTraceQueryByTemplate(boundStatement, agentRollupId, query,
+                        templateId, true);
+            } else {
+                boundStatement = readTransactionErrorTemplateCount.bind();
+                boundStatement = bindTraceQueryByTemplate(boundStatement, agentRollupId, query,
+                        templateId, false);
+            }
+            return session.readAsync(boundStatement, profile)
+                    .thenApply(results -> results.one().getLong(0));
+        }).thenApply(counts -> counts.stream().mapToLong(Long::longValue).sum());
+    }
+
     @Override
     public CompletionStage<HeaderPlus> readHeaderPlus(String agentId, String traceId) {
         return readHeader(agentId, traceId).thenApply(header -> {
@@ -1366,12 +1823,18 @@ public class TraceDaoImpl implements TraceDao {
         session.updateSchemaWithRetry("truncate table trace_tn_slow_point");
         session.updateSchemaWithRetry("truncate table trace_tt_slow_point_partial");
         session.updateSchemaWithRetry("truncate table trace_tn_slow_point_partial");
+        session.updateSchemaWithRetry("truncate table trace_tt_slow_max");
+        session.updateSchemaWithRetry("truncate table trace_tn_slow_max");
         session.updateSchemaWithRetry("truncate table trace_tt_error_count");
         session.updateSchemaWithRetry("truncate table trace_tn_error_count");
         session.updateSchemaWithRetry("truncate table trace_tt_error_point");
         session.updateSchemaWithRetry("truncate table trace_tn_error_point");
         session.updateSchemaWithRetry("truncate table trace_tt_error_message");
         session.updateSchemaWithRetry("truncate table trace_tn_error_message");
+        session.updateSchemaWithRetry("truncate table trace_tt_error_template");
+        session.updateSchemaWithRetry("truncate table trace_tn_error_template");
+        session.updateSchemaWithRetry("truncate table trace_tt_error_template_count");
+        session.updateSchemaWithRetry("truncate table trace_tn_error_template_count");
         session.updateSchemaWithRetry("truncate table trace_header");
         session.updateSchemaWithRetry("truncate table trace_entry");
         session.updateSchemaWithRetry("truncate table trace_shared_query_text");
@@ -1480,6 +1943,52 @@ public class TraceDaoImpl implements TraceDao {
                 .setString(i.getAndIncrement(), traceId);
     }
 
+    @CheckReturnValue
+    private BoundStatement bindEntry(String agentId, String traceId, int index, Trace.Entry entry,
+                                     int adjustedTTL) {
+        int i = 0;
+        BoundStatement boundStatement = insertEntryV2.bind()
+                .setString(i++, agentId)
+                .setString(i++, traceId)
+                .setInt(i++, index)
+                .setInt(i++, entry.getDepth())
+                .setLong(i++, entry.getStartOffsetNanos())
+                .setLong(i++, entry.getDurationNanos())
+                .setBoolean(i++, entry.getActive());
+        if (entry.hasQueryEntryMessage()) {
+            boundStatement = boundStatement.setToNull(i++)
+                    .setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                    .setString(i++,
+                            Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()))
+                    .setString(i++,
+                            Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
+        } else {
+            // message is empty for trace entries added using addErrorEntry()
+            boundStatement = boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()))
+                    .setToNull(i++)
+                    .setToNull(i++)
+                    .setToNull(i++);
+        }
+        List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
+        if (detailEntries.isEmpty()) {
+            boundStatement = boundStatement.setToNull(i++);
+        } else {
+            boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(detailEntries));
+        }
+        List<StackTraceElement> location = entry.getLocationStackTraceElementList();
+        if (location.isEmpty()) {
+            boundStatement = boundStatement.setToNull(i++);
+        } else {
+            boundStatement = boundStatement.setByteBuffer(i++, Messages.toByteBuffer(location));
+        }
+        if (entry.hasError()) {
+            boundStatement = boundStatement.setByteBuffer(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
+        } else {
+            boundStatement = boundStatement.setToNull(i++);
+        }
+        return boundStatement.setInt(i++, adjustedTTL);
+    }
+
     @CheckReturnValue
     private static BoundStatement bindThreadProfile(BoundStatement boundStatement, String agentId,
                                                     String traceId, Profile profile, int adjustedTTL) {
@@ -1503,6 +2012,33 @@ public class TraceDaoImpl implements TraceDao {
                 .setInstant(i++, Instant.ofEpochMilli(query.to()));
     }
 
+    @CheckReturnValue
+    private static BoundStatement bindTraceQueryBuckets(BoundStatement boundStatement,
+            String agentRollupId, TraceQuery query, boolean overall, long bucketMillis) {
+        int i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, query.transactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, query.transactionName());
+        }
+        return boundStatement.setInstant(i++, Instant.ofEpochMilli(query.from()))
+                .setInstant(i++, Instant.ofEpochMilli(query.to() + bucketMillis));
+    }
+
+    @CheckReturnValue
+    private static BoundStatement bindTraceQueryByTemplate(BoundStatement boundStatement,
+            String agentRollupId, TraceQuery query, String templateId, boolean overall) {
+        int i = 0;
+        boundStatement = boundStatement.setString(i++, agentRollupId)
+                .setString(i++, query.transactionType());
+        if (!overall) {
+            boundStatement = boundStatement.setString(i++, query.transactionName());
+        }
+        return boundStatement.setString(i++, templateId)
+                .setInstant(i++, Instant.ofEpochMilli(query.from()))
+                .setInstant(i++, Instant.ofEpochMilli(query.to()));
+    }
+
     @CheckReturnValue
     private static BoundStatement bindTraceQueryPartial(BoundStatement boundStatement, String agentRollupId,
                                                         TraceQuery query, boolean overall, boolean cassandra2x) {
@@ -1531,13 +2067,14 @@ public class TraceDaoImpl implements TraceDao {
         return CaptureTimes.getRollup(captureTime, MINUTES.toMillis(30));
     }
 
-    private static CompletionStage<List<TracePoint>> processPoints(AsyncResultSet results, TracePointFilter filter,
-                                                                   boolean partial, boolean errorPoints) {
-        return processPoints(results, filter, partial, errorPoints, new ArrayList<>());
+    private static CompletionStage<TopTracePoints> processPoints(AsyncResultSet results, TracePointFilter filter,
+                                                                 boolean partial, boolean errorPoints, int limit) {
+        return processPoints(results, filter, partial, errorPoints, new TopTracePoints(limit));
     }
 
-    private static CompletionStage<List<TracePoint>> processPoints(AsyncResultSet results, TracePointFilter filter,
-                                                                   boolean partial, boolean errorPoints, List<TracePoint> tracePoints) {
+    // only the slowest trace points (up to the limit) are retained while paging through the results
+    private static CompletionStage<TopTracePoints> processPoints(AsyncResultSet results, TracePointFilter filter,
+                                                                 boolean partial, boolean errorPoints, TopTracePoints tracePoints) {
         for (Row row : results.currentPage()) {
             int i = 0;
             String agentId = checkNotNull(row.getString(i++));
@@ -1551,6 +2088,11 @@ public class TraceDaoImpl implements TraceDao {
                 }
             }
             long durationNanos = row.getLong(i++);
+            // check duration first in order to skip parsing the remaining columns (in particular
+            // attributes) for trace points that cannot make it into the result
+            if (!filter.matchesDuration(durationNanos) || !tracePoints.isCandidate(durationNanos)) {
+                continue;
+            }
             boolean error = errorPoints || row.getBoolean(i++);
             // error points are defined by having an error message, so safe to checkNotNull
             String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
@@ -1562,8 +2104,7 @@ public class TraceDaoImpl implements TraceDao {
                     Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
             Map<String, List<String>> attributes = attrs.stream().collect(
                     Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesDuration(durationNanos)
-                    && filter.matchesHeadline(headline)
+            if (filter.matchesHeadline(headline)
                     && filter.matchesError(errorMessage)
                     && filter.matchesUser(user)
                     && filter.matchesAttributes(attributes)) {
@@ -1584,12 +2125,78 @@ public class TraceDaoImpl implements TraceDao {
         return CompletableFuture.completedFuture(tracePoints);
     }
 
-    private static Result<TracePoint> combine(List<TracePoint> completedPoints,
-                                              List<TracePoint> partialPoints, int limit) {
+    private static CompletionStage<SlowPointBuckets> processSlowMaxes(AsyncResultSet results,
+            SlowPointBuckets buckets) {
+        for (Row row : results.currentPage()) {
+            buckets.add(checkNotNull(row.getInstant(0)).toEpochMilli(), row.getLong(1));
+        }
+        if (results.hasMorePages()) {
+            return results.fetchNextPage().thenCompose(res -> processSlowMaxes(res, buckets));
+        }
+        return CompletableFuture.completedFuture(buckets);
+    }
+
+    private static CompletionStage<Set<Long>> processSlowCountSlowMaxes(AsyncResultSet results,
+            Set<Long> notCoveredBucketTimes) {
+        for (Row row : results.currentPage()) {
+            // null for trace points stored before the slow max tables existed (or stored by an
+            // older central node during a rolling upgrade)
+            if (!row.getBoolean(1)) {
+                long captureTime = checkNotNull(row.getInstant(0)).toEpochMilli();
+                notCoveredBucketTimes.add(SlowPointBuckets.getBucketTime(captureTime));
+            }
+        }
+        if (results.hasMorePages()) {
+            return results.fetchNextPage().thenCompose(
+                    res -> processSlowCountSlowMaxes(res, notCoveredBucketTimes));
+        }
+        return CompletableFuture.completedFuture(notCoveredBucketTimes);
+    }
+
+    private static CompletionStage<Map<String, String>> processErrorTemplates(
+            AsyncResultSet results, ErrorMessageMatcher errorMessageMatcher,
+            Map<String, String> templates) {
+        for (Row row : results.currentPage()) {
+            String templateId = checkNotNull(row.getString(0));
+            // the same template is repeated across time buckets, so relying on the error message
+            // matcher's memoization
+            String template = checkNotNull(row.getString(1));
+            if (!templates.containsKey(templateId) && errorMessageMatcher.matches(template)) {
+                templates.put(templateId, template);
+            }
+        }
+        if (results.hasMorePages()) {
+            return results.fetchNextPage().thenCompose(
+                    res -> processErrorTemplates(res, errorMessageMatcher, templates));
+        }
+        return CompletableFuture.completedFuture(templates);
+    }
+
+    private static CompletionStage<Map<Long, MutableLong>> processErrorTemplateCaptureTimes(
+            AsyncResultSet results, Map<Long, MutableLong> pointCounts, long resolutionMillis) {
+        for (Row row : results.currentPage()) {
+            long captureTime = checkNotNull(row.getInstant(0)).toEpochMilli();
+            long rollupCaptureTime = CaptureTimes.getRollup(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
+        }
+        if (results.hasMorePages()) {
+            return results.fetchNextPage().thenCompose(
+                    res -> processErrorTemplateCaptureTimes(res, pointCounts, resolutionMillis));
+        }
+        return CompletableFuture.completedFuture(pointCounts);
+    }
+
+    private static Result<TracePoint> combine(TopTracePoints topCompletedPoints,
+                                              TopTracePoints topPartialPoints, int limit) {
+        List<TracePoint> partialPoints = topPartialPoints.getTracePoints();
         if (partialPoints.isEmpty()) {
             // optimization of common path
-            return createResult(completedPoints, limit);
+            return topCompletedPoints.toResult();
         }
+        List<TracePoint> completedPoints = topCompletedPoints.getTracePoints();
+        // partial points are unordered at this point, and removing duplicates relies on capture
+        // time order
+        partialPoints.sort(Comparator.comparingLong(TracePoint::captureTime));
         removeDuplicatePartialPoints(completedPoints, partialPoints);
         List<TracePoint> allPoints = new ArrayList<>(completedPoints.size() + partialPoints.size());
         allPoints.addAll(completedPoints);
@@ -1601,16 +2208,7 @@ public class TraceDaoImpl implements TraceDao {
             // sort by capture time needed since combined partial points are out of order
             allPoints = Ordering.from(Comparator.comparingLong(TracePoint::captureTime))
                     .sortedCopy(allPoints);
-            return new Result<>(allPoints, false);
-        }
-    }
-
-    private static Result<TracePoint> createResult(List<TracePoint> tracePoints, int limit) {
-        if (tracePoints.size() > limit) {
-            return new Result<>(
-                    applyLimitByDurationNanosAndThenSortByCaptureTime(tracePoints, limit), true);
-        } else {
-            return new Result<>(tracePoints, false);
+            return new Result<>(allPoints, topCompletedPoints.isLimitExceeded());
         }
     }
 
@@ -1641,21 +2239,6 @@ public class TraceDaoImpl implements TraceDao {
                 .collect(Collectors.<TracePoint>toList());
     }
 
-    private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
-        String upper = errorMessage.toUpperCase(Locale.ENGLISH);
-        for (String include : filter.includes()) {
-            if (!upper.contains(include.toUpperCase(Locale.ENGLISH))) {
-                return false;
-            }
-        }
-        for (String exclude : filter.excludes()) {
-            if (upper.contains(exclude.toUpperCase(Locale.ENGLISH))) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     @Value.Immutable
     abstract static class TraceKey {
 
@@ -1671,11 +2254,43 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
+    @Value.Immutable
+    abstract static class ErrorTemplateKey {
+
+        abstract String agentRollupId();
+
+        abstract String transactionType();
+
+        // empty for overall
+        abstract String transactionName();
+
+        abstract long bucketTime();
+
+        abstract String templateId();
+    }
+
+    @Value.Immutable
+    abstract static class SlowMaxKey {
+
+        abstract String agentRollupId();
+
+        abstract String transactionType();
+
+        // empty for overall
+        abstract String transactionName();
+
+        abstract long bucketTime();
+    }
+
     private static class MutableLong {
         private long value;
 
         private void increment() {
             value++;
         }
+
+        private void add(long delta) {
+            value += delta;
+        }
     }
 }
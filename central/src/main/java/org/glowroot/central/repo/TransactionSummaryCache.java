@@ -0,0 +1,360 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import com.google.common.math.LongMath;
+import com.spotify.futures.CompletableFutures;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.AsyncCache;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableSummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches overall and transaction name summaries per aligned time bucket, so that the same
+// (immutable) rolled up intervals are not re-read from cassandra on every page load and every
+// auto refresh
+//
+// bucket size for each rollup level is the view threshold of that rollup level, so that a query
+// which is displayed at a given rollup level spans only a handful of buckets
+//
+// only buckets which can no longer receive data (and which have been fully rolled up for the
+// given agent rollup, by whichever central collector node rolled it up) are cached, the remaining
+// (partial) buckets at either end of the query are always read from cassandra
+//
+// there is no merging of live (not yet stored) aggregates here, since that is done by the caller
+// (see TransactionCommonService) for the range after the stored aggregates, and the cached buckets
+// are always before that range (and in central the live aggregate repository is a no-op anyways
+// since agents push their aggregates)
+//
+// empty buckets are not cached, since they are more likely to be the result of aggregates that have
+// not arrived yet than of a true absence of transactions
+class TransactionSummaryCache {
+
+    // extra allowance (beyond the rollup interval itself) for late arriving aggregates and for
+    // the rollup of the bucket's last interval to complete, before the bucket is considered final
+    private static final long FINALIZATION_DELAY_MILLIS = Long.getLong(
+            "glowroot.internal.transactionSummaryCache.finalizationDelayMillis",
+            MINUTES.toMillis(5));
+
+    // bounds staleness if aggregates do arrive after the bucket has been cached (e.g. from an
+    // agent that was disconnected for a long time)
+    private static final int EXPIRATION_MINUTES =
+            Integer.getInteger("glowroot.internal.transactionSummaryCache.expirationMinutes", 30);
+
+    private static final int SIZE =
+            Integer.getInteger("glowroot.internal.transactionSummaryCache.size", 10000);
+
+    private final List<RollupConfig> rollupConfigs;
+    private final Clock clock;
+
+    // incremented by invalidateAll(), so that buckets cached before then are no longer used
+    private volatile int generation;
+
+    private final AsyncCache<SummaryCacheKey, OverallSummaryBucket> overallSummaryCache;
+    private final AsyncCache<SummaryCacheKey, TransactionNameSummaryBucket>
+            transactionNameSummaryCache;
+
+    private final RollupCompletedThroughReader rollupCompletedThroughReader;
+    private final OverallSummaryReader overallSummaryReader;
+    private final TransactionNameSummaryReader transactionNameSummaryReader;
+
+    TransactionSummaryCache(ClusterManager clusterManager, List<RollupConfig> rollupConfigs,
+            Clock clock, RollupCompletedThroughReader rollupCompletedThroughReader,
+            OverallSummaryReader overallSummaryReader,
+            TransactionNameSummaryReader transactionNameSummaryReader) {
+        this.rollupConfigs = rollupConfigs;
+        this.clock = clock;
+        this.rollupCompletedThroughReader = rollupCompletedThroughReader;
+        this.overallSummaryReader = overallSummaryReader;
+        this.transactionNameSummaryReader = transactionNameSummaryReader;
+        overallSummaryCache = clusterManager.createSharedExpiringAsyncCache("overallSummaryCache",
+                SIZE, EXPIRATION_MINUTES, MINUTES,
+                key -> readOverallSummaryBucket(key.agentRollupId(), getBucketQuery(key),
+                        CassandraProfile.web).toCompletableFuture());
+        transactionNameSummaryCache = clusterManager.createSharedExpiringAsyncCache(
+                "transactionNameSummaryCache", SIZE, EXPIRATION_MINUTES, MINUTES,
+                key -> readTransactionNameSummaryBucket(key.agentRollupId(), getBucketQuery(key),
+                        CassandraProfile.web).toCompletableFuture());
+    }
+
+    // query.from() is non-inclusive
+    CompletionStage<?> mergeOverallSummaryInto(String agentRollupId, SummaryQuery query,
+            OverallSummaryCollector collector, CassandraProfile profile) {
+        return getSegments(agentRollupId, query, profile).thenCompose(segments -> {
+            List<CompletableFuture<OverallSummaryBucket>> futures = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (segment.cacheKey == null) {
+                    futures.add(readOverallSummaryBucket(agentRollupId,
+                            checkNotNull(segment.query), profile).toCompletableFuture());
+                } else {
+                    SummaryCacheKey cacheKey = segment.cacheKey;
+                    futures.add(overallSummaryCache.get(cacheKey).thenApply(bucket -> {
+                        if (bucket.transactionCount() == 0) {
+                            overallSummaryCache.invalidate(cacheKey);
+                        }
+                        return bucket;
+                    }));
+                }
+            }
+            return CompletableFutures.allAsList(futures);
+        }).thenAccept(buckets -> {
+            // buckets are merged at the end (instead of as they complete) since the collector is
+            // not thread safe
+            for (OverallSummaryBucket bucket : buckets) {
+                collector.mergeSummary(bucket.totalDurationNanos(), bucket.totalCpuNanos(),
+                        bucket.totalAllocatedBytes(), bucket.transactionCount(),
+                        bucket.lastCaptureTime());
+            }
+        });
+    }
+
+    // query.from() is non-inclusive
+    CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId, SummaryQuery query,
+            TransactionNameSummaryCollector collector, CassandraProfile profile) {
+        return getSegments(agentRollupId, query, profile).thenCompose(segments -> {
+            List<CompletableFuture<TransactionNameSummaryBucket>> futures = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (segment.cacheKey == null) {
+                    futures.add(readTransactionNameSummaryBucket(agentRollupId,
+                            checkNotNull(segment.query), profile).toCompletableFuture());
+                } else {
+                    SummaryCacheKey cacheKey = segment.cacheKey;
+                    futures.add(transactionNameSummaryCache.get(cacheKey).thenApply(bucket -> {
+                        if (bucket.transactionNameSummaries().isEmpty()) {
+                            transactionNameSummaryCache.invalidate(cacheKey);
+                        }
+                        return bucket;
+                    }));
+                }
+            }
+            return CompletableFutures.allAsList(futures);
+        }).thenAccept(buckets -> {
+            // buckets are merged at the end (instead of as they complete) since the collector is
+            // not thread safe
+            for (TransactionNameSummaryBucket bucket : buckets) {
+                for (CachedTransactionNameSummary summary : bucket
+                        .transactionNameSummaries()) {
+                    collector.collect(summary.transactionName(), summary.totalDurationNanos(),
+                            summary.totalCpuNanos(), summary.totalAllocatedBytes(),
+                            summary.transactionCount(), bucket.lastCaptureTime());
+                }
+            }
+        });
+    }
+
+    // this is only used by tests (after truncating all aggregate tables)
+    void invalidateAll() {
+        generation++;
+    }
+
+    private CompletionStage<List<Segment>> getSegments(String agentRollupId, SummaryQuery query,
+            CassandraProfile profile) {
+        RollupConfig rollupConfig = rollupConfigs.get(query.rollupLevel());
+        long bucketMillis = rollupConfig.viewThresholdMillis();
+        long finalizedTo = clock.currentTimeMillis() - rollupConfig.intervalMillis()
+                - FINALIZATION_DELAY_MILLIS;
+        // query.from() is non-inclusive, so the first bucket that is fully covered by the query is
+        // (firstBucketFrom, firstBucketFrom + bucketMillis]
+        long firstBucketFrom =
+                LongMath.divide(query.from(), bucketMillis, RoundingMode.CEILING) * bucketMillis;
+        if (firstBucketFrom + bucketMillis > Math.min(query.to(), finalizedTo)) {
+            // no need to read the rollup progress since there are no cacheable buckets anyways
+            return CompletableFuture.completedFuture(getSegments(agentRollupId, query,
+                    firstBucketFrom, query.from()));
+        }
+        // the wall clock alone is not sufficient when rollups are lagging behind, since then the
+        // rolled up data for the bucket can still be incomplete
+        return rollupCompletedThroughReader
+                .readRollupCompletedThroughTime(agentRollupId, query.rollupLevel(), profile)
+                .thenApply(rolledUpTo -> getSegments(agentRollupId, query, firstBucketFrom,
+                        Math.min(query.to(), Math.min(finalizedTo, rolledUpTo))));
+    }
+
+    private List<Segment> getSegments(String agentRollupId, SummaryQuery query,
+            long firstBucketFrom, long cacheableTo) {
+        long bucketMillis = rollupConfigs.get(query.rollupLevel()).viewThresholdMillis();
+        int generation = this.generation;
+        List<Segment> segments = new ArrayList<>();
+        long bucketFrom = firstBucketFrom;
+        while (bucketFrom + bucketMillis <= cacheableTo) {
+            segments.add(new Segment(null, ImmutableSummaryCacheKey.of(agentRollupId,
+                    query.transactionType(), query.rollupLevel(), bucketFrom + bucketMillis,
+                    generation)));
+            bucketFrom += bucketMillis;
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(query, null));
+            return segments;
+        }
+        if (firstBucketFrom > query.from()) {
+            segments.add(new Segment(copyOf(query, query.from(), firstBucketFrom), null));
+        }
+        if (bucketFrom < query.to()) {
+            segments.add(new Segment(copyOf(query, bucketFrom, query.to()), null));
+        }
+        return segments;
+    }
+
+    private CompletionStage<OverallSummaryBucket> readOverallSummaryBucket(String agentRollupId,
+            SummaryQuery query, CassandraProfile profile) {
+        OverallSummaryCollector collector = new OverallSummaryCollector();
+        return overallSummaryReader.mergeOverallSummaryInto(agentRollupId, query, collector,
+                profile).thenApply(ignored -> {
+                    OverallSummary overallSummary = collector.getOverallSummary();
+                    return ImmutableOverallSummaryBucket.builder()
+                            .totalDurationNanos(overallSummary.totalDurationNanos())
+                            .totalCpuNanos(overallSummary.totalCpuNanos())
+                            .totalAllocatedBytes(overallSummary.totalAllocatedBytes())
+                            .transactionCount(overallSummary.transactionCount())
+                            .lastCaptureTime(collector.getLastCaptureTime())
+                            .build();
+                });
+    }
+
+    private CompletionStage<TransactionNameSummaryBucket> readTransactionNameSummaryBucket(
+            String agentRollupId, SummaryQuery query, CassandraProfile profile) {
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        return transactionNameSummaryReader.mergeTransactionNameSummariesInto(agentRollupId,
+                query, collector, profile).thenApply(ignored -> {
+                    ImmutableTransactionNameSummaryBucket.Builder builder =
+                            ImmutableTransactionNameSummaryBucket.builder()
+                                    .lastCaptureTime(collector.getLastCaptureTime());
+                    // sort order is irrelevant here
+                    for (TransactionNameSummary summary : collector
+                            .getResult(SummarySortOrder.TOTAL_TIME, Integer.MAX_VALUE).records()) {
+                        builder.addTransactionNameSummaries(ImmutableCachedTransactionNameSummary
+                                .builder()
+                                .transactionName(summary.transactionName())
+                                .totalDurationNanos(summary.totalDurationNanos())
+                                .totalCpuNanos(summary.totalCpuNanos())
+                                .totalAllocatedBytes(summary.totalAllocatedBytes())
+                                .transactionCount(summary.transactionCount())
+                                .build());
+                    }
+                    return builder.build();
+                });
+    }
+
+    private SummaryQuery getBucketQuery(SummaryCacheKey key) {
+        long bucketMillis = rollupConfigs.get(key.rollupLevel()).viewThresholdMillis();
+        return ImmutableSummaryQuery.builder()
+                .transactionType(key.transactionType())
+                .from(key.to() - bucketMillis)
+                .to(key.to())
+                .rollupLevel(key.rollupLevel())
+                .build();
+    }
+
+    private static SummaryQuery copyOf(SummaryQuery query, long from, long to) {
+        return ImmutableSummaryQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    interface RollupCompletedThroughReader {
+        CompletionStage<Long> readRollupCompletedThroughTime(String agentRollupId,
+                int rollupLevel, CassandraProfile profile);
+    }
+
+    interface OverallSummaryReader {
+        // query.from() is non-inclusive
+        CompletionStage<?> mergeOverallSummaryInto(String agentRollupId, SummaryQuery query,
+                OverallSummaryCollector collector, CassandraProfile profile);
+    }
+
+    interface TransactionNameSummaryReader {
+        // query.from() is non-inclusive
+        CompletionStage<?> mergeTransactionNameSummariesInto(String agentRollupId,
+                SummaryQuery query, TransactionNameSummaryCollector collector,
+                CassandraProfile profile);
+    }
+
+    private static class Segment {
+
+        // non-null when this segment is read from cassandra
+        private final @Nullable SummaryQuery query;
+        // non-null when this segment is read from cache
+        private final @Nullable SummaryCacheKey cacheKey;
+
+        private Segment(@Nullable SummaryQuery query, @Nullable SummaryCacheKey cacheKey) {
+            this.query = query;
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface SummaryCacheKey extends Serializable {
+        String agentRollupId();
+        String transactionType();
+        int rollupLevel();
+        // bucket end (inclusive), the bucket start (non-inclusive) is derived from the rollup level
+        long to();
+        int generation();
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    interface OverallSummaryBucket extends Serializable {
+        double totalDurationNanos();
+        double totalCpuNanos();
+        double totalAllocatedBytes();
+        long transactionCount();
+        long lastCaptureTime();
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    interface TransactionNameSummaryBucket extends Serializable {
+        List<CachedTransactionNameSummary> transactionNameSummaries();
+        long lastCaptureTime();
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    interface CachedTransactionNameSummary extends Serializable {
+        String transactionName();
+        double totalDurationNanos();
+        double totalCpuNanos();
+        double totalAllocatedBytes();
+        long transactionCount();
+    }
+}
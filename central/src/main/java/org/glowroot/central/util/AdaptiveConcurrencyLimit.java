@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.connection.BusyConnectionException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// additive increase / multiplicative decrease limit on the number of concurrent async requests,
+// where requests over the limit are queued (instead of blocking the caller, which is usually a
+// cassandra driver or grpc thread)
+//
+// the queue is bounded, and requests over the queue length fail immediately (with
+// RejectedExecutionException), so that sustained cassandra slowness is pushed back to the caller
+// instead of accumulating pending requests in memory
+class AdaptiveConcurrencyLimit {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueLength;
+
+    @GuardedBy("this")
+    private double limit;
+    @GuardedBy("this")
+    private int inFlight;
+    @GuardedBy("this")
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+    AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, int maxQueueLength) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueueLength = maxQueueLength;
+        limit = initialLimit;
+    }
+
+    <T> CompletionStage<T> submit(Supplier<? extends CompletionStage<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            CompletionStage<T> future;
+            try {
+                future = task.get();
+            } catch (Throwable t) {
+                onComplete(t);
+                result.completeExceptionally(t);
+                return;
+            }
+            future.whenComplete((value, t) -> {
+                onComplete(t);
+                if (t == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            });
+        };
+        boolean runNow;
+        boolean rejected = false;
+        synchronized (this) {
+            runNow = inFlight < (int) limit;
+            if (runNow) {
+                inFlight++;
+            } else if (waiting.size() < maxQueueLength) {
+                waiting.add(runnable);
+            } else {
+                rejected = true;
+            }
+        }
+        if (runNow) {
+            runnable.run();
+        } else if (rejected) {
+            result.completeExceptionally(new RejectedExecutionException(
+                    "Too many pending requests (" + maxQueueLength + ")"));
+        }
+        return result;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getQueueLength() {
+        return waiting.size();
+    }
+
+    private void onComplete(@Nullable Throwable t) {
+        List<Runnable> toRun = new ArrayList<>();
+        synchronized (this) {
+            if (t != null && isOverloaded(t)) {
+                limit = Math.max(minLimit, limit / 2);
+            } else {
+                // increases the limit by approximately one for every "limit" completions
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            inFlight--;
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                toRun.add(waiting.remove());
+            }
+        }
+        for (Runnable runnable : toRun) {
+            runnable.run();
+        }
+    }
+
+    private static boolean isOverloaded(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t instanceof WriteTimeoutException || t instanceof OverloadedException
+                || t instanceof DriverTimeoutException || t instanceof BusyConnectionException;
+    }
+}
@@ -34,7 +34,9 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common2.repo.ImmutableCassandraWriteAmplification;
 import org.glowroot.common2.repo.ImmutableCassandraWriteTotals;
+import org.glowroot.common2.repo.RepoAdmin.CassandraWriteAmplification;
 import org.glowroot.common2.repo.RepoAdmin.CassandraWriteTotals;
 
 import static com.datastax.oss.protocol.internal.ProtocolConstants.DataType.BLOB;
@@ -56,6 +58,9 @@ public class CassandraWriteMetrics {
 
     private final Map<String, WriteMetrics> writeMetrics = new ConcurrentHashMap<>();
 
+    // keyed by agent rollup id
+    private final Map<String, WriteAmplification> writeAmplification = new ConcurrentHashMap<>();
+
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
@@ -78,8 +83,10 @@ public class CassandraWriteMetrics {
         // clear metrics once a day (midnight UTC) to make sure the map of agent rollup ids doesn't
         // grow unbounded, and also so map of transaction names doesn't become stagnant once it
         // reaches limit
-        scheduledExecutor.scheduleAtFixedRate(writeMetrics::clear, millisUntilNextMidnightUTC,
-                DAYS.toMillis(1), MILLISECONDS);
+        scheduledExecutor.scheduleAtFixedRate(() -> {
+            writeMetrics.clear();
+            writeAmplification.clear();
+        }, millisUntilNextMidnightUTC, DAYS.toMillis(1), MILLISECONDS);
     }
 
     public void setCurrTransactionType(@Nullable String transactionType) {
@@ -137,9 +144,48 @@ public class CassandraWriteMetrics {
         return getCassandraDataWritten(perTableMetrics.nestedWriteMetricsMap, limit);
     }
 
+    public List<CassandraWriteAmplification> getWriteAmplificationPerAgentRollup(int limit) {
+        return writeAmplification.entrySet().stream()
+                .sorted(Comparator.comparingLong(
+                        (Map.Entry<String, WriteAmplification> e) -> e.getValue().writeRequests.get())
+                        .reversed())
+                .limit(limit)
+                .map(e -> e.getValue().toCassandraWriteAmplification(e.getKey()))
+                .collect(Collectors.toList());
+    }
+
+    // size of the data received from the agent that led to the writes, used as the denominator
+    // for write amplification
+    public void recordBytesReceived(String agentRollupId, long bytes) {
+        writeAmplification.computeIfAbsent(agentRollupId, k -> new WriteAmplification())
+                .bytesReceived.addAndGet(bytes);
+    }
+
+    // captures the thread local context of the current (submitting) thread, for writes that are
+    // executed later, potentially from a different thread (see WriteBatcher)
+    WriteContext captureContext() {
+        return new WriteContext(currTransactionType.get(), currTransactionName.get(),
+                partialTrace.get());
+    }
+
     void recordMetrics(Statement statement) {
+        recordMetrics(statement, captureContext());
+    }
+
+    void recordMetrics(Statement<?> statement, WriteContext context) {
         try {
-            recordMetricsInternal(statement);
+            recordMetricsInternal(statement, true, context);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    // a batch is a single write request, regardless of the number of statements in it
+    void recordBatchMetrics(List<? extends Statement<?>> statements, List<WriteContext> contexts) {
+        try {
+            for (int i = 0; i < statements.size(); i++) {
+                recordMetricsInternal(statements.get(i), i == 0, contexts.get(i));
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
@@ -154,7 +200,8 @@ public class CassandraWriteMetrics {
         }
     }
 
-    private void recordMetricsInternal(Statement statement) {
+    private void recordMetricsInternal(Statement<?> statement, boolean newWriteRequest,
+            WriteContext context) {
         if (!(statement instanceof BoundStatement)) {
             return;
         }
@@ -164,7 +211,7 @@ public class CassandraWriteMetrics {
                 preparedStatement.getVariableDefinitions();
         String tableName = columnDefinitions.get(0).getTable().asInternal();
         String display;
-        if (partialTrace.get() && !tableName.endsWith("_partial")) {
+        if (context.partialTrace && !tableName.endsWith("_partial")) {
             display = tableName + " (partial trace)";
         } else {
             display = tableName;
@@ -182,8 +229,16 @@ public class CassandraWriteMetrics {
         WriteMetrics perAgentRollupMetrics = perTableMetrics.nestedWriteMetricsMap
                 .computeIfAbsent(agentRollupId, k -> new WriteMetrics(checkNotNull(agentRollupId)));
         perAgentRollupMetrics.rowsWritten.incrementAndGet();
+        // write amplification metrics
+        WriteAmplification perAgentRollupWriteAmplification = writeAmplification
+                .computeIfAbsent(agentRollupId, k -> new WriteAmplification());
+        perAgentRollupWriteAmplification.rowsWritten.incrementAndGet();
+        if (newWriteRequest) {
+            perAgentRollupWriteAmplification.writeRequests.incrementAndGet();
+        }
         // per transaction type metrics
-        String transactionType = getTransactionType(columnDefinitions, boundStatement);
+        String transactionType =
+                getTransactionType(columnDefinitions, boundStatement, context.transactionType);
         WriteMetrics perTransactionTypeMetrics = null;
         WriteMetrics perTransactionNameMetrics = null;
         if (transactionType != null) {
@@ -193,7 +248,8 @@ public class CassandraWriteMetrics {
             perTransactionTypeMetrics.rowsWritten.incrementAndGet();
             // per transaction name metrics
             String transactionName = transactionType == null ? null
-                    : getTransactionName(columnDefinitions, boundStatement);
+                    : getTransactionName(columnDefinitions, boundStatement,
+                            context.transactionName);
             if (transactionName != null) {
                 Map<String, WriteMetrics> nestedWriteMetricsMap =
                         perTransactionTypeMetrics.nestedWriteMetricsMap;
@@ -238,6 +294,7 @@ public class CassandraWriteMetrics {
                         .computeIfAbsent(columnName, k -> new AtomicLong())
                         .addAndGet(numBytes);
                 perAgentRollupMetrics.bytesWritten.addAndGet(numBytes);
+                perAgentRollupWriteAmplification.bytesWritten.addAndGet(numBytes);
                 perAgentRollupMetrics.bytesWrittenPerColumn
                         .computeIfAbsent(columnName, k -> new AtomicLong())
                         .addAndGet(numBytes);
@@ -257,31 +314,31 @@ public class CassandraWriteMetrics {
         }
     }
 
-    private @Nullable String getTransactionType(
-            ColumnDefinitions columnDefinitions, BoundStatement boundStatement) {
+    private static @Nullable String getTransactionType(ColumnDefinitions columnDefinitions,
+            BoundStatement boundStatement, @Nullable String contextTransactionType) {
         if (columnDefinitions.size() < 2) {
-            return currTransactionType.get();
+            return contextTransactionType;
         }
         ColumnDefinition columnDefinition = columnDefinitions.get(1);
         String columnDefinitionName = columnDefinition.getName().asInternal();
         if (columnDefinitionName.equals("transaction_type")) {
             return boundStatement.getString(1);
         } else {
-            return currTransactionType.get();
+            return contextTransactionType;
         }
     }
 
-    private @Nullable String getTransactionName(
-            ColumnDefinitions columnDefinitions, BoundStatement boundStatement) {
+    private static @Nullable String getTransactionName(ColumnDefinitions columnDefinitions,
+            BoundStatement boundStatement, @Nullable String contextTransactionName) {
         if (columnDefinitions.size() < 3) {
-            return currTransactionName.get();
+            return contextTransactionName;
         }
         ColumnDefinition columnDefinition = columnDefinitions.get(2);
         String columnDefinitionName = columnDefinition.getName().asInternal();
         if (columnDefinitionName.equals("transaction_name")) {
             return boundStatement.getString(2);
         } else {
-            return currTransactionName.get();
+            return contextTransactionName;
         }
     }
 
@@ -342,6 +399,38 @@ public class CassandraWriteMetrics {
                 .collect(Collectors.toList());
     }
 
+    static class WriteContext {
+
+        private final @Nullable String transactionType;
+        private final @Nullable String transactionName;
+        private final boolean partialTrace;
+
+        private WriteContext(@Nullable String transactionType, @Nullable String transactionName,
+                boolean partialTrace) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.partialTrace = partialTrace;
+        }
+    }
+
+    private static class WriteAmplification {
+
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong rowsWritten = new AtomicLong();
+        private final AtomicLong writeRequests = new AtomicLong();
+
+        private CassandraWriteAmplification toCassandraWriteAmplification(String agentRollupId) {
+            return ImmutableCassandraWriteAmplification.builder()
+                    .agentRollupId(agentRollupId)
+                    .bytesReceived(bytesReceived.get())
+                    .bytesWritten(bytesWritten.get())
+                    .rowsWritten(rowsWritten.get())
+                    .writeRequests(writeRequests.get())
+                    .build();
+        }
+    }
+
     private static class WriteMetrics {
 
         private final String display;
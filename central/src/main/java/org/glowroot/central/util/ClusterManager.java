@@ -91,6 +91,12 @@ public abstract class ClusterManager implements AutoCloseable {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> AsyncCache<K, V> createSelfBoundedAsyncCache(
             String cacheName, AsyncCacheLoader<K, V> loader);
 
+    // unlike the other caches, entries are shared across the cluster (instead of only being
+    // invalidated across the cluster), so this is only suitable for values that never change
+    public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> AsyncCache<K, V> createSharedExpiringAsyncCache(
+            String cacheName, int size, long expirationTime, TimeUnit expirationUnit,
+            AsyncCacheLoader<K, V> loader);
+
     public abstract <K extends /*@NonNull*/ Serializable> LockSet<K> createReplicatedLockSet(
             String mapName, long expirationTime, TimeUnit expirationUnit);
 
@@ -164,6 +170,24 @@ public abstract class ClusterManager implements AutoCloseable {
             return new AsyncCacheImpl<K, V>(cacheManager.getCache(cacheName), loader, executor);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> AsyncCache<K, V> createSharedExpiringAsyncCache(
+                String cacheName, int size, long expirationTime, TimeUnit expirationUnit,
+                AsyncCacheLoader<K, V> loader) {
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.DIST_ASYNC)
+                    .expiration()
+                    .lifespan(expirationTime, expirationUnit)
+                    .memory()
+                    .maxCount(size)
+                    .whenFull(EvictionStrategy.REMOVE)
+                    .statistics()
+                    .enable();
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            return new AsyncCacheImpl<K, V>(cacheManager.getCache(cacheName), loader, executor);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable> LockSet<K> createReplicatedLockSet(
                 String mapName, long expirationTime, TimeUnit expirationUnit) {
@@ -290,6 +314,18 @@ public abstract class ClusterManager implements AutoCloseable {
             return new NonClusterAsyncCacheImpl<K, V>(loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> AsyncCache<K, V> createSharedExpiringAsyncCache(
+                String cacheName, int size, long expirationTime, TimeUnit expirationUnit,
+                AsyncCacheLoader<K, V> loader) {
+            ConcurrentMap<K, V> cache = CacheBuilder.newBuilder()
+                    .maximumSize(size)
+                    .expireAfterWrite(expirationTime, expirationUnit)
+                    .<K, V>build()
+                    .asMap();
+            return new NonClusterAsyncCacheImpl<K, V>(cache, loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
                 String cacheName) {
@@ -414,10 +450,15 @@ public abstract class ClusterManager implements AutoCloseable {
     private static class NonClusterAsyncCacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements AsyncCache<K, V> {
 
-        private final ConcurrentMap<K, V> cache = new ConcurrentHashMap<>();
+        private final ConcurrentMap<K, V> cache;
         private final AsyncCacheLoader<K, V> loader;
 
         private NonClusterAsyncCacheImpl(AsyncCacheLoader<K, V> loader) {
+            this(new ConcurrentHashMap<>(), loader);
+        }
+
+        private NonClusterAsyncCacheImpl(ConcurrentMap<K, V> cache, AsyncCacheLoader<K, V> loader) {
+            this.cache = cache;
             this.loader = loader;
         }
 
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.glowroot.common.util.Clock;
+
+public class RollupLagStats implements RollupLagStatsMXBean {
+
+    private final Clock clock;
+
+    // max lag per rollup level observed during the current pass
+    private final AtomicLongArray currentPassLagMillis;
+
+    private final AtomicInteger inFlightAgentRollupCount = new AtomicInteger();
+    private final AtomicInteger queuedAgentRollupCount = new AtomicInteger();
+
+    private final AtomicLong currentPassGaugeValuesRolledUp = new AtomicLong();
+
+    private volatile long[] lagMillis;
+    private volatile long lastPassDurationMillis;
+    private volatile int lastPassAgentRollupCount;
+    private volatile int lastPassSkippedAgentRollupCount;
+    private volatile long lastPassGaugeValuesRolledUp;
+    private volatile double lastPassGaugeValuesRolledUpPerSecond;
+
+    public RollupLagStats(int rollupLevelCount, Clock clock) {
+        this.clock = clock;
+        currentPassLagMillis = new AtomicLongArray(rollupLevelCount);
+        lagMillis = new long[rollupLevelCount];
+    }
+
+    public void recordPendingRollup(int rollupLevel, long captureTime) {
+        if (rollupLevel >= currentPassLagMillis.length()) {
+            // rollup configs are fixed at startup, but be defensive
+            return;
+        }
+        long lag = Math.max(clock.currentTimeMillis() - captureTime, 0);
+        currentPassLagMillis.accumulateAndGet(rollupLevel, lag, Math::max);
+    }
+
+    // count is the number of (lower rollup level) gauge values that were rolled up
+    public void gaugeValuesRolledUp(long count) {
+        currentPassGaugeValuesRolledUp.addAndGet(count);
+    }
+
+    public void agentRollupQueued() {
+        queuedAgentRollupCount.incrementAndGet();
+    }
+
+    public void agentRollupStarted() {
+        queuedAgentRollupCount.decrementAndGet();
+        inFlightAgentRollupCount.incrementAndGet();
+    }
+
+    public void agentRollupSkipped() {
+        queuedAgentRollupCount.decrementAndGet();
+    }
+
+    public void agentRollupCompleted() {
+        inFlightAgentRollupCount.decrementAndGet();
+    }
+
+    public void passCompleted(long durationMillis, int agentRollupCount,
+            int skippedAgentRollupCount) {
+        long[] lagMillis = new long[currentPassLagMillis.length()];
+        for (int i = 0; i < lagMillis.length; i++) {
+            lagMillis[i] = currentPassLagMillis.getAndSet(i, 0);
+        }
+        this.lagMillis = lagMillis;
+        lastPassDurationMillis = durationMillis;
+        lastPassAgentRollupCount = agentRollupCount;
+        lastPassSkippedAgentRollupCount = skippedAgentRollupCount;
+        long gaugeValuesRolledUp = currentPassGaugeValuesRolledUp.getAndSet(0);
+        lastPassGaugeValuesRolledUp = gaugeValuesRolledUp;
+        lastPassGaugeValuesRolledUpPerSecond =
+                durationMillis == 0 ? 0 : gaugeValuesRolledUp * 1000.0 / durationMillis;
+    }
+
+    @Override
+    public long[] getLagMillis() {
+        return lagMillis.clone();
+    }
+
+    @Override
+    public long getLastPassDurationMillis() {
+        return lastPassDurationMillis;
+    }
+
+    @Override
+    public int getLastPassAgentRollupCount() {
+        return lastPassAgentRollupCount;
+    }
+
+    @Override
+    public int getLastPassSkippedAgentRollupCount() {
+        return lastPassSkippedAgentRollupCount;
+    }
+
+    @Override
+    public long getLastPassGaugeValuesRolledUp() {
+        return lastPassGaugeValuesRolledUp;
+    }
+
+    @Override
+    public double getLastPassGaugeValuesRolledUpPerSecond() {
+        return lastPassGaugeValuesRolledUpPerSecond;
+    }
+
+    @Override
+    public int getInFlightAgentRollupCount() {
+        return inFlightAgentRollupCount.get();
+    }
+
+    @Override
+    public int getQueuedAgentRollupCount() {
+        return queuedAgentRollupCount.get();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+public interface RollupLagStatsMXBean {
+
+    // indexed by rollup level, the age of the oldest pending rollup processed during the last
+    // completed rollup pass (zero if there was nothing pending at that level)
+    long[] getLagMillis();
+
+    long getLastPassDurationMillis();
+    int getLastPassAgentRollupCount();
+    int getLastPassSkippedAgentRollupCount();
+    long getLastPassGaugeValuesRolledUp();
+    double getLastPassGaugeValuesRolledUpPerSecond();
+
+    int getInFlightAgentRollupCount();
+    int getQueuedAgentRollupCount();
+}
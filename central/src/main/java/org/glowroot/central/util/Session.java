@@ -15,8 +15,9 @@
  */
 package org.glowroot.central.util;
 
-
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.CompletionStage;
@@ -33,6 +34,7 @@ import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.glowroot.central.util.CassandraWriteMetrics.WriteContext;
 import org.glowroot.common2.repo.CassandraProfile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +45,15 @@ public class Session implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
+    // keep batches well under cassandra's default batch_size_fail_threshold_in_kb (50kb)
+    private static final int MAX_BATCH_STATEMENTS = 50;
+    private static final int MAX_BATCH_BYTES = 40 * 1024;
+
+    // bounds the memory held by pending batches while cassandra is slow, batches over this are
+    // failed immediately (and the agent retries them later)
+    private static final int MAX_BATCH_WRITE_QUEUE_LENGTH =
+            Integer.getInteger("glowroot.internal.cassandra.maxBatchWriteQueueLength", 10000);
+
     private final CqlSession wrappedSession;
     private final String keyspaceName;
     private final @Nullable ConsistencyLevel writeConsistencyLevel;
@@ -52,14 +63,25 @@ public class Session implements AutoCloseable {
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
 
+    private final boolean batchWrites;
+    private final AdaptiveConcurrencyLimit batchWriteLimit =
+            new AdaptiveConcurrencyLimit(32, 4, 512, MAX_BATCH_WRITE_QUEUE_LENGTH);
+
     public Session(CqlSession wrappedSession, String keyspaceName,
                    @Nullable ConsistencyLevel writeConsistencyLevel, int gcGraceSeconds)
             throws Exception {
+        this(wrappedSession, keyspaceName, writeConsistencyLevel, gcGraceSeconds, false);
+    }
+
+    public Session(CqlSession wrappedSession, String keyspaceName,
+                   @Nullable ConsistencyLevel writeConsistencyLevel, int gcGraceSeconds,
+                   boolean batchWrites) throws Exception {
         this.wrappedSession = wrappedSession;
         this.keyspaceName = keyspaceName;
         this.writeConsistencyLevel = writeConsistencyLevel;
 
         this.gcGraceSeconds = gcGraceSeconds;
+        this.batchWrites = batchWrites;
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
 
@@ -158,14 +180,53 @@ public class Session implements AutoCloseable {
     }
 
     public CompletionStage<AsyncResultSet> writeAsync(Statement<?> statement, CassandraProfile profile) {
+        return writeAsync(statement, profile, cassandraWriteMetrics.captureContext());
+    }
+
+    // the write context is captured by the thread that submitted the write, which may not be the
+    // current thread (see WriteBatcher)
+    CompletionStage<AsyncResultSet> writeAsync(Statement<?> statement, CassandraProfile profile,
+            WriteContext writeContext) {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement = statement.setConsistencyLevel(writeConsistencyLevel);
         }
         statement = statement.setExecutionProfileName(profile.name());
-        cassandraWriteMetrics.recordMetrics(statement);
+        cassandraWriteMetrics.recordMetrics(statement, writeContext);
         return wrappedSession.executeAsync(statement);
     }
 
+    // when batch writes are disabled, the returned batcher passes writes straight through to
+    // writeAsync()
+    public WriteBatcher newWriteBatcher(CassandraProfile profile) {
+        return new WriteBatcher(this, profile, batchWrites ? MAX_BATCH_STATEMENTS : 1,
+                MAX_BATCH_BYTES);
+    }
+
+    WriteContext captureWriteContext() {
+        return cassandraWriteMetrics.captureContext();
+    }
+
+    // all statements must share the same routing key, and writeContexts must be in the same order
+    // as the statements
+    CompletionStage<AsyncResultSet> writeBatchAsync(ByteBuffer routingKey,
+            List<BoundStatement> boundStatements, List<WriteContext> writeContexts,
+            CassandraProfile profile) {
+        BatchStatement batchStatement = BatchStatement.newInstance(BatchType.UNLOGGED)
+                .addAll(boundStatements)
+                .setRoutingKey(routingKey)
+                .setExecutionProfileName(profile.name());
+        if (writeConsistencyLevel != null) {
+            batchStatement = batchStatement.setConsistencyLevel(writeConsistencyLevel);
+        }
+        cassandraWriteMetrics.recordBatchMetrics(boundStatements, writeContexts);
+        BatchStatement finalBatchStatement = batchStatement;
+        return batchWriteLimit.submit(() -> wrappedSession.executeAsync(finalBatchStatement));
+    }
+
+    int computeSizeInBytes(Statement<?> statement) {
+        return statement.computeSizeInBytes(wrappedSession.getContext());
+    }
+
     public String getKeyspaceName() {
         return keyspaceName;
     }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinition;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.central.util.CassandraWriteMetrics.WriteContext;
+import org.glowroot.common2.repo.CassandraProfile;
+
+// groups writes by partition (keyspace, table and routing key) into unlogged batches, so that each
+// batch is a single-partition batch, which is sent (token-aware) to a replica that owns all of the
+// rows in the batch
+//
+// this is not thread safe, writes are expected to be added from a single thread and then flushed
+public class WriteBatcher {
+
+    private final Session session;
+    private final CassandraProfile profile;
+    private final int maxBatchStatements;
+    private final int maxBatchBytes;
+
+    private final Map<PartitionKey, List<PendingWrite>> pendingWrites = new LinkedHashMap<>();
+
+    WriteBatcher(Session session, CassandraProfile profile, int maxBatchStatements,
+            int maxBatchBytes) {
+        this.session = session;
+        this.profile = profile;
+        this.maxBatchStatements = maxBatchStatements;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    // the returned future is not completed until after flush() is called
+    public CompletableFuture<?> writeAsync(BoundStatement boundStatement) {
+        @Nullable PartitionKey partitionKey =
+                maxBatchStatements > 1 ? PartitionKey.of(boundStatement) : null;
+        if (partitionKey == null) {
+            return session.writeAsync(boundStatement, profile).toCompletableFuture();
+        }
+        // the write metrics context is captured here, since flush() may be called from a
+        // different thread
+        PendingWrite pendingWrite =
+                new PendingWrite(boundStatement, session.captureWriteContext());
+        pendingWrites.computeIfAbsent(partitionKey, k -> new ArrayList<>()).add(pendingWrite);
+        return pendingWrite.future;
+    }
+
+    public void flush() {
+        for (Map.Entry<PartitionKey, List<PendingWrite>> entry : pendingWrites.entrySet()) {
+            ByteBuffer routingKey = entry.getKey().routingKey;
+            List<PendingWrite> batch = new ArrayList<>();
+            int batchBytes = 0;
+            for (PendingWrite pendingWrite : entry.getValue()) {
+                int bytes = session.computeSizeInBytes(pendingWrite.boundStatement);
+                if (!batch.isEmpty() && (batch.size() == maxBatchStatements
+                        || batchBytes + bytes > maxBatchBytes)) {
+                    execute(routingKey, batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(pendingWrite);
+                batchBytes += bytes;
+            }
+            execute(routingKey, batch);
+        }
+        pendingWrites.clear();
+    }
+
+    private void execute(ByteBuffer routingKey, List<PendingWrite> batch) {
+        if (batch.size() == 1) {
+            PendingWrite pendingWrite = batch.get(0);
+            complete(session.writeAsync(pendingWrite.boundStatement, profile,
+                    pendingWrite.writeContext).toCompletableFuture(), batch);
+            return;
+        }
+        List<BoundStatement> boundStatements = new ArrayList<>(batch.size());
+        List<WriteContext> writeContexts = new ArrayList<>(batch.size());
+        for (PendingWrite pendingWrite : batch) {
+            boundStatements.add(pendingWrite.boundStatement);
+            writeContexts.add(pendingWrite.writeContext);
+        }
+        complete(session.writeBatchAsync(routingKey, boundStatements, writeContexts, profile)
+                .toCompletableFuture(), batch);
+    }
+
+    private static void complete(CompletableFuture<?> future, List<PendingWrite> batch) {
+        future.whenComplete((result, t) -> {
+            for (PendingWrite pendingWrite : batch) {
+                if (t == null) {
+                    pendingWrite.future.complete(null);
+                } else {
+                    pendingWrite.future.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    // the routing key alone does not identify a partition, since different tables (e.g. the
+    // different aggregate tables for the same agent rollup and capture time) can have equal
+    // routing keys
+    private static class PartitionKey {
+
+        private final CqlIdentifier keyspace;
+        private final CqlIdentifier table;
+        private final ByteBuffer routingKey;
+
+        private PartitionKey(CqlIdentifier keyspace, CqlIdentifier table, ByteBuffer routingKey) {
+            this.keyspace = keyspace;
+            this.table = table;
+            this.routingKey = routingKey;
+        }
+
+        private static @Nullable PartitionKey of(BoundStatement boundStatement) {
+            ByteBuffer routingKey = boundStatement.getRoutingKey();
+            if (routingKey == null) {
+                return null;
+            }
+            ColumnDefinitions variableDefinitions =
+                    boundStatement.getPreparedStatement().getVariableDefinitions();
+            if (variableDefinitions.size() == 0) {
+                return null;
+            }
+            ColumnDefinition columnDefinition = variableDefinitions.get(0);
+            return new PartitionKey(columnDefinition.getKeyspace(), columnDefinition.getTable(),
+                    routingKey);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof PartitionKey)) {
+                return false;
+            }
+            PartitionKey that = (PartitionKey) obj;
+            return keyspace.equals(that.keyspace) && table.equals(that.table)
+                    && routingKey.equals(that.routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keyspace, table, routingKey);
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final BoundStatement boundStatement;
+        private final WriteContext writeContext;
+        private final CompletableFuture</*@Nullable*/ Void> future = new CompletableFuture<>();
+
+        private PendingWrite(BoundStatement boundStatement, WriteContext writeContext) {
+            this.boundStatement = boundStatement;
+            this.writeContext = writeContext;
+        }
+    }
+}
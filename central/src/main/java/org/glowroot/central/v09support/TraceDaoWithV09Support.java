@@ -80,6 +80,21 @@ public class TraceDaoWithV09Support implements TraceDao {
         return delegate.store(agentId, trace);
     }
 
+    // entries are only streamed for post v09 agents, whose traces are never stored under v09 agent
+    // rollup ids
+    @CheckReturnValue
+    @Override
+    public CompletionStage<?> storeEntries(String agentId, String traceId, int startIndex,
+                                           List<Trace.Entry> entries) {
+        return delegate.storeEntries(agentId, traceId, startIndex, entries);
+    }
+
+    @CheckReturnValue
+    @Override
+    public CompletionStage<?> deleteEntries(String agentId, String traceId) {
+        return delegate.deleteEntries(agentId, traceId);
+    }
+
     @Override
     public CompletionStage<Long> readSlowCount(String agentRollupId, TraceQuery query) {
         return splitCountIfNeeded(agentRollupId, query, (id, q) -> delegate.readSlowCount(id, q));
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceEntryStreamWriterTest {
+
+    @Test
+    public void shouldWriteHugeTraceInBoundedChunks() {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        List<Integer> startIndexes = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        when(traceDao.storeEntries(anyString(), anyString(), anyInt(), anyList()))
+                .thenAnswer(invocation -> {
+                    startIndexes.add(invocation.getArgument(2));
+                    List<?> entries = invocation.getArgument(3);
+                    chunkSizes.add(entries.size());
+                    return CompletableFuture.completedFuture(null);
+                });
+        TraceEntryStreamWriter writer = newWriter(traceDao);
+        Trace.Entry entry = Trace.Entry.newBuilder()
+                .setDepth(0)
+                .setMessage("synthetic entry")
+                .build();
+
+        // when
+        for (int i = 0; i < 1000000; i++) {
+            writer.add(entry);
+        }
+        writer.finish().toCompletableFuture().join();
+
+        // then
+        assertThat(writer.getEntryCount()).isEqualTo(1000000);
+        assertThat(chunkSizes).hasSize(1000000 / TraceEntryStreamWriter.CHUNK_SIZE);
+        assertThat(chunkSizes).containsOnly(TraceEntryStreamWriter.CHUNK_SIZE);
+        for (int i = 0; i < startIndexes.size(); i++) {
+            assertThat(startIndexes.get(i)).isEqualTo(i * TraceEntryStreamWriter.CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    public void shouldWriteRemainingEntriesOnFinish() {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        List<Integer> chunkSizes = new ArrayList<>();
+        when(traceDao.storeEntries(anyString(), anyString(), anyInt(), anyList()))
+                .thenAnswer(invocation -> {
+                    List<?> entries = invocation.getArgument(3);
+                    chunkSizes.add(entries.size());
+                    return CompletableFuture.completedFuture(null);
+                });
+        TraceEntryStreamWriter writer = newWriter(traceDao);
+        List<Trace.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < TraceEntryStreamWriter.CHUNK_SIZE + 5; i++) {
+            entries.add(Trace.Entry.getDefaultInstance());
+        }
+
+        // when
+        writer.addAll(entries);
+        writer.finish().toCompletableFuture().join();
+
+        // then
+        assertThat(chunkSizes).containsExactly(TraceEntryStreamWriter.CHUNK_SIZE, 5);
+    }
+
+    @Test
+    public void shouldPropagateWriteFailure() {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        doReturn(CompletableFuture.failedFuture(new IllegalStateException("A msg")))
+                .when(traceDao).storeEntries(anyString(), anyString(), anyInt(), anyList());
+        TraceEntryStreamWriter writer = newWriter(traceDao);
+        writer.add(Trace.Entry.getDefaultInstance());
+
+        // when
+        CompletableFuture<?> future = writer.finish().toCompletableFuture();
+
+        // then
+        assertThatThrownBy(future::join).isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldNotWriteAfterFailure() {
+        // given
+        TraceDao traceDao = mock(TraceDao.class);
+        CompletableFuture<?> firstChunk = new CompletableFuture<>();
+        doReturn(firstChunk).when(traceDao).storeEntries(anyString(), anyString(), anyInt(),
+                anyList());
+        TraceEntryStreamWriter writer = newWriter(traceDao);
+        for (int i = 0; i < 2 * TraceEntryStreamWriter.CHUNK_SIZE; i++) {
+            writer.add(Trace.Entry.getDefaultInstance());
+        }
+
+        // when
+        firstChunk.completeExceptionally(new IllegalStateException("A msg"));
+
+        // then
+        assertThat(writer.getWritten().toCompletableFuture()).isCompletedExceptionally();
+        verify(traceDao, times(1)).storeEntries(anyString(), anyString(), anyInt(), anyList());
+    }
+
+    private static TraceEntryStreamWriter newWriter(TraceDao traceDao) {
+        return new TraceEntryStreamWriter(
+                (startIndex, entries) -> traceDao.storeEntries("xyz", "abc", startIndex, entries));
+    }
+}
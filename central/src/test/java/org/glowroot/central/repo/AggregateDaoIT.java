@@ -36,6 +36,7 @@ import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrde
 import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -78,6 +79,7 @@ public class AggregateDaoIT {
     private AgentConfigDao agentConfigDao;
     private ActiveAgentDao activeAgentDao;
     private FullQueryTextDao fullQueryTextDao;
+    private AggregateDaoImpl aggregateDaoImpl;
     private AggregateDao aggregateDao;
 
     @BeforeAll
@@ -126,13 +128,45 @@ public class AggregateDaoIT {
                 new RollupLevelService(configRepository, Clock.systemClock());
         activeAgentDao = new ActiveAgentDao(session, agentDisplayDao, agentConfigDao,
                 configRepository, rollupLevelService, Clock.systemClock());
+        aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, clusterManager, asyncExecutor, 0,
+                Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
-                new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, asyncExecutor, 0, Clock.systemClock()));
+                aggregateDaoImpl);
 
         session.updateSchemaWithRetry("truncate agent_config");
     }
 
+    @Test
+    public void shouldRecordRollupCompletedThroughTimePerAgentRollup() throws Exception {
+        // given
+        aggregateDao.truncateAll();
+        long startTime = System.currentTimeMillis();
+        List<RollupConfig> rollupConfigs = RollupConfig.buildRollupConfigs();
+
+        // when
+        aggregateDao.rollup("one").toCompletableFuture().join();
+
+        // then
+        assertThat(aggregateDaoImpl.readRollupCompletedThroughTime("one", 1, web)
+                .toCompletableFuture().join())
+                        .isGreaterThanOrEqualTo(
+                                startTime - rollupConfigs.get(1).intervalMillis() - 1);
+        // rollup level 2 is not known to be complete until rollup level 1 was complete as of the
+        // prior pass
+        assertThat(aggregateDaoImpl.readRollupCompletedThroughTime("one", 2, web)
+                .toCompletableFuture().join()).isEqualTo(0);
+        assertThat(aggregateDaoImpl.readRollupCompletedThroughTime("two", 1, web)
+                .toCompletableFuture().join()).isEqualTo(0);
+
+        // and when
+        aggregateDao.rollup("one").toCompletableFuture().join();
+
+        // then
+        assertThat(aggregateDaoImpl.readRollupCompletedThroughTime("one", 2, web)
+                .toCompletableFuture().join()).isGreaterThan(0);
+    }
+
     @Test
     public void shouldRollup() throws Exception {
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common2.repo.ImmutableErrorMessageFilter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorMessageMatcherTest {
+
+    @Test
+    public void shouldMatchAllWithEmptyFilter() {
+        // given
+        ErrorMessageMatcher matcher =
+                ErrorMessageMatcher.create(ImmutableErrorMessageFilter.builder().build());
+
+        // when/then
+        assertThat(matcher.matches("anything")).isTrue();
+        assertThat(matcher.matches("")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchIncludesAndExcludesIgnoringCase() {
+        // given
+        ErrorMessageMatcher matcher = ErrorMessageMatcher.create(
+                ImmutableErrorMessageFilter.builder()
+                        .addIncludes("timeout")
+                        .addExcludes("Read")
+                        .build());
+
+        // when/then
+        assertThat(matcher.matches("Connection TIMEOUT after 30s")).isTrue();
+        assertThat(matcher.matches("read timeout after 30s")).isFalse();
+        assertThat(matcher.matches("Connection refused")).isFalse();
+        // repeated (memoized) messages
+        assertThat(matcher.matches("Connection TIMEOUT after 30s")).isTrue();
+        assertThat(matcher.matches("read timeout after 30s")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchSubstring() {
+        // given
+        ErrorMessageMatcher matcher = ErrorMessageMatcher.create("refused");
+
+        // when/then
+        assertThat(matcher.matches("Connection refused")).isTrue();
+        assertThat(matcher.matches("Connection REFUSED")).isFalse();
+    }
+
+    @Test
+    public void shouldOnlyMatchTemplatesWhenTermsHaveNoDigits() {
+        assertThat(ErrorMessageMatcher.create(ImmutableErrorMessageFilter.builder()
+                .addIncludes("not found")
+                .addExcludes("Order")
+                .build()).canMatchTemplates()).isTrue();
+        assertThat(ErrorMessageMatcher.create(ImmutableErrorMessageFilter.builder()
+                .addIncludes("order 123")
+                .build()).canMatchTemplates()).isFalse();
+        assertThat(ErrorMessageMatcher.create(ImmutableErrorMessageFilter.builder()
+                .addExcludes("#")
+                .build()).canMatchTemplates()).isFalse();
+        assertThat(ErrorMessageMatcher.create("refused").canMatchTemplates()).isTrue();
+        assertThat(ErrorMessageMatcher.create("/refused/").canMatchTemplates()).isFalse();
+    }
+
+    @Test
+    public void shouldMatchRegex() {
+        // given
+        ErrorMessageMatcher matcher = ErrorMessageMatcher.create("/(?i)order \\d+ not found/");
+
+        // when/then
+        assertThat(matcher.matches("Order 123 not found")).isTrue();
+        assertThat(matcher.matches("Order abc not found")).isFalse();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common2.repo.ImmutableErrorMessageFilter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorMessageTemplatesTest {
+
+    @Test
+    public void shouldReplaceRunsOfDigits() {
+        assertThat(ErrorMessageTemplates.getTemplate("Order 123 not found"))
+                .isEqualTo("Order # not found");
+        assertThat(ErrorMessageTemplates.getTemplate("a1b22c333")).isEqualTo("a#b#c#");
+        assertThat(ErrorMessageTemplates.getTemplate("12:34")).isEqualTo("#:#");
+        assertThat(ErrorMessageTemplates.getTemplate("no digits")).isEqualTo("no digits");
+        assertThat(ErrorMessageTemplates.getTemplateId("Order # not found"))
+                .isEqualTo(ErrorMessageTemplates.getTemplateId(
+                        ErrorMessageTemplates.getTemplate("Order 456 not found")));
+    }
+
+    @Test
+    public void shouldMatchTemplateSameAsErrorMessage() {
+        // given
+        Random random = new Random(0);
+        String alphabet = "aB1#2 x";
+
+        for (int i = 0; i < 10000; i++) {
+            String errorMessage = randomString(random, alphabet, 12);
+            String include = randomString(random, alphabet, 3);
+            String exclude = randomString(random, alphabet, 2);
+            ErrorMessageMatcher matcher = ErrorMessageMatcher.create(
+                    ImmutableErrorMessageFilter.builder()
+                            .addIncludes(include)
+                            .addExcludes(exclude)
+                            .build());
+            if (!matcher.canMatchTemplates()) {
+                continue;
+            }
+
+            // when
+            boolean matches = matcher.matches(errorMessage);
+            boolean templateMatches =
+                    matcher.matches(ErrorMessageTemplates.getTemplate(errorMessage));
+
+            // then
+            assertThat(templateMatches).as("%s / %s / %s", errorMessage, include, exclude)
+                    .isEqualTo(matches);
+        }
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        int length = 1 + random.nextInt(maxLength);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeRollupBufferTest {
+
+    @Test
+    public void shouldComputeWeightedAveragePerGauge() {
+        // given
+        GaugeRollupBuffer buffer = new GaugeRollupBuffer(ImmutableList.of("a", "b", "c"));
+
+        // when
+        buffer.add("a", 10, 1);
+        buffer.add("b", 5, 2);
+        buffer.add("a", 40, 2);
+        buffer.add("b", 20, 1);
+
+        // then
+        assertThat(buffer.size()).isEqualTo(3);
+        assertThat(buffer.getGaugeName(0)).isEqualTo("a");
+        assertThat(buffer.getTotalWeight(0)).isEqualTo(3);
+        assertThat(buffer.getWeightedAverage(0)).isEqualTo(30);
+        assertThat(buffer.getGaugeName(1)).isEqualTo("b");
+        assertThat(buffer.getTotalWeight(1)).isEqualTo(3);
+        assertThat(buffer.getWeightedAverage(1)).isEqualTo(10);
+        assertThat(buffer.getGaugeName(2)).isEqualTo("c");
+        assertThat(buffer.getTotalWeight(2)).isEqualTo(0);
+        assertThat(buffer.getValueCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldIgnoreUnrequestedGauge() {
+        // given
+        GaugeRollupBuffer buffer = new GaugeRollupBuffer(ImmutableList.of("a"));
+
+        // when
+        buffer.add("x", 10, 1);
+
+        // then
+        assertThat(buffer.getTotalWeight(0)).isEqualTo(0);
+        assertThat(buffer.getValueCount()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlowPointBucketsTest {
+
+    private static final long BUCKET_MILLIS = SlowPointBuckets.BUCKET_MILLIS;
+
+    @Test
+    public void shouldUseBucketEndTime() {
+        assertThat(SlowPointBuckets.getBucketTime(1)).isEqualTo(BUCKET_MILLIS);
+        assertThat(SlowPointBuckets.getBucketTime(BUCKET_MILLIS)).isEqualTo(BUCKET_MILLIS);
+        assertThat(SlowPointBuckets.getBucketTime(BUCKET_MILLIS + 1))
+                .isEqualTo(2 * BUCKET_MILLIS);
+    }
+
+    @Test
+    public void shouldOnlyReadBucketsThatCanAffectResult() throws Exception {
+        // given
+        // bucket k has trace points with durations k * 10 and k * 10 - 5
+        SlowPointBuckets buckets = new SlowPointBuckets();
+        for (int k = 1; k <= 20; k++) {
+            buckets.add(k * BUCKET_MILLIS, k * 10 - 5);
+            buckets.add(k * BUCKET_MILLIS, k * 10);
+        }
+        List<Long> readBucketTimes = new ArrayList<>();
+
+        // when
+        TopTracePoints tracePoints =
+                buckets.read(reader(readBucketTimes, 0), 0, 3).toCompletableFuture().get();
+
+        // then
+        // first (parallel) round reads the slowest buckets, after which the remaining buckets
+        // cannot affect the result
+        assertThat(readBucketTimes).hasSize(SlowPointBuckets.PARALLELISM);
+        assertThat(readBucketTimes.get(0)).isEqualTo(20 * BUCKET_MILLIS);
+        Result<TracePoint> result = tracePoints.toResult();
+        assertThat(result.records()).extracting(TracePoint::durationNanos)
+                .containsExactly(190L, 200L, 195L);
+        assertThat(result.moreAvailable()).isTrue();
+    }
+
+    @Test
+    public void shouldNotReadBucketsBelowDurationFilter() throws Exception {
+        // given
+        SlowPointBuckets buckets = new SlowPointBuckets();
+        for (int k = 1; k <= 20; k++) {
+            buckets.add(k * BUCKET_MILLIS, k * 10);
+        }
+        List<Long> readBucketTimes = new ArrayList<>();
+
+        // when
+        TopTracePoints tracePoints =
+                buckets.read(reader(readBucketTimes, 150), 150, 100).toCompletableFuture().get();
+
+        // then
+        assertThat(readBucketTimes).containsExactlyInAnyOrder(15 * BUCKET_MILLIS,
+                16 * BUCKET_MILLIS, 17 * BUCKET_MILLIS, 18 * BUCKET_MILLIS, 19 * BUCKET_MILLIS,
+                20 * BUCKET_MILLIS);
+        Result<TracePoint> result = tracePoints.toResult();
+        assertThat(result.records()).hasSize(11);
+        assertThat(result.moreAvailable()).isFalse();
+    }
+
+    @Test
+    public void shouldReadBucketsNotCoveredByMax() throws Exception {
+        // given
+        // buckets 1 through 10 were stored before the upgrade (no max rows), bucket 15 was stored
+        // during a rolling upgrade (its max row doesn't cover all of its trace points), and
+        // buckets 11 through 20 were stored after the upgrade
+        SlowPointBuckets buckets = new SlowPointBuckets();
+        for (int k = 1; k <= 10; k++) {
+            buckets.addNotCovered(k * BUCKET_MILLIS);
+        }
+        for (int k = 11; k <= 20; k++) {
+            buckets.add(k * BUCKET_MILLIS, k * 10);
+        }
+        buckets.addNotCovered(15 * BUCKET_MILLIS);
+        List<Long> readBucketTimes = new ArrayList<>();
+
+        // when
+        TopTracePoints tracePoints =
+                buckets.read(reader(readBucketTimes, 0), 0, 3).toCompletableFuture().get();
+
+        // then
+        assertThat(readBucketTimes).contains(1 * BUCKET_MILLIS, 2 * BUCKET_MILLIS,
+                3 * BUCKET_MILLIS, 4 * BUCKET_MILLIS, 5 * BUCKET_MILLIS, 6 * BUCKET_MILLIS,
+                7 * BUCKET_MILLIS, 8 * BUCKET_MILLIS, 9 * BUCKET_MILLIS, 10 * BUCKET_MILLIS,
+                15 * BUCKET_MILLIS);
+        // the slowest covered buckets are read along with the remaining not covered buckets,
+        // after which the remaining (faster) covered buckets cannot affect the result
+        assertThat(readBucketTimes).contains(20 * BUCKET_MILLIS);
+        assertThat(readBucketTimes).doesNotContain(11 * BUCKET_MILLIS, 12 * BUCKET_MILLIS,
+                13 * BUCKET_MILLIS, 14 * BUCKET_MILLIS);
+        Result<TracePoint> result = tracePoints.toResult();
+        assertThat(result.records()).extracting(TracePoint::durationNanos)
+                .containsExactly(190L, 200L, 195L);
+        assertThat(result.moreAvailable()).isTrue();
+    }
+
+    // simulates reading the trace points of bucket k, with durations k * 10 and k * 10 - 5, and
+    // with capture times matching the bucket order
+    private static Function<Long, CompletionStage<TopTracePoints>> reader(
+            List<Long> readBucketTimes, long durationNanosLow) {
+        return bucketTime -> {
+            readBucketTimes.add(bucketTime);
+            long k = bucketTime / BUCKET_MILLIS;
+            TopTracePoints tracePoints = new TopTracePoints(Integer.MAX_VALUE);
+            if (k * 10 - 5 >= durationNanosLow) {
+                tracePoints.add(createTracePoint(bucketTime - 1, k * 10 - 5));
+            }
+            if (k * 10 >= durationNanosLow) {
+                tracePoints.add(createTracePoint(bucketTime - 2, k * 10));
+            }
+            return CompletableFuture.completedFuture(tracePoints);
+        };
+    }
+
+    private static TracePoint createTracePoint(long captureTime, long durationNanos) {
+        return ImmutableTracePoint.builder()
+                .agentId("xyz")
+                .traceId("trace" + captureTime)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(false)
+                .error(false)
+                .checkLiveTraces(false)
+                .build();
+    }
+}
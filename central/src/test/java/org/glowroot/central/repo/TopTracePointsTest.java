@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TopTracePointsTest {
+
+    @Test
+    public void shouldMatchFullSort() {
+        // given
+        Random random = new Random(0);
+        List<TracePoint> tracePoints = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            tracePoints.add(createTracePoint(i, random.nextInt(1000)));
+        }
+        TopTracePoints topTracePoints = new TopTracePoints(100);
+
+        // when
+        for (TracePoint tracePoint : tracePoints) {
+            topTracePoints.add(tracePoint);
+        }
+
+        // then
+        Result<TracePoint> result = topTracePoints.toResult();
+        assertThat(result.records()).isEqualTo(TraceDaoImpl
+                .applyLimitByDurationNanosAndThenSortByCaptureTime(tracePoints, 100));
+        assertThat(result.moreAvailable()).isTrue();
+    }
+
+    @Test
+    public void shouldNotExceedLimit() {
+        // given
+        TopTracePoints topTracePoints = new TopTracePoints(3);
+
+        // when
+        topTracePoints.add(createTracePoint(1, 10));
+        topTracePoints.add(createTracePoint(2, 30));
+        topTracePoints.add(createTracePoint(3, 20));
+
+        // then
+        assertThat(topTracePoints.isLimitExceeded()).isFalse();
+        assertThat(topTracePoints.isCandidate(5)).isTrue();
+        Result<TracePoint> result = topTracePoints.toResult();
+        assertThat(result.records()).extracting(TracePoint::captureTime).containsExactly(1L, 2L,
+                3L);
+        assertThat(result.moreAvailable()).isFalse();
+    }
+
+    @Test
+    public void shouldSkipNonCandidatesOnceLimitExceeded() {
+        // given
+        TopTracePoints topTracePoints = new TopTracePoints(2);
+
+        // when
+        topTracePoints.add(createTracePoint(1, 10));
+        topTracePoints.add(createTracePoint(2, 30));
+        topTracePoints.add(createTracePoint(3, 20));
+
+        // then
+        assertThat(topTracePoints.isLimitExceeded()).isTrue();
+        assertThat(topTracePoints.isCandidate(20)).isFalse();
+        assertThat(topTracePoints.isCandidate(21)).isTrue();
+        assertThat(topTracePoints.toResult().records()).extracting(TracePoint::captureTime)
+                .containsExactly(2L, 3L);
+    }
+
+    private static TracePoint createTracePoint(long captureTime, long durationNanos) {
+        return ImmutableTracePoint.builder()
+                .agentId("xyz")
+                .traceId("trace" + captureTime)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(false)
+                .error(false)
+                .checkLiveTraces(false)
+                .build();
+    }
+}
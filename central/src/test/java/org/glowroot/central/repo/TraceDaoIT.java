@@ -18,17 +18,24 @@ package org.glowroot.central.repo;
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.CqlSessionBuilder;
 import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.google.common.collect.ImmutableSet;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Session;
 import org.glowroot.central.v09support.TraceDaoWithV09Support;
 import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.model.Result;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.config.ImmutableCentralStorageConfig;
 import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ImmutableErrorMessageFilter;
 import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.ErrorMessageCount;
+import org.glowroot.common2.repo.TraceRepository.ErrorMessagePoint;
+import org.glowroot.common2.repo.TraceRepository.ErrorMessageResult;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import org.junit.jupiter.api.*;
@@ -40,6 +47,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.testcontainers.containers.CassandraContainer;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -394,6 +402,49 @@ public class TraceDaoIT {
         assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
     }
 
+    @Test
+    public void shouldReadTraceStoredBeforeSlowMaxTables() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(false);
+        traceDao.store(AGENT_ID, trace).toCompletableFuture().get();
+        // same as a trace stored before the slow max tables existed (or stored by an older
+        // central node during a rolling upgrade)
+        session.updateSchemaWithRetry("truncate table trace_tt_slow_max");
+        session.updateSchemaWithRetry("truncate table trace_tn_slow_max");
+        Instant captureTime = Instant.ofEpochMilli(trace.getHeader().getCaptureTime());
+        session.write(SimpleStatement.newInstance("delete slow_max from trace_tt_slow_count where"
+                + " agent_rollup = ? and transaction_type = ? and capture_time = ? and agent_id = ?"
+                + " and trace_id = ?", AGENT_ID, "unit test", captureTime, AGENT_ID,
+                trace.getId()), CassandraProfile.collector);
+        session.write(SimpleStatement.newInstance("delete slow_max from trace_tn_slow_count where"
+                + " agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
+                + " capture_time = ? and agent_id = ? and trace_id = ?", AGENT_ID, "unit test",
+                "test transaction name", captureTime, AGENT_ID, trace.getId()),
+                CassandraProfile.collector);
+        TraceQuery overallQuery = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TraceQuery transactionQuery = ImmutableTraceQuery.copyOf(overallQuery)
+                .withTransactionName("test transaction name");
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        Result<TracePoint> overallResult = traceDao
+                .readSlowPoints(AGENT_ID, overallQuery, filter, 1).toCompletableFuture().get();
+        Result<TracePoint> transactionResult = traceDao
+                .readSlowPoints(AGENT_ID, transactionQuery, filter, 1).toCompletableFuture().get();
+
+        // then
+        assertThat(overallResult.records()).extracting(TracePoint::traceId)
+                .containsExactly(trace.getId());
+        assertThat(transactionResult.records()).extracting(TracePoint::traceId)
+                .containsExactly(trace.getId());
+    }
+
     @Test
     public void shouldReadTraceError() throws Exception {
         // given
@@ -424,6 +475,41 @@ public class TraceDaoIT {
         assertThat(cf).succeedsWithin(Duration.ofMillis(60_000));
     }
 
+    @Test
+    public void shouldReadErrorMessagesPerTemplate() throws Exception {
+        // given
+        for (String errorMessage : new String[] {"Order 123 not found", "Order 456 not found",
+                "Customer 789 not active"}) {
+            Trace trace = TraceTestData.createTrace(false);
+            trace = trace.toBuilder()
+                    .setHeader(trace.getHeader().toBuilder()
+                            .setError(Trace.Error.newBuilder()
+                                    .setMessage(errorMessage)))
+                    .build();
+            traceDao.store(AGENT_ID, trace).toCompletableFuture().get();
+        }
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(AGENT_ID, query,
+                ImmutableErrorMessageFilter.builder()
+                        .addIncludes("not found")
+                        .build(),
+                60000, 10).toCompletableFuture().get();
+
+        // then
+        assertThat(result.points()).extracting(ErrorMessagePoint::errorCount)
+                .containsExactly(2L);
+        assertThat(result.counts().records()).extracting(ErrorMessageCount::message)
+                .containsExactly("Order # not found");
+        assertThat(result.counts().records()).extracting(ErrorMessageCount::count)
+                .containsExactly(2L);
+    }
+
     @Test
     public void shouldReadTraceErrorCaseInsensitive() throws Exception {
         // given
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableSummaryQuery;
+import org.glowroot.common.live.LiveAggregateRepository.SummaryQuery;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.model.TransactionNameSummaryCollector;
+import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionNameSummaryCollector.TransactionNameSummary;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.CassandraProfile;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionSummaryCacheTest {
+
+    private static final long NOW = HOURS.toMillis(240);
+
+    // rollup level 1 has 5 minute intervals and 1 hour buckets, so this spans a partial bucket,
+    // 8 finalized buckets and the current (not yet finalized) bucket
+    private static final SummaryQuery QUERY = ImmutableSummaryQuery.builder()
+            .transactionType("Web")
+            .from(HOURS.toMillis(230) + MINUTES.toMillis(15))
+            .to(NOW)
+            .rollupLevel(1)
+            .build();
+
+    private List<SummaryQuery> queries;
+    private long transactionCount;
+    private long rolledUpTo;
+    private int rollupProgressReadCount;
+    private TransactionSummaryCache transactionSummaryCache;
+
+    @BeforeEach
+    public void beforeEachTest() {
+        queries = new ArrayList<>();
+        transactionCount = 1;
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(NOW);
+        // no rollups pending
+        rolledUpTo = NOW - MINUTES.toMillis(5) - 1;
+        rollupProgressReadCount = 0;
+        transactionSummaryCache = new TransactionSummaryCache(ClusterManager.create(),
+                RollupConfig.buildRollupConfigs(), clock,
+                (agentRollupId, rollupLevel, profile) -> {
+                    rollupProgressReadCount++;
+                    return CompletableFuture.completedFuture(rolledUpTo);
+                },
+                (agentRollupId, query, collector, profile) -> {
+                    queries.add(query);
+                    collector.mergeSummary(1000, 100, 10, transactionCount, query.to());
+                    return CompletableFuture.completedFuture(null);
+                },
+                (agentRollupId, query, collector, profile) -> {
+                    queries.add(query);
+                    collector.collect("tn", 1000, 100, 10, 1, query.to());
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    @Test
+    public void shouldOnlyReadPartialBucketsOnSecondRead() {
+        // given
+        readOverallSummary();
+        queries.clear();
+
+        // when
+        OverallSummaryCollector collector = readOverallSummary();
+
+        // then
+        assertThat(collector.getOverallSummary().transactionCount()).isEqualTo(10);
+        assertThat(collector.getOverallSummary().totalDurationNanos()).isEqualTo(10000);
+        assertThat(collector.getLastCaptureTime()).isEqualTo(NOW);
+        assertThat(queries).extracting(SummaryQuery::from).containsExactly(QUERY.from(),
+                HOURS.toMillis(239));
+        assertThat(queries).extracting(SummaryQuery::to).containsExactly(HOURS.toMillis(231),
+                NOW);
+    }
+
+    @Test
+    public void shouldReadBucketsAlignedToRollupLevel() {
+        // when
+        readOverallSummary();
+
+        // then
+        assertThat(queries).hasSize(10);
+        for (SummaryQuery query : queries) {
+            assertThat(query.rollupLevel()).isEqualTo(1);
+            assertThat(query.transactionType()).isEqualTo("Web");
+        }
+        long from = HOURS.toMillis(231);
+        for (SummaryQuery query : queries.subList(0, 8)) {
+            assertThat(query.from()).isEqualTo(from);
+            assertThat(query.to()).isEqualTo(from + HOURS.toMillis(1));
+            from += HOURS.toMillis(1);
+        }
+    }
+
+    @Test
+    public void shouldMergeCachedTransactionNameSummaries() {
+        // given
+        readTransactionNameSummaries();
+        queries.clear();
+
+        // when
+        TransactionNameSummaryCollector collector = readTransactionNameSummaries();
+
+        // then
+        Result<TransactionNameSummary> result =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+        assertThat(result.records()).hasSize(1);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("tn");
+        assertThat(result.records().get(0).transactionCount()).isEqualTo(10);
+        assertThat(collector.getLastCaptureTime()).isEqualTo(NOW);
+        assertThat(queries).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotCacheBucketsThatAreNotRolledUpYet() {
+        // given
+        // e.g. rolled up by another central collector node which is lagging behind
+        rolledUpTo = HOURS.toMillis(235) + MINUTES.toMillis(5) - 1;
+        readOverallSummary();
+        queries.clear();
+
+        // when
+        readOverallSummary();
+
+        // then
+        assertThat(queries).extracting(SummaryQuery::from).containsExactly(QUERY.from(),
+                HOURS.toMillis(235));
+        assertThat(queries).extracting(SummaryQuery::to).containsExactly(HOURS.toMillis(231),
+                NOW);
+    }
+
+    @Test
+    public void shouldNotCacheEmptyBuckets() {
+        // given
+        transactionCount = 0;
+        readOverallSummary();
+        queries.clear();
+
+        // when
+        readOverallSummary();
+
+        // then
+        assertThat(queries).hasSize(10);
+    }
+
+    @Test
+    public void shouldNotUseBucketsCachedBeforeInvalidateAll() {
+        // given
+        readOverallSummary();
+        queries.clear();
+
+        // when
+        transactionSummaryCache.invalidateAll();
+        readOverallSummary();
+
+        // then
+        assertThat(queries).hasSize(10);
+    }
+
+    @Test
+    public void shouldNotCacheShortQuery() {
+        // given
+        SummaryQuery query = ImmutableSummaryQuery.builder()
+                .copyFrom(QUERY)
+                .from(HOURS.toMillis(200) + MINUTES.toMillis(15))
+                .to(HOURS.toMillis(200) + MINUTES.toMillis(45))
+                .build();
+        OverallSummaryCollector collector = new OverallSummaryCollector();
+
+        // when
+        transactionSummaryCache.mergeOverallSummaryInto("xyz", query, collector,
+                CassandraProfile.web).toCompletableFuture().join();
+        transactionSummaryCache.mergeOverallSummaryInto("xyz", query, collector,
+                CassandraProfile.web).toCompletableFuture().join();
+
+        // then
+        assertThat(queries).containsExactly(query, query);
+        assertThat(rollupProgressReadCount).isEqualTo(0);
+    }
+
+    private OverallSummaryCollector readOverallSummary() {
+        OverallSummaryCollector collector = new OverallSummaryCollector();
+        transactionSummaryCache.mergeOverallSummaryInto("xyz", QUERY, collector,
+                CassandraProfile.web).toCompletableFuture().join();
+        return collector;
+    }
+
+    private TransactionNameSummaryCollector readTransactionNameSummaries() {
+        TransactionNameSummaryCollector collector = new TransactionNameSummaryCollector();
+        transactionSummaryCache.mergeTransactionNameSummariesInto("xyz", QUERY, collector,
+                CassandraProfile.web).toCompletableFuture().join();
+        return collector;
+    }
+}
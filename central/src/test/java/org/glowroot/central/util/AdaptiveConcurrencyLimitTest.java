@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void shouldQueueOverLimit() {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10, 10);
+        List<CompletableFuture<String>> tasks = new ArrayList<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<String> task = new CompletableFuture<>();
+            tasks.add(task);
+            results.add(limit.submit(() -> task).toCompletableFuture());
+        }
+
+        // then
+        assertThat(limit.getInFlight()).isEqualTo(2);
+        assertThat(limit.getQueueLength()).isEqualTo(1);
+        tasks.get(0).complete("a");
+        assertThat(results.get(0)).isCompletedWithValue("a");
+        assertThat(limit.getInFlight()).isEqualTo(2);
+        assertThat(limit.getQueueLength()).isEqualTo(0);
+        tasks.get(1).complete("b");
+        tasks.get(2).complete("c");
+        assertThat(results.get(2)).isCompletedWithValue("c");
+        assertThat(limit.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldBackOffOnTimeout() {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(16, 4, 32, 10);
+        CompletableFuture<String> task = new CompletableFuture<>();
+
+        // when
+        CompletableFuture<String> result = limit.submit(() -> task).toCompletableFuture();
+        task.completeExceptionally(new DriverTimeoutException("timeout"));
+
+        // then
+        assertThat(result).isCompletedExceptionally();
+        assertThat(limit.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    public void shouldNotBackOffBelowMin() {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 4, 32, 10);
+        CompletableFuture<String> task = new CompletableFuture<>();
+
+        // when
+        limit.submit(() -> task);
+        task.completeExceptionally(new DriverTimeoutException("timeout"));
+
+        // then
+        assertThat(limit.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 10, 1);
+        CompletableFuture<String> task = new CompletableFuture<>();
+        limit.submit(() -> task);
+        limit.submit(() -> task);
+
+        // when
+        CompletableFuture<String> result = limit.submit(() -> task).toCompletableFuture();
+
+        // then
+        assertThat(result).isCompletedExceptionally();
+        assertThatThrownBy(result::join).hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(limit.getInFlight()).isEqualTo(1);
+        assertThat(limit.getQueueLength()).isEqualTo(1);
+    }
+}
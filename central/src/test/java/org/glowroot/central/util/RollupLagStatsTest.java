@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupLagStatsTest {
+
+    @Test
+    public void shouldReportMaxLagPerLevelForLastPass() {
+        // given
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(600000L);
+        RollupLagStats rollupLagStats = new RollupLagStats(3, clock);
+
+        // when
+        rollupLagStats.recordPendingRollup(0, 540000);
+        rollupLagStats.recordPendingRollup(1, 300000);
+        rollupLagStats.recordPendingRollup(1, 420000);
+        rollupLagStats.passCompleted(1234, 10, 2);
+
+        // then
+        assertThat(rollupLagStats.getLagMillis()).containsExactly(60000, 300000, 0);
+        assertThat(rollupLagStats.getLastPassDurationMillis()).isEqualTo(1234);
+        assertThat(rollupLagStats.getLastPassAgentRollupCount()).isEqualTo(10);
+        assertThat(rollupLagStats.getLastPassSkippedAgentRollupCount()).isEqualTo(2);
+
+        // and next pass starts over
+        rollupLagStats.passCompleted(1, 10, 0);
+        assertThat(rollupLagStats.getLagMillis()).containsExactly(0, 0, 0);
+    }
+
+    @Test
+    public void shouldReportGaugeValuesRolledUpPerSecondForLastPass() {
+        // given
+        RollupLagStats rollupLagStats = new RollupLagStats(1, mock(Clock.class));
+
+        // when
+        rollupLagStats.gaugeValuesRolledUp(3000);
+        rollupLagStats.gaugeValuesRolledUp(1000);
+        rollupLagStats.passCompleted(2000, 10, 0);
+
+        // then
+        assertThat(rollupLagStats.getLastPassGaugeValuesRolledUp()).isEqualTo(4000);
+        assertThat(rollupLagStats.getLastPassGaugeValuesRolledUpPerSecond()).isEqualTo(2000);
+
+        // and next pass starts over
+        rollupLagStats.passCompleted(0, 10, 0);
+        assertThat(rollupLagStats.getLastPassGaugeValuesRolledUp()).isEqualTo(0);
+        assertThat(rollupLagStats.getLastPassGaugeValuesRolledUpPerSecond()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldTrackInFlightAndQueued() {
+        // given
+        RollupLagStats rollupLagStats = new RollupLagStats(1, mock(Clock.class));
+
+        // when
+        rollupLagStats.agentRollupQueued();
+        rollupLagStats.agentRollupQueued();
+        rollupLagStats.agentRollupQueued();
+        rollupLagStats.agentRollupStarted();
+        rollupLagStats.agentRollupSkipped();
+
+        // then
+        assertThat(rollupLagStats.getQueuedAgentRollupCount()).isEqualTo(1);
+        assertThat(rollupLagStats.getInFlightAgentRollupCount()).isEqualTo(1);
+        rollupLagStats.agentRollupCompleted();
+        assertThat(rollupLagStats.getInFlightAgentRollupCount()).isEqualTo(0);
+    }
+}
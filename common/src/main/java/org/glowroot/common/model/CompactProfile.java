@@ -0,0 +1,411 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// struct-of-arrays profile tree, for merging large numbers of profiles (e.g. a day of aggregate
+// profiles for the transaction profile page) without allocating an object and a child list per
+// node
+//
+// nodes are stored in parallel arrays indexed by node id, children are linked lists (first child,
+// last child and next sibling), and node 0 is a synthetic root whose children are the profile root
+// nodes
+//
+// stack frames (package/class/method/file/line) are de-duplicated into a frame table, so that
+// matching a child node only needs to compare frame id and leaf thread state
+public class CompactProfile {
+
+    private static final int ROOT = 0;
+    private static final int NO_NODE = -1;
+
+    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+    private final List<String> packageNames = Lists.newArrayList();
+    private final List<String> classNames = Lists.newArrayList();
+    private final List<String> methodNames = Lists.newArrayList();
+    private final List<String> fileNames = Lists.newArrayList();
+
+    private int frameCount;
+    private int[] framePackageNameIndexes = new int[16];
+    private int[] frameClassNameIndexes = new int[16];
+    private int[] frameMethodNameIndexes = new int[16];
+    private int[] frameFileNameIndexes = new int[16];
+    private int[] frameLineNumbers = new int[16];
+    // open addressing hash table of (frame id + 1), where 0 is an empty slot
+    private int[] frameTable = new int[32];
+
+    private int nodeCount;
+    private int[] frameIds = new int[16];
+    private byte[] leafThreadStates = new byte[16];
+    private int[] parents = new int[16];
+    private int[] firstChildren = new int[16];
+    private int[] lastChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private long[] sampleCounts = new long[16];
+    // only allocated once branches are truncated
+    private long /*@Nullable*/ [] ellipsedSampleCounts;
+
+    public CompactProfile() {
+        nodeCount = 1;
+        parents[ROOT] = NO_NODE;
+        firstChildren[ROOT] = NO_NODE;
+        lastChildren[ROOT] = NO_NODE;
+        nextSiblings[ROOT] = NO_NODE;
+    }
+
+    public void merge(Profile profile) {
+        int[] packageNameIndexMapping = MutableProfile.makeIndexMapping(
+                profile.getPackageNameList(), packageNameIndexes, packageNames);
+        int[] classNameIndexMapping = MutableProfile.makeIndexMapping(profile.getClassNameList(),
+                classNameIndexes, classNames);
+        int[] methodNameIndexMapping = MutableProfile.makeIndexMapping(
+                profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping = MutableProfile.makeIndexMapping(profile.getFileNameList(),
+                fileNameIndexes, fileNames);
+        // parentStack[depth] is the parent node of the next node at that depth
+        int[] parentStack = new int[16];
+        parentStack[0] = ROOT;
+        for (Profile.ProfileNode toBeMergedNode : profile.getNodeList()) {
+            int depth = toBeMergedNode.getDepth();
+            int frameId = getFrameId(packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber());
+            int node = findOrAddChild(parentStack[depth], frameId,
+                    (byte) toBeMergedNode.getLeafThreadStateValue());
+            sampleCounts[node] += toBeMergedNode.getSampleCount();
+            if (depth + 1 == parentStack.length) {
+                parentStack = Arrays.copyOf(parentStack, parentStack.length * 2);
+            }
+            parentStack[depth + 1] = node;
+        }
+    }
+
+    public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
+        int node = ROOT;
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            int frameId = getFrameId(
+                    MutableProfile.getNameIndex(packageName, packageNameIndexes, packageNames),
+                    MutableProfile.getNameIndex(className, classNameIndexes, classNames),
+                    MutableProfile.getNameIndex(
+                            MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
+                                    "<null method name>"),
+                            methodNameIndexes, methodNames),
+                    MutableProfile.getNameIndex(
+                            Strings.nullToEmpty(stackTraceElement.getFileName()), fileNameIndexes,
+                            fileNames),
+                    stackTraceElement.getLineNumber());
+            Profile.LeafThreadState leafThreadState = i == 0
+                    ? MutableProfile.getThreadState(threadState) : Profile.LeafThreadState.NONE;
+            node = findOrAddChild(node, frameId, (byte) leafThreadState.getNumber());
+            sampleCounts[node]++;
+        }
+    }
+
+    public void truncateBranches(double truncateBranchPercentage) {
+        if (truncateBranchPercentage == 0) {
+            return;
+        }
+        int minSamples = (int) Math.ceil(getSampleCount() * truncateBranchPercentage / 100);
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        if (ellipsedSampleCounts == null) {
+            ellipsedSampleCounts = new long[sampleCounts.length];
+            this.ellipsedSampleCounts = ellipsedSampleCounts;
+        }
+        // breadth first, same as MutableProfile (truncated nodes are unlinked and left behind in
+        // the arrays)
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int child = firstChildren[ROOT]; child != NO_NODE; child = nextSiblings[child]) {
+            toBeVisited[tail++] = child;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int prevChild = NO_NODE;
+            for (int child = firstChildren[node]; child != NO_NODE; child = nextSiblings[child]) {
+                if (sampleCounts[child] < minSamples) {
+                    if (prevChild == NO_NODE) {
+                        firstChildren[node] = nextSiblings[child];
+                    } else {
+                        nextSiblings[prevChild] = nextSiblings[child];
+                    }
+                    ellipsedSampleCounts[node] += sampleCounts[child];
+                } else {
+                    toBeVisited[tail++] = child;
+                    prevChild = child;
+                }
+            }
+            lastChildren[node] = prevChild;
+        }
+    }
+
+    public boolean isEmpty() {
+        return firstChildren[ROOT] == NO_NODE;
+    }
+
+    public long getSampleCount() {
+        long sampleCount = 0;
+        for (int child = firstChildren[ROOT]; child != NO_NODE; child = nextSiblings[child]) {
+            sampleCount += sampleCounts[child];
+        }
+        return sampleCount;
+    }
+
+    // nodes are added directly to the builder while walking the arrays, without building an
+    // intermediate tree
+    public Profile toProto() {
+        final Profile.Builder builder = Profile.newBuilder()
+                .addAllPackageName(packageNames)
+                .addAllClassName(classNames)
+                .addAllMethodName(methodNames)
+                .addAllFileName(fileNames);
+        accept(new NodeVisitor() {
+            @Override
+            public void visit(int node, int depth) {
+                int frameId = frameIds[node];
+                builder.addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(framePackageNameIndexes[frameId])
+                        .setClassNameIndex(frameClassNameIndexes[frameId])
+                        .setMethodNameIndex(frameMethodNameIndexes[frameId])
+                        .setFileNameIndex(frameFileNameIndexes[frameId])
+                        .setLineNumber(frameLineNumbers[frameId])
+                        .setLeafThreadStateValue(leafThreadStates[node])
+                        .setSampleCount(sampleCounts[node]));
+            }
+        });
+        return builder.build();
+    }
+
+    // builds a MutableProfile (e.g. for filtering and for writing json), preserving any ellipsed
+    // sample counts from truncation
+    public MutableProfile toMutableProfile() {
+        return MutableProfile.create(this);
+    }
+
+    List<String> getPackageNames() {
+        return packageNames;
+    }
+
+    List<String> getClassNames() {
+        return classNames;
+    }
+
+    List<String> getMethodNames() {
+        return methodNames;
+    }
+
+    List<String> getFileNames() {
+        return fileNames;
+    }
+
+    int getPackageNameIndex(int node) {
+        return framePackageNameIndexes[frameIds[node]];
+    }
+
+    int getClassNameIndex(int node) {
+        return frameClassNameIndexes[frameIds[node]];
+    }
+
+    int getMethodNameIndex(int node) {
+        return frameMethodNameIndexes[frameIds[node]];
+    }
+
+    int getFileNameIndex(int node) {
+        return frameFileNameIndexes[frameIds[node]];
+    }
+
+    int getLineNumber(int node) {
+        return frameLineNumbers[frameIds[node]];
+    }
+
+    Profile.LeafThreadState getLeafThreadState(int node) {
+        Profile.LeafThreadState leafThreadState =
+                Profile.LeafThreadState.forNumber(leafThreadStates[node]);
+        return leafThreadState == null ? Profile.LeafThreadState.NONE : leafThreadState;
+    }
+
+    long getSampleCount(int node) {
+        return sampleCounts[node];
+    }
+
+    long getEllipsedSampleCount(int node) {
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        return ellipsedSampleCounts == null ? 0 : ellipsedSampleCounts[node];
+    }
+
+    // pre-order depth-first, iterative to avoid StackOverflowError on deep profiles
+    void accept(NodeVisitor visitor) {
+        int node = firstChildren[ROOT];
+        int depth = 0;
+        while (node != NO_NODE) {
+            visitor.visit(node, depth);
+            int firstChild = firstChildren[node];
+            if (firstChild != NO_NODE) {
+                node = firstChild;
+                depth++;
+                continue;
+            }
+            while (node != ROOT && nextSiblings[node] == NO_NODE) {
+                node = parents[node];
+                depth--;
+            }
+            node = node == ROOT ? NO_NODE : nextSiblings[node];
+        }
+    }
+
+    private int findOrAddChild(int parent, int frameId, byte leafThreadState) {
+        for (int child = firstChildren[parent]; child != NO_NODE; child = nextSiblings[child]) {
+            if (frameIds[child] == frameId && leafThreadStates[child] == leafThreadState) {
+                return child;
+            }
+        }
+        if (nodeCount == frameIds.length) {
+            growNodes();
+        }
+        int node = nodeCount++;
+        frameIds[node] = frameId;
+        leafThreadStates[node] = leafThreadState;
+        parents[node] = parent;
+        firstChildren[node] = NO_NODE;
+        lastChildren[node] = NO_NODE;
+        nextSiblings[node] = NO_NODE;
+        sampleCounts[node] = 0;
+        int lastChild = lastChildren[parent];
+        if (lastChild == NO_NODE) {
+            firstChildren[parent] = node;
+        } else {
+            nextSiblings[lastChild] = node;
+        }
+        lastChildren[parent] = node;
+        return node;
+    }
+
+    private void growNodes() {
+        int capacity = frameIds.length * 2;
+        frameIds = Arrays.copyOf(frameIds, capacity);
+        leafThreadStates = Arrays.copyOf(leafThreadStates, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+        long[] ellipsedSampleCounts = this.ellipsedSampleCounts;
+        if (ellipsedSampleCounts != null) {
+            this.ellipsedSampleCounts = Arrays.copyOf(ellipsedSampleCounts, capacity);
+        }
+    }
+
+    private int getFrameId(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber) {
+        int mask = frameTable.length - 1;
+        int slot = hash(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber) & mask;
+        while (true) {
+            int entry = frameTable[slot];
+            if (entry == 0) {
+                break;
+            }
+            int frameId = entry - 1;
+            // checking line number first since most likely to be different
+            if (frameLineNumbers[frameId] == lineNumber
+                    && frameMethodNameIndexes[frameId] == methodNameIndex
+                    && frameClassNameIndexes[frameId] == classNameIndex
+                    && framePackageNameIndexes[frameId] == packageNameIndex
+                    && frameFileNameIndexes[frameId] == fileNameIndex) {
+                return frameId;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (frameCount == frameLineNumbers.length) {
+            int capacity = frameCount * 2;
+            framePackageNameIndexes = Arrays.copyOf(framePackageNameIndexes, capacity);
+            frameClassNameIndexes = Arrays.copyOf(frameClassNameIndexes, capacity);
+            frameMethodNameIndexes = Arrays.copyOf(frameMethodNameIndexes, capacity);
+            frameFileNameIndexes = Arrays.copyOf(frameFileNameIndexes, capacity);
+            frameLineNumbers = Arrays.copyOf(frameLineNumbers, capacity);
+        }
+        int frameId = frameCount++;
+        framePackageNameIndexes[frameId] = packageNameIndex;
+        frameClassNameIndexes[frameId] = classNameIndex;
+        frameMethodNameIndexes[frameId] = methodNameIndex;
+        frameFileNameIndexes[frameId] = fileNameIndex;
+        frameLineNumbers[frameId] = lineNumber;
+        frameTable[slot] = frameId + 1;
+        // keep load factor at or below 0.5
+        if (frameCount * 2 > frameTable.length) {
+            rehashFrameTable();
+        }
+        return frameId;
+    }
+
+    private void rehashFrameTable() {
+        int[] newFrameTable = new int[frameTable.length * 2];
+        int mask = newFrameTable.length - 1;
+        for (int frameId = 0; frameId < frameCount; frameId++) {
+            int slot = hash(framePackageNameIndexes[frameId], frameClassNameIndexes[frameId],
+                    frameMethodNameIndexes[frameId], frameFileNameIndexes[frameId],
+                    frameLineNumbers[frameId]) & mask;
+            while (newFrameTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newFrameTable[slot] = frameId + 1;
+        }
+        frameTable = newFrameTable;
+    }
+
+    private static int hash(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber) {
+        int h = packageNameIndex;
+        h = 31 * h + classNameIndex;
+        h = 31 * h + methodNameIndex;
+        h = 31 * h + fileNameIndex;
+        h = 31 * h + lineNumber;
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    interface NodeVisitor {
+        void visit(int node, int depth);
+    }
+}
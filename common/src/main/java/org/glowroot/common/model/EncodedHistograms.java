@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.HdrHistogram.Histogram;
+
+// reads the (uncompressed) V2 encoding produced by HdrHistogram's encodeIntoByteBuffer() and
+// records the counts directly into an existing histogram, which avoids allocating (and zeroing) a
+// full intermediate counts array for every merged histogram
+class EncodedHistograms {
+
+    private static final int V2_ENCODING_COOKIE = 0x1c849303 | 0x10;
+
+    private EncodedHistograms() {}
+
+    // returns false if the encoding is not supported here, in which case the buffer should be
+    // decoded using Histogram.decodeFromByteBuffer() instead
+    static boolean recordInto(ByteBuffer buffer, Histogram histogram) {
+        int initialPosition = buffer.position();
+        if (buffer.remaining() < 40 || buffer.getInt() != V2_ENCODING_COOKIE) {
+            reset(buffer, initialPosition);
+            return false;
+        }
+        int payloadLengthInBytes = buffer.getInt();
+        int normalizingIndexOffset = buffer.getInt();
+        int numberOfSignificantValueDigits = buffer.getInt();
+        long lowestDiscernibleValue = buffer.getLong();
+        buffer.getLong(); // highestTrackableValue
+        buffer.getDouble(); // integerToDoubleValueConversionRatio
+        if (normalizingIndexOffset != 0 || lowestDiscernibleValue < 1
+                || numberOfSignificantValueDigits < 0 || numberOfSignificantValueDigits > 5
+                || buffer.remaining() < payloadLengthInBytes) {
+            reset(buffer, initialPosition);
+            return false;
+        }
+        // same bucket layout calculations as org.HdrHistogram.AbstractHistogram.init()
+        long largestValueWithSingleUnitResolution =
+                2 * (long) Math.pow(10, numberOfSignificantValueDigits);
+        int unitMagnitude = (int) (Math.log(lowestDiscernibleValue) / Math.log(2));
+        int subBucketCountMagnitude =
+                (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        int subBucketHalfCountMagnitude =
+                (subBucketCountMagnitude > 1 ? subBucketCountMagnitude : 1) - 1;
+        int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+
+        int endPosition = buffer.position() + payloadLengthInBytes;
+        int index = 0;
+        while (buffer.position() < endPosition) {
+            long count = getZigZagLong(buffer);
+            if (count < 0) {
+                // negative value encodes a run of zero counts
+                index += (int) -count;
+            } else {
+                if (count > 0) {
+                    histogram.recordValueWithCount(valueFromIndex(index,
+                            subBucketHalfCountMagnitude, subBucketHalfCount, unitMagnitude), count);
+                }
+                index++;
+            }
+        }
+        return true;
+    }
+
+    private static void reset(ByteBuffer buffer, int position) {
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.position(I)Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).position(position);
+    }
+
+    // same as org.HdrHistogram.AbstractHistogram.valueFromIndex()
+    private static long valueFromIndex(int index, int subBucketHalfCountMagnitude,
+            int subBucketHalfCount, int unitMagnitude) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex) << (bucketIndex + unitMagnitude);
+    }
+
+    // same as org.HdrHistogram.ZigZagEncoding.getLong() (LEB128-64b9B variant)
+    private static long getZigZagLong(ByteBuffer buffer) {
+        long v = buffer.get();
+        long value = v & 0x7F;
+        int shift = 7;
+        while ((v & 0x80) != 0 && shift < 56) {
+            v = buffer.get();
+            value |= (v & 0x7F) << shift;
+            shift += 7;
+        }
+        if ((v & 0x80) != 0) {
+            // 9th byte uses all 8 bits
+            v = buffer.get();
+            value |= v << 56;
+        }
+        return (value >>> 1) ^ (-(value & 1));
+    }
+}
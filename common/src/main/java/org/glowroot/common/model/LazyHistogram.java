@@ -15,31 +15,58 @@
  */
 package org.glowroot.common.model;
 
+import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 public class LazyHistogram {
 
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
+    private static final long[] EMPTY_VALUES = new long[0];
+
+    // histograms at 5 significant digits are large (a couple of MB for the counts array), so the
+    // agent's aggregation path pools and reuses them across aggregation intervals (see
+    // createPooled() and release())
+    private static final HistogramPool histogramPool =
+            new HistogramPool(Integer.getInteger("glowroot.internal.histogram.poolSize", 32));
 
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
+    // only histograms that were acquired from the pool are returned to the pool
+    private boolean pooledHistogram;
+
+    // whether the underlying HdrHistogram is acquired from the pool, this is only used by callers
+    // that reliably call release(), otherwise the pool would just be drained
+    private final boolean pooled;
+
+    public LazyHistogram() {
+        pooled = false;
+    }
 
-    public LazyHistogram() {}
+    private LazyHistogram(boolean pooled) {
+        this.pooled = pooled;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
@@ -54,10 +81,18 @@ public class LazyHistogram {
         } else {
             histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
         }
+        pooled = false;
+    }
+
+    // the caller must call release() once done with the histogram, so that the underlying
+    // HdrHistogram is returned to the pool
+    public static LazyHistogram createPooled() {
+        return new LazyHistogram(true);
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
-        final Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        Histogram histogram = this.histogram;
         if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
@@ -68,26 +103,62 @@ public class LazyHistogram {
                 builder.addOrderedRawValue(values[i]);
             }
         } else {
-            scratchBuffer.execute(histogram.getNeededByteBufferCapacity(), new DoWithByteBuffer() {
-                @Override
-                public void call(ByteBuffer buffer) {
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).clear();
-                    histogram.encodeIntoByteBuffer(buffer);
-                    int size = buffer.position();
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).flip();
-                    builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
-                }
-            });
+            ByteBuffer buffer = encodeIntoScratchBuffer(histogram, scratchBuffer);
+            builder.setEncodedBytes(ByteString.copyFrom(buffer, buffer.remaining()));
         }
         return builder.build();
     }
 
+    // alternative to toProto() that writes the Aggregate.Histogram message body directly to a
+    // CodedOutputStream, this returns the size of the message body and must be followed by
+    // writeEncoded() with the same scratch buffer (without any other use of the scratch buffer in
+    // between, since it holds the encoded histogram until then)
+    public int prepareEncoding(ScratchBuffer scratchBuffer) {
+        Histogram histogram = this.histogram;
+        if (histogram == null) {
+            if (!sorted) {
+                sortValues();
+            }
+            if (size == 0) {
+                return 0;
+            }
+            int dataSize = getOrderedRawValuesDataSize();
+            return CodedOutputStream.computeTagSize(1)
+                    + CodedOutputStream.computeUInt32SizeNoTag(dataSize) + dataSize;
+        }
+        int encodedSize = encodeIntoScratchBuffer(histogram, scratchBuffer).remaining();
+        if (encodedSize == 0) {
+            return 0;
+        }
+        return CodedOutputStream.computeTagSize(2)
+                + CodedOutputStream.computeUInt32SizeNoTag(encodedSize) + encodedSize;
+    }
+
+    public void writeEncoded(CodedOutputStream output, ScratchBuffer scratchBuffer)
+            throws IOException {
+        if (histogram == null) {
+            if (size == 0) {
+                return;
+            }
+            // ordered_raw_value is a packed repeated field
+            output.writeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(getOrderedRawValuesDataSize());
+            for (int i = 0; i < size; i++) {
+                output.writeInt64NoTag(values[i]);
+            }
+        } else {
+            ByteBuffer buffer = checkNotNull(scratchBuffer.buffer);
+            int encodedSize = buffer.remaining();
+            if (encodedSize == 0) {
+                return;
+            }
+            output.writeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(encodedSize);
+            output.writeRawBytes(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    encodedSize);
+        }
+    }
+
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
@@ -95,23 +166,31 @@ public class LazyHistogram {
                 add(rawValue);
             }
         } else {
+            Histogram histogram = this.histogram;
             if (histogram == null) {
-                convertValuesToHistogram();
+                histogram = convertValuesToHistogram();
+            }
+            // record the encoded counts directly into this histogram instead of decoding into an
+            // intermediate histogram first
+            if (!EncodedHistograms.recordInto(encodedBytes.asReadOnlyByteBuffer(), histogram)) {
+                histogram.add(
+                        Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        Histogram toBeMergedHdrHistogram = toBeMergedHistogram.histogram;
+        if (toBeMergedHdrHistogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
         } else {
+            Histogram histogram = this.histogram;
             if (histogram == null) {
-                convertValuesToHistogram();
+                histogram = convertValuesToHistogram();
             }
-            histogram.add(toBeMergedHistogram.histogram);
+            histogram.add(toBeMergedHdrHistogram);
         }
     }
 
@@ -133,6 +212,22 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    // resets this histogram to empty, returning the underlying HdrHistogram (if any) to the pool so
+    // that it can be reused by a subsequent aggregation interval
+    public void release() {
+        if (histogram != null) {
+            if (pooledHistogram) {
+                histogramPool.release(histogram);
+                pooledHistogram = false;
+            }
+            histogram = null;
+            // values was cleared out when converting to histogram
+            values = new long[8];
+        }
+        size = 0;
+        sorted = false;
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
@@ -161,14 +256,45 @@ public class LazyHistogram {
     }
 
     @EnsuresNonNull("histogram")
-    private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+    private Histogram convertValuesToHistogram() {
+        Histogram histogram = pooled ? histogramPool.acquire() : newHistogram();
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
-        values = new long[0];
+        values = EMPTY_VALUES;
+        this.histogram = histogram;
+        pooledHistogram = pooled;
+        return histogram;
+    }
+
+    private int getOrderedRawValuesDataSize() {
+        int dataSize = 0;
+        for (int i = 0; i < size; i++) {
+            dataSize += CodedOutputStream.computeInt64SizeNoTag(values[i]);
+        }
+        return dataSize;
+    }
+
+    private static ByteBuffer encodeIntoScratchBuffer(Histogram histogram,
+            ScratchBuffer scratchBuffer) {
+        ByteBuffer buffer = scratchBuffer.get(histogram.getNeededByteBufferCapacity());
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).clear();
+        histogram.encodeIntoByteBuffer(buffer);
+        // this cast is needed in order to avoid
+        // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
+        // when this code is compiled with Java 9 and run with Java 8 or earlier
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private static Histogram newHistogram() {
+        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
+        Histogram histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+        histogram.setAutoResize(true);
+        return histogram;
     }
 
     private void sortValues() {
@@ -176,23 +302,40 @@ public class LazyHistogram {
         sorted = true;
     }
 
+    // not thread safe, each thread encoding histograms should use its own scratch buffer
     public static class ScratchBuffer {
 
         private @MonotonicNonNull ByteBuffer buffer;
 
-        private final Object lock = new Object();
-
-        void execute(int requiredCapacity, DoWithByteBuffer doWithBuffer) {
-            synchronized (lock) {
-                if (buffer == null || buffer.capacity() < requiredCapacity) {
-                    buffer = ByteBuffer.allocate(requiredCapacity);
-                }
-                doWithBuffer.call(buffer);
+        private ByteBuffer get(int requiredCapacity) {
+            if (buffer == null || buffer.capacity() < requiredCapacity) {
+                buffer = ByteBuffer.allocate(requiredCapacity);
             }
+            return buffer;
         }
     }
 
-    interface DoWithByteBuffer {
-        void call(ByteBuffer buffer);
+    private static class HistogramPool {
+
+        private final BlockingQueue<Histogram> histograms;
+
+        private HistogramPool(int maxSize) {
+            histograms = new ArrayBlockingQueue<Histogram>(Math.max(maxSize, 1));
+        }
+
+        private Histogram acquire() {
+            Histogram histogram = histograms.poll();
+            if (histogram == null) {
+                histogram = newHistogram();
+            }
+            return histogram;
+        }
+
+        private void release(Histogram histogram) {
+            // reset() keeps the (possibly auto-resized) counts array, which is the point of pooling
+            histogram.reset();
+            // if the pool is already full, the histogram is simply left for garbage collection
+            histograms.offer(histogram);
+        }
     }
 }
@@ -127,6 +127,45 @@ public class MutableProfile {
         }
     }
 
+    static MutableProfile create(CompactProfile compactProfile) {
+        final MutableProfile profile = new MutableProfile();
+        // name indexes are preserved since this is a new profile
+        for (String packageName : compactProfile.getPackageNames()) {
+            getNameIndex(packageName, profile.packageNameIndexes, profile.packageNames);
+        }
+        for (String className : compactProfile.getClassNames()) {
+            getNameIndex(className, profile.classNameIndexes, profile.classNames);
+        }
+        for (String methodName : compactProfile.getMethodNames()) {
+            getNameIndex(methodName, profile.methodNameIndexes, profile.methodNames);
+        }
+        for (String fileName : compactProfile.getFileNames()) {
+            getNameIndex(fileName, profile.fileNameIndexes, profile.fileNames);
+        }
+        final CompactProfile from = compactProfile;
+        // destinations.get(depth) is the list that the next node at that depth is added to
+        final List<List<ProfileNode>> destinations = Lists.newArrayList();
+        destinations.add(profile.rootNodes);
+        compactProfile.accept(new CompactProfile.NodeVisitor() {
+            @Override
+            public void visit(int node, int depth) {
+                ProfileNode profileNode = profile.new ProfileNode(from.getPackageNameIndex(node),
+                        from.getClassNameIndex(node), from.getMethodNameIndex(node),
+                        from.getFileNameIndex(node), from.getLineNumber(node),
+                        from.getLeafThreadState(node));
+                profileNode.sampleCount = from.getSampleCount(node);
+                profileNode.ellipsedSampleCount = from.getEllipsedSampleCount(node);
+                destinations.get(depth).add(profileNode);
+                if (destinations.size() == depth + 1) {
+                    destinations.add(profileNode.childNodes);
+                } else {
+                    destinations.set(depth + 1, profileNode.childNodes);
+                }
+            }
+        });
+        return profile;
+    }
+
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
         for (String include : includes) {
@@ -254,7 +293,7 @@ public class MutableProfile {
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
+    static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
         if (index == null) {
@@ -265,7 +304,7 @@ public class MutableProfile {
         return index;
     }
 
-    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
+    static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
         }
@@ -300,7 +339,7 @@ public class MutableProfile {
                 && packageNameIndex == profileNode.packageNameIndex;
     }
 
-    private static int[] makeIndexMapping(List<String> toBeMergedNames,
+    static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
         for (int i = 0; i < toBeMergedNames.size(); i++) {
@@ -15,15 +15,26 @@
  */
 package org.glowroot.common.model;
 
+import org.checkerframework.checker.nullness.qual.Nullable;
+
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 public class ProfileCollector {
 
-    private final MutableProfile profile = new MutableProfile();
+    // merging into the compact representation keeps memory bounded when merging large numbers of
+    // profiles, and the MutableProfile is only built at the end (ideally after truncation)
+    private final CompactProfile profile = new CompactProfile();
+    private @Nullable MutableProfile mutableProfile;
     private long lastCaptureTime;
 
     public void mergeProfile(Profile profile) {
         this.profile.merge(profile);
+        mutableProfile = null;
+    }
+
+    public void truncateBranches(double truncateBranchPercentage) {
+        profile.truncateBranches(truncateBranchPercentage);
+        mutableProfile = null;
     }
 
     public void updateLastCaptureTime(long captureTime) {
@@ -35,6 +46,11 @@ public class ProfileCollector {
     }
 
     public MutableProfile getProfile() {
-        return profile;
+        MutableProfile mutableProfile = this.mutableProfile;
+        if (mutableProfile == null) {
+            mutableProfile = profile.toMutableProfile();
+            this.mutableProfile = mutableProfile;
+        }
+        return mutableProfile;
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactProfileTest {
+
+    private static final Thread.State[] THREAD_STATES =
+            {Thread.State.RUNNABLE, Thread.State.BLOCKED, Thread.State.WAITING};
+
+    @Test
+    public void shouldMergeSameAsMutableProfile() {
+        // given
+        Random random = new Random(0);
+        List<Profile> profiles = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            profiles.add(randomProfile(random));
+        }
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+        // when
+        for (Profile profile : profiles) {
+            mutableProfile.merge(profile);
+            compactProfile.merge(profile);
+        }
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(mutableProfile.toProto());
+        assertThat(compactProfile.getSampleCount()).isEqualTo(mutableProfile.getSampleCount());
+    }
+
+    @Test
+    public void shouldMergeStackTracesSameAsMutableProfile() {
+        // given
+        Random random = new Random(0);
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+        // when
+        for (int i = 0; i < 200; i++) {
+            List<StackTraceElement> stackTrace = randomStackTrace(random);
+            Thread.State threadState = THREAD_STATES[random.nextInt(THREAD_STATES.length)];
+            mutableProfile.merge(stackTrace, threadState);
+            compactProfile.merge(stackTrace, threadState);
+        }
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(mutableProfile.toProto());
+    }
+
+    @Test
+    public void shouldTruncateSameAsMutableProfile() throws Exception {
+        // given
+        Random random = new Random(0);
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+        for (int i = 0; i < 20; i++) {
+            Profile profile = randomProfile(random);
+            mutableProfile.merge(profile);
+            compactProfile.merge(profile);
+        }
+        // when
+        mutableProfile.truncateBranches(5);
+        compactProfile.truncateBranches(5);
+        // then
+        assertThat(compactProfile.toMutableProfile().toJson()).isEqualTo(mutableProfile.toJson());
+        assertThat(compactProfile.toMutableProfile().toFlameGraphJson())
+                .isEqualTo(mutableProfile.toFlameGraphJson());
+    }
+
+    @Test
+    public void shouldMergeAfterTruncate() {
+        // given
+        Random random = new Random(0);
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+        Profile profile = randomProfile(random);
+        mutableProfile.merge(profile);
+        compactProfile.merge(profile);
+        mutableProfile.truncateBranches(10);
+        compactProfile.truncateBranches(10);
+        // when
+        profile = randomProfile(random);
+        mutableProfile.merge(profile);
+        compactProfile.merge(profile);
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(mutableProfile.toProto());
+    }
+
+    private static Profile randomProfile(Random random) {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 50; i++) {
+            profile.merge(randomStackTrace(random),
+                    THREAD_STATES[random.nextInt(THREAD_STATES.length)]);
+        }
+        return profile.toProto();
+    }
+
+    private static List<StackTraceElement> randomStackTrace(Random random) {
+        List<StackTraceElement> stackTrace = Lists.newArrayList();
+        int depth = 1 + random.nextInt(12);
+        for (int i = 0; i < depth; i++) {
+            // small number of distinct frames so that branches are shared
+            int n = random.nextInt(4);
+            stackTrace.add(new StackTraceElement("org.example.pkg" + n + ".Class" + n,
+                    "method" + random.nextInt(3), "Class" + n + ".java", 10 * n + i));
+        }
+        return stackTrace;
+    }
+}
@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.io.ByteArrayOutputStream;
+
+import com.google.protobuf.CodedOutputStream;
+import org.HdrHistogram.Histogram;
 import org.junit.jupiter.api.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,41 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldMergeEncodedSameAsDecoded() throws Exception {
+        shouldMergeEncodedSameAsDecoded(2000000);
+        shouldMergeEncodedSameAsDecoded(10000000);
+        shouldMergeEncodedSameAsDecoded(100000000);
+    }
+
+    @Test
+    public void shouldWriteEncodedSameAsProto() throws Exception {
+        shouldWriteEncodedSameAsProto(0);
+        shouldWriteEncodedSameAsProto(100000);
+        shouldWriteEncodedSameAsProto(10000000);
+    }
+
+    @Test
+    public void shouldReuseAfterRelease() {
+        shouldReuseAfterRelease(LazyHistogram.createPooled());
+        shouldReuseAfterRelease(new LazyHistogram());
+    }
+
+    private void shouldReuseAfterRelease(LazyHistogram lazyHistogram) {
+        // given
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // when
+        lazyHistogram.release();
+        for (int i = 1000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertPercentile(lazyHistogram, 1000000, 50);
+        assertPercentile(lazyHistogram, 1000000, 99);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -153,6 +192,44 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    private void shouldMergeEncodedSameAsDecoded(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram();
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        Histogram decoded = Histogram.decodeFromByteBuffer(
+                histogram.getEncodedBytes().asReadOnlyByteBuffer(), 0);
+        for (double percentile : new double[] {0, 50, 95, 99, 99.9, 99.99, 100}) {
+            assertThat(lazyHistogram.getValueAtPercentile(percentile))
+                    .isEqualTo(decoded.getValueAtPercentile(percentile));
+        }
+    }
+
+    private void shouldWriteEncodedSameAsProto(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        // when
+        int size = lazyHistogram.prepareEncoding(scratchBuffer);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(baos);
+        lazyHistogram.writeEncoded(output, scratchBuffer);
+        output.flush();
+        // then
+        byte[] expected = lazyHistogram.toProto(new ScratchBuffer()).toByteArray();
+        assertThat(size).isEqualTo(expected.length);
+        assertThat(baos.toByteArray()).isEqualTo(expected);
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
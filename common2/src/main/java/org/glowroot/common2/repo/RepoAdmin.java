@@ -50,6 +50,8 @@ public interface RepoAdmin {
     List<CassandraWriteTotals> getCassandraWriteTotalsPerTransactionName(String tableName,
             String agentRollupId, String transactionType, int limit);
 
+    List<CassandraWriteAmplification> getCassandraWriteAmplificationPerAgentRollup(int limit);
+
     @Value.Immutable
     interface H2Table {
         String name();
@@ -86,4 +88,15 @@ public interface RepoAdmin {
         Map<String, Long> bytesWrittenPerColumn(); // only includes varchar and blob columns
         boolean drilldown();
     }
+
+    @Value.Immutable
+    interface CassandraWriteAmplification {
+        String agentRollupId();
+        // serialized size of the data received from the agent
+        long bytesReceived();
+        // includes rollup writes, and only includes varchar and blob columns
+        long bytesWritten();
+        long rowsWritten();
+        long writeRequests(); // a batch counts as a single write request
+    }
 }
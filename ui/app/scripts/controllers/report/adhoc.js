@@ -483,8 +483,18 @@ glowroot.controller('ReportAdhocCtrl', [
               // ignore this response, another response has been stacked
               return;
             }
-            var nodata = true;
             var data = response.data;
+            if (data.error) {
+              // a data series failed after the (streamed) response had already started
+              httpErrors.handle({
+                status: response.status,
+                data: {
+                  message: data.error
+                }
+              });
+              return;
+            }
+            var nodata = true;
             for (var i = 0; i < data.dataSeries.length; i++) {
               var points = data.dataSeries[i].data;
               if (nodata) {
@@ -118,7 +118,14 @@ glowroot.controller('ErrorMessagesCtrl', [
 
     $scope.tracesQueryString = function (errorMessage) {
       var query = $scope.buildQueryObject();
-      if (errorMessage.message.length <= 1000) {
+      if (appliedFilter && errorMessage.message.indexOf('#') !== -1) {
+        // filtered error messages can be counted per template (where each run of digits has been
+        // replaced with "#"), so linking to the traces that contain the longest part of the template
+        query.errorMessageComparator = 'contains';
+        query.errorMessage = errorMessage.message.split('#').reduce(function (longest, part) {
+          return part.length > longest.length ? part : longest;
+        }, '').substring(0, 1000);
+      } else if (errorMessage.message.length <= 1000) {
         query.errorMessageComparator = 'equals';
         query.errorMessage = errorMessage.message;
       } else {
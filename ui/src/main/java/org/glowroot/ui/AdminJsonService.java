@@ -682,6 +682,13 @@ class AdminJsonService {
         }
     }
 
+    @GET(path = "/backend/admin/cassandra-write-amplification", permission = "admin:view:storage")
+    String getCassandraWriteAmplification(@BindRequest CassandraWriteAmplificationRequest request)
+            throws JsonProcessingException {
+        return mapper.writeValueAsString(
+                repoAdmin.getCassandraWriteAmplificationPerAgentRollup(request.limit()));
+    }
+
     private @Nullable File getConfFile(String fileName) {
         for (File confDir : confDirs) {
             File confFile = new File(confDir, fileName);
@@ -833,6 +840,11 @@ class AdminJsonService {
         int limit();
     }
 
+    @Value.Immutable
+    interface CassandraWriteAmplificationRequest {
+        int limit();
+    }
+
     @Value.Immutable
     abstract static class EmbeddedAdminGeneralConfigDto {
 
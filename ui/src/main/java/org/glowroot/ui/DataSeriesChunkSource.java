@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.common.util.Throwables;
+
+// streams the report json, writing each data series as soon as it (and all data series before it)
+// have completed, instead of materializing every data series before writing any json
+//
+// at most "parallelism" data series of a single report are evaluated (or held in memory waiting
+// to be written) at any one time, so that a report across a large number of agent rollups cannot
+// monopolize the shared reporting executor, and memory is bounded regardless of the number of
+// agent rollups
+//
+// the first data series is awaited (see awaitFirstDataSeries()) before the response is committed,
+// so that a failure that affects every data series (e.g. storage unavailable) is returned as a
+// regular error response, and a failure of a later data series (after the response is committed)
+// is written to the json as an "error" field, so that the json is never truncated
+class DataSeriesChunkSource extends ChunkSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataSeriesChunkSource.class);
+
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    private final ExecutorService executor;
+    private final long dataPointIntervalMillis;
+    private final int parallelism;
+
+    private final Iterator<Callable<DataSeries>> pending;
+    // in the same order as the data series in the request
+    private final Deque<Future<DataSeries>> inFlight = new ArrayDeque<Future<DataSeries>>();
+
+    DataSeriesChunkSource(ExecutorService executor, List<Callable<DataSeries>> dataSeriesCallables,
+            long dataPointIntervalMillis, int parallelism) {
+        this.executor = executor;
+        this.dataPointIntervalMillis = dataPointIntervalMillis;
+        this.parallelism = Math.max(parallelism, 1);
+        pending = dataSeriesCallables.iterator();
+    }
+
+    // throws the failure of the first data series (if any)
+    void awaitFirstDataSeries() throws Exception {
+        submitPending();
+        Future<DataSeries> future = inFlight.peek();
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            cancelInFlight();
+            throw e;
+        } catch (ExecutionException e) {
+            cancelInFlight();
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ChunkCopier getCopier(Writer writer) throws IOException {
+        return new DataSeriesChunkCopier(writer);
+    }
+
+    private void submitPending() {
+        while (inFlight.size() < parallelism && pending.hasNext()) {
+            inFlight.add(executor.submit(pending.next()));
+        }
+    }
+
+    private void cancelInFlight() {
+        for (Future<DataSeries> future : inFlight) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+        while (pending.hasNext()) {
+            pending.next();
+        }
+    }
+
+    private class DataSeriesChunkCopier implements ChunkCopier {
+
+        private final JsonGenerator jg;
+
+        private boolean started;
+        private boolean finished;
+
+        private DataSeriesChunkCopier(Writer writer) throws IOException {
+            jg = mapper.getFactory().createGenerator(writer);
+            // the writer is owned by the caller
+            jg.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (!started) {
+                started = true;
+                jg.writeStartObject();
+                jg.writeArrayFieldStart("dataSeries");
+                submitPending();
+                jg.flush();
+                return true;
+            }
+            Future<DataSeries> future = inFlight.poll();
+            if (future == null) {
+                writeEnd(null);
+                return true;
+            }
+            DataSeries dataSeries;
+            try {
+                dataSeries = future.get();
+            } catch (InterruptedException e) {
+                finished = true;
+                cancelInFlight();
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                cancelInFlight();
+                Throwable cause = e.getCause();
+                logger.error(cause.getMessage(), cause);
+                writeEnd(Throwables.getBestMessage(cause));
+                return true;
+            }
+            // submit the next one before writing, so that it is evaluated while this one is written
+            submitPending();
+            jg.writeObject(dataSeries);
+            jg.flush();
+            return true;
+        }
+
+        private void writeEnd(@Nullable String errorMessage) throws IOException {
+            jg.writeEndArray();
+            if (errorMessage != null) {
+                jg.writeStringField("error", errorMessage);
+            }
+            jg.writeNumberField("dataPointIntervalMillis", dataPointIntervalMillis);
+            jg.writeEndObject();
+            jg.flush();
+            finished = true;
+        }
+    }
+}
@@ -24,9 +24,7 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
@@ -35,7 +33,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
-import com.google.common.io.CharStreams;
+import com.google.common.net.MediaType;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.glowroot.common2.repo.*;
@@ -45,7 +43,6 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.live.ImmutableAggregateQuery;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
-import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository;
 import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
@@ -68,6 +65,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 
@@ -79,6 +77,10 @@ class ReportJsonService {
     private static final Logger logger = LoggerFactory.getLogger(ReportJsonService.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // max number of data series (agent rollups) of a single report evaluated concurrently
+    private static final int REPORT_PARALLELISM =
+            Integer.getInteger("glowroot.internal.report.parallelism", 4);
+
     private final AgentDisplayRepository agentDisplayRepository;
     private final ConfigRepository configRepository;
     private final ActiveAgentRepository activeAgentRepository;
@@ -158,7 +160,7 @@ class ReportJsonService {
 
     // permission is checked based on agentRollupIds in the request
     @GET(path = "/backend/report", permission = "")
-    String getReport(final @BindRequest ReportRequest request,
+    CommonResponse getReport(final @BindRequest ReportRequest request,
             @BindAuthentication Authentication authentication) throws Exception {
         String metric = request.metric();
         if (metric.startsWith("transaction:")) {
@@ -197,7 +199,7 @@ class ReportJsonService {
                 throw new IllegalStateException("Unexpected rollup: " + request.rollup());
         }
 
-        List<Future<DataSeries>> dataSeriesFutures;
+        List<Callable<DataSeries>> dataSeriesCallables;
         long dataPointIntervalMillis;
         if (metric.startsWith("transaction:") || metric.startsWith("error:")) {
             int rollupLevel =
@@ -207,7 +209,7 @@ class ReportJsonService {
             if (rollupLevel == 3) {
                 verifyFourHourAggregateTimeZone(timeZone);
             }
-            dataSeriesFutures = getTransactionReport(request, timeZone, from, to, rollupLevel,
+            dataSeriesCallables = getTransactionReport(request, timeZone, from, to, rollupLevel,
                     rollupCaptureTimeFn, gapMillis);
             dataPointIntervalMillis =
                     configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
@@ -219,16 +221,16 @@ class ReportJsonService {
                 verifyFourHourAggregateTimeZone(timeZone);
             }
             final String gaugeName = metric.substring("gauge:".length());
-            dataSeriesFutures = Lists.newArrayList();
+            dataSeriesCallables = Lists.newArrayList();
             for (final String agentRollupId : request.agentRollupIds()) {
-                dataSeriesFutures.add(executor.submit(new Callable<DataSeries>() {
+                dataSeriesCallables.add(new Callable<DataSeries>() {
                     @Override
                     public DataSeries call() throws Exception {
                         return getDataSeriesForGauge(agentRollupId, gaugeName, from, to,
                                 rollupLevel, rollupCaptureTimeFn, request.rollup(), timeZone,
                                 gapMillis, CassandraProfile.web);
                     }
-                }));
+                });
             }
             if (rollupLevel == 0) {
                 dataPointIntervalMillis = configRepository.getGaugeCollectionIntervalMillis();
@@ -239,21 +241,13 @@ class ReportJsonService {
         } else {
             throw new IllegalStateException("Unexpected metric: " + metric);
         }
-        List<DataSeries> dataSeriesList = Lists.newArrayList();
-        for (Future<DataSeries> dataSeriesFuture : dataSeriesFutures) {
-            dataSeriesList.add(dataSeriesFuture.get());
-        }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeObjectField("dataSeries", dataSeriesList);
-            jg.writeNumberField("dataPointIntervalMillis", dataPointIntervalMillis);
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        // data series are evaluated lazily (with bounded parallelism) while streaming the response
+        DataSeriesChunkSource chunkSource = new DataSeriesChunkSource(executor,
+                dataSeriesCallables, dataPointIntervalMillis, REPORT_PARALLELISM);
+        // the streamed response is committed as 200 OK before any data series is written, so the
+        // first data series is awaited here in order to return its failure as an error response
+        chunkSource.awaitFirstDataSeries();
+        return new CommonResponse(OK, MediaType.JSON_UTF_8, chunkSource);
     }
 
     private static FromToPair parseDates(String fromDate, String toDate, TimeZone timeZone)
@@ -272,7 +266,7 @@ class ReportJsonService {
                 .build();
     }
 
-    private List<Future<DataSeries>> getTransactionReport(final ReportRequest request,
+    private List<Callable<DataSeries>> getTransactionReport(final ReportRequest request,
             final TimeZone timeZone, Date from, Date to, int rollupLevel,
             final RollupCaptureTimeFn rollupCaptureTimeFn, final double gapMillis)
             throws Exception {
@@ -285,16 +279,16 @@ class ReportJsonService {
                 .to(to.getTime())
                 .rollupLevel(rollupLevel)
                 .build();
-        List<Future<DataSeries>> dataSeriesList = Lists.newArrayList();
+        List<Callable<DataSeries>> dataSeriesList = Lists.newArrayList();
         final String metric = request.metric();
         for (final String agentRollupId : request.agentRollupIds()) {
-            dataSeriesList.add(executor.submit(new Callable<DataSeries>() {
+            dataSeriesList.add(new Callable<DataSeries>() {
                 @Override
                 public DataSeries call() throws Exception {
                     return getTransactionReport(request, timeZone, rollupCaptureTimeFn, gapMillis,
                             query, metric, agentRollupId);
                 }
-            }));
+            });
         }
         return dataSeriesList;
     }
@@ -377,42 +371,54 @@ class ReportJsonService {
                 new DataSeries(agentDisplayRepository.readFullDisplay(agentRollupId).toCompletableFuture().get());
         List<PercentileAggregate> aggregates =
                 aggregateRepository.readPercentileAggregates(agentRollupId, query, CassandraProfile.web).toCompletableFuture().get();
-        aggregates = TransactionCommonService.rollUpPercentileAggregates(aggregates,
-                rollupCaptureTimeFn);
         if (aggregates.isEmpty()) {
             return dataSeries;
         }
-        PercentileAggregate lastAggregate = Iterables.getLast(aggregates);
-        long lastCaptureTime = lastAggregate.captureTime();
-        long lastRollupCaptureTime = rollupCaptureTimeFn.apply(lastCaptureTime);
-        if (lastCaptureTime != lastRollupCaptureTime) {
-            aggregates.set(aggregates.size() - 1, ImmutablePercentileAggregate.builder()
-                    .copyFrom(lastAggregate)
-                    .captureTime(lastRollupCaptureTime)
-                    .build());
-        }
-        PercentileAggregate priorAggregate = null;
-        for (PercentileAggregate aggregate : aggregates) {
-            if (priorAggregate != null
-                    && aggregate.captureTime() - priorAggregate.captureTime() > gapMillis) {
-                dataSeries.addNull();
+        // the non-rolled-up aggregates are merged directly into histograms in a single pass,
+        // instead of rolling them up into intermediate encoded aggregates which then have to be
+        // decoded again for each data point and again for the overall value
+        LazyHistogram pointHistogram = new LazyHistogram();
+        LazyHistogram overallHistogram = new LazyHistogram();
+        try {
+            long currRollupCaptureTime = Long.MIN_VALUE;
+            long priorRollupCaptureTime = Long.MIN_VALUE;
+            for (PercentileAggregate aggregate : aggregates) {
+                long rollupCaptureTime = rollupCaptureTimeFn.apply(aggregate.captureTime());
+                if (rollupCaptureTime != currRollupCaptureTime
+                        && currRollupCaptureTime != Long.MIN_VALUE) {
+                    addPercentileDataPoint(dataSeries, pointHistogram, percentile,
+                            currRollupCaptureTime, priorRollupCaptureTime, rollup, timeZone,
+                            gapMillis);
+                    priorRollupCaptureTime = currRollupCaptureTime;
+                }
+                currRollupCaptureTime = rollupCaptureTime;
+                pointHistogram.merge(aggregate.durationNanosHistogram());
+                overallHistogram.merge(aggregate.durationNanosHistogram());
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(aggregate.durationNanosHistogram());
-            dataSeries.add(getIntervalAverage(rollup, timeZone, aggregate.captureTime()),
-                    durationNanosHistogram.getValueAtPercentile(percentile)
-                            / NANOSECONDS_PER_MILLISECOND);
-            priorAggregate = aggregate;
-        }
-        LazyHistogram mergedHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : aggregates) {
-            mergedHistogram.merge(aggregate.durationNanosHistogram());
+            addPercentileDataPoint(dataSeries, pointHistogram, percentile, currRollupCaptureTime,
+                    priorRollupCaptureTime, rollup, timeZone, gapMillis);
+            dataSeries.setOverall(overallHistogram.getValueAtPercentile(percentile)
+                    / NANOSECONDS_PER_MILLISECOND);
+        } finally {
+            pointHistogram.release();
+            overallHistogram.release();
         }
-        dataSeries.setOverall(
-                mergedHistogram.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
         return dataSeries;
     }
 
+    // releases the point histogram so that it can be reused for the next data point
+    private static void addPercentileDataPoint(DataSeries dataSeries, LazyHistogram pointHistogram,
+            double percentile, long rollupCaptureTime, long priorRollupCaptureTime, ROLLUP rollup,
+            TimeZone timeZone, double gapMillis) {
+        if (priorRollupCaptureTime != Long.MIN_VALUE
+                && rollupCaptureTime - priorRollupCaptureTime > gapMillis) {
+            dataSeries.addNull();
+        }
+        dataSeries.add(getIntervalAverage(rollup, timeZone, rollupCaptureTime),
+                pointHistogram.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
+        pointHistogram.release();
+    }
+
     private DataSeries getDataSeriesForThroughput(String agentRollupId, AggregateQuery query,
             RollupCaptureTimeFn rollupCaptureTimeFn, ROLLUP rollup, TimeZone timeZone,
             double gapMillis, ThroughputAggregateFn throughputAggregateFn) throws Exception {
@@ -371,10 +371,13 @@ class TransactionCommonService {
                                       List<String> includes, List<String> excludes, double truncateBranchPercentage)
             throws Exception {
         ProfileCollector profileCollector = getMergedProfile(agentRollupId, query, auxiliary, CassandraProfile.web);
-        MutableProfile profile = profileCollector.getProfile();
-        if (!includes.isEmpty() || !excludes.isEmpty()) {
-            profile.filter(includes, excludes);
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            // truncating prior to building the MutableProfile keeps the MutableProfile small
+            profileCollector.truncateBranches(truncateBranchPercentage);
+            return profileCollector;
         }
+        MutableProfile profile = profileCollector.getProfile();
+        profile.filter(includes, excludes);
         profile.truncateBranches(truncateBranchPercentage);
         return profileCollector;
     }
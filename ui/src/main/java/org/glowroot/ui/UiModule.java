@@ -134,8 +134,12 @@ public class UiModule {
             ThreadFactory threadFactory = new ThreadFactoryBuilder()
                     .setNameFormat("Glowroot-UI-Report-Worker")
                     .build();
-            reportingExecutor = new ThreadPoolExecutor(0, 10, 60, SECONDS,
+            // core pool size must equal max pool size, since with an unbounded queue the pool
+            // never grows beyond the core pool size (core pool size 0 meant a single thread)
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(10, 10, 60, SECONDS,
                     new LinkedBlockingQueue<Runnable>(), threadFactory);
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            reportingExecutor = threadPoolExecutor;
         } else {
             reportingExecutor = MoreExecutors.newDirectExecutorService();
         }
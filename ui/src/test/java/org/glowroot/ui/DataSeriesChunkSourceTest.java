@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.jupiter.api.Test;
+
+import org.glowroot.ui.ChunkSource.ChunkCopier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSeriesChunkSourceTest {
+
+    private final ExecutorService executor = MoreExecutors.newDirectExecutorService();
+
+    @Test
+    public void shouldWriteDataSeriesInRequestOrder() throws IOException {
+        // given
+        List<Callable<DataSeries>> callables = Lists.newArrayList();
+        callables.add(dataSeries("a", 1.5));
+        callables.add(dataSeries("b", 2.5));
+        callables.add(dataSeries("c", 3.5));
+        DataSeriesChunkSource chunkSource =
+                new DataSeriesChunkSource(executor, callables, 60000, 2);
+
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+        while (copier.copyNext()) {
+        }
+
+        // then
+        assertThat(writer.toString()).isEqualTo("{\"dataSeries\":["
+                + "{\"name\":\"a\",\"data\":[[1000,1.5]],\"overall\":1.5},"
+                + "{\"name\":\"b\",\"data\":[[1000,2.5]],\"overall\":2.5},"
+                + "{\"name\":\"c\",\"data\":[[1000,3.5]],\"overall\":3.5}],"
+                + "\"dataPointIntervalMillis\":60000}");
+    }
+
+    @Test
+    public void shouldBoundParallelism() throws IOException {
+        // given
+        final AtomicInteger callCount = new AtomicInteger();
+        List<Callable<DataSeries>> callables = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            callables.add(new Callable<DataSeries>() {
+                @Override
+                public DataSeries call() {
+                    callCount.incrementAndGet();
+                    return new DataSeries("x");
+                }
+            });
+        }
+        DataSeriesChunkSource chunkSource =
+                new DataSeriesChunkSource(executor, callables, 60000, 2);
+        ChunkCopier copier = chunkSource.getCopier(new CharArrayWriter());
+
+        // when
+        copier.copyNext();
+
+        // then
+        assertThat(callCount.get()).isEqualTo(2);
+        copier.copyNext();
+        assertThat(callCount.get()).isEqualTo(3);
+        while (copier.copyNext()) {
+        }
+        assertThat(callCount.get()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldThrowFirstDataSeriesFailureBeforeWriting() throws IOException {
+        // given
+        List<Callable<DataSeries>> callables = Lists.newArrayList();
+        callables.add(failure("boom"));
+        callables.add(dataSeries("b", 2.5));
+        DataSeriesChunkSource chunkSource =
+                new DataSeriesChunkSource(executor, callables, 60000, 2);
+
+        // when
+        Exception exception = null;
+        try {
+            chunkSource.awaitFirstDataSeries();
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(exception).isInstanceOf(IllegalStateException.class).hasMessage("boom");
+    }
+
+    @Test
+    public void shouldWriteErrorForLaterFailure() throws Exception {
+        // given
+        List<Callable<DataSeries>> callables = Lists.newArrayList();
+        callables.add(dataSeries("a", 1.5));
+        callables.add(failure("boom"));
+        callables.add(dataSeries("c", 3.5));
+        DataSeriesChunkSource chunkSource =
+                new DataSeriesChunkSource(executor, callables, 60000, 2);
+        chunkSource.awaitFirstDataSeries();
+
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+        while (copier.copyNext()) {
+        }
+
+        // then
+        assertThat(writer.toString()).isEqualTo("{\"dataSeries\":["
+                + "{\"name\":\"a\",\"data\":[[1000,1.5]],\"overall\":1.5}],"
+                + "\"error\":\"java.lang.IllegalStateException: boom\","
+                + "\"dataPointIntervalMillis\":60000}");
+    }
+
+    private static Callable<DataSeries> dataSeries(final String name, final double value) {
+        return new Callable<DataSeries>() {
+            @Override
+            public DataSeries call() {
+                DataSeries dataSeries = new DataSeries(name);
+                dataSeries.add(1000, value);
+                dataSeries.setOverall(value);
+                return dataSeries;
+            }
+        };
+    }
+
+    private static Callable<DataSeries> failure(final String message) {
+        return new Callable<DataSeries>() {
+            @Override
+            public DataSeries call() {
+                throw new IllegalStateException(message);
+            }
+        };
+    }
+}